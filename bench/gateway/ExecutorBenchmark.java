@@ -0,0 +1,225 @@
+package gateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the fixed thread pool and virtual thread executor modes with many
+ * concurrent clients searching against a stub API server with a fixed
+ * latency.
+ *
+ * Usage: <code>ExecutorBenchmark [clients] [requests] [delay]</code>, where
+ * clients is the number of concurrent clients, requests is the number of
+ * searches sent by each client, and delay is the latency of the stub API
+ * server in milliseconds.
+ */
+public class ExecutorBenchmark {
+
+	private static final String SEARCH = "/google-places-api-gateway/nearbysearch?location=40.4406,-79.9959&radius=500";
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		long delay = args.length > 2 ? Long.parseLong(args[2]) : 50;
+
+		StubPlacesServer stub = new StubPlacesServer(delay, 20);
+		try {
+			System.out.format(
+					"%d clients, %d requests each, %d ms API latency%n%n",
+					clients, requests, delay);
+			System.out.format("%-8s %12s %10s %10s %10s %8s%n", "mode",
+					"requests/s", "p50 ms", "p99 ms", "max ms", "errors");
+
+			for (String mode : new String[] { "fixed", "virtual" }) {
+				if (mode.equals("virtual") && !supportsVirtualThreads()) {
+					System.out.format("%-8s requires Java 21 or later%n", mode);
+					continue;
+				}
+
+				// Warm up before measuring
+				run(stub, mode, clients, Math.max(requests / 4, 1));
+				Result result = run(stub, mode, clients, requests);
+				System.out.format("%-8s %12.1f %10.1f %10.1f %10.1f %8d%n",
+						mode, result.throughput, result.percentile(0.50),
+						result.percentile(0.99), result.percentile(1.0),
+						result.errors);
+			}
+		} finally {
+			stub.stop();
+		}
+	}
+
+	/**
+	 * Runs clients against a gateway using the specified executor mode.
+	 *
+	 * @param stub
+	 *            the stub API server
+	 *
+	 * @param mode
+	 *            the executor mode
+	 *
+	 * @param clients
+	 *            the number of concurrent clients
+	 *
+	 * @param requests
+	 *            the number of requests sent by each client
+	 *
+	 * @return The measured throughput and latencies
+	 */
+	private static Result run(StubPlacesServer stub, String mode,
+			int clients, final int requests) throws Exception {
+		final int port = getFreePort();
+
+		// Allow as many API connections as clients so the executor is the
+		// only limit on concurrency
+		Properties properties = new Properties();
+		properties.setProperty("api.scheme", "http");
+		properties.setProperty("api.host", "localhost");
+		properties.setProperty("api.port", Integer.toString(stub.getPort()));
+		properties.setProperty("api.maxconnections", Integer.toString(clients));
+		properties.setProperty("cache.size", "0");
+		properties.setProperty("executor.mode", mode);
+		properties.setProperty("executor.maxconcurrency",
+				Integer.toString(clients));
+
+		Gateway gateway = new Gateway(port, null, properties, null, System.err);
+		gateway.start();
+		waitForPort(port);
+
+		final long[] latencies = new long[clients * requests];
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(clients);
+
+		for (int i = 0; i < clients; i++) {
+			final int client = i;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					for (int j = 0; j < requests; j++) {
+						long begin = System.nanoTime();
+						if (!search(port)) {
+							errors.incrementAndGet();
+						}
+						latencies[client * requests + j] = System.nanoTime()
+								- begin;
+					}
+				} catch (Exception e) {
+					errors.incrementAndGet();
+				} finally {
+					done.countDown();
+				}
+			});
+			thread.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		gateway.shutdown();
+		gateway.join();
+
+		return new Result(latencies, errors.get(), latencies.length * 1e9
+				/ elapsed);
+	}
+
+	/**
+	 * Sends a search to the gateway on a new connection.
+	 *
+	 * @param port
+	 *            the gateway port
+	 *
+	 * @return True if the search succeeded, false otherwise
+	 */
+	private static boolean search(int port) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		try {
+			socket.getOutputStream().write(
+					("GET " + SEARCH + " HTTP/1.0\r\n\r\n")
+							.getBytes(StandardCharsets.ISO_8859_1));
+
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				response.write(buffer, 0, read);
+			}
+			return response.toString("UTF-8").contains("\"status\": \"OK\"");
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static boolean supportsVirtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private static int getFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void waitForPort(int port) throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(20);
+			}
+		}
+		throw new IllegalStateException("Gateway did not start on port "
+				+ port);
+	}
+
+	/**
+	 * The results of a benchmark run.
+	 */
+	private static class Result {
+
+		private final long[] latencies;
+		private final int errors;
+		private final double throughput;
+
+		public Result(long[] latencies, int errors, double throughput) {
+			this.latencies = latencies.clone();
+			Arrays.sort(this.latencies);
+			this.errors = errors;
+			this.throughput = throughput;
+		}
+
+		/**
+		 * Gets a latency percentile in milliseconds.
+		 *
+		 * @param percentile
+		 *            the percentile between 0 and 1
+		 *
+		 * @return The latency in milliseconds
+		 */
+		public double percentile(double percentile) {
+			int index = (int) Math.ceil(percentile * latencies.length) - 1;
+			return latencies[Math.max(index, 0)] / 1e6;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package gateway;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import log.Log;
+
+/**
+ * Compares the latency of geographic queries on the results through the
+ * spatial index of places with the same queries as a full scan of the results.
+ *
+ * Usage: <code>GeoQueryBenchmark [results] [iterations]</code>, where results
+ * is the number of results in the database, spread evenly over a region of
+ * about 1300 by 4000 kilometers, and iterations is the number of times each
+ * query is run.
+ */
+public class GeoQueryBenchmark {
+
+	private static final String INSERT_RESULT = "INSERT INTO results (sessionid, timestamp, username, placeid, lat, lng) "
+			+ "VALUES (?, ?, ?, ?, ?, ?);";
+
+	// The same distance and area as the gateway, without the spatial index
+	private static final String SCAN_RADIUS = "SELECT sessionid, timestamp, username, placeid, lat, lng, "
+			+ "(lat-?)*(lat-?)+(lng-?)*(lng-?)*?*? AS distance FROM results "
+			+ "WHERE distance<=? ORDER BY distance LIMIT ?;";
+	private static final String SCAN_BOUNDS = "SELECT sessionid, timestamp, username, placeid, lat, lng, "
+			+ "(lat-?)*(lat-?)+(lng-?)*(lng-?)*?*? AS distance FROM results "
+			+ "WHERE lat BETWEEN ? AND ? AND lng BETWEEN ? AND ? ORDER BY distance LIMIT ?;";
+
+	private static final List<String> RESULT_COLUMNS = Arrays.asList(
+			"sessionid", "timestamp", "username", "placeid", "lat", "lng");
+	private static final Set<String> EXCLUDED_PARAMETERS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList("pretty")));
+
+	private static final int USERS = 1000;
+	private static final double SOUTH = 30;
+	private static final double WEST = -120;
+	private static final double HEIGHT = 12;
+	private static final double WIDTH = 45;
+	private static final double LAT = 37.77;
+	private static final double LNG = -100.42;
+
+	public static void main(String[] args) throws Exception {
+		int results = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		File file = File.createTempFile("geo-benchmark", ".db");
+		Connection connection = DriverManager.getConnection("jdbc:sqlite:"
+				+ file.getPath());
+		try {
+			Schema.migrate(connection, new Log(null, System.err));
+
+			long start = System.nanoTime();
+			populate(connection, results);
+			System.out.format("%d results populated in %.1f s%n%n", results,
+					(System.nanoTime() - start) / 1e9);
+
+			String location = "location=" + LAT + "," + LNG;
+			String[] queries = { location + "&radius=1000",
+					location + "&radius=10000",
+					location + "&radius=100000",
+					location + "&radius=100000&limit=1000",
+					location + "&radius=100000&user=user42",
+					"bounds=37.6,-100.6|37.9,-100.2" };
+
+			System.out.format("%-64s %8s %12s %12s%n", "query", "rows",
+					"index ms", "scan ms");
+			for (String query : queries) {
+				Request request = new Request("/resultgeoquery?" + query);
+				GeoQuery geoQuery = new GeoQuery(request, RESULT_COLUMNS,
+						EXCLUDED_PARAMETERS, 20, 1000);
+				int rows = run(connection, geoQuery.getQuery(),
+						geoQuery.getParameters());
+				double index = measure(connection, geoQuery.getQuery(),
+						geoQuery.getParameters(), iterations);
+
+				// Filtering by user is left out of the scan, which only
+				// makes the scan faster
+				String scan = query.contains("bounds") ? SCAN_BOUNDS
+						: SCAN_RADIUS;
+				List<Object> parameters = getScanParameters(request,
+						geoQuery.getLimit());
+				double full = measure(connection, scan, parameters,
+						Math.max(iterations / 10, 1));
+
+				System.out.format("%-64s %8d %12.3f %12.3f%n", query, rows,
+						index, full);
+			}
+		} finally {
+			connection.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Fills the database with results spread evenly over the region, each of
+	 * a different place. The searches of the results are added by the
+	 * database.
+	 */
+	private static void populate(Connection connection, int results)
+			throws SQLException {
+		connection.setAutoCommit(false);
+		PreparedStatement insertResult = connection
+				.prepareStatement(INSERT_RESULT);
+		Random random = new Random(42);
+
+		for (int i = 0; i < results; i++) {
+			insertResult.setString(1, "session" + i / 3);
+			insertResult.setLong(2, i);
+			insertResult.setString(3, "user" + random.nextInt(USERS));
+			insertResult.setString(4, "place" + i);
+			insertResult.setDouble(5, SOUTH + random.nextDouble() * HEIGHT);
+			insertResult.setDouble(6, WEST + random.nextDouble() * WIDTH);
+			insertResult.addBatch();
+
+			if (i % 10000 == 9999) {
+				insertResult.executeBatch();
+			}
+		}
+		insertResult.executeBatch();
+		connection.commit();
+		connection.setAutoCommit(true);
+		insertResult.close();
+	}
+
+	/**
+	 * Gets the parameters of the full scan query for a request.
+	 */
+	private static List<Object> getScanParameters(Request request, int limit)
+			throws MalformedURLException {
+		String[] bounds = request.get(GeoQuery.BOUNDS) == null ? null
+				: request.get(GeoQuery.BOUNDS).split("[,|]");
+		double lat = bounds == null ? LAT : (Double.parseDouble(bounds[0])
+				+ Double.parseDouble(bounds[2])) / 2;
+		double lng = bounds == null ? LNG : (Double.parseDouble(bounds[1])
+				+ Double.parseDouble(bounds[3])) / 2;
+		double scale = Math.cos(Math.toRadians(lat));
+
+		List<Object> parameters = new ArrayList<Object>(Arrays.<Object> asList(
+				lat, lat, lng, lng, scale, scale));
+		if (bounds == null) {
+			double radius = Double.parseDouble(request.get(GeoQuery.RADIUS))
+					/ GeoQuery.METERS_PER_DEGREE;
+			parameters.add(radius * radius);
+		} else {
+			parameters.add(Double.parseDouble(bounds[0]));
+			parameters.add(Double.parseDouble(bounds[2]));
+			parameters.add(Double.parseDouble(bounds[1]));
+			parameters.add(Double.parseDouble(bounds[3]));
+		}
+		parameters.add(limit);
+		return parameters;
+	}
+
+	/**
+	 * Runs a query repeatedly, reading every row.
+	 *
+	 * @return The average latency in milliseconds
+	 */
+	private static double measure(Connection connection, String query,
+			List<Object> parameters, int iterations) throws SQLException {
+		// Warm up the page cache before measuring
+		run(connection, query, parameters);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			run(connection, query, parameters);
+		}
+		return (System.nanoTime() - start) / 1e6 / iterations;
+	}
+
+	private static int run(Connection connection, String query,
+			List<Object> parameters) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(query);
+		int rows = 0;
+		try {
+			for (int i = 0; i < parameters.size(); i++) {
+				statement.setObject(i + 1, parameters.get(i));
+			}
+			ResultSet resultSet = statement.executeQuery();
+			while (resultSet.next()) {
+				rows++;
+			}
+			resultSet.close();
+		} finally {
+			statement.close();
+		}
+		return rows;
+	}
+}
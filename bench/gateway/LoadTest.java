@@ -0,0 +1,404 @@
+package gateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the throughput and latency of a gateway serving a mix of searches,
+ * queries and counts, against a stub API server and a temporary database.
+ *
+ * In a closed loop, each client sends a request as soon as its previous
+ * request completes, which measures the throughput of the gateway. In an open
+ * loop, requests are sent at a fixed rate whether or not earlier requests have
+ * completed, and latencies are measured from when each request was due to be
+ * sent, so they include any time spent waiting behind slow requests.
+ *
+ * Usage: <code>LoadTest [mode] [load] [seconds] [delay] [errorrate]</code>,
+ * where mode is <code>closed</code> or <code>open</code>, load is the number of
+ * clients in a closed loop or the requests per second in an open loop, seconds
+ * is the length of the measurement after a warm up, delay is the latency of
+ * the stub API server in milliseconds, and errorrate is the fraction of
+ * searches that fail on the stub API server.
+ */
+public class LoadTest {
+
+	private static final String PATH = "/google-places-api-gateway/";
+	private static final String CREDENTIALS = "username=loadtest&password=loadtest";
+
+	// The requests sent, and how often each is sent relative to the others
+	private static final String[] ENDPOINTS = { "nearbysearch", "textsearch",
+			"radarsearch", "resultquery", "resultgeoquery", "searchcount" };
+	private static final int[] WEIGHTS = { 30, 20, 10, 20, 10, 10 };
+
+	// The number of distinct locations searched, so that some searches are
+	// served from the response cache
+	private static final int LOCATIONS = 1000;
+
+	private static final long WARM_UP_SECONDS = 5;
+	private static final int MAX_OUTSTANDING = 10000;
+
+	// Gateway responses that succeeded, pretty printed or not
+	private static final Pattern SUCCESS = Pattern
+			.compile("\"status\" ?: ?\"(OK|ZERO_RESULTS)\"");
+
+	public static void main(String[] args) throws Exception {
+		boolean open = args.length > 0 && args[0].equals("open");
+		int load = args.length > 1 ? Integer.parseInt(args[1]) : open ? 200
+				: 50;
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 30;
+		long delay = args.length > 3 ? Long.parseLong(args[3]) : 50;
+		double errorRate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+
+		// Keep a connection to the gateway open for each concurrent request
+		System.setProperty("http.maxConnections",
+				Integer.toString(open ? MAX_OUTSTANDING : load));
+
+		StubPlacesServer stub = new StubPlacesServer(0, delay, 20, 200,
+				errorRate);
+		File file = File.createTempFile("load-test", ".db");
+		int port = getFreePort();
+		Gateway gateway = startGateway(port, file, stub, open ? 100 : load);
+		try {
+			if (!send(port, "adduser",
+					"newusername=loadtest&newpassword=loadtest")) {
+				throw new IllegalStateException("Could not add the user");
+			}
+
+			System.out.format("%s loop, %d %s, %d s after a %d s warm up, "
+					+ "%d ms API latency, %.1f%% API errors%n%n",
+					open ? "open" : "closed", load, open ? "requests/s"
+							: "clients", seconds, WARM_UP_SECONDS, delay,
+					errorRate * 100);
+
+			Recorder[] recorders = new Recorder[ENDPOINTS.length];
+			for (int i = 0; i < ENDPOINTS.length; i++) {
+				recorders[i] = new Recorder();
+			}
+			long start = System.nanoTime();
+			long measureStart = start
+					+ TimeUnit.SECONDS.toNanos(WARM_UP_SECONDS);
+			long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+			if (open) {
+				runOpenLoop(port, load, start, measureStart, end, recorders);
+			} else {
+				runClosedLoop(port, load, measureStart, end, recorders);
+			}
+
+			report(recorders, seconds);
+			System.out.format("%n%d searches reached the stub API server, "
+					+ "%d failed there%n", stub.getSearchCount(),
+					stub.getErrorCount());
+		} finally {
+			gateway.shutdown();
+			gateway.join();
+			stub.stop();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Starts a gateway that searches the stub API server and audits to a
+	 * temporary database.
+	 *
+	 * @param concurrency
+	 *            the number of requests handled at once
+	 *
+	 * @return The gateway
+	 */
+	private static Gateway startGateway(int port, File file,
+			StubPlacesServer stub, int concurrency) throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("api.scheme", "http");
+		properties.setProperty("api.host", "localhost");
+		properties.setProperty("api.port", Integer.toString(stub.getPort()));
+		properties.setProperty("api.maxconnections",
+				Integer.toString(concurrency));
+		properties.setProperty("executor.maxconcurrency",
+				Integer.toString(concurrency));
+		properties.setProperty("http.maxrequests", "1000000");
+
+		Gateway gateway = new Gateway(port, "jdbc:sqlite:" + file.getPath(),
+				properties, null, System.err);
+		gateway.start();
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket("localhost", port).close();
+				return gateway;
+			} catch (IOException e) {
+				Thread.sleep(20);
+			}
+		}
+		throw new IllegalStateException("Gateway did not start on port "
+				+ port);
+	}
+
+	/**
+	 * Sends requests from clients that each wait for their previous request
+	 * to complete.
+	 */
+	private static void runClosedLoop(final int port, int clients,
+			final long measureStart, final long end, final Recorder[] recorders)
+			throws InterruptedException {
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread(() -> {
+				long now;
+				while ((now = System.nanoTime()) < end) {
+					int endpoint = chooseEndpoint();
+					boolean success = send(port, endpoint);
+					long finish = System.nanoTime();
+					if (now >= measureStart) {
+						recorders[endpoint].record(finish - now, success);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Sends requests at a fixed rate, each on its own thread.
+	 */
+	private static void runOpenLoop(final int port, int rate, long start,
+			final long measureStart, long end, final Recorder[] recorders)
+			throws InterruptedException {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		final Semaphore outstanding = new Semaphore(MAX_OUTSTANDING);
+		long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		int skipped = 0;
+
+		for (long due = start; due < end; due += interval) {
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+
+			final int endpoint = chooseEndpoint();
+			final long scheduled = due;
+			if (!outstanding.tryAcquire()) {
+				// The gateway has fallen too far behind to keep up
+				if (due >= measureStart) {
+					recorders[endpoint].record(0, false);
+					skipped++;
+				}
+				continue;
+			}
+			executor.execute(() -> {
+				try {
+					boolean success = send(port, endpoint);
+					if (scheduled >= measureStart) {
+						recorders[endpoint].record(System.nanoTime()
+								- scheduled, success);
+					}
+				} finally {
+					outstanding.release();
+				}
+			});
+		}
+
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		if (skipped > 0) {
+			System.out.format("%d requests were not sent because %d were "
+					+ "outstanding, and are counted as errors%n%n", skipped,
+					MAX_OUTSTANDING);
+		}
+	}
+
+	/**
+	 * Chooses the endpoint of the next request by its weight.
+	 *
+	 * @return The index of the endpoint
+	 */
+	private static int chooseEndpoint() {
+		int total = 0;
+		for (int weight : WEIGHTS) {
+			total += weight;
+		}
+		int choice = ThreadLocalRandom.current().nextInt(total);
+		for (int i = 0; i < WEIGHTS.length; i++) {
+			choice -= WEIGHTS[i];
+			if (choice < 0) {
+				return i;
+			}
+		}
+		return WEIGHTS.length - 1;
+	}
+
+	/**
+	 * Sends a request with random parameters to an endpoint.
+	 *
+	 * @return True if the request succeeded, false otherwise
+	 */
+	private static boolean send(int port, int endpoint) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int place = random.nextInt(LOCATIONS);
+		String location = String.format(Locale.ROOT, "location=%.4f,%.4f",
+				40.4406 + place / 100 * 0.01, -79.9959 + place % 100 * 0.01);
+
+		String parameters;
+		switch (ENDPOINTS[endpoint]) {
+		case "nearbysearch":
+			parameters = location + "&radius=500&types=cafe";
+			break;
+		case "textsearch":
+			parameters = location + "&radius=1000&query=pizza";
+			break;
+		case "radarsearch":
+			parameters = location + "&radius=5000&keyword=coffee";
+			break;
+		case "resultgeoquery":
+			parameters = location + "&radius=1000&limit=20";
+			break;
+		case "searchcount":
+			parameters = "groupby=searchtype";
+			break;
+		default:
+			parameters = "limit=20";
+			break;
+		}
+		return send(port, ENDPOINTS[endpoint], CREDENTIALS + "&" + parameters);
+	}
+
+	/**
+	 * Sends a request to the gateway, reusing an idle connection if there is
+	 * one.
+	 *
+	 * @param parameters
+	 *            the query of the request
+	 *
+	 * @return True if the request succeeded, false otherwise
+	 */
+	private static boolean send(int port, String endpoint, String parameters) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL("http",
+					"localhost", port, PATH + endpoint + "?" + parameters)
+					.openConnection();
+			int statusCode = connection.getResponseCode();
+			InputStream in = statusCode < 400 ? connection.getInputStream()
+					: connection.getErrorStream();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			if (in != null) {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					response.write(buffer, 0, read);
+				}
+				in.close();
+			}
+			return statusCode == 200
+					&& SUCCESS.matcher(response.toString("UTF-8")).find();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Prints the throughput and latency percentiles of each endpoint.
+	 */
+	private static void report(Recorder[] recorders, long seconds) {
+		System.out.format("%-16s %9s %8s %11s %9s %9s %9s %9s%n", "endpoint",
+				"requests", "errors", "requests/s", "p50 ms", "p99 ms",
+				"p999 ms", "max ms");
+		Recorder all = new Recorder();
+		for (int i = 0; i < recorders.length; i++) {
+			report(ENDPOINTS[i], recorders[i], seconds);
+			all.addAll(recorders[i]);
+		}
+		report("all", all, seconds);
+	}
+
+	private static void report(String name, Recorder recorder, long seconds) {
+		long[] latencies = recorder.getLatencies();
+		System.out.format("%-16s %9d %8d %11.1f %9.2f %9.2f %9.2f %9.2f%n",
+				name, latencies.length, recorder.errors, (double) latencies.length
+						/ seconds, percentile(latencies, 0.50),
+				percentile(latencies, 0.99), percentile(latencies, 0.999),
+				percentile(latencies, 1.0));
+	}
+
+	/**
+	 * Gets a latency percentile in milliseconds.
+	 *
+	 * @param latencies
+	 *            the sorted latencies in nanoseconds
+	 *
+	 * @param percentile
+	 *            the percentile between 0 and 1
+	 *
+	 * @return The latency in milliseconds, or 0 if there are no latencies
+	 */
+	private static double percentile(long[] latencies, double percentile) {
+		if (latencies.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile * latencies.length) - 1;
+		return latencies[Math.max(index, 0)] / 1e6;
+	}
+
+	private static int getFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * The latencies and errors of the requests to an endpoint.
+	 */
+	private static class Recorder {
+
+		private long[] latencies = new long[1024];
+		private int count = 0;
+		private int errors = 0;
+
+		public synchronized void record(long nanos, boolean success) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = nanos;
+			if (!success) {
+				errors++;
+			}
+		}
+
+		public synchronized void addAll(Recorder recorder) {
+			for (long latency : recorder.getLatencies()) {
+				record(latency, true);
+			}
+			errors += recorder.errors;
+		}
+
+		/**
+		 * Gets the recorded latencies.
+		 *
+		 * @return The latencies in nanoseconds, sorted
+		 */
+		public synchronized long[] getLatencies() {
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
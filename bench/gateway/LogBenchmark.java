@@ -0,0 +1,172 @@
+package gateway;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import log.Log;
+
+/**
+ * Compares the throughput of an accept loop that logs each accepted
+ * connection, and of threads logging concurrently, with the log writing each
+ * message as it is logged and with the buffered log. Messages are written to
+ * a temporary file.
+ *
+ * Usage: <code>LogBenchmark [connections] [messages]</code>, where connections
+ * is the number of connections accepted and messages is the number of
+ * messages logged by each thread.
+ */
+public class LogBenchmark {
+
+	private static final int CLIENTS = 4;
+	private static final int THREADS = 4;
+	private static final int BUFFER_SIZE = 8192;
+	private static final int BATCH_SIZE = 256;
+	private static final long FLUSH_INTERVAL = 100;
+
+	private static final String[] MODES = { "none", "sync", "async" };
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+		File file = File.createTempFile("log-benchmark", ".log");
+		try {
+			System.out.format("%d connections from %d clients%n%n",
+					connections, CLIENTS);
+			System.out.format("%-8s %14s %10s%n", "mode", "accepts/s",
+					"dropped");
+			for (String mode : MODES) {
+				// Warm up before measuring
+				acceptLoop(newLog(mode, file), connections / 4);
+				Log log = newLog(mode, file);
+				double throughput = acceptLoop(log, connections);
+				System.out.format("%-8s %14.1f %10d%n", mode, throughput,
+						log.getDroppedCount());
+			}
+
+			System.out.format("%n%d messages from each of %d threads%n%n",
+					messages, THREADS);
+			System.out.format("%-8s %14s %14s %10s%n", "mode", "messages/s",
+					"written/s", "dropped");
+			for (String mode : MODES) {
+				logConcurrently(newLog(mode, file), messages / 4);
+				Log log = newLog(mode, file);
+				double seconds = logConcurrently(log, messages);
+				long total = (long) messages * THREADS;
+				long dropped = log.getDroppedCount();
+				System.out.format("%-8s %14.1f %14.1f %10d%n", mode, total
+						/ seconds, (total - dropped) / seconds, dropped);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Creates a log that writes debug messages to the temporary file.
+	 *
+	 * @param mode
+	 *            <code>none</code> to discard messages, <code>sync</code> to
+	 *            write each message as it is logged or <code>async</code> to
+	 *            buffer messages
+	 *
+	 * @return The log
+	 */
+	private static Log newLog(String mode, File file) throws IOException {
+		if (mode.equals("none")) {
+			return new Log(null, null);
+		}
+		PrintStream stream = new PrintStream(new BufferedOutputStream(
+				new FileOutputStream(file), 8192), false);
+		return new Log(stream, stream, Log.Level.DEBUG,
+				mode.equals("async") ? BUFFER_SIZE : 0, BATCH_SIZE,
+				FLUSH_INTERVAL);
+	}
+
+	/**
+	 * Accepts connections from concurrent clients, logging each connection
+	 * the way the gateway does.
+	 *
+	 * @return The number of connections accepted per second, until every
+	 *         message is written
+	 */
+	private static double acceptLoop(Log log, final int connections)
+			throws Exception {
+		final ServerSocket serverSocket = new ServerSocket(0, 1024,
+				InetAddress.getLoopbackAddress());
+		final AtomicInteger remaining = new AtomicInteger(connections);
+		Thread[] clients = new Thread[CLIENTS];
+		for (int i = 0; i < CLIENTS; i++) {
+			clients[i] = new Thread(() -> {
+				while (remaining.getAndDecrement() > 0) {
+					try {
+						new Socket(serverSocket.getInetAddress(), serverSocket
+								.getLocalPort()).close();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		for (Thread client : clients) {
+			client.start();
+		}
+		try {
+			for (int i = 0; i < connections; i++) {
+				Socket clientSocket = serverSocket.accept();
+				if (log.isEnabled(Log.Level.DEBUG)) {
+					log.d("Accepted connection from "
+							+ clientSocket.getInetAddress().getHostAddress()
+							+ ":" + clientSocket.getPort());
+				}
+				clientSocket.close();
+			}
+			log.close();
+		} finally {
+			serverSocket.close();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		for (Thread client : clients) {
+			client.join();
+		}
+		return connections / (elapsed / 1e9);
+	}
+
+	/**
+	 * Logs messages from concurrent threads, as request handlers do.
+	 *
+	 * @return The elapsed seconds, until every message is written
+	 */
+	private static double logConcurrently(final Log log, final int messages)
+			throws InterruptedException {
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final String name = "handler" + i;
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < messages; j++) {
+					log.i(name + " handled request " + j);
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		log.close();
+		return (System.nanoTime() - start) / 1e9;
+	}
+}
@@ -0,0 +1,130 @@
+package gateway;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compares the time and memory allocated to extract the status and results of
+ * a search response by parsing it with org.json and by scanning it with
+ * {@link PlaceResultScanner}.
+ *
+ * Usage: <code>PlaceResultScannerBenchmark [results] [iterations]</code>,
+ * where results is the number of results in the response. Radar searches
+ * return up to 200 results.
+ */
+public class PlaceResultScannerBenchmark {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	// Prevents the extracted values from being optimized away
+	private static double sink = 0;
+
+	/**
+	 * A method of extracting the status and results from a response.
+	 */
+	private interface Extractor {
+		void extract(byte[] body) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int results = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		byte[] body = StubPlacesServer.createBody(results);
+		System.out.format("%d results, %d byte response, %d iterations%n%n",
+				results, body.length, iterations);
+		System.out.format("%-8s %12s %14s%n", "method", "us/op", "bytes/op");
+
+		Extractor json = PlaceResultScannerBenchmark::extractWithJson;
+		Extractor scanner = PlaceResultScannerBenchmark::extractWithScanner;
+
+		// Warm up before measuring
+		measure(json, body, iterations);
+		measure(scanner, body, iterations);
+
+		report("org.json", json, body, iterations);
+		report("scanner", scanner, body, iterations);
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	private static void report(String name, Extractor extractor, byte[] body,
+			int iterations) throws Exception {
+		long[] measured = measure(extractor, body, iterations);
+		System.out.format("%-8s %12.2f %14d%n", name, measured[0] / 1000.0
+				/ iterations, measured[1] / iterations);
+	}
+
+	/**
+	 * Runs an extractor repeatedly.
+	 *
+	 * @return The elapsed nanoseconds and the bytes allocated by this thread
+	 */
+	private static long[] measure(Extractor extractor, byte[] body,
+			int iterations) throws Exception {
+		long allocated = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			extractor.extract(body);
+		}
+		long elapsed = System.nanoTime() - start;
+		return new long[] { elapsed, getAllocatedBytes() - allocated };
+	}
+
+	/**
+	 * Extracts the fields the way the gateway did before the scanner, by
+	 * decoding the body and building a {@link JSONObject}.
+	 */
+	private static void extractWithJson(byte[] body) {
+		JSONObject jsonResponse = new JSONObject(new String(body,
+				StandardCharsets.UTF_8));
+		String status = jsonResponse.getString("status");
+		JSONArray results = jsonResponse.getJSONArray("results");
+		for (int i = 0; i < results.length(); i++) {
+			JSONObject result = results.getJSONObject(i);
+			JSONObject location = result.getJSONObject("geometry")
+					.getJSONObject("location");
+			sink += result.getString("place_id").length()
+					+ location.getDouble("lat") + location.getDouble("lng");
+		}
+		sink += status.length();
+	}
+
+	/**
+	 * Extracts the fields with the scanner, feeding the body in the pieces it
+	 * would arrive in from the API server.
+	 */
+	private static void extractWithScanner(byte[] body) throws Exception {
+		PlaceResultScanner scanner = new PlaceResultScanner();
+		for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+			scanner.update(body, offset,
+					Math.min(CHUNK_SIZE, body.length - offset));
+		}
+		scanner.finish();
+		for (int i = 0; i < scanner.getResultCount(); i++) {
+			sink += scanner.getPlaceId(i).length() + scanner.getLat(i)
+					+ scanner.getLng(i);
+		}
+		sink += scanner.getStatus().length();
+	}
+
+	/**
+	 * Gets the bytes allocated by the current thread, if the JVM supports
+	 * measuring it.
+	 *
+	 * @return The bytes allocated, or 0 if unsupported
+	 */
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory
+				.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,167 @@
+package gateway;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Compares the time and memory allocated to parse request targets and build
+ * the queries of a search with {@link Request} and with the parser it
+ * replaced, which built a {@link URL} and split the query with regular
+ * expressions.
+ *
+ * Usage: <code>RequestBenchmark [iterations]</code>
+ */
+public class RequestBenchmark {
+
+	private static final Set<String> CREDENTIAL_PARAMETERS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList("username",
+					"password")));
+
+	// Targets of a search, a search with escaped values and a query
+	private static final String[] TARGETS = {
+			"/google-places-api-gateway/nearbysearch?username=user42&password=secret"
+					+ "&location=40.4406,-79.9959&radius=5000&types=cafe|restaurant"
+					+ "&language=en&opennow=true",
+			"/google-places-api-gateway/textsearch?username=user42&password=secret"
+					+ "&query=pizza+near+Caf%C3%A9+Monde&location=40.4406%2C-79.9959"
+					+ "&radius=5000&minprice=1&maxprice=3",
+			"/google-places-api-gateway/resultquery?username=user42&password=secret"
+					+ "&placeid=ChIJN1t_tDeuEmsRUsoyG83frY4&since=1400000000000&limit=100" };
+
+	// Prevents the parsed values from being optimized away
+	private static long sink = 0;
+
+	/**
+	 * A method of parsing a request target.
+	 */
+	private interface Parser {
+		void parse(String target) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		System.out.format("%d targets, %d iterations%n%n", TARGETS.length,
+				iterations);
+		System.out.format("%-8s %12s %14s%n", "method", "ns/op", "bytes/op");
+
+		Parser url = RequestBenchmark::parseWithUrl;
+		Parser request = RequestBenchmark::parseWithRequest;
+
+		// Warm up before measuring
+		measure(url, iterations);
+		measure(request, iterations);
+
+		report("url", url, iterations);
+		report("request", request, iterations);
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	private static void report(String name, Parser parser, int iterations)
+			throws Exception {
+		long[] measured = measure(parser, iterations);
+		long operations = (long) iterations * TARGETS.length;
+		System.out.format("%-8s %12.1f %14d%n", name, (double) measured[0]
+				/ operations, measured[1] / operations);
+	}
+
+	/**
+	 * Parses every target repeatedly.
+	 *
+	 * @return The elapsed nanoseconds and the bytes allocated by this thread
+	 */
+	private static long[] measure(Parser parser, int iterations)
+			throws Exception {
+		long allocated = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			for (String target : TARGETS) {
+				parser.parse(target);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		return new long[] { elapsed, getAllocatedBytes() - allocated };
+	}
+
+	/**
+	 * Parses a target and builds the cache key and upstream query of a search
+	 * the way the gateway did before {@link Request} parsed targets itself.
+	 */
+	private static void parseWithUrl(String target) throws Exception {
+		URL url = new URL("http", "localhost", target);
+		String query = url.getQuery() == null ? "" : url.getQuery();
+		Map<String, String> parameters = new HashMap<String, String>();
+		for (String item : query.split("&")) {
+			String[] parameterValue = item.split("=");
+			if (parameterValue.length == 2) {
+				parameters.put(parameterValue[0], parameterValue[1]);
+			}
+		}
+
+		StringBuilder canonicalQuery = new StringBuilder();
+		for (Map.Entry<String, String> parameter : new TreeMap<String, String>(
+				parameters).entrySet()) {
+			if (CREDENTIAL_PARAMETERS.contains(parameter.getKey())) {
+				continue;
+			}
+			if (canonicalQuery.length() > 0) {
+				canonicalQuery.append('&');
+			}
+			canonicalQuery.append(parameter.getKey()).append('=')
+					.append(parameter.getValue());
+		}
+
+		StringBuilder filteredQuery = new StringBuilder(query.length());
+		for (String parameter : query.split("&")) {
+			int equals = parameter.indexOf('=');
+			String name = equals < 0 ? parameter : parameter.substring(0,
+					equals);
+			if (parameter.isEmpty() || CREDENTIAL_PARAMETERS.contains(name)) {
+				continue;
+			}
+			if (filteredQuery.length() > 0) {
+				filteredQuery.append('&');
+			}
+			filteredQuery.append(parameter);
+		}
+
+		sink += url.getPath().length() + parameters.get("username").length()
+				+ canonicalQuery.length() + filteredQuery.length();
+	}
+
+	/**
+	 * Parses a target and builds the cache key and upstream query of a search
+	 * with {@link Request}.
+	 */
+	private static void parseWithRequest(String target) throws Exception {
+		Request request = new Request(target);
+		sink += request.getPath().length() + request.get("username").length()
+				+ request.getCanonicalQuery(CREDENTIAL_PARAMETERS).length()
+				+ request.getQuery(CREDENTIAL_PARAMETERS).length();
+	}
+
+	/**
+	 * Gets the bytes allocated by the current thread, if the JVM supports
+	 * measuring it.
+	 *
+	 * @return The bytes allocated, or 0 if unsupported
+	 */
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory
+				.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,273 @@
+package gateway;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import log.Log;
+
+/**
+ * Compares the latency of the authentication and analytics queries on tables
+ * without indexes, as created by hand from earlier versions of the
+ * documentation, and after the gateway has migrated them to its current
+ * schema.
+ *
+ * Usage: <code>SchemaBenchmark [searches] [results] [iterations]</code>, where
+ * searches is the number of searches in the database, results is the number
+ * of results of each search, and iterations is the number of times each query
+ * is run.
+ */
+public class SchemaBenchmark {
+
+	private static final String CREATE_SEARCHES = "CREATE TABLE searches (id serial primary key, sessionid uuid not null, "
+			+ "timestamp timestamp not null, searchtype text, username text, query text, location text, radius text, "
+			+ "keyword text, language text, minprice text, maxprice text, name text, opennow text, rankby text, "
+			+ "types text, pagetoken text, zagatselected text);";
+	private static final String CREATE_RESULTS = "CREATE TABLE results (id serial primary key, sessionid uuid not null, "
+			+ "timestamp timestamp not null, username text, placeid text, lat real, lng real);";
+	private static final String CREATE_USERS = "CREATE TABLE users (id serial primary key, username text not null, "
+			+ "salt text not null, passhash text not null);";
+
+	private static final String INSERT_SEARCH = "INSERT INTO searches (sessionid, timestamp, searchtype, username, location, radius) "
+			+ "VALUES (?, ?, ?, ?, ?, ?);";
+	private static final String INSERT_RESULT = "INSERT INTO results (sessionid, timestamp, username, placeid, lat, lng) "
+			+ "VALUES (?, ?, ?, ?, ?, ?);";
+	private static final String INSERT_USER = "INSERT INTO users (username, salt, passhash) VALUES (?, ?, ?);";
+
+	// The queries of the gateway
+	private static final String VALIDATE_USER = "SELECT salt, passhash FROM users WHERE username = ? LIMIT 1;";
+	private static final List<String> SEARCH_COLUMNS = Arrays.asList(
+			"sessionid", "timestamp", "searchtype", "username", "query",
+			"location", "radius", "keyword", "language", "minprice",
+			"maxprice", "name", "opennow", "rankby", "types", "pagetoken",
+			"zagatselected");
+	private static final List<String> RESULT_COLUMNS = Arrays.asList(
+			"sessionid", "timestamp", "username", "placeid", "lat", "lng");
+	private static final List<String> SEARCH_GROUP_COLUMNS = Arrays.asList(
+			"searchtype", "username", "keyword", "language", "rankby", "types");
+	private static final List<String> RESULT_GROUP_COLUMNS = Arrays.asList(
+			"username", "placeid");
+
+	private static final Set<String> EXCLUDED_PARAMETERS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList("pretty")));
+	private static final int USERS = 1000;
+	private static final int PLACES = 100000;
+	private static final String[] SEARCH_TYPES = { "nearby", "text", "radar" };
+
+	public static void main(String[] args) throws Exception {
+		int searches = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int results = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		File file = File.createTempFile("schema-benchmark", ".db");
+		Connection connection = DriverManager.getConnection("jdbc:sqlite:"
+				+ file.getPath());
+		try {
+			long start = System.nanoTime();
+			populate(connection, searches, results);
+			System.out.format(
+					"%d searches, %d results, %d users populated in %.1f s, %.1f MB%n%n",
+					searches, searches * results, USERS,
+					(System.nanoTime() - start) / 1e9, getSize(connection) / 1e6);
+
+			long middle = searches / 2;
+			String[] queries = {
+					"validate user",
+					"/searchquery",
+					"/searchquery?user=user42",
+					"/searchquery?searchtype=radar&limit=100",
+					"/searchquery?since=" + middle + "&until=" + (middle + 1000),
+					"/searchquery?cursor=" + Query.encodeCursor(middle, middle),
+					"/resultquery?sessionid=" + sessionId(middle),
+					"/resultquery?placeid=place42",
+					"/resultquery?user=user42&since=" + middle,
+					"/searchcount?groupby=day",
+					"/searchcount?groupby=user&since=" + middle,
+					"/resultcount?groupby=placeid&since=" + middle };
+
+			double[] before = new double[queries.length];
+			for (int i = 0; i < queries.length; i++) {
+				before[i] = measure(connection, queries[i], iterations);
+			}
+
+			start = System.nanoTime();
+			Schema.migrate(connection, new Log(null, System.err));
+			System.out.format("Migrated in %.1f s, %.1f MB%n%n",
+					(System.nanoTime() - start) / 1e9, getSize(connection) / 1e6);
+
+			System.out.format("%-64s %12s %12s%n", "query", "before ms",
+					"after ms");
+			for (int i = 0; i < queries.length; i++) {
+				System.out.format("%-64s %12.3f %12.3f%n", queries[i],
+						before[i], measure(connection, queries[i], iterations));
+			}
+		} finally {
+			connection.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Fills the tables with searches by many users over time, and results for
+	 * places that many searches have in common.
+	 */
+	private static void populate(Connection connection, int searches,
+			int results) throws SQLException {
+		Statement statement = connection.createStatement();
+		statement.executeUpdate(CREATE_SEARCHES);
+		statement.executeUpdate(CREATE_RESULTS);
+		statement.executeUpdate(CREATE_USERS);
+		statement.close();
+
+		connection.setAutoCommit(false);
+		PreparedStatement insertSearch = connection
+				.prepareStatement(INSERT_SEARCH);
+		PreparedStatement insertResult = connection
+				.prepareStatement(INSERT_RESULT);
+		PreparedStatement insertUser = connection.prepareStatement(INSERT_USER);
+		Random random = new Random(42);
+
+		for (int i = 0; i < USERS; i++) {
+			insertUser.setString(1, "user" + i);
+			insertUser.setString(2, "salt");
+			insertUser.setString(3, "hash");
+			insertUser.addBatch();
+		}
+		insertUser.executeBatch();
+
+		// Timestamps advance by one millisecond per search
+		for (int i = 0; i < searches; i++) {
+			String sessionId = sessionId(i);
+			String username = "user" + random.nextInt(USERS);
+			insertSearch.setString(1, sessionId);
+			insertSearch.setLong(2, i);
+			insertSearch.setString(3, SEARCH_TYPES[i % SEARCH_TYPES.length]);
+			insertSearch.setString(4, username);
+			insertSearch.setString(5, "40.44,-79.99");
+			insertSearch.setString(6, "500");
+			insertSearch.addBatch();
+
+			for (int j = 0; j < results; j++) {
+				insertResult.setString(1, sessionId);
+				insertResult.setLong(2, i);
+				insertResult.setString(3, username);
+				insertResult.setString(4, "place" + random.nextInt(PLACES));
+				insertResult.setDouble(5, 40 + random.nextDouble());
+				insertResult.setDouble(6, -80 + random.nextDouble());
+				insertResult.addBatch();
+			}
+
+			if (i % 10000 == 9999) {
+				insertSearch.executeBatch();
+				insertResult.executeBatch();
+			}
+		}
+		insertSearch.executeBatch();
+		insertResult.executeBatch();
+		connection.commit();
+		connection.setAutoCommit(true);
+
+		insertSearch.close();
+		insertResult.close();
+		insertUser.close();
+	}
+
+	/**
+	 * Runs a query repeatedly, reading every row of the first page.
+	 *
+	 * @return The average latency in milliseconds
+	 */
+	private static double measure(Connection connection, String query,
+			int iterations) throws SQLException, MalformedURLException {
+		// Warm up the page cache before measuring
+		run(connection, query, 0);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			run(connection, query, i);
+		}
+		return (System.nanoTime() - start) / 1e6 / iterations;
+	}
+
+	private static int run(Connection connection, String query, int iteration)
+			throws SQLException, MalformedURLException {
+		PreparedStatement statement;
+		if (query.equals("validate user")) {
+			statement = connection.prepareStatement(VALIDATE_USER);
+			statement.setString(1, "user" + (iteration * 37 % USERS));
+		} else if (query.contains("count?")) {
+			Request request = new Request(query);
+			boolean searches = query.startsWith("/searchcount");
+			Aggregation built = new Aggregation(request, searches ? "searches"
+					: "results", searches ? SEARCH_COLUMNS : RESULT_COLUMNS,
+					searches ? SEARCH_GROUP_COLUMNS : RESULT_GROUP_COLUMNS,
+					EXCLUDED_PARAMETERS, 20, 1000);
+			statement = connection.prepareStatement(built.getQuery());
+			for (int i = 0; i < built.size(); i++) {
+				statement.setObject(i + 1, built.get(i));
+			}
+		} else {
+			Request request = new Request(query);
+			boolean searches = query.startsWith("/searchquery");
+			Query built = new Query(request, searches ? "searches"
+					: "results", searches ? SEARCH_COLUMNS : RESULT_COLUMNS,
+					EXCLUDED_PARAMETERS, 20, 1000);
+			statement = connection.prepareStatement(built.getQuery());
+			for (int i = 0; i < built.size(); i++) {
+				statement.setObject(i + 1, built.get(i));
+			}
+		}
+
+		int rows = 0;
+		try {
+			ResultSet resultSet = statement.executeQuery();
+			while (resultSet.next()) {
+				rows++;
+			}
+			resultSet.close();
+		} finally {
+			statement.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Gets the size of the pages of the database in use, leaving out the
+	 * pages freed by dropped tables, which are only returned to the file
+	 * system by a vacuum.
+	 *
+	 * @return The size in bytes
+	 */
+	private static long getSize(Connection connection) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			long[] values = new long[3];
+			String[] pragmas = { "page_count", "freelist_count", "page_size" };
+			for (int i = 0; i < pragmas.length; i++) {
+				ResultSet resultSet = statement.executeQuery("PRAGMA "
+						+ pragmas[i] + ";");
+				values[i] = resultSet.next() ? resultSet.getLong(1) : 0;
+				resultSet.close();
+			}
+			return (values[0] - values[1]) * values[2];
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static String sessionId(long search) {
+		return new UUID(search, search).toString();
+	}
+}
@@ -0,0 +1,221 @@
+package gateway;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Google Place Search API used by the benchmarks and
+ * the load test. Every search of a type returns the same results after a
+ * fixed delay that simulates the latency of the real API. A fraction of
+ * searches can fail with an <code>UNKNOWN_ERROR</code> status, as the real API
+ * does for server errors.
+ *
+ * Usage: <code>StubPlacesServer [port] [delay] [errorrate]</code>, to run the
+ * stub on its own and point a gateway at it with the <code>api.scheme</code>,
+ * <code>api.host</code> and <code>api.port</code> properties.
+ */
+public class StubPlacesServer {
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final long delayMillis;
+	private final double errorRate;
+	private final byte[] body;
+	private final byte[] radarBody;
+	private final byte[] errorBody;
+
+	// Statistics
+	private final AtomicLong searches = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8443;
+		long delay = args.length > 1 ? Long.parseLong(args[1]) : 50;
+		double errorRate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+
+		StubPlacesServer stub = new StubPlacesServer(port, delay, 20, 200,
+				errorRate);
+		System.out.format("Stub Places API server listening on port %d%n",
+				stub.getPort());
+	}
+
+	/**
+	 * Creates and starts a stub server on an ephemeral port that returns the
+	 * same number of results for every search and never fails.
+	 *
+	 * @param delayMillis
+	 *            the time to wait before responding to a search
+	 *
+	 * @param results
+	 *            the number of results in each response
+	 *
+	 * @throws IOException
+	 *             if the server could not be started
+	 */
+	public StubPlacesServer(long delayMillis, int results) throws IOException {
+		this(0, delayMillis, results, results, 0);
+	}
+
+	/**
+	 * Creates and starts a stub server.
+	 *
+	 * @param port
+	 *            the port to listen on, or 0 for an ephemeral port
+	 *
+	 * @param delayMillis
+	 *            the time to wait before responding to a search
+	 *
+	 * @param results
+	 *            the number of results in each nearby and text search response
+	 *
+	 * @param radarResults
+	 *            the number of results in each radar search response
+	 *
+	 * @param errorRate
+	 *            the fraction of searches that fail, between 0 and 1
+	 *
+	 * @throws IOException
+	 *             if the server could not be started
+	 */
+	public StubPlacesServer(int port, long delayMillis, int results,
+			int radarResults, double errorRate) throws IOException {
+		this.delayMillis = delayMillis;
+		this.errorRate = errorRate;
+		this.body = createBody(results);
+		this.radarBody = radarResults == results ? body
+				: createBody(radarResults);
+		this.errorBody = new JSONObject()
+				.put("html_attributions", new JSONArray())
+				.put("results", new JSONArray())
+				.put("status", "UNKNOWN_ERROR").toString(3)
+				.getBytes(StandardCharsets.UTF_8);
+
+		// Send responses without waiting for delayed acknowledgements
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		server = HttpServer.create(new InetSocketAddress("localhost", port),
+				1024);
+		server.createContext("/maps/api/place/", this::handle);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Gets the port the server is listening on.
+	 *
+	 * @return The port
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Gets the number of searches received.
+	 *
+	 * @return The number of searches
+	 */
+	public long getSearchCount() {
+		return searches.get();
+	}
+
+	/**
+	 * Gets the number of searches that were made to fail.
+	 *
+	 * @return The number of failed searches
+	 */
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Responds to a search.
+	 *
+	 * @param exchange
+	 *            the HTTP exchange
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (delayMillis > 0) {
+				Thread.sleep(delayMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		searches.incrementAndGet();
+		int statusCode = 200;
+		byte[] response = exchange.getRequestURI().getPath()
+				.endsWith("/radarsearch/json") ? radarBody : body;
+		if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+			errors.incrementAndGet();
+			statusCode = 500;
+			response = errorBody;
+		}
+
+		exchange.getResponseHeaders().set("Content-Type",
+				"application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(statusCode, response.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(response);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Creates a search response body in the format of the Google Place Search
+	 * API.
+	 *
+	 * @param results
+	 *            the number of results
+	 *
+	 * @return The response body
+	 */
+	static byte[] createBody(int results) {
+		JSONArray jsonResults = new JSONArray();
+		for (int i = 0; i < results; i++) {
+			JSONObject location = new JSONObject();
+			// Coordinates have 7 decimal places like those of the real API
+			location.put("lat", Math.round((40.4406 + i * 0.001) * 1e7) / 1e7);
+			location.put("lng", Math.round((-79.9959 - i * 0.001) * 1e7) / 1e7);
+
+			JSONObject result = new JSONObject();
+			result.put("geometry", new JSONObject().put("location", location));
+			result.put("name", "Place " + i);
+			result.put("place_id", "stub-place-" + i);
+			result.put("vicinity", i + " Forbes Avenue, Pittsburgh");
+			jsonResults.put(result);
+		}
+
+		JSONObject jsonResponse = new JSONObject();
+		jsonResponse.put("html_attributions", new JSONArray());
+		jsonResponse.put("results", jsonResults);
+		jsonResponse.put("status", "OK");
+		return jsonResponse.toString(3).getBytes(StandardCharsets.UTF_8);
+	}
+}
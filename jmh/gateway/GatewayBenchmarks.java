@@ -0,0 +1,347 @@
+package gateway;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import log.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the work the gateway does for each request: parsing the
+ * request target, building the SQL of a query, writing the rows of a query
+ * response, hashing passwords and validating users, logging, limiting the rate
+ * of requests, and extracting the results of a search response.
+ *
+ * Running the class runs every benchmark with the GC profiler, which reports
+ * the bytes allocated per operation as <code>gc.alloc.rate.norm</code>.
+ * Arguments are passed to JMH as a regular expression of the benchmarks to
+ * run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GatewayBenchmarks {
+
+	private static final Set<String> CREDENTIAL_PARAMETERS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList("username",
+					"password")));
+	private static final Set<String> QUERY_OPTION_PARAMETERS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList("username",
+					"password", "pretty")));
+	private static final List<String> RESULT_COLUMNS = Arrays.asList(
+			"sessionid", "timestamp", "username", "placeid", "lat", "lng");
+
+	private static final String SEARCH_TARGET = "/google-places-api-gateway/nearbysearch?username=user42&password=secret"
+			+ "&location=40.4406,-79.9959&radius=5000&types=cafe|restaurant"
+			+ "&language=en&opennow=true";
+	private static final String ESCAPED_SEARCH_TARGET = "/google-places-api-gateway/textsearch?username=user42&password=secret"
+			+ "&query=pizza+near+Caf%C3%A9+Monde&location=40.4406%2C-79.9959"
+			+ "&radius=5000&minprice=1&maxprice=3";
+	private static final String QUERY_TARGET = "/google-places-api-gateway/resultquery?username=user42&password=secret"
+			+ "&placeid=ChIJN1t_tDeuEmsRUsoyG83frY4&since=1400000000000&until=1500000000000"
+			+ "&limit=100&cursor=MTQ1MDAwMDAwMDAwMDo0Mg";
+
+	private static final String CREATE_RESULTS = "CREATE TABLE results (id INTEGER PRIMARY KEY, sessionid TEXT, "
+			+ "timestamp INTEGER, username TEXT, placeid TEXT, lat REAL, lng REAL);";
+	private static final String INSERT_RESULT = "INSERT INTO results (sessionid, timestamp, username, placeid, lat, lng) "
+			+ "VALUES (?, ?, ?, ?, ?, ?);";
+	private static final String SELECT_RESULTS = "SELECT id, sessionid, timestamp, username, placeid, lat, lng "
+			+ "FROM results ORDER BY timestamp DESC, id DESC LIMIT ?;";
+
+	private static final int CHUNK_SIZE = 8192;
+
+	/**
+	 * An output stream that discards everything written to it.
+	 */
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.include(args.length > 0 ? args[0]
+						: GatewayBenchmarks.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+
+	@Benchmark
+	public Object parseSearch() throws Exception {
+		Request request = new Request(SEARCH_TARGET);
+		return request.getCanonicalQuery(CREDENTIAL_PARAMETERS).length()
+				+ request.getQuery(CREDENTIAL_PARAMETERS).length();
+	}
+
+	@Benchmark
+	public Object parseEscapedSearch() throws Exception {
+		Request request = new Request(ESCAPED_SEARCH_TARGET);
+		return request.getCanonicalQuery(CREDENTIAL_PARAMETERS).length()
+				+ request.getQuery(CREDENTIAL_PARAMETERS).length();
+	}
+
+	@Benchmark
+	public Object buildQuery() throws Exception {
+		Query query = new Query(new Request(QUERY_TARGET), "results",
+				RESULT_COLUMNS, QUERY_OPTION_PARAMETERS, 20, 1000);
+		return query.getQuery();
+	}
+
+	/**
+	 * A table of results in an in-memory database.
+	 */
+	@State(Scope.Thread)
+	public static class ResultRows {
+
+		@Param({ "20", "1000" })
+		public int rows;
+
+		private Connection connection;
+		private PreparedStatement select;
+
+		@Setup
+		public void setup() throws SQLException {
+			connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+			Statement statement = connection.createStatement();
+			statement.executeUpdate(CREATE_RESULTS);
+			statement.close();
+
+			connection.setAutoCommit(false);
+			PreparedStatement insert = connection
+					.prepareStatement(INSERT_RESULT);
+			for (int i = 0; i < rows; i++) {
+				insert.setString(1, "0b5c5f1e-8d0a-4c3f-9a55-" + (100000 + i / 3));
+				insert.setLong(2, 1400000000000L + i);
+				insert.setString(3, "user" + i % 100);
+				insert.setString(4, "ChIJN1t_tDeuEmsRUsoyG83frY" + i);
+				insert.setDouble(5, 40.4406 + i * 0.0001);
+				insert.setDouble(6, -79.9959 - i * 0.0001);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+			insert.close();
+			connection.commit();
+			connection.setAutoCommit(true);
+
+			select = connection.prepareStatement(SELECT_RESULTS);
+			select.setInt(1, rows + 1);
+		}
+
+		@TearDown
+		public void tearDown() throws SQLException {
+			select.close();
+			connection.close();
+		}
+	}
+
+	/**
+	 * Reads every row of the table and writes it as a query response, with a
+	 * cursor for the next page.
+	 */
+	@Benchmark
+	public void writeQueryResponse(ResultRows results) throws Exception {
+		ResultSet resultSet = results.select.executeQuery();
+		try {
+			Gateway.writeQueryResponse(resultSet, results.rows - 1, false,
+					new Response(DISCARD, true, true));
+		} finally {
+			resultSet.close();
+		}
+	}
+
+	@Benchmark
+	public Object hashPassword() throws NoSuchAlgorithmException {
+		return Gateway.hashPassword("correct horse battery staple",
+				"0123456789abcdef".getBytes());
+	}
+
+	/**
+	 * A gateway with a user in a temporary database, which is not started.
+	 */
+	@State(Scope.Benchmark)
+	public static class Users {
+
+		@Param({ "0", "1000" })
+		public int authCacheSize;
+
+		private File file;
+		private Gateway gateway;
+
+		@Setup
+		public void setup() throws Exception {
+			file = File.createTempFile("gateway-benchmark", ".db");
+			Properties properties = new Properties();
+			properties.setProperty("auth.cachesize",
+					Integer.toString(authCacheSize));
+			gateway = new Gateway(0, "jdbc:sqlite:" + file.getPath(),
+					properties, null, null);
+			gateway.new RequestHandler().handle(new Request(
+					"/google-places-api-gateway/adduser"
+							+ "?newusername=user42&newpassword=secret"),
+					new Response(DISCARD, true, true));
+		}
+
+		@TearDown
+		public void tearDown() {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Validates the credentials of a user, which hashes the password and
+	 * queries the database unless the credentials are cached.
+	 */
+	@Benchmark
+	public boolean validateUser(Users users) {
+		return users.gateway.new RequestHandler().validateUser("user42",
+				"secret");
+	}
+
+	/**
+	 * A log writing informational messages to a stream that discards them.
+	 */
+	@State(Scope.Benchmark)
+	public static class Logs {
+
+		@Param({ "0", "8192" })
+		public int capacity;
+
+		private Log log;
+
+		@Setup(Level.Iteration)
+		public void setup() {
+			PrintStream stream = new PrintStream(DISCARD);
+			log = new Log(stream, stream, Log.Level.INFO, capacity, 256, 100);
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() {
+			log.close();
+		}
+	}
+
+	/**
+	 * Logs a message from several threads at once. Buffered messages that do
+	 * not fit in the buffer are dropped rather than written.
+	 */
+	@Benchmark
+	@Threads(4)
+	public void log(Logs logs) {
+		logs.log.i("Accepted connection from 127.0.0.1:54321");
+	}
+
+	/**
+	 * A rate limiter with rates high enough that no request is refused.
+	 */
+	@State(Scope.Benchmark)
+	public static class Limits {
+
+		private final RateLimiter rateLimiter = new RateLimiter(1e12, 1000,
+				0, 0, 1e12, 1000);
+	}
+
+	/**
+	 * The user of a benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class LimitedUser {
+
+		private static final AtomicInteger USERS = new AtomicInteger();
+
+		private final String username = "user" + USERS.incrementAndGet();
+	}
+
+	/**
+	 * Takes tokens for requests of different users from several threads at
+	 * once, which only share the global bucket.
+	 */
+	@Benchmark
+	@Threads(4)
+	public long rateLimit(Limits limits, LimitedUser user) {
+		return limits.rateLimiter.acquire(user.username);
+	}
+
+	/**
+	 * A search response from the API server.
+	 */
+	@State(Scope.Benchmark)
+	public static class SearchResponse {
+
+		// A page of a nearby or text search, and a full radar search
+		@Param({ "20", "200" })
+		public int results;
+
+		private byte[] body;
+
+		@Setup
+		public void setup() {
+			body = StubPlacesServer.createBody(results);
+		}
+	}
+
+	/**
+	 * Extracts the status and results of a search response as it arrives, and
+	 * reads each result as it is queued to be written to the database.
+	 */
+	@Benchmark
+	public void extractResults(SearchResponse response, Blackhole blackhole)
+			throws IOException {
+		PlaceResultScanner scanner = new PlaceResultScanner();
+		byte[] body = response.body;
+		for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+			scanner.update(body, offset,
+					Math.min(CHUNK_SIZE, body.length - offset));
+		}
+		scanner.finish();
+
+		blackhole.consume(scanner.getStatus());
+		for (int i = 0; i < scanner.getResultCount(); i++) {
+			blackhole.consume(scanner.getPlaceId(i));
+			blackhole.consume(scanner.getLat(i));
+			blackhole.consume(scanner.getLng(i));
+		}
+	}
+}
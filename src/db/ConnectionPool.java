@@ -0,0 +1,673 @@
+package db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of reusable JDBC connections.
+ *
+ * Connections handed out by the pool are proxies. Closing one returns the
+ * underlying connection to the pool instead of closing it. Statements prepared
+ * through a pooled connection are cached per connection and closing them only
+ * clears their parameters, so frequently used statements are only prepared
+ * once per connection.
+ *
+ * Each new connection runs the initialization statements of the pool before
+ * it is first handed out, so settings that belong to a connection rather than
+ * to the database, such as the SQLite busy timeout, apply to every connection.
+ */
+public class ConnectionPool {
+
+	private final String url;
+	private final Properties properties;
+
+	private final int maxSize;
+	private final int minIdle;
+	private final long timeoutMillis;
+	private final long idleTimeoutMillis;
+	private final int statementCacheSize;
+	private final String[] initStatements;
+
+	// Idle connections, most recently used first
+	private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+
+	private final ScheduledExecutorService evictor;
+
+	// Pool state and statistics, guarded by this
+	private int total = 0;
+	private int active = 0;
+	private int waiting = 0;
+	private boolean closed = false;
+	private long created = 0;
+	private long evicted = 0;
+	private long acquired = 0;
+	private long timeouts = 0;
+	private long totalWaitNanos = 0;
+	private long maxWaitNanos = 0;
+
+	// Statement cache statistics, updated by the connections without locking
+	// the pool
+	private final AtomicLong statementHits = new AtomicLong();
+	private final AtomicLong statementMisses = new AtomicLong();
+
+	/**
+	 * Creates a connection pool.
+	 *
+	 * @param url
+	 *            the database URL
+	 *
+	 * @param properties
+	 *            the connection properties
+	 *
+	 * @param maxSize
+	 *            the maximum number of open connections
+	 *
+	 * @param minIdle
+	 *            the number of idle connections that are never evicted
+	 *
+	 * @param timeoutMillis
+	 *            the maximum time to wait for a connection
+	 *
+	 * @param idleTimeoutMillis
+	 *            the time after which an idle connection is closed, or 0 to
+	 *            never evict idle connections
+	 *
+	 * @param statementCacheSize
+	 *            the number of prepared statements cached per connection, or 0
+	 *            to disable statement caching
+	 *
+	 * @param initStatements
+	 *            the SQL statements run on each new connection
+	 */
+	public ConnectionPool(String url, Properties properties, int maxSize,
+			int minIdle, long timeoutMillis, long idleTimeoutMillis,
+			int statementCacheSize, String... initStatements) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException(
+					"Connection pool size must be positive");
+		}
+		this.url = url;
+		this.properties = properties == null ? new Properties() : properties;
+		this.maxSize = maxSize;
+		this.minIdle = Math.min(Math.max(minIdle, 0), maxSize);
+		this.timeoutMillis = timeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.statementCacheSize = Math.max(statementCacheSize, 0);
+		this.initStatements = initStatements.clone();
+
+		if (idleTimeoutMillis > 0) {
+			evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "connection-pool-evictor");
+				thread.setDaemon(true);
+				return thread;
+			});
+			long period = Math.max(idleTimeoutMillis / 2, 1);
+			evictor.scheduleWithFixedDelay(this::evictIdle, period, period,
+					TimeUnit.MILLISECONDS);
+		} else {
+			evictor = null;
+		}
+	}
+
+	/**
+	 * Borrows a connection from the pool, opening a new connection if none are
+	 * idle and the pool is not full. The connection must be closed to return
+	 * it to the pool.
+	 *
+	 * @return A pooled connection
+	 *
+	 * @throws SQLException
+	 *             if the pool is closed, no connection became available
+	 *             before the timeout, or a new connection could not be opened
+	 */
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		PooledConnection pooled = null;
+
+		synchronized (this) {
+			waiting++;
+			try {
+				while (true) {
+					if (closed) {
+						throw new SQLException("Connection pool is closed");
+					}
+
+					// Prefer the most recently used idle connection
+					pooled = idle.pollFirst();
+					if (pooled != null) {
+						break;
+					}
+
+					// Reserve a slot for a new connection
+					if (total < maxSize) {
+						total++;
+						break;
+					}
+
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						timeouts++;
+						throw new SQLException(String.format(
+								"Timed out after %d ms waiting for a database connection",
+								timeoutMillis));
+					}
+					try {
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException(
+								"Interrupted waiting for a database connection",
+								e);
+					}
+				}
+				active++;
+			} finally {
+				waiting--;
+			}
+		}
+
+		// Discard idle connections that were closed underneath us
+		if (pooled != null && pooled.connection.isClosed()) {
+			pooled.closeQuietly();
+			synchronized (this) {
+				evicted++;
+			}
+			// Reuse the slot for a new connection
+			pooled = null;
+		}
+
+		// Open a new connection outside the lock
+		if (pooled == null) {
+			try {
+				pooled = new PooledConnection(openConnection());
+			} catch (SQLException e) {
+				synchronized (this) {
+					total--;
+					active--;
+					notifyAll();
+				}
+				throw e;
+			}
+			synchronized (this) {
+				created++;
+			}
+		}
+
+		long wait = System.nanoTime() - start;
+		synchronized (this) {
+			acquired++;
+			totalWaitNanos += wait;
+			maxWaitNanos = Math.max(maxWaitNanos, wait);
+		}
+
+		return pooled.lease();
+	}
+
+	/**
+	 * Closes the pool. Idle connections are closed immediately and active
+	 * connections are closed when they are returned.
+	 */
+	public void close() {
+		if (evictor != null) {
+			evictor.shutdownNow();
+		}
+
+		Deque<PooledConnection> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayDeque<PooledConnection>(idle);
+			total -= idle.size();
+			idle.clear();
+			notifyAll();
+		}
+		for (PooledConnection pooled : toClose) {
+			pooled.closeQuietly();
+		}
+	}
+
+	/**
+	 * Gets the maximum number of open connections.
+	 *
+	 * @return The maximum number of open connections
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets the number of connections currently borrowed from the pool.
+	 *
+	 * @return The number of active connections
+	 */
+	public synchronized int getActiveCount() {
+		return active;
+	}
+
+	/**
+	 * Gets the number of open connections waiting in the pool.
+	 *
+	 * @return The number of idle connections
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Gets the number of threads currently waiting for a connection.
+	 *
+	 * @return The number of waiting threads
+	 */
+	public synchronized int getWaitingCount() {
+		return waiting;
+	}
+
+	/**
+	 * Gets the number of connections opened by the pool.
+	 *
+	 * @return The number of connections opened
+	 */
+	public synchronized long getCreatedCount() {
+		return created;
+	}
+
+	/**
+	 * Gets the number of idle or broken connections closed by the pool.
+	 *
+	 * @return The number of connections evicted
+	 */
+	public synchronized long getEvictedCount() {
+		return evicted;
+	}
+
+	/**
+	 * Gets the number of connections successfully borrowed from the pool.
+	 *
+	 * @return The number of connections borrowed
+	 */
+	public synchronized long getAcquiredCount() {
+		return acquired;
+	}
+
+	/**
+	 * Gets the number of requests for a connection that timed out.
+	 *
+	 * @return The number of timeouts
+	 */
+	public synchronized long getTimeoutCount() {
+		return timeouts;
+	}
+
+	/**
+	 * Gets the total time spent waiting to borrow connections.
+	 *
+	 * @return The total wait time in milliseconds
+	 */
+	public synchronized double getTotalWaitMillis() {
+		return totalWaitNanos / 1e6;
+	}
+
+	/**
+	 * Gets the longest time spent waiting to borrow a connection.
+	 *
+	 * @return The maximum wait time in milliseconds
+	 */
+	public synchronized double getMaxWaitMillis() {
+		return maxWaitNanos / 1e6;
+	}
+
+	/**
+	 * Gets the number of statements that were found in a statement cache
+	 * instead of being prepared.
+	 *
+	 * @return The number of statement cache hits
+	 */
+	public long getStatementHitCount() {
+		return statementHits.get();
+	}
+
+	/**
+	 * Gets the number of statements that had to be prepared because they were
+	 * not in a statement cache, or the cached statement was in use or broken.
+	 *
+	 * @return The number of statement cache misses
+	 */
+	public long getStatementMissCount() {
+		return statementMisses.get();
+	}
+
+	/**
+	 * Opens a new physical connection and runs the initialization statements
+	 * on it.
+	 *
+	 * @return The connection
+	 *
+	 * @throws SQLException
+	 *             if the connection could not be opened or initialized
+	 */
+	private Connection openConnection() throws SQLException {
+		Connection connection = DriverManager.getConnection(url, properties);
+		Statement statement = null;
+
+		try {
+			statement = connection.createStatement();
+			for (String sql : initStatements) {
+				statement.execute(sql);
+			}
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		} finally {
+			if (statement != null) {
+				statement.close();
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * Returns a connection to the pool.
+	 *
+	 * @param pooled
+	 *            the connection
+	 */
+	private void release(PooledConnection pooled) {
+		boolean discard = false;
+		try {
+			// Never hand out a connection with an open transaction
+			if (!pooled.connection.getAutoCommit()) {
+				pooled.connection.rollback();
+				pooled.connection.setAutoCommit(true);
+			}
+			discard = pooled.connection.isClosed();
+		} catch (SQLException e) {
+			discard = true;
+		}
+
+		synchronized (this) {
+			active--;
+			if (closed || discard) {
+				total--;
+				if (discard) {
+					evicted++;
+				}
+			} else {
+				pooled.lastUsed = System.currentTimeMillis();
+				idle.addFirst(pooled);
+			}
+			notifyAll();
+		}
+
+		if (closed || discard) {
+			pooled.closeQuietly();
+		}
+	}
+
+	/**
+	 * Closes connections that have been idle longer than the idle timeout,
+	 * leaving at least the minimum number of idle connections open.
+	 */
+	private void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+		Deque<PooledConnection> toClose = new ArrayDeque<PooledConnection>();
+
+		synchronized (this) {
+			// The least recently used connections are at the end
+			Iterator<PooledConnection> iterator = idle.descendingIterator();
+			while (iterator.hasNext() && idle.size() > minIdle) {
+				PooledConnection pooled = iterator.next();
+				if (pooled.lastUsed > cutoff) {
+					break;
+				}
+				iterator.remove();
+				toClose.add(pooled);
+				total--;
+				evicted++;
+			}
+		}
+
+		for (PooledConnection pooled : toClose) {
+			pooled.closeQuietly();
+		}
+	}
+
+	/**
+	 * A physical connection owned by the pool along with its statement cache.
+	 */
+	private class PooledConnection {
+
+		private final Connection connection;
+		private final Map<String, CachedStatement> statements;
+		private long lastUsed;
+
+		PooledConnection(Connection connection) {
+			this.connection = connection;
+			this.statements = new LinkedHashMap<String, CachedStatement>(16,
+					0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, CachedStatement> eldest) {
+					if (size() > statementCacheSize && !eldest.getValue().inUse) {
+						eldest.getValue().closeQuietly();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * Creates a new logical connection backed by this connection.
+		 *
+		 * @return A proxy that returns this connection to the pool when closed
+		 */
+		Connection lease() {
+			return (Connection) Proxy.newProxyInstance(
+					Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new Lease(this));
+		}
+
+		/**
+		 * Gets a cached prepared statement, preparing it if necessary.
+		 *
+		 * @param sql
+		 *            the SQL statement
+		 *
+		 * @return A proxy for the prepared statement
+		 *
+		 * @throws SQLException
+		 *             if the statement could not be prepared
+		 */
+		PreparedStatement prepare(String sql) throws SQLException {
+			CachedStatement cached = statements.get(sql);
+
+			// A statement that is already open is not shared
+			if (cached != null && cached.inUse) {
+				statementMisses.incrementAndGet();
+				return connection.prepareStatement(sql);
+			}
+			if (cached == null || cached.discarded) {
+				statementMisses.incrementAndGet();
+				cached = new CachedStatement(connection.prepareStatement(sql));
+				statements.put(sql, cached);
+			} else {
+				statementHits.incrementAndGet();
+			}
+			cached.inUse = true;
+
+			return cached.checkout();
+		}
+
+		void closeQuietly() {
+			for (CachedStatement cached : statements.values()) {
+				cached.closeQuietly();
+			}
+			statements.clear();
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				// Do nothing because the connection is being discarded
+			}
+		}
+	}
+
+	/**
+	 * A prepared statement that stays open in the statement cache.
+	 */
+	private static class CachedStatement {
+
+		private final PreparedStatement statement;
+		private boolean inUse = false;
+		private boolean discarded = false;
+
+		CachedStatement(PreparedStatement statement) {
+			this.statement = statement;
+		}
+
+		/**
+		 * Creates a proxy for the statement that clears the parameters and
+		 * returns the statement to the cache when closed.
+		 *
+		 * @return A proxy for the prepared statement
+		 */
+		PreparedStatement checkout() {
+			return (PreparedStatement) Proxy.newProxyInstance(
+					PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class },
+					new InvocationHandler() {
+						private boolean closed = false;
+						private boolean failed = false;
+
+						@Override
+						public Object invoke(Object proxy, Method method,
+								Object[] args) throws Throwable {
+							switch (method.getName()) {
+							case "close":
+								if (!closed) {
+									closed = true;
+									try {
+										// A statement that failed may not
+										// be reusable, so prepare it again
+										if (failed) {
+											discard();
+										} else {
+											statement.clearParameters();
+											statement.clearBatch();
+										}
+									} catch (SQLException e) {
+										discard();
+									} finally {
+										inUse = false;
+									}
+								}
+								return null;
+							case "isClosed":
+								return closed || statement.isClosed();
+							default:
+								if (closed) {
+									throw new SQLException(
+											"Statement is closed");
+								}
+								try {
+									return invokeTarget(statement, method,
+											args);
+								} catch (SQLException e) {
+									failed = true;
+									throw e;
+								}
+							}
+						}
+					});
+		}
+
+		/**
+		 * Closes the statement so that it is prepared again the next time it
+		 * is used.
+		 */
+		void discard() {
+			discarded = true;
+			closeQuietly();
+		}
+
+		void closeQuietly() {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				// Do nothing because the statement is being discarded
+			}
+		}
+	}
+
+	/**
+	 * The invocation handler for a logical connection borrowed from the pool.
+	 */
+	private class Lease implements InvocationHandler {
+
+		private final PooledConnection pooled;
+		private boolean closed = false;
+
+		Lease(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			switch (method.getName()) {
+			case "close":
+				if (!closed) {
+					closed = true;
+					release(pooled);
+				}
+				return null;
+			case "isClosed":
+				return closed || pooled.connection.isClosed();
+			case "prepareStatement":
+				if (closed) {
+					throw new SQLException("Connection is closed");
+				}
+				if (statementCacheSize > 0 && args.length == 1) {
+					return pooled.prepare((String) args[0]);
+				}
+				return invokeTarget(pooled.connection, method, args);
+			default:
+				if (closed) {
+					throw new SQLException("Connection is closed");
+				}
+				return invokeTarget(pooled.connection, method, args);
+			}
+		}
+	}
+
+	/**
+	 * Invokes a method on the target of a proxy, unwrapping any exception it
+	 * throws.
+	 */
+	private static Object invokeTarget(Object target, Method method,
+			Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package gateway;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A database query that counts the records of the searches or results table
+ * in groups.
+ *
+ * Records are grouped by one or more columns, or by the hour or day of their
+ * timestamps, and filtered as described by {@link Filter}. Groups are returned
+ * newest first if they are grouped by time, and then by decreasing count, so
+ * that a limited number of groups holds the most frequent values.
+ *
+ * Results are counted on the tables behind the results view rather than on
+ * the view, which joins every link to both its search and its place. Only the
+ * tables the filters and groups use are joined, and places are grouped by
+ * their row IDs and only looked up for the groups that are returned.
+ */
+public class Aggregation {
+
+	// Request parameters that control the query rather than filter columns
+	public static final String GROUP_BY = "groupby";
+
+	// Groups of timestamps, which are named by the start of each period in
+	// milliseconds since the epoch
+	public static final String HOUR = "hour";
+	public static final String DAY = "day";
+	private static final long HOUR_MILLIS = 60 * 60 * 1000;
+	private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+	// The results view, and its columns from the searches and places tables
+	private static final String RESULTS = "results";
+	private static final List<String> SEARCH_COLUMNS = Arrays.asList(
+			"sessionid", "timestamp", "username");
+	private static final List<String> PLACE_COLUMNS = Arrays.asList(
+			"placeid", "lat", "lng");
+	private static final String PLACE_ID = "placeid";
+
+	// The tables behind the results view
+	private static final String LINKS = "search_places";
+	private static final String JOIN_SEARCHES = " JOIN searches ON searches.id = search_places.search";
+	private static final String JOIN_PLACES = " JOIN places ON places.id = %s";
+	private static final String PLACE_KEY = "search_places.place";
+
+	private final StringBuilder query;
+	private final List<Object> parameters;
+	private final List<String> groups;
+	private final int limit;
+
+	/**
+	 * Creates a query that selects the value of each group followed by the
+	 * number of records in the group.
+	 *
+	 * @param request
+	 *            the client request
+	 *
+	 * @param table
+	 *            the table name
+	 *
+	 * @param columns
+	 *            the columns of the table that can be filtered, in order
+	 *
+	 * @param groupColumns
+	 *            the columns of the table that records can be grouped by
+	 *
+	 * @param excludedParameters
+	 *            the request parameters that are not query conditions
+	 *
+	 * @param defaultLimit
+	 *            the number of groups returned if the request does not specify
+	 *            a limit
+	 *
+	 * @param maxLimit
+	 *            the maximum number of groups returned
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the groups are missing or invalid, a parameter is not a
+	 *             column of the table, or the limit or time range is invalid
+	 */
+	public Aggregation(Request request, String table, List<String> columns,
+			List<String> groupColumns, Set<String> excludedParameters,
+			int defaultLimit, int maxLimit) {
+		this.limit = Query.parseLimit(request.get(Query.LIMIT), defaultLimit,
+				maxLimit);
+		this.groups = parseGroups(request.get(GROUP_BY), groupColumns);
+
+		Set<String> options = new HashSet<String>(excludedParameters);
+		options.add(Query.LIMIT);
+		options.add(GROUP_BY);
+		Filter filter = new Filter(request, columns, options);
+
+		// Count results on the tables they are stored in, and look up the
+		// places of the groups once they are counted
+		String source = table;
+		boolean lookupPlaces = false;
+		if (table.equals(RESULTS)) {
+			source = getResultSource(request, groups);
+			lookupPlaces = groups.contains(PLACE_ID);
+		}
+
+		// Select and group by the value of each group, then the count
+		StringBuilder select = new StringBuilder();
+		StringBuilder groupBy = new StringBuilder();
+		for (int i = 0; i < groups.size(); i++) {
+			String group = groups.get(i);
+			select.append(lookupPlaces && group.equals(PLACE_ID) ? PLACE_KEY
+					: getExpression(group, groupColumns));
+			select.append(lookupPlaces ? " AS g" + (i + 1) : "").append(", ");
+			groupBy.append(i == 0 ? "" : ", ").append(i + 1);
+		}
+		int countColumn = groups.size() + 1;
+		select.append("COUNT(*)").append(lookupPlaces ? " AS n" : "");
+		select.append(" FROM ").append(source).append(filter.getClause());
+		select.append(" GROUP BY ").append(groupBy);
+
+		this.query = new StringBuilder(256).append("SELECT ");
+		if (lookupPlaces) {
+			for (int i = 0; i < groups.size(); i++) {
+				query.append(groups.get(i).equals(PLACE_ID) ? "places.placeid"
+						: "g" + (i + 1)).append(", ");
+			}
+			query.append("n FROM (SELECT ").append(select).append(")");
+			query.append(String.format(JOIN_PLACES,
+					"g" + (groups.indexOf(PLACE_ID) + 1)));
+		} else {
+			query.append(select);
+		}
+
+		// Order periods newest first, then the groups within them by count
+		StringBuilder orderBy = new StringBuilder();
+		for (int i = 0; i < groups.size(); i++) {
+			if (isPeriod(groups.get(i))) {
+				orderBy.append(i + 1).append(" DESC, ");
+			}
+		}
+		orderBy.append(countColumn).append(" DESC");
+		for (int i = 0; i < groups.size(); i++) {
+			if (!isPeriod(groups.get(i))) {
+				orderBy.append(", ").append(i + 1);
+			}
+		}
+		query.append(" ORDER BY ").append(orderBy).append(" LIMIT ?;");
+
+		this.parameters = new ArrayList<Object>(filter.getParameters());
+		parameters.add(limit);
+	}
+
+	/**
+	 * Gets the database query.
+	 *
+	 * @return The database query
+	 */
+	public String getQuery() {
+		return query.toString();
+	}
+
+	/**
+	 * Gets the values of the query parameters.
+	 *
+	 * @return The values of the query parameters in order
+	 */
+	public List<Object> getParameters() {
+		return Collections.unmodifiableList(parameters);
+	}
+
+	/**
+	 * Gets the value of the query parameter at the specified index.
+	 *
+	 * @param index
+	 *            the index of the query parameter
+	 *
+	 * @return The value of the specified query parameter
+	 */
+	public Object get(int index) {
+		return parameters.get(index);
+	}
+
+	/**
+	 * Gets the number of parameters in the query.
+	 *
+	 * @return The number of parameters in the query
+	 */
+	public int size() {
+		return parameters.size();
+	}
+
+	/**
+	 * Gets the names of the groups, in the order of the columns selected by
+	 * the query.
+	 *
+	 * @return The names of the groups
+	 */
+	public List<String> getGroups() {
+		return groups;
+	}
+
+	/**
+	 * Gets the maximum number of groups returned.
+	 *
+	 * @return The maximum number of groups
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Parses the groups requested by the client.
+	 *
+	 * @param value
+	 *            the value of the groupby parameter, a comma-separated list
+	 *            of groups
+	 *
+	 * @param groupColumns
+	 *            the columns that records can be grouped by
+	 *
+	 * @return The names of the groups
+	 *
+	 * @throws IllegalArgumentException
+	 *             if there are no groups, or a group is unknown or repeated
+	 */
+	private static List<String> parseGroups(String value,
+			List<String> groupColumns) {
+		if (value == null || value.isEmpty()) {
+			throw new IllegalArgumentException("Missing " + GROUP_BY);
+		}
+		List<String> groups = new ArrayList<String>();
+		for (String group : value.split(",", -1)) {
+			if (groups.contains(group)
+					|| getExpression(group, groupColumns) == null) {
+				throw new IllegalArgumentException(String.format(
+						"Invalid %s: %s", GROUP_BY, group));
+			}
+			groups.add(group);
+		}
+		return groups;
+	}
+
+	/**
+	 * Gets the SQL expression of the value of a group.
+	 *
+	 * @param group
+	 *            the name of the group
+	 *
+	 * @param groupColumns
+	 *            the columns that records can be grouped by
+	 *
+	 * @return The expression, or null if the group is unknown
+	 */
+	private static String getExpression(String group, List<String> groupColumns) {
+		if (group.equals(HOUR)) {
+			return "timestamp/" + HOUR_MILLIS + "*" + HOUR_MILLIS;
+		} else if (group.equals(DAY)) {
+			return "timestamp/" + DAY_MILLIS + "*" + DAY_MILLIS;
+		}
+		for (String column : groupColumns) {
+			if (Filter.getParameter(column).equals(group)) {
+				return column;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the tables that results are counted on, which are the links
+	 * between searches and places joined with the searches and places tables
+	 * if the filters or groups use their columns.
+	 *
+	 * @param request
+	 *            the client request
+	 *
+	 * @param groups
+	 *            the names of the groups
+	 *
+	 * @return The FROM clause of the count
+	 */
+	private static String getResultSource(Request request, List<String> groups) {
+		boolean searches = request.get(Filter.SINCE) != null
+				|| request.get(Filter.UNTIL) != null;
+		for (String column : SEARCH_COLUMNS) {
+			searches |= request.get(Filter.getParameter(column)) != null;
+		}
+		for (String group : groups) {
+			searches |= !group.equals(PLACE_ID);
+		}
+		boolean places = false;
+		for (String column : PLACE_COLUMNS) {
+			places |= request.get(Filter.getParameter(column)) != null;
+		}
+		return LINKS + (searches ? JOIN_SEARCHES : "")
+				+ (places ? String.format(JOIN_PLACES, PLACE_KEY) : "");
+	}
+
+	private static boolean isPeriod(String group) {
+		return group.equals(HOUR) || group.equals(DAY);
+	}
+}
@@ -0,0 +1,617 @@
+package gateway;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import db.ConnectionPool;
+import log.Log;
+
+/**
+ * A background writer that records searches and results in the database.
+ *
+ * Records are placed in a bounded queue by the client handlers and written by
+ * a single background thread in batched transactions. A batch is committed
+ * when it reaches the batch size or when its oldest record has waited for the
+ * flush interval, whichever comes first.
+ *
+ * A batch that fails is retried a few times with a growing delay, since most
+ * failures are a busy or briefly unavailable database. If the batch still
+ * fails, its records are written one at a time so that only the records that
+ * cannot be written are lost.
+ */
+public class AuditWriter {
+
+	// SQL statements for writing searches and results
+	private static final String INSERT_SEARCH = "INSERT INTO searches (sessionid, timestamp, searchtype, username, query, location, radius, keyword, language, "
+			+ "minprice, maxprice, name, opennow, rankby, types, pagetoken, zagatselected) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+	private static final String INSERT_RESULT = "INSERT INTO results (sessionid, timestamp, username, placeid, lat, lng) VALUES (?, ?, ?, ?, ?, ?);";
+
+	// Time to wait for the writer to finish on shutdown
+	private static final long SHUTDOWN_TIMEOUT = 30000;
+
+	// Retries of a failed batch, and the delay before the first retry, which
+	// doubles with each retry
+	private static final int MAX_RETRIES = 3;
+	private static final long RETRY_DELAY = 100;
+
+	/**
+	 * The action taken when a record is submitted to a full queue.
+	 */
+	public enum OverflowPolicy {
+		/** Wait until there is space in the queue */
+		BLOCK,
+		/** Discard the submitted record */
+		DROP,
+		/** Discard the oldest queued record */
+		DROP_OLDEST;
+
+		/**
+		 * Parses an overflow policy from its configuration value.
+		 *
+		 * @param value
+		 *            the configuration value
+		 *
+		 * @return The overflow policy
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the value is not a valid overflow policy
+		 */
+		public static OverflowPolicy parse(String value) {
+			return valueOf(value.trim().toUpperCase(Locale.ROOT));
+		}
+	}
+
+	private final ConnectionPool connectionPool;
+	private final BlockingQueue<Record> queue;
+	private final int batchSize;
+	private final long flushIntervalNanos;
+	private final OverflowPolicy overflowPolicy;
+	private final boolean flushOnShutdown;
+	private final Log log;
+
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	// Statistics
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private volatile long lastLagNanos = 0;
+	private volatile long maxLagNanos = 0;
+
+	/**
+	 * Creates and starts an audit writer.
+	 *
+	 * @param connectionPool
+	 *            the pool of database connections
+	 *
+	 * @param capacity
+	 *            the maximum number of queued records
+	 *
+	 * @param batchSize
+	 *            the maximum number of records written in one transaction
+	 *
+	 * @param flushIntervalMillis
+	 *            the maximum time a record waits before its batch is written
+	 *
+	 * @param overflowPolicy
+	 *            the action taken when the queue is full
+	 *
+	 * @param flushOnShutdown
+	 *            if queued records are written when the writer is closed
+	 *
+	 * @param log
+	 *            the log
+	 */
+	public AuditWriter(ConnectionPool connectionPool, int capacity,
+			int batchSize, long flushIntervalMillis,
+			OverflowPolicy overflowPolicy, boolean flushOnShutdown, Log log) {
+		this.connectionPool = connectionPool;
+		this.queue = new ArrayBlockingQueue<Record>(capacity);
+		this.batchSize = Math.max(batchSize, 1);
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS
+				.toNanos(flushIntervalMillis);
+		this.overflowPolicy = overflowPolicy;
+		this.flushOnShutdown = flushOnShutdown;
+		this.log = log;
+
+		writer = new Thread(this::writeLoop, "audit-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a search to be written to the database.
+	 *
+	 * @param sessionId
+	 *            the session of the search
+	 *
+	 * @param timestamp
+	 *            the time of the search
+	 *
+	 * @param searchType
+	 *            the type of search
+	 *
+	 * @param username
+	 *            the username of the client
+	 *
+	 * @param parameters
+	 *            the values of the search parameters, in the order of the
+	 *            search columns following the username
+	 *
+	 * @return True if the search was queued, false if it was dropped
+	 */
+	public boolean writeSearch(UUID sessionId, long timestamp,
+			String searchType, String username, String[] parameters) {
+		return submit(new SearchRecord(sessionId, timestamp, searchType,
+				username, parameters));
+	}
+
+	/**
+	 * Queues a search result to be written to the database.
+	 *
+	 * @param sessionId
+	 *            the session of the search
+	 *
+	 * @param timestamp
+	 *            the time of the search
+	 *
+	 * @param username
+	 *            the username of the client
+	 *
+	 * @param placeId
+	 *            the place ID of the result
+	 *
+	 * @param lat
+	 *            the latitude of the result
+	 *
+	 * @param lng
+	 *            the longitude of the result
+	 *
+	 * @return True if the result was queued, false if it was dropped
+	 */
+	public boolean writeResult(UUID sessionId, long timestamp,
+			String username, String placeId, double lat, double lng) {
+		return submit(new ResultRecord(sessionId, timestamp, username,
+				placeId, lat, lng));
+	}
+
+	/**
+	 * Stops the writer. If the writer flushes on shutdown, all queued records
+	 * are written before this method returns, otherwise they are dropped.
+	 */
+	public void close() {
+		running = false;
+		if (!flushOnShutdown) {
+			dropped.addAndGet(queue.size());
+			queue.clear();
+		}
+
+		// The writer notices within one flush interval
+		try {
+			writer.join(SHUTDOWN_TIMEOUT);
+		} catch (InterruptedException e) {
+			// Do nothing because we are exiting
+		}
+	}
+
+	/**
+	 * Gets the maximum number of queued records.
+	 *
+	 * @return The queue capacity
+	 */
+	public int getCapacity() {
+		return queue.size() + queue.remainingCapacity();
+	}
+
+	/**
+	 * Gets the number of records waiting to be written.
+	 *
+	 * @return The number of queued records
+	 */
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Gets the number of records submitted to the writer.
+	 *
+	 * @return The number of submitted records
+	 */
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * Gets the number of records dropped because the queue was full or the
+	 * writer was closed.
+	 *
+	 * @return The number of dropped records
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Gets the number of records written to the database.
+	 *
+	 * @return The number of written records
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/**
+	 * Gets the number of records lost because they could not be written.
+	 *
+	 * @return The number of failed records
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Gets the number of batches committed.
+	 *
+	 * @return The number of batches
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * Gets the number of times a failed batch was retried.
+	 *
+	 * @return The number of retries
+	 */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	/**
+	 * Gets the time the oldest record of the last batch waited before it was
+	 * committed.
+	 *
+	 * @return The lag of the last batch in milliseconds
+	 */
+	public double getLastLagMillis() {
+		return lastLagNanos / 1e6;
+	}
+
+	/**
+	 * Gets the longest time a record waited before it was committed.
+	 *
+	 * @return The maximum lag in milliseconds
+	 */
+	public double getMaxLagMillis() {
+		return maxLagNanos / 1e6;
+	}
+
+	/**
+	 * Places a record in the queue according to the overflow policy.
+	 *
+	 * @param record
+	 *            the record
+	 *
+	 * @return True if the record was queued, false if it was dropped
+	 */
+	private boolean submit(Record record) {
+		submitted.incrementAndGet();
+
+		if (!running) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		switch (overflowPolicy) {
+		case BLOCK:
+			try {
+				queue.put(record);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+				return false;
+			}
+			return true;
+
+		case DROP_OLDEST:
+			while (!queue.offer(record)) {
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+			return true;
+
+		default:
+			if (!queue.offer(record)) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Collects queued records into batches and writes them until the writer
+	 * is closed and the queue is empty.
+	 */
+	private void writeLoop() {
+		List<Record> batch = new ArrayList<Record>(batchSize);
+
+		while (running || !queue.isEmpty()) {
+			try {
+				// Wait for the first record of the batch
+				Record first = running ? queue.poll(flushIntervalNanos,
+						TimeUnit.NANOSECONDS) : queue.poll();
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+
+				// Fill the batch until it is full or its oldest record is due
+				long deadline = first.enqueued + flushIntervalNanos;
+				while (batch.size() < batchSize) {
+					long remaining = deadline - System.nanoTime();
+					Record record = running && remaining > 0 ? queue.poll(
+							remaining, TimeUnit.NANOSECONDS) : queue.poll();
+					if (record == null) {
+						break;
+					}
+					batch.add(record);
+				}
+			} catch (InterruptedException e) {
+				// Write what we have and check whether we are closing
+			}
+
+			if (!batch.isEmpty()) {
+				writeBatch(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch of records to the database in a single transaction,
+	 * retrying it if it fails and finally writing its records one at a time.
+	 *
+	 * @param batch
+	 *            the records
+	 */
+	private void writeBatch(List<Record> batch) {
+		for (int retry = 0;; retry++) {
+			try {
+				insert(batch);
+				break;
+			} catch (SQLException e) {
+				log.e(String.format(
+						"Error writing %d audit records to database",
+						batch.size()), e);
+			}
+
+			if (retry == MAX_RETRIES || !sleep(RETRY_DELAY << retry)) {
+				writeEach(batch);
+				return;
+			}
+			retries.incrementAndGet();
+		}
+
+		long lag = System.nanoTime() - batch.get(0).enqueued;
+		lastLagNanos = lag;
+		if (lag > maxLagNanos) {
+			maxLagNanos = lag;
+		}
+		written.addAndGet(batch.size());
+		batches.incrementAndGet();
+	}
+
+	/**
+	 * Writes the records of a failed batch one at a time, so that only the
+	 * records that cannot be written are lost.
+	 *
+	 * @param batch
+	 *            the records
+	 */
+	private void writeEach(List<Record> batch) {
+		int count = 0;
+		for (Record record : batch) {
+			try {
+				insert(Collections.singletonList(record));
+				count++;
+			} catch (SQLException e) {
+				log.e("Error writing audit record to database", e);
+				failed.incrementAndGet();
+			}
+		}
+		written.addAndGet(count);
+	}
+
+	/**
+	 * Waits before retrying a failed batch.
+	 *
+	 * @param millis
+	 *            the time to wait in milliseconds
+	 *
+	 * @return True if the wait completed, false if the writer was interrupted
+	 */
+	private boolean sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Inserts records into the database in a single transaction.
+	 *
+	 * @param records
+	 *            the records
+	 *
+	 * @throws SQLException
+	 *             if the records could not be inserted, in which case none of
+	 *             them are
+	 */
+	private void insert(List<Record> records) throws SQLException {
+		Connection connection = null;
+		PreparedStatement searchStatement = null;
+		PreparedStatement resultStatement = null;
+
+		try {
+			// Borrow a connection to the database
+			connection = connectionPool.getConnection();
+			connection.setAutoCommit(false);
+
+			// Add the records to the batched updates
+			searchStatement = connection.prepareStatement(INSERT_SEARCH);
+			resultStatement = connection.prepareStatement(INSERT_RESULT);
+			boolean searches = false;
+			boolean results = false;
+			for (Record record : records) {
+				if (record instanceof SearchRecord) {
+					record.bind(searchStatement);
+					searchStatement.addBatch();
+					searches = true;
+				} else {
+					record.bind(resultStatement);
+					resultStatement.addBatch();
+					results = true;
+				}
+			}
+
+			// Execute the updates and commit them together
+			if (searches) {
+				searchStatement.executeBatch();
+			}
+			if (results) {
+				resultStatement.executeBatch();
+			}
+			connection.commit();
+
+		} catch (SQLException e) {
+			try {
+				if (connection != null) {
+					connection.rollback();
+				}
+			} catch (SQLException e1) {
+				log.e("Exception when rolling back audit records", e1);
+			}
+			throw e;
+		} finally {
+			try {
+				if (searchStatement != null) {
+					searchStatement.close();
+				}
+				if (resultStatement != null) {
+					resultStatement.close();
+				}
+				if (connection != null) {
+					connection.setAutoCommit(true);
+					connection.close();
+				}
+			} catch (SQLException e) {
+				// Do nothing because we are exiting
+				log.e("Exception when closing database resources", e);
+			}
+		}
+	}
+
+	/**
+	 * A row waiting to be written to the database.
+	 */
+	private static abstract class Record {
+
+		final long enqueued = System.nanoTime();
+
+		/**
+		 * Binds the values of this record to the parameters of its insert
+		 * statement.
+		 *
+		 * @param statement
+		 *            the insert statement
+		 *
+		 * @throws SQLException
+		 *             if the values could not be bound
+		 */
+		abstract void bind(PreparedStatement statement) throws SQLException;
+	}
+
+	/**
+	 * A row of the searches table.
+	 */
+	private static class SearchRecord extends Record {
+
+		private final UUID sessionId;
+		private final long timestamp;
+		private final String searchType;
+		private final String username;
+		private final String[] parameters;
+
+		SearchRecord(UUID sessionId, long timestamp, String searchType,
+				String username, String[] parameters) {
+			this.sessionId = sessionId;
+			this.timestamp = timestamp;
+			this.searchType = searchType;
+			this.username = username;
+			this.parameters = parameters;
+		}
+
+		@Override
+		void bind(PreparedStatement statement) throws SQLException {
+			statement.setObject(1, sessionId);
+			statement.setTimestamp(2, new Timestamp(timestamp));
+			statement.setString(3, searchType);
+			statement.setString(4, username);
+			for (int i = 0; i < parameters.length; i++) {
+				statement.setString(i + 5, parameters[i]);
+			}
+		}
+	}
+
+	/**
+	 * A row of the results table.
+	 */
+	private static class ResultRecord extends Record {
+
+		private final UUID sessionId;
+		private final long timestamp;
+		private final String username;
+		private final String placeId;
+		private final double lat;
+		private final double lng;
+
+		ResultRecord(UUID sessionId, long timestamp, String username,
+				String placeId, double lat, double lng) {
+			this.sessionId = sessionId;
+			this.timestamp = timestamp;
+			this.username = username;
+			this.placeId = placeId;
+			this.lat = lat;
+			this.lng = lng;
+		}
+
+		@Override
+		void bind(PreparedStatement statement) throws SQLException {
+			statement.setObject(1, sessionId);
+			statement.setTimestamp(2, new Timestamp(timestamp));
+			statement.setString(3, username);
+			statement.setString(4, placeId);
+			statement.setDouble(5, lat);
+			statement.setDouble(6, lng);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package gateway;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An output stream that writes an HTTP message body using the chunked
+ * transfer coding. Closing the stream writes the last chunk but does not close
+ * the underlying stream, so the connection can be used for further messages.
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private final byte[] buffer;
+	private int count = 0;
+	private boolean closed = false;
+
+	public ChunkedOutputStream(OutputStream out, int chunkSize) {
+		super(out);
+		this.buffer = new byte[chunkSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			writeChunk();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == buffer.length) {
+				writeChunk();
+			}
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * Writes any buffered data followed by the last chunk.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			writeChunk();
+			out.write(LAST_CHUNK);
+		}
+	}
+
+	/**
+	 * Writes the buffered data as a chunk.
+	 *
+	 * @throws IOException
+	 *             if the chunk could not be written
+	 */
+	private void writeChunk() throws IOException {
+		if (count > 0) {
+			out.write(Integer.toHexString(count).getBytes(
+					StandardCharsets.ISO_8859_1));
+			out.write(CRLF);
+			out.write(buffer, 0, count);
+			out.write(CRLF);
+			count = 0;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package gateway;
+
+import java.util.Properties;
+
+/**
+ * Typed access to the gateway configuration properties.
+ */
+public class Config {
+
+	private final Properties properties;
+
+	public Config(Properties properties) {
+		this.properties = properties == null ? new Properties() : properties;
+	}
+
+	/**
+	 * Gets the underlying properties.
+	 *
+	 * @return The underlying properties
+	 */
+	public Properties getProperties() {
+		return properties;
+	}
+
+	/**
+	 * Gets the value of the specified property as a String.
+	 *
+	 * @param key
+	 *            the property key
+	 *
+	 * @param defaultValue
+	 *            the value to return if the property is not set
+	 *
+	 * @return The value of the property, or the default value if it is not set
+	 */
+	public String getString(String key, String defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	/**
+	 * Gets the value of the specified property as an int.
+	 *
+	 * @param key
+	 *            the property key
+	 *
+	 * @param defaultValue
+	 *            the value to return if the property is not set
+	 *
+	 * @return The value of the property, or the default value if it is not set
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the property is not a valid integer
+	 */
+	public int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format(
+					"Property %s must be an integer: %s", key, value), e);
+		}
+	}
+
+	/**
+	 * Gets the value of the specified property as a long.
+	 *
+	 * @param key
+	 *            the property key
+	 *
+	 * @param defaultValue
+	 *            the value to return if the property is not set
+	 *
+	 * @return The value of the property, or the default value if it is not set
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the property is not a valid integer
+	 */
+	public long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format(
+					"Property %s must be an integer: %s", key, value), e);
+		}
+	}
+
+	/**
+	 * Gets the value of the specified property as a double.
+	 *
+	 * @param key
+	 *            the property key
+	 *
+	 * @param defaultValue
+	 *            the value to return if the property is not set
+	 *
+	 * @return The value of the property, or the default value if it is not set
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the property is not a valid number
+	 */
+	public double getDouble(String key, double defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format(
+					"Property %s must be a number: %s", key, value), e);
+		}
+	}
+
+	/**
+	 * Gets the value of the specified property as a boolean.
+	 *
+	 * @param key
+	 *            the property key
+	 *
+	 * @param defaultValue
+	 *            the value to return if the property is not set
+	 *
+	 * @return The value of the property, or the default value if it is not set
+	 */
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value);
+	}
+}
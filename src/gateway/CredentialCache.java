@@ -0,0 +1,231 @@
+package gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A bounded in-memory cache of verified user credentials, so that repeated
+ * requests from the same user do not query the database and hash the password
+ * again.
+ *
+ * Passwords are never stored. Each entry holds an HMAC of the username and
+ * password keyed with a secret generated when the cache is created, so the
+ * cached values are useless outside of this process. Entries expire after a
+ * time to live and are invalidated when the user is changed.
+ */
+public class CredentialCache {
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private final int maxSize;
+	private final long ttlMillis;
+	private final SecretKeySpec secretKey;
+
+	// Entries by username in access order, guarded by this
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	// Statistics, guarded by this
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	/**
+	 * Creates a credential cache.
+	 *
+	 * @param maxSize
+	 *            the maximum number of cached users
+	 *
+	 * @param ttlMillis
+	 *            the time after which verified credentials must be verified
+	 *            again
+	 */
+	public CredentialCache(int maxSize, long ttlMillis) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		this.secretKey = new SecretKeySpec(secret, MAC_ALGORITHM);
+	}
+
+	/**
+	 * Gets whether the specified credentials have been verified and have not
+	 * expired.
+	 *
+	 * @param username
+	 *            the username
+	 *
+	 * @param password
+	 *            the password
+	 *
+	 * @return True if the credentials are cached, false otherwise
+	 */
+	public boolean contains(String username, String password) {
+		byte[] digest = digest(username, password);
+
+		synchronized (this) {
+			Entry entry = entries.get(username);
+
+			if (entry != null && entry.expires <= System.currentTimeMillis()) {
+				entries.remove(username);
+				entry = null;
+			}
+
+			if (entry == null || !MessageDigest.isEqual(entry.digest, digest)) {
+				misses++;
+				return false;
+			}
+
+			hits++;
+			return true;
+		}
+	}
+
+	/**
+	 * Caches verified credentials, unless any user was invalidated since the
+	 * credentials were looked up.
+	 *
+	 * @param username
+	 *            the username
+	 *
+	 * @param password
+	 *            the password
+	 *
+	 * @param invalidationCount
+	 *            the value of {@link #getInvalidationCount()} before the
+	 *            credentials were looked up
+	 */
+	public void put(String username, String password, long invalidationCount) {
+		byte[] digest = digest(username, password);
+
+		synchronized (this) {
+			// The user may have changed while the credentials were verified
+			if (invalidations != invalidationCount) {
+				return;
+			}
+
+			entries.put(username, new Entry(digest, System.currentTimeMillis()
+					+ ttlMillis));
+
+			if (entries.size() > maxSize) {
+				Iterator<String> eldest = entries.keySet().iterator();
+				eldest.next();
+				eldest.remove();
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Removes the cached credentials of a user. This must be called whenever
+	 * the user is added or its password changes.
+	 *
+	 * @param username
+	 *            the username
+	 */
+	public synchronized void invalidate(String username) {
+		entries.remove(username);
+		invalidations++;
+	}
+
+	/**
+	 * Gets the maximum number of cached users.
+	 *
+	 * @return The maximum number of cached users
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets the number of cached users.
+	 *
+	 * @return The number of cached users
+	 */
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the number of credentials found in the cache.
+	 *
+	 * @return The number of cache hits
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of credentials not found in the cache.
+	 *
+	 * @return The number of cache misses
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of users evicted because the cache was full.
+	 *
+	 * @return The number of evictions
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Gets the number of times a user was invalidated.
+	 *
+	 * @return The number of invalidations
+	 */
+	public synchronized long getInvalidationCount() {
+		return invalidations;
+	}
+
+	/**
+	 * Computes the keyed digest of a username and password.
+	 *
+	 * @param username
+	 *            the username
+	 *
+	 * @param password
+	 *            the password
+	 *
+	 * @return The digest
+	 */
+	private byte[] digest(String username, String password) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(secretKey);
+			mac.update(username.getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 0);
+			return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			// Every Java platform is required to support HmacSHA256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A cached digest of verified credentials.
+	 */
+	private static class Entry {
+
+		private final byte[] digest;
+		private final long expires;
+
+		public Entry(byte[] digest, long expires) {
+			this.digest = digest;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package gateway;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The conditions of a database query on the searches or results table.
+ *
+ * Records can be filtered by any column of the table and by a time range. The
+ * conditions are always in the order of the columns, regardless of the order
+ * of the request parameters, so queries with the same filters have the same
+ * SQL and can reuse the same prepared statement.
+ */
+public class Filter {
+
+	// Request parameters that limit the time range of the records
+	public static final String SINCE = "since";
+	public static final String UNTIL = "until";
+
+	// The username parameter holds the credentials of the client, so the
+	// username column is filtered with this parameter instead
+	public static final String USER = "user";
+	private static final String USERNAME_COLUMN = "username";
+
+	private final StringBuilder clause;
+	private final List<Object> parameters;
+
+	/**
+	 * Creates the conditions of a query from the request parameters.
+	 *
+	 * @param request
+	 *            the client request
+	 *
+	 * @param columns
+	 *            the columns of the table that can be filtered, in order
+	 *
+	 * @param options
+	 *            the request parameters that control the query rather than
+	 *            filter columns
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a parameter is neither a column of the table nor an
+	 *             option, or the time range is invalid
+	 */
+	public Filter(Request request, List<String> columns, Set<String> options) {
+		this.clause = new StringBuilder(128);
+		this.parameters = new ArrayList<Object>();
+
+		// Reject parameters that are neither filters nor options, rather than
+		// silently returning unfiltered records
+		for (String parameter : request.getParameters().keySet()) {
+			if (!options.contains(parameter) && !parameter.equals(SINCE)
+					&& !parameter.equals(UNTIL)
+					&& !isFilter(parameter, columns)) {
+				throw new IllegalArgumentException("Unknown query parameter: "
+						+ parameter);
+			}
+		}
+
+		// Add the filters in the order of the columns
+		for (String column : columns) {
+			String value = request.get(getParameter(column));
+			if (value != null) {
+				add(column + "=?", value);
+			}
+		}
+
+		// The time range includes its start and excludes its end
+		String since = request.get(SINCE);
+		if (since != null) {
+			add("timestamp>=?", parseTimestamp(SINCE, since));
+		}
+		String until = request.get(UNTIL);
+		if (until != null) {
+			add("timestamp<?", parseTimestamp(UNTIL, until));
+		}
+	}
+
+	/**
+	 * Adds a condition.
+	 *
+	 * @param condition
+	 *            the condition
+	 *
+	 * @param values
+	 *            the values of the parameters in the condition
+	 */
+	public void add(String condition, Object... values) {
+		clause.append(parameters.isEmpty() ? " WHERE " : " AND ");
+		clause.append(condition);
+		for (Object value : values) {
+			parameters.add(value);
+		}
+	}
+
+	/**
+	 * Gets the WHERE clause of the conditions.
+	 *
+	 * @return The WHERE clause with a leading space, or an empty string if
+	 *         there are no conditions
+	 */
+	public String getClause() {
+		return clause.toString();
+	}
+
+	/**
+	 * Gets the values of the parameters in the conditions.
+	 *
+	 * @return The parameter values in order
+	 */
+	public List<Object> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Gets the request parameter used to filter a column.
+	 *
+	 * @param column
+	 *            the column name
+	 *
+	 * @return The request parameter
+	 */
+	public static String getParameter(String column) {
+		return column.equals(USERNAME_COLUMN) ? USER : column;
+	}
+
+	/**
+	 * Parses a timestamp requested by the client.
+	 *
+	 * @param parameter
+	 *            the name of the parameter
+	 *
+	 * @param value
+	 *            the value of the parameter
+	 *
+	 * @return The timestamp in milliseconds since the epoch
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the value is not an integer
+	 */
+	private static long parseTimestamp(String parameter, String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid %s: %s", parameter, value));
+		}
+	}
+
+	/**
+	 * Gets whether a request parameter filters one of the columns.
+	 *
+	 * @param parameter
+	 *            the request parameter
+	 *
+	 * @param columns
+	 *            the columns that can be filtered
+	 *
+	 * @return True if the parameter is a filter, false otherwise
+	 */
+	private static boolean isFilter(String parameter, List<String> columns) {
+		for (String column : columns) {
+			if (getParameter(column).equals(parameter)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
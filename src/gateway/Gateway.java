@@ -1,33 +1,62 @@
 package gateway;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import javax.net.ssl.SSLSocket;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
 
+import db.ConnectionPool;
 import log.Log;
 
 import org.json.JSONArray;
@@ -43,6 +72,87 @@ public class Gateway extends Thread {
 	private static final String PROPERTIES = "gateway.properties";
 	private static final String URL = "url";
 
+	// Request executor properties
+	private static final String EXECUTOR_MODE = "executor.mode";
+	private static final String EXECUTOR_MAX_CONCURRENCY = "executor.maxconcurrency";
+
+	// Credential cache properties
+	private static final String AUTH_CACHE_SIZE = "auth.cachesize";
+	private static final String AUTH_CACHE_TTL = "auth.cachettl";
+
+	// Client connection properties
+	private static final String SERVER_ENGINE = "server.engine";
+	private static final String SERVER_EVENT_LOOPS = "server.eventloops";
+	private static final String HTTP_IDLE_TIMEOUT = "http.idletimeout";
+	private static final String HTTP_MAX_REQUESTS = "http.maxrequests";
+	private static final String HTTP_MAX_KEEP_ALIVE = "http.maxkeepalive";
+	private static final String HTTP_KEEP_ALIVE_TIMEOUT = "http.keepalivetimeout";
+	private static final String HTTP_WRITE_TIMEOUT = "http.writetimeout";
+
+	// Connection pool properties
+	private static final String POOL_SIZE = "pool.size";
+	private static final String POOL_MIN_IDLE = "pool.minidle";
+	private static final String POOL_TIMEOUT = "pool.timeout";
+	private static final String POOL_IDLE_TIMEOUT = "pool.idletimeout";
+	private static final String POOL_STATEMENT_CACHE = "pool.statementcache";
+	private static final String POOL_BUSY_TIMEOUT = "pool.busytimeout";
+
+	// API server properties
+	private static final String API_SCHEME = "api.scheme";
+	private static final String API_HOST = "api.host";
+	private static final String API_PORT = "api.port";
+	private static final String API_MAX_CONNECTIONS = "api.maxconnections";
+	private static final String API_IDLE_TIMEOUT = "api.idletimeout";
+	private static final String API_CONNECT_TIMEOUT = "api.connecttimeout";
+	private static final String API_READ_TIMEOUT = "api.readtimeout";
+	private static final String API_TRUST_STORE = "api.truststore";
+	private static final String API_TRUST_STORE_PASSWORD = "api.truststorepassword";
+	private static final String API_COALESCE = "api.coalesce";
+
+	// Response cache properties
+	private static final String CACHE_SIZE = "cache.size";
+	private static final String CACHE_TTL = "cache.ttl";
+	private static final String CACHE_EVICTION = "cache.eviction";
+
+	// Audit writer properties
+	private static final String AUDIT_QUEUE_SIZE = "audit.queuesize";
+	private static final String AUDIT_BATCH_SIZE = "audit.batchsize";
+	private static final String AUDIT_FLUSH_INTERVAL = "audit.flushinterval";
+	private static final String AUDIT_OVERFLOW = "audit.overflow";
+	private static final String AUDIT_FLUSH_ON_SHUTDOWN = "audit.flushonshutdown";
+
+	// Log properties
+	private static final String LOG_LEVEL = "log.level";
+	private static final String LOG_BUFFER_SIZE = "log.buffersize";
+	private static final String LOG_BATCH_SIZE = "log.batchsize";
+	private static final String LOG_FLUSH_INTERVAL = "log.flushinterval";
+
+	// Rate limit properties
+	private static final String RATE_LIMIT_RATE = "ratelimit.rate";
+	private static final String RATE_LIMIT_BURST = "ratelimit.burst";
+	private static final String RATE_LIMIT_ANON_RATE = "ratelimit.anon.rate";
+	private static final String RATE_LIMIT_ANON_BURST = "ratelimit.anon.burst";
+	private static final String RATE_LIMIT_GLOBAL_RATE = "ratelimit.global.rate";
+	private static final String RATE_LIMIT_GLOBAL_BURST = "ratelimit.global.burst";
+
+	// Daily quota properties
+	private static final String QUOTA_DAILY = "quota.daily";
+	private static final String QUOTA_ANON_DAILY = "quota.anon.daily";
+	private static final String QUOTA_FLUSH_INTERVAL = "quota.flushinterval";
+
+	// Database maintenance properties
+	private static final String DB_ANALYZE_INTERVAL = "db.analyzeinterval";
+	private static final String DB_JOURNAL_MODE = "db.journalmode";
+
+	// Database query properties
+	private static final String QUERY_LIMIT = "query.limit";
+	private static final String QUERY_MAX_LIMIT = "query.maxlimit";
+
+	// Search rollup properties
+	private static final String ROLLUP_BUCKETS = "rollup.buckets";
+	private static final String ROLLUP_INTERVAL = "rollup.interval";
+	private static final String ROLLUP_USERS = "rollup.users";
+
 	// URL paths used by the client to interact with the gateway
 	private static final String GATEWAY_PATH_NEARBY_SEARCH = "/google-places-api-gateway/nearbysearch";
 	private static final String GATEWAY_PATH_TEXT_SEARCH = "/google-places-api-gateway/textsearch";
@@ -50,30 +160,79 @@ public class Gateway extends Thread {
 	private static final String GATEWAY_PATH_ADD_USER = "/google-places-api-gateway/adduser";
 	private static final String GATEWAY_PATH_SEARCH_QUERY = "/google-places-api-gateway/searchquery";
 	private static final String GATEWAY_PATH_RESULT_QUERY = "/google-places-api-gateway/resultquery";
-
-	// URL hostname and paths used by the gateway to interact with the API
-	private static final String API_HOSTNAME = "maps.googleapis.com";
-	private static final String API_PATH_NEARBY_SEARCH = "https://maps.googleapis.com/maps/api/place/nearbysearch/json?";
-	private static final String API_PATH_TEXT_SEARCH = "https://maps.googleapis.com/maps/api/place/textsearch/json?";
-	private static final String API_PATH_RADAR_SEARCH = "https://maps.googleapis.com/maps/api/place/radarsearch/json?";
-
-	// HTTP response header
-	private static final String HTTP_RESPONSE = "HTTP/1.0 200 OK";
+	private static final String GATEWAY_PATH_SEARCH_COUNT = "/google-places-api-gateway/searchcount";
+	private static final String GATEWAY_PATH_RESULT_COUNT = "/google-places-api-gateway/resultcount";
+	private static final String GATEWAY_PATH_RESULT_GEO_QUERY = "/google-places-api-gateway/resultgeoquery";
+	private static final String GATEWAY_PATH_STATS = "/google-places-api-gateway/stats";
+	private static final String GATEWAY_PATH_ROLLUP = "/google-places-api-gateway/rollup";
+	private static final String GATEWAY_PATH_METRICS = "/google-places-api-gateway/metrics";
+	private static final List<String> GATEWAY_PATHS = Collections
+			.unmodifiableList(Arrays.asList(GATEWAY_PATH_NEARBY_SEARCH,
+					GATEWAY_PATH_TEXT_SEARCH, GATEWAY_PATH_RADAR_SEARCH,
+					GATEWAY_PATH_ADD_USER, GATEWAY_PATH_SEARCH_QUERY,
+					GATEWAY_PATH_RESULT_QUERY, GATEWAY_PATH_SEARCH_COUNT,
+					GATEWAY_PATH_RESULT_COUNT, GATEWAY_PATH_RESULT_GEO_QUERY,
+					GATEWAY_PATH_STATS, GATEWAY_PATH_ROLLUP,
+					GATEWAY_PATH_METRICS));
+
+	// URL paths used by the gateway to interact with the API
+	private static final String API_PATH_NEARBY_SEARCH = "/maps/api/place/nearbysearch/json?";
+	private static final String API_PATH_TEXT_SEARCH = "/maps/api/place/textsearch/json?";
+	private static final String API_PATH_RADAR_SEARCH = "/maps/api/place/radarsearch/json?";
+
+	// HTTP response headers for gateway responses
+	private static final List<String> JSON_HEADERS = Collections
+			.singletonList("Content-Type: application/json; charset=UTF-8");
+	private static final List<String> METRICS_HEADERS = Collections
+			.singletonList("Content-Type: " + Metrics.CONTENT_TYPE);
+
+	// Limits on client requests
+	private static final int MAX_LINE_LENGTH = 8192;
+	private static final int MAX_HEAD_LENGTH = 65536;
+	private static final int BUFFER_SIZE = 8192;
+
+	// URL schemes supported for the API server
+	private static final String HTTP = "http";
+	private static final String HTTPS = "https";
 
 	// SQL statements for updating and querying the database
-	private static final String INSERT_SEARCH = "INSERT INTO searches (sessionid, timestamp, searchtype, username, query, location, radius, keyword, language, "
-			+ "minprice, maxprice, name, opennow, rankby, types, pagetoken, zagatselected) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
-	private static final String INSERT_RESULT = "INSERT INTO results (sessionid, timestamp, username, placeid, lat, lng) VALUES (?, ?, ?, ?, ?, ?);";
 	private static final String ADD_USER = "INSERT INTO users (username, salt, passhash) VALUES (?, ?, ?);";
 	private static final String VALIDATE_USER = "SELECT salt, passhash FROM users WHERE username = ? LIMIT 1;";
-	private static final String SEARCH_QUERY_PREFIX = "SELECT sessionid, timestamp, username, query, location, radius, keyword, language, "
-			+ "minprice, maxprice, name, opennow, rankby, types, pagetoken, zagatselected FROM searches";
-	private static final String RESULT_QUERY_PREFIX = "SELECT sessionid, timestamp, username, placeid, lat, lng FROM results";
-	private static final String QUERY_SUFFIX = " ORDER BY timestamp DESC LIMIT 20;";
+
+	// Tables and their columns that are returned and can be filtered by
+	// queries, in the order they appear in query conditions
+	private static final String SEARCHES = "searches";
+	private static final String RESULTS = "results";
+	private static final List<String> SEARCH_COLUMNS = Collections
+			.unmodifiableList(Arrays.asList("sessionid", "timestamp",
+					"searchtype", "username", "query", "location", "radius",
+					"keyword", "language", "minprice", "maxprice", "name",
+					"opennow", "rankby", "types", "pagetoken", "zagatselected"));
+	private static final List<String> RESULT_COLUMNS = Collections
+			.unmodifiableList(Arrays.asList("sessionid", "timestamp",
+					"username", "placeid", "lat", "lng"));
+
+	// Columns that records can be grouped by in counts
+	private static final List<String> SEARCH_GROUP_COLUMNS = Collections
+			.unmodifiableList(Arrays.asList("searchtype", "username",
+					"keyword", "language", "rankby", "types"));
+	private static final List<String> RESULT_GROUP_COLUMNS = Collections
+			.unmodifiableList(Arrays.asList("username", "placeid"));
 
 	// URL query parameters for the gateway
 	private static final String USERNAME = "username";
 	private static final String PASSWORD = "password";
+
+	// URL query parameters that do not affect search results
+	private static final Set<String> CREDENTIAL_PARAMETERS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList(USERNAME,
+					PASSWORD)));
+	private static final String PRETTY = "pretty";
+
+	// URL query parameters that are not database query conditions
+	private static final Set<String> QUERY_OPTION_PARAMETERS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList(USERNAME,
+					PASSWORD, PRETTY)));
 	private static final String NEW_USERNAME = "newusername";
 	private static final String NEW_PASSWORD = "newpassword";
 
@@ -93,6 +252,7 @@ public class Gateway extends Thread {
 	private static final String ZAGATSELECTED = "zagatselected";
 
 	// Database fields
+	private static final String TIMESTAMP = "timestamp";
 	private static final String SALT = "salt";
 	private static final String PASSHASH = "passhash";
 
@@ -100,13 +260,21 @@ public class Gateway extends Thread {
 	private static final String RESPONSE_RESULTS = "results";
 	private static final String RESPONSE_ERROR_MESSAGE = "error_message";
 	private static final String RESPONSE_STATUS = "status";
+	private static final String RESPONSE_NAME = "name";
+	private static final String RESPONSE_NEXT_CURSOR = "next_cursor";
+	private static final String RESPONSE_COUNT = "count";
+	private static final String RESPONSE_INTERVAL = "interval";
+	private static final String RESPONSE_DISTANCE = "distance";
 	private static final String OK = "OK";
+	private static final String ZERO_RESULTS = "ZERO_RESULTS";
 	private static final String GATEWAY_INVALID_REQUEST = "GATEWAY_INVALID_REQUEST";
 	private static final String GATEWAY_INVALID_URL = "GATEWAY_INVALID_URL";
 	private static final String GATEWAY_AUTHENTICATION_FAILED = "GATEWAY_AUTHENTICATION_FAILED";
 	private static final String GATEWAY_SEARCH_ERROR = "GATEWAY_SEARCH_ERROR";
 	private static final String GATEWAY_QUERY_ERROR = "GATEWAY_QUERY_ERROR";
 	private static final String GATEWAY_ADD_USER_ERROR = "GATEWAY_ADD_USER_ERROR";
+	private static final String GATEWAY_RATE_LIMITED = "GATEWAY_RATE_LIMITED";
+	private static final String GATEWAY_QUOTA_EXCEEDED = "GATEWAY_QUOTA_EXCEEDED";
 
 	// Search types
 	private static final String NEARBY_SEARCH = "nearby";
@@ -116,26 +284,397 @@ public class Gateway extends Thread {
 	// Number of threads to be used
 	private static final int NUM_THREADS = 10;
 
+	// Default request executor configuration
+	private static final String DEFAULT_EXECUTOR_MODE = "fixed";
+	private static final int DEFAULT_EXECUTOR_MAX_CONCURRENCY = 100;
+
+	// Default credential cache configuration
+	private static final int DEFAULT_AUTH_CACHE_SIZE = 1000;
+	private static final long DEFAULT_AUTH_CACHE_TTL = 300000;
+
+	// Default client connection configuration
+	private static final String DEFAULT_SERVER_ENGINE = "blocking";
+	private static final int DEFAULT_SERVER_EVENT_LOOPS = Runtime.getRuntime()
+			.availableProcessors();
+	private static final int DEFAULT_HTTP_IDLE_TIMEOUT = 5000;
+	private static final int DEFAULT_HTTP_MAX_REQUESTS = 100;
+	private static final int DEFAULT_HTTP_MAX_KEEP_ALIVE = NUM_THREADS / 2;
+	private static final int DEFAULT_HTTP_KEEP_ALIVE_TIMEOUT = 1000;
+	private static final int DEFAULT_HTTP_WRITE_TIMEOUT = 10000;
+
+	// Default connection pool configuration
+	private static final int DEFAULT_POOL_SIZE = NUM_THREADS;
+	private static final int DEFAULT_POOL_MIN_IDLE = 1;
+	private static final long DEFAULT_POOL_TIMEOUT = 5000;
+	private static final long DEFAULT_POOL_IDLE_TIMEOUT = 60000;
+	private static final int DEFAULT_POOL_STATEMENT_CACHE = 64;
+	private static final long DEFAULT_POOL_BUSY_TIMEOUT = 10000;
+
+	// Default API server configuration
+	private static final String DEFAULT_API_SCHEME = "https";
+	private static final String DEFAULT_API_HOST = "maps.googleapis.com";
+	private static final int DEFAULT_API_MAX_CONNECTIONS = NUM_THREADS;
+	private static final long DEFAULT_API_IDLE_TIMEOUT = 30000;
+	private static final int DEFAULT_API_CONNECT_TIMEOUT = 5000;
+	private static final int DEFAULT_API_READ_TIMEOUT = 10000;
+	private static final boolean DEFAULT_API_COALESCE = true;
+
+	// Default rate limit and daily quota configuration, which do not limit
+	// requests
+	private static final double DEFAULT_RATE_LIMIT_RATE = 0;
+	private static final long DEFAULT_QUOTA_DAILY = 0;
+	private static final long DEFAULT_QUOTA_FLUSH_INTERVAL = 10000;
+
+	// Default database maintenance configuration
+	private static final long DEFAULT_DB_ANALYZE_INTERVAL = 86400000;
+	private static final String DEFAULT_DB_JOURNAL_MODE = "wal";
+
+	// Default database query configuration
+	private static final int DEFAULT_QUERY_LIMIT = 20;
+	private static final int DEFAULT_QUERY_MAX_LIMIT = 1000;
+
+	// Default search rollup configuration
+	private static final int DEFAULT_ROLLUP_BUCKETS = 60;
+	private static final long DEFAULT_ROLLUP_INTERVAL = 60000;
+	private static final int DEFAULT_ROLLUP_USERS = 100;
+
+	// Default response cache configuration
+	private static final int DEFAULT_CACHE_SIZE = 1000;
+	private static final long DEFAULT_CACHE_TTL = 300000;
+	private static final String DEFAULT_CACHE_EVICTION = "lru";
+
+	// Default audit writer configuration
+	private static final int DEFAULT_AUDIT_QUEUE_SIZE = 10000;
+	private static final int DEFAULT_AUDIT_BATCH_SIZE = 500;
+	private static final long DEFAULT_AUDIT_FLUSH_INTERVAL = 1000;
+	private static final String DEFAULT_AUDIT_OVERFLOW = "block";
+	private static final boolean DEFAULT_AUDIT_FLUSH_ON_SHUTDOWN = true;
+
+	// Default log configuration
+	private static final String DEFAULT_LOG_LEVEL = "info";
+	private static final int DEFAULT_LOG_BUFFER_SIZE = 8192;
+	private static final int DEFAULT_LOG_BATCH_SIZE = 256;
+	private static final long DEFAULT_LOG_FLUSH_INTERVAL = 100;
+
+	// Time to wait for submitted requests to complete on shutdown
+	private static final long SHUTDOWN_TIMEOUT = 30000;
+
+	// Time between checks for waiting clients while a blocking connection
+	// waits for its next request
+	private static final int KEEP_ALIVE_POLL_INTERVAL = 50;
+
 	// If the gateway allows users who do not provide credentials
 	private static final boolean ALLOW_ANON_USERS = true;
 
+	/**
+	 * An engine for serving client connections.
+	 */
+	public enum Engine {
+		/** Serve each connection on a request thread with blocking reads */
+		BLOCKING,
+		/** Multiplex connections over non-blocking event loops */
+		NIO;
+
+		/**
+		 * Parses a server engine from its configuration value.
+		 *
+		 * @param value
+		 *            the configuration value
+		 *
+		 * @return The server engine
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the value is not a valid server engine
+		 */
+		public static Engine parse(String value) {
+			return valueOf(value.trim().toUpperCase(Locale.ROOT));
+		}
+	}
+
+	/**
+	 * A mode for running client handlers.
+	 */
+	public enum ExecutorMode {
+		/** Run handlers on a fixed pool of platform threads */
+		FIXED,
+		/** Run each handler on its own virtual thread */
+		VIRTUAL;
+
+		/**
+		 * Parses an executor mode from its configuration value.
+		 *
+		 * @param value
+		 *            the configuration value
+		 *
+		 * @return The executor mode
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the value is not a valid executor mode
+		 */
+		public static ExecutorMode parse(String value) {
+			return valueOf(value.trim().toUpperCase(Locale.ROOT));
+		}
+	}
+
+	/**
+	 * Writes the results of a database query to the client.
+	 */
+	private interface ResultSetWriter {
+		void write(ResultSet resultSet) throws SQLException, IOException;
+	}
+
 	private final int port;
 	private ServerSocket serverSocket = null;
-
-	private final String dbUrl;
-	private final Properties properties;
+	private NioServer nioServer = null;
+
+	private final Config config;
+	private final ConnectionPool connectionPool;
+	private final AuditWriter auditWriter;
+	private final ScheduledExecutorService maintenance;
+
+	private final UpstreamClient upstreamClient;
+	private final SingleFlight<UpstreamResponse> searchFlight;
+	private final ResponseCache responseCache;
+	private final CredentialCache credentialCache;
+	private final Rollup rollup;
+	private final RateLimiter rateLimiter;
+	private final Quotas quotas;
+
+	// Authentication statistics
+	private final AtomicLong authentications = new AtomicLong();
+	private final AtomicLong authNanos = new AtomicLong();
+	private final AtomicLong maxAuthNanos = new AtomicLong();
+
+	// Connection statistics
+	private final AtomicLong acceptedConnections = new AtomicLong();
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final AtomicInteger keepAliveConnections = new AtomicInteger();
+
+	// Latency histograms, which are registered with the metrics
+	private final Metrics metrics = new Metrics();
+	private final Map<String, Histogram> requestDurations = new HashMap<String, Histogram>();
+	private final Map<String, Histogram> upstreamDurations = new HashMap<String, Histogram>();
+	private Histogram otherRequestDuration;
+	private Histogram validateUserDuration;
+	private Histogram writeSearchDuration;
+	private Histogram writeResultsDuration;
+	private Histogram executeQueryDuration;
+	private Histogram executorWait;
+	private Histogram concurrencyWait;
 
 	private final Log log;
 
 	private final ExecutorService executor;
+	private final ExecutorMode executorMode;
+	private final int maxConcurrency;
+	private final Semaphore concurrencyLimiter;
+	private final Engine engine;
+	private final int eventLoops;
+	private final int httpIdleTimeout;
+	private final int httpMaxRequests;
+	private final int httpMaxKeepAlive;
+	private final int httpKeepAliveTimeout;
+	private final int httpWriteTimeout;
+	private final int queryLimit;
+	private final int queryMaxLimit;
 
 	public Gateway(int port, String dbUrl, Properties properties,
 			PrintStream logOut, PrintStream logErr) {
 		this.port = port;
-		this.dbUrl = dbUrl;
-		this.properties = properties == null ? new Properties() : properties;
-		this.log = new Log(logOut, logErr);
-		executor = Executors.newFixedThreadPool(NUM_THREADS);
+		this.config = new Config(properties);
+		this.log = new Log(logOut, logErr, Log.Level.parse(config.getString(
+				LOG_LEVEL, DEFAULT_LOG_LEVEL)), config.getInt(LOG_BUFFER_SIZE,
+				DEFAULT_LOG_BUFFER_SIZE), config.getInt(LOG_BATCH_SIZE,
+				DEFAULT_LOG_BATCH_SIZE), config.getLong(LOG_FLUSH_INTERVAL,
+				DEFAULT_LOG_FLUSH_INTERVAL));
+
+		// Use virtual threads if they are configured and supported
+		ExecutorService virtualExecutor = null;
+		if (ExecutorMode.parse(config.getString(EXECUTOR_MODE,
+				DEFAULT_EXECUTOR_MODE)) == ExecutorMode.VIRTUAL) {
+			virtualExecutor = newVirtualThreadExecutor();
+		}
+		if (virtualExecutor != null) {
+			executor = virtualExecutor;
+			executorMode = ExecutorMode.VIRTUAL;
+		} else {
+			executor = Executors.newFixedThreadPool(NUM_THREADS);
+			executorMode = ExecutorMode.FIXED;
+		}
+		maxConcurrency = config.getInt(EXECUTOR_MAX_CONCURRENCY,
+				DEFAULT_EXECUTOR_MAX_CONCURRENCY);
+		concurrencyLimiter = new Semaphore(maxConcurrency, true);
+
+		engine = Engine.parse(config.getString(SERVER_ENGINE,
+				DEFAULT_SERVER_ENGINE));
+		eventLoops = config.getInt(SERVER_EVENT_LOOPS,
+				DEFAULT_SERVER_EVENT_LOOPS);
+		httpIdleTimeout = config.getInt(HTTP_IDLE_TIMEOUT,
+				DEFAULT_HTTP_IDLE_TIMEOUT);
+		httpMaxRequests = config.getInt(HTTP_MAX_REQUESTS,
+				DEFAULT_HTTP_MAX_REQUESTS);
+		httpWriteTimeout = config.getInt(HTTP_WRITE_TIMEOUT,
+				DEFAULT_HTTP_WRITE_TIMEOUT);
+
+		// A blocking connection holds its thread while it waits for the next
+		// request, so with a fixed pool only some connections are kept open
+		// and only briefly, leaving threads for new clients
+		if (executorMode == ExecutorMode.FIXED) {
+			httpMaxKeepAlive = config.getInt(HTTP_MAX_KEEP_ALIVE,
+					DEFAULT_HTTP_MAX_KEEP_ALIVE);
+			httpKeepAliveTimeout = config.getInt(HTTP_KEEP_ALIVE_TIMEOUT,
+					Math.min(httpIdleTimeout, DEFAULT_HTTP_KEEP_ALIVE_TIMEOUT));
+		} else {
+			httpMaxKeepAlive = Integer.MAX_VALUE;
+			httpKeepAliveTimeout = httpIdleTimeout;
+		}
+		queryLimit = config.getInt(QUERY_LIMIT, DEFAULT_QUERY_LIMIT);
+		queryMaxLimit = config.getInt(QUERY_MAX_LIMIT, DEFAULT_QUERY_MAX_LIMIT);
+
+		// Keep persistent connections to the API server
+		String apiScheme = config.getString(API_SCHEME, DEFAULT_API_SCHEME);
+		int defaultApiPort = apiScheme.equals(HTTP) ? 80 : 443;
+		upstreamClient = new UpstreamClient(getApiSocketFactory(apiScheme),
+				config.getString(API_HOST, DEFAULT_API_HOST), config.getInt(
+						API_PORT, defaultApiPort), defaultApiPort,
+				config.getInt(API_MAX_CONNECTIONS, DEFAULT_API_MAX_CONNECTIONS),
+				config.getLong(API_IDLE_TIMEOUT, DEFAULT_API_IDLE_TIMEOUT),
+				config.getInt(API_CONNECT_TIMEOUT, DEFAULT_API_CONNECT_TIMEOUT),
+				config.getInt(API_READ_TIMEOUT, DEFAULT_API_READ_TIMEOUT));
+
+		// Coalesce identical concurrent searches unless disabled
+		if (config.getBoolean(API_COALESCE, DEFAULT_API_COALESCE)) {
+			searchFlight = new SingleFlight<UpstreamResponse>();
+		} else {
+			searchFlight = null;
+		}
+
+		// Responses are cached unless the cache size is 0
+		int cacheSize = config.getInt(CACHE_SIZE, DEFAULT_CACHE_SIZE);
+		if (cacheSize > 0) {
+			Map<String, Long> searchTypeTtls = new HashMap<String, Long>();
+			for (String searchType : new String[] { NEARBY_SEARCH,
+					TEXT_SEARCH, RADAR_SEARCH }) {
+				String key = CACHE_TTL + "." + searchType;
+				if (config.getString(key, null) != null) {
+					searchTypeTtls.put(searchType, config.getLong(key, 0));
+				}
+			}
+			responseCache = new ResponseCache(cacheSize, config.getLong(
+					CACHE_TTL, DEFAULT_CACHE_TTL), searchTypeTtls,
+					ResponseCache.EvictionPolicy.parse(config.getString(
+							CACHE_EVICTION, DEFAULT_CACHE_EVICTION)));
+		} else {
+			responseCache = null;
+		}
+
+		// Verified credentials are cached unless the cache size is 0
+		int authCacheSize = config.getInt(AUTH_CACHE_SIZE,
+				DEFAULT_AUTH_CACHE_SIZE);
+		if (authCacheSize > 0) {
+			credentialCache = new CredentialCache(authCacheSize,
+					config.getLong(AUTH_CACHE_TTL, DEFAULT_AUTH_CACHE_TTL));
+		} else {
+			credentialCache = null;
+		}
+
+		// Recent searches are counted in memory unless there are no buckets
+		int rollupBuckets = config.getInt(ROLLUP_BUCKETS,
+				DEFAULT_ROLLUP_BUCKETS);
+		if (rollupBuckets > 0) {
+			rollup = new Rollup(rollupBuckets, config.getLong(ROLLUP_INTERVAL,
+					DEFAULT_ROLLUP_INTERVAL), config.getInt(ROLLUP_USERS,
+					DEFAULT_ROLLUP_USERS));
+		} else {
+			rollup = null;
+		}
+
+		// Requests are limited unless every rate is 0, and anonymous clients
+		// have the limits of each user unless they are configured
+		double userRate = config.getDouble(RATE_LIMIT_RATE,
+				DEFAULT_RATE_LIMIT_RATE);
+		int userBurst = config.getInt(RATE_LIMIT_BURST,
+				getDefaultBurst(userRate));
+		double anonRate = config.getDouble(RATE_LIMIT_ANON_RATE, userRate);
+		int anonBurst = config.getInt(RATE_LIMIT_ANON_BURST,
+				anonRate == userRate ? userBurst : getDefaultBurst(anonRate));
+		double globalRate = config.getDouble(RATE_LIMIT_GLOBAL_RATE,
+				DEFAULT_RATE_LIMIT_RATE);
+		int globalBurst = config.getInt(RATE_LIMIT_GLOBAL_BURST,
+				getDefaultBurst(globalRate));
+		if (userRate > 0 || anonRate > 0 || globalRate > 0) {
+			rateLimiter = new RateLimiter(userRate, userBurst, anonRate,
+					anonBurst, globalRate, globalBurst);
+		} else {
+			rateLimiter = null;
+		}
+
+		if (dbUrl != null) {
+			connectionPool = new ConnectionPool(dbUrl, config.getProperties(),
+					config.getInt(POOL_SIZE, DEFAULT_POOL_SIZE),
+					config.getInt(POOL_MIN_IDLE, DEFAULT_POOL_MIN_IDLE),
+					config.getLong(POOL_TIMEOUT, DEFAULT_POOL_TIMEOUT),
+					config.getLong(POOL_IDLE_TIMEOUT, DEFAULT_POOL_IDLE_TIMEOUT),
+					config.getInt(POOL_STATEMENT_CACHE,
+							DEFAULT_POOL_STATEMENT_CACHE),
+					"PRAGMA busy_timeout = "
+							+ config.getLong(POOL_BUSY_TIMEOUT,
+									DEFAULT_POOL_BUSY_TIMEOUT) + ";");
+			migrateSchema(config.getString(DB_JOURNAL_MODE,
+					DEFAULT_DB_JOURNAL_MODE));
+
+			auditWriter = new AuditWriter(connectionPool, config.getInt(
+					AUDIT_QUEUE_SIZE, DEFAULT_AUDIT_QUEUE_SIZE), config.getInt(
+					AUDIT_BATCH_SIZE, DEFAULT_AUDIT_BATCH_SIZE),
+					config.getLong(AUDIT_FLUSH_INTERVAL,
+							DEFAULT_AUDIT_FLUSH_INTERVAL),
+					AuditWriter.OverflowPolicy.parse(config.getString(
+							AUDIT_OVERFLOW, DEFAULT_AUDIT_OVERFLOW)),
+					config.getBoolean(AUDIT_FLUSH_ON_SHUTDOWN,
+							DEFAULT_AUDIT_FLUSH_ON_SHUTDOWN), log);
+		} else {
+			connectionPool = null;
+			auditWriter = null;
+		}
+
+		// Searches are counted against daily quotas unless every quota is 0,
+		// and anonymous clients have the quota of each user unless it is
+		// configured
+		long userQuota = config.getLong(QUOTA_DAILY, DEFAULT_QUOTA_DAILY);
+		long anonQuota = config.getLong(QUOTA_ANON_DAILY, userQuota);
+		if (userQuota > 0 || anonQuota > 0) {
+			quotas = new Quotas(connectionPool, userQuota, anonQuota, log);
+		} else {
+			quotas = null;
+		}
+
+		// Keep the query planner statistics up to date as data is added, and
+		// write the counts of the daily quotas periodically
+		long analyzeInterval = connectionPool != null ? config.getLong(
+				DB_ANALYZE_INTERVAL, DEFAULT_DB_ANALYZE_INTERVAL) : 0;
+		long quotaFlushInterval = quotas != null ? config.getLong(
+				QUOTA_FLUSH_INTERVAL, DEFAULT_QUOTA_FLUSH_INTERVAL) : 0;
+		if (analyzeInterval > 0 || quotaFlushInterval > 0) {
+			maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "db-maintenance");
+				thread.setDaemon(true);
+				return thread;
+			});
+			if (analyzeInterval > 0) {
+				maintenance.scheduleWithFixedDelay(this::analyzeSchema,
+						analyzeInterval, analyzeInterval,
+						TimeUnit.MILLISECONDS);
+			}
+			if (quotaFlushInterval > 0) {
+				maintenance.scheduleWithFixedDelay(quotas::flush,
+						quotaFlushInterval, quotaFlushInterval,
+						TimeUnit.MILLISECONDS);
+			}
+		} else {
+			maintenance = null;
+		}
+
+		registerMetrics();
 	}
 
 	public Gateway(int port, String dbUrl, Properties properties) {
@@ -163,24 +702,45 @@ public class Gateway extends Thread {
 	@Override
 	public void run() {
 		try {
-			serverSocket = new ServerSocket(port);
+			if (engine == Engine.NIO) {
+				ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(port));
+				serverSocket = serverChannel.socket();
+				nioServer = new NioServer(eventLoops, this::execute,
+						this::handleRequest, MAX_HEAD_LENGTH, httpIdleTimeout,
+						httpWriteTimeout, log);
+			} else {
+				serverSocket = new ServerSocket(port);
+			}
 		} catch (IOException e) {
 			return;
 		}
 
-		log.i(String.format("Starting gateway on port %d", port));
+		log.i(String.format("Starting gateway on port %d using the %s engine",
+				port, engine.name().toLowerCase(Locale.ROOT)));
 
 		// Accept incoming connections, handle them on a background thread,
 		// and immediately begin listening for other incoming client
 		// connections.
 		while (true) {
 			try {
-				Socket clientSocket = serverSocket.accept();
-				log.i(String.format("Accepted connection from %s:%d",
-						clientSocket.getInetAddress().getHostAddress(),
-						clientSocket.getPort()));
-				executor.execute(new ClientHandler(clientSocket, System
-						.currentTimeMillis()));
+				if (nioServer != null) {
+					SocketChannel clientChannel = serverSocket.getChannel()
+							.accept();
+					acceptedConnections.incrementAndGet();
+					logAccepted(clientChannel.socket());
+					try {
+						nioServer.register(clientChannel);
+					} catch (IOException e) {
+						log.e("Error registering client connection", e);
+						clientChannel.close();
+					}
+				} else {
+					Socket clientSocket = serverSocket.accept();
+					acceptedConnections.incrementAndGet();
+					logAccepted(clientSocket);
+					execute(new ClientHandler(clientSocket));
+				}
 
 			} catch (IOException e) {
 				// Do nothing because we are exiting
@@ -196,97 +756,686 @@ public class Gateway extends Thread {
 
 		// Complete submitted requests and shutdown
 		executor.shutdown();
+		try {
+			executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			// Do nothing because we are exiting
+		}
+
+		if (nioServer != null) {
+			nioServer.close();
+		}
+		upstreamClient.close();
+		if (auditWriter != null) {
+			auditWriter.close();
+		}
+		if (maintenance != null) {
+			maintenance.shutdownNow();
+		}
+		if (quotas != null) {
+			quotas.flush();
+		}
+		if (connectionPool != null) {
+			connectionPool.close();
+		}
+		log.close();
+	}
+
+	/**
+	 * Sets the journal mode of the database and applies any pending
+	 * migrations to the database schema.
+	 *
+	 * @param journalMode
+	 *            the journal mode of the database
+	 *
+	 * @throws IllegalStateException
+	 *             if the schema could not be migrated
+	 */
+	private void migrateSchema(String journalMode) {
+		Connection connection = null;
+
+		try {
+			connection = connectionPool.getConnection();
+			String mode = Schema.setJournalMode(connection, journalMode);
+			if (!journalMode.equalsIgnoreCase(mode)) {
+				log.e(String.format(
+						"Database journal mode is %s rather than %s", mode,
+						journalMode));
+			}
+			int migrations = Schema.migrate(connection, log);
+			if (migrations > 0) {
+				log.i(String.format(
+						"Applied %d database migrations, schema version is %d",
+						migrations, Schema.VERSION));
+			}
+		} catch (SQLException | IllegalArgumentException e) {
+			connectionPool.close();
+			throw new IllegalStateException(
+					"The database schema could not be migrated", e);
+		} finally {
+			try {
+				if (connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				// Do nothing because we are exiting
+				log.e("Exception when closing database resources", e);
+			}
+		}
+	}
+
+	/**
+	 * Gathers the statistics used by the database query planner.
+	 */
+	private void analyzeSchema() {
+		Connection connection = null;
+
+		try {
+			connection = connectionPool.getConnection();
+			long start = System.nanoTime();
+			Schema.analyze(connection);
+			log.i(String.format("Analyzed database in %d ms",
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+		} catch (SQLException e) {
+			log.e("Error analyzing database", e);
+		} finally {
+			try {
+				if (connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				// Do nothing because we are exiting
+				log.e("Exception when closing database resources", e);
+			}
+		}
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread. Virtual
+	 * threads are looked up reflectively because they are only available on
+	 * Java 21 and later.
+	 *
+	 * @return The executor, or null if virtual threads are not supported
+	 */
+	private ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			log.e("Virtual threads are not supported, using a fixed thread pool");
+			return null;
+		}
+	}
+
+	/**
+	 * Runs a task on the executor, recording the time it waits to start.
+	 *
+	 * @param task
+	 *            the task
+	 */
+	private void execute(Runnable task) {
+		final long queued = System.nanoTime();
+		executor.execute(() -> {
+			executorWait.record(System.nanoTime() - queued);
+			task.run();
+		});
+	}
+
+	/**
+	 * Records the time taken to authenticate a user.
+	 *
+	 * @param nanos
+	 *            the time in nanoseconds
+	 */
+	private void recordAuthentication(long nanos) {
+		authentications.incrementAndGet();
+		authNanos.addAndGet(nanos);
+		validateUserDuration.record(nanos);
+
+		long max = maxAuthNanos.get();
+		while (nanos > max && !maxAuthNanos.compareAndSet(max, nanos)) {
+			max = maxAuthNanos.get();
+		}
+	}
+
+	/**
+	 * Logs an accepted client connection.
+	 *
+	 * @param clientSocket
+	 *            the client socket
+	 */
+	private void logAccepted(Socket clientSocket) {
+		if (log.isEnabled(Log.Level.DEBUG)) {
+			log.d("Accepted connection from "
+					+ clientSocket.getInetAddress().getHostAddress() + ":"
+					+ clientSocket.getPort());
+		}
+	}
+
+	/**
+	 * Gets the default burst of a rate limit, which allows a second of
+	 * requests at once.
+	 *
+	 * @param rate
+	 *            the requests per second
+	 *
+	 * @return The number of requests allowed at once
+	 */
+	private static int getDefaultBurst(double rate) {
+		return (int) Math.max(1, Math.ceil(rate));
+	}
+
+	/**
+	 * Borrows a connection to the database from the connection pool.
+	 *
+	 * @return A database connection that must be closed to return it to the
+	 *         pool
+	 *
+	 * @throws SQLException
+	 *             if no database is configured or a connection could not be
+	 *             obtained
+	 */
+	private Connection getConnection() throws SQLException {
+		if (connectionPool == null) {
+			throw new SQLException("No database is configured");
+		}
+		return connectionPool.getConnection();
+	}
+
+	/**
+	 * Creates the factory for sockets to the API server.
+	 *
+	 * @param scheme
+	 *            the URL scheme of the API server, either http or https
+	 *
+	 * @return The socket factory
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the scheme is not supported or the trust store could not
+	 *             be loaded
+	 */
+	private SocketFactory getApiSocketFactory(String scheme) {
+		if (scheme.equals(HTTP)) {
+			return SocketFactory.getDefault();
+		}
+		if (!scheme.equals(HTTPS)) {
+			throw new IllegalArgumentException("Unsupported API scheme: "
+					+ scheme);
+		}
+
+		// Use the default trust store unless another one is configured
+		String trustStore = config.getString(API_TRUST_STORE, null);
+		if (trustStore == null) {
+			return SSLSocketFactory.getDefault();
+		}
+
+		try {
+			String password = config.getString(API_TRUST_STORE_PASSWORD, "");
+			KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+			FileInputStream in = new FileInputStream(trustStore);
+			try {
+				keyStore.load(in, password.toCharArray());
+			} finally {
+				in.close();
+			}
+
+			TrustManagerFactory trustManagerFactory = TrustManagerFactory
+					.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trustManagerFactory.init(keyStore);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, trustManagerFactory.getTrustManagers(), null);
+			return context.getSocketFactory();
+
+		} catch (IOException | GeneralSecurityException e) {
+			throw new IllegalArgumentException(
+					"Could not load API trust store " + trustStore, e);
+		}
+	}
+
+	/**
+	 * Registers the latency histograms, and the statistics of the gateway
+	 * resources as counters and gauges.
+	 */
+	private void registerMetrics() {
+		for (String path : GATEWAY_PATHS) {
+			requestDurations.put(path, metrics.histogram(
+					"gateway_request_duration_seconds",
+					"Time taken to handle requests", "route",
+					path.substring(path.lastIndexOf('/') + 1)));
+		}
+		otherRequestDuration = metrics.histogram(
+				"gateway_request_duration_seconds",
+				"Time taken to handle requests", "route", "other");
+		for (String searchType : new String[] { NEARBY_SEARCH, TEXT_SEARCH,
+				RADAR_SEARCH }) {
+			upstreamDurations.put(searchType, metrics.histogram(
+					"gateway_upstream_duration_seconds",
+					"Time taken by searches on the API server", "searchtype",
+					searchType));
+		}
+		validateUserDuration = metrics.histogram("gateway_db_duration_seconds",
+				"Time taken by database operations", "operation",
+				"validateUser");
+		writeSearchDuration = metrics.histogram("gateway_db_duration_seconds",
+				"Time taken by database operations", "operation",
+				"writeSearch");
+		writeResultsDuration = metrics.histogram("gateway_db_duration_seconds",
+				"Time taken by database operations", "operation",
+				"writeResults");
+		executeQueryDuration = metrics.histogram("gateway_db_duration_seconds",
+				"Time taken by database operations", "operation",
+				"executeQuery");
+		executorWait = metrics.histogram("gateway_queue_wait_seconds",
+				"Time spent waiting to be handled", "queue", "executor");
+		concurrencyWait = metrics.histogram("gateway_queue_wait_seconds",
+				"Time spent waiting to be handled", "queue", "concurrency");
+
+		metrics.counter("gateway_connections_accepted_total",
+				"Client connections accepted", acceptedConnections::get);
+		metrics.gauge("gateway_connections_active", "Open client connections",
+				() -> nioServer != null ? nioServer.getOpenCount()
+						: activeConnections.get());
+		metrics.gauge("gateway_requests_active", "Requests being handled",
+				() -> maxConcurrency - concurrencyLimiter.availablePermits());
+		metrics.gauge("gateway_requests_waiting",
+				"Requests waiting for the concurrency limit",
+				concurrencyLimiter::getQueueLength);
+
+		if (connectionPool != null) {
+			metrics.gauge("gateway_pool_connections",
+					"Database connections in the pool",
+					connectionPool::getActiveCount, "state", "active");
+			metrics.gauge("gateway_pool_connections",
+					"Database connections in the pool",
+					connectionPool::getIdleCount, "state", "idle");
+			metrics.gauge("gateway_pool_waiting",
+					"Threads waiting for a database connection",
+					connectionPool::getWaitingCount);
+			metrics.counter("gateway_pool_timeouts_total",
+					"Timeouts waiting for a database connection",
+					connectionPool::getTimeoutCount);
+		}
+
+		metrics.gauge("gateway_upstream_connections",
+				"Connections to the API server",
+				upstreamClient::getOpenCount, "state", "open");
+		metrics.gauge("gateway_upstream_connections",
+				"Connections to the API server",
+				upstreamClient::getIdleCount, "state", "idle");
+		metrics.counter("gateway_upstream_retries_total",
+				"Searches retried on a new connection to the API server",
+				upstreamClient::getRetryCount);
+		if (searchFlight != null) {
+			metrics.counter("gateway_upstream_coalesced_total",
+					"Searches that shared an identical search in flight",
+					searchFlight::getCoalescedCount);
+		}
+
+		if (responseCache != null) {
+			metrics.gauge("gateway_cache_entries", "Cached responses",
+					responseCache::getSize);
+			metrics.counter("gateway_cache_lookups_total",
+					"Response cache lookups",
+					responseCache::getHitCount, "result", "hit");
+			metrics.counter("gateway_cache_lookups_total",
+					"Response cache lookups",
+					responseCache::getMissCount, "result", "miss");
+		}
+
+		if (auditWriter != null) {
+			metrics.gauge("gateway_audit_queued",
+					"Audit records waiting to be written",
+					auditWriter::getQueuedCount);
+			metrics.counter("gateway_audit_records_total",
+					"Audit records by outcome",
+					auditWriter::getWrittenCount, "outcome", "written");
+			metrics.counter("gateway_audit_records_total",
+					"Audit records by outcome",
+					auditWriter::getDroppedCount, "outcome", "dropped");
+			metrics.counter("gateway_audit_records_total",
+					"Audit records by outcome",
+					auditWriter::getFailedCount, "outcome", "failed");
+		}
+
+		if (rateLimiter != null) {
+			for (RateLimiter.Scope scope : RateLimiter.Scope.values()) {
+				metrics.counter("gateway_requests_limited_total",
+						"Requests refused by a limit",
+						() -> rateLimiter.getRefusedCount(scope), "limit",
+						scope.name().toLowerCase(Locale.ROOT));
+			}
+		}
+		if (quotas != null) {
+			metrics.counter("gateway_requests_limited_total",
+					"Requests refused by a limit", quotas::getExceededCount,
+					"limit", "quota");
+		}
+
+		metrics.counter("gateway_log_dropped_total",
+				"Log messages dropped because the buffer was full",
+				log::getDroppedCount);
+	}
+
+	/**
+	 * Gets statistics describing the gateway resources.
+	 *
+	 * @return A {@link JSONArray} containing a statistics object for each
+	 *         resource
+	 */
+	private JSONArray getStats() {
+		JSONArray stats = new JSONArray();
+
+		JSONObject executorStats = new JSONObject();
+		executorStats.put(RESPONSE_NAME, "executor");
+		executorStats.put("mode", executorMode.name().toLowerCase(Locale.ROOT));
+		if (executorMode == ExecutorMode.FIXED) {
+			executorStats.put("threads", NUM_THREADS);
+		}
+		executorStats.put("engine", engine.name().toLowerCase(Locale.ROOT));
+		executorStats.put("maxconcurrency", maxConcurrency);
+		executorStats.put("active",
+				maxConcurrency - concurrencyLimiter.availablePermits());
+		executorStats.put("waiting", concurrencyLimiter.getQueueLength());
+		stats.put(executorStats);
+
+		if (nioServer != null) {
+			JSONObject serverStats = new JSONObject();
+			serverStats.put(RESPONSE_NAME, "nioserver");
+			serverStats.put("eventloops", nioServer.getEventLoopCount());
+			serverStats.put("open", nioServer.getOpenCount());
+			serverStats.put("accepted", nioServer.getAcceptedCount());
+			serverStats.put("requests", nioServer.getRequestCount());
+			serverStats.put("timeouts", nioServer.getTimeoutCount());
+			serverStats.put("stalls", nioServer.getStallCount());
+			stats.put(serverStats);
+		}
+
+		if (connectionPool != null) {
+			JSONObject poolStats = new JSONObject();
+			poolStats.put(RESPONSE_NAME, "connectionpool");
+			poolStats.put("size", connectionPool.getMaxSize());
+			poolStats.put("active", connectionPool.getActiveCount());
+			poolStats.put("idle", connectionPool.getIdleCount());
+			poolStats.put("waiting", connectionPool.getWaitingCount());
+			poolStats.put("created", connectionPool.getCreatedCount());
+			poolStats.put("evicted", connectionPool.getEvictedCount());
+			poolStats.put("acquired", connectionPool.getAcquiredCount());
+			poolStats.put("timeouts", connectionPool.getTimeoutCount());
+			poolStats.put("totalwaitms", connectionPool.getTotalWaitMillis());
+			poolStats.put("maxwaitms", connectionPool.getMaxWaitMillis());
+			poolStats.put("statementhits",
+					connectionPool.getStatementHitCount());
+			poolStats.put("statementmisses",
+					connectionPool.getStatementMissCount());
+			stats.put(poolStats);
+		}
+
+		JSONObject upstreamStats = new JSONObject();
+		upstreamStats.put(RESPONSE_NAME, "upstreamclient");
+		upstreamStats.put("maxconnections", upstreamClient.getMaxConnections());
+		upstreamStats.put("open", upstreamClient.getOpenCount());
+		upstreamStats.put("idle", upstreamClient.getIdleCount());
+		upstreamStats.put("created", upstreamClient.getCreatedCount());
+		upstreamStats.put("reused", upstreamClient.getReusedCount());
+		upstreamStats.put("evicted", upstreamClient.getEvictedCount());
+		upstreamStats.put("retries", upstreamClient.getRetryCount());
+		if (searchFlight != null) {
+			upstreamStats.put("inflight", searchFlight.getInFlightCount());
+			upstreamStats.put("requests", searchFlight.getExecutedCount());
+			upstreamStats.put("coalesced", searchFlight.getCoalescedCount());
+		}
+		stats.put(upstreamStats);
+
+		if (responseCache != null) {
+			JSONObject cacheStats = new JSONObject();
+			cacheStats.put(RESPONSE_NAME, "responsecache");
+			cacheStats.put("maxsize", responseCache.getMaxSize());
+			cacheStats.put("size", responseCache.getSize());
+			cacheStats.put("hits", responseCache.getHitCount());
+			cacheStats.put("misses", responseCache.getMissCount());
+			cacheStats.put("evictions", responseCache.getEvictionCount());
+			cacheStats.put("expirations", responseCache.getExpirationCount());
+			stats.put(cacheStats);
+		}
+
+		JSONObject authStats = new JSONObject();
+		long authCount = authentications.get();
+		authStats.put(RESPONSE_NAME, "authentication");
+		authStats.put("count", authCount);
+		authStats.put("avgus", authCount == 0 ? 0 : authNanos.get() / authCount
+				/ 1000);
+		authStats.put("maxus", maxAuthNanos.get() / 1000);
+		if (credentialCache != null) {
+			long hits = credentialCache.getHitCount();
+			long lookups = hits + credentialCache.getMissCount();
+			authStats.put("cachemaxsize", credentialCache.getMaxSize());
+			authStats.put("cachesize", credentialCache.getSize());
+			authStats.put("cachehits", hits);
+			authStats.put("cachemisses", lookups - hits);
+			authStats.put("cachehitrate", lookups == 0 ? 0 : (double) hits
+					/ lookups);
+			authStats.put("cacheevictions", credentialCache.getEvictionCount());
+			authStats.put("cacheinvalidations",
+					credentialCache.getInvalidationCount());
+		}
+		stats.put(authStats);
+
+		if (auditWriter != null) {
+			JSONObject auditStats = new JSONObject();
+			auditStats.put(RESPONSE_NAME, "auditwriter");
+			auditStats.put("capacity", auditWriter.getCapacity());
+			auditStats.put("queued", auditWriter.getQueuedCount());
+			auditStats.put("submitted", auditWriter.getSubmittedCount());
+			auditStats.put("dropped", auditWriter.getDroppedCount());
+			auditStats.put("written", auditWriter.getWrittenCount());
+			auditStats.put("failed", auditWriter.getFailedCount());
+			auditStats.put("batches", auditWriter.getBatchCount());
+			auditStats.put("retries", auditWriter.getRetryCount());
+			auditStats.put("lastlagms", auditWriter.getLastLagMillis());
+			auditStats.put("maxlagms", auditWriter.getMaxLagMillis());
+			stats.put(auditStats);
+		}
+
+		if (rateLimiter != null || quotas != null) {
+			JSONObject limitStats = new JSONObject();
+			limitStats.put(RESPONSE_NAME, "ratelimiter");
+			if (rateLimiter != null) {
+				limitStats.put("users", rateLimiter.getUserCount());
+				limitStats.put("allowed", rateLimiter.getAllowedCount());
+				for (RateLimiter.Scope scope : RateLimiter.Scope.values()) {
+					limitStats.put("refused" + scope.name().toLowerCase(Locale.ROOT),
+							rateLimiter.getRefusedCount(scope));
+				}
+			}
+			if (quotas != null) {
+				limitStats.put("quotausers", quotas.getUserCount());
+				limitStats.put("quotaexceeded", quotas.getExceededCount());
+				limitStats.put("quotareadfailures",
+						quotas.getReadFailureCount());
+				limitStats.put("quotaflushfailures",
+						quotas.getFlushFailureCount());
+			}
+			stats.put(limitStats);
+		}
+
+		JSONObject logStats = new JSONObject();
+		logStats.put(RESPONSE_NAME, "log");
+		logStats.put("level", log.getLevel().name().toLowerCase(Locale.ROOT));
+		logStats.put("capacity", log.getCapacity());
+		logStats.put("queued", log.getQueuedCount());
+		logStats.put("dropped", log.getDroppedCount());
+		stats.put(logStats);
+
+		return stats;
+	}
+
+	/**
+	 * Handles a complete client request.
+	 *
+	 * @param head
+	 *            the request line and headers
+	 *
+	 * @param out
+	 *            the client output stream
+	 *
+	 * @param requests
+	 *            the number of requests received on the connection, including
+	 *            this one
+	 *
+	 * @return The response, which determines whether the connection is kept
+	 *         open
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	private Response handleRequest(RequestHead head, OutputStream out,
+			int requests) throws IOException {
+		return handleRequest(head, out, requests, true);
+	}
+
+	/**
+	 * Handles a complete client request.
+	 *
+	 * @param head
+	 *            the request line and headers
+	 *
+	 * @param out
+	 *            the client output stream
+	 *
+	 * @param requests
+	 *            the number of requests received on the connection, including
+	 *            this one
+	 *
+	 * @param keepAlive
+	 *            if the connection may be kept open after the response
+	 *
+	 * @return The response, which determines whether the connection is kept
+	 *         open
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	private Response handleRequest(RequestHead head, OutputStream out,
+			int requests, boolean keepAlive) throws IOException {
+		// Refuse a request body that cannot be skipped, since it would be
+		// read as the next request
+		if (head.hasTransferEncoding()) {
+			Response response = new Response(out, head.isHttp11(), false);
+			writeErrorResponse(GATEWAY_INVALID_REQUEST,
+					"Request bodies with a Transfer-Encoding are not supported.",
+					400, "Bad Request", response);
+			return response;
+		}
+
+		// Ensure it is a valid request
+		if (!head.isValid()) {
+			Response response = new Response(out, head.isHttp11(), false);
+			writeErrorResponse(GATEWAY_INVALID_REQUEST,
+					"This provided request is not a valid HTTP request.",
+					response);
+			return response;
+		}
+
+		Response response = new Response(out, head.isHttp11(), keepAlive
+				&& head.isKeepAlive() && requests < httpMaxRequests);
+
+		Request request;
+		try {
+			request = new Request(head.getTarget());
+		} catch (MalformedURLException e) {
+			writeErrorResponse(GATEWAY_INVALID_REQUEST, e.getMessage(),
+					response);
+			return response;
+		}
+
+		// Limit the number of requests using the API server and database at
+		// once, which matters when every handler has its own thread
+		long start = System.nanoTime();
+		try {
+			concurrencyLimiter.acquire();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(
+					"Interrupted while waiting to handle request");
+		}
+		concurrencyWait.record(System.nanoTime() - start);
+		try {
+			new RequestHandler().handle(request, response);
+		} finally {
+			concurrencyLimiter.release();
+			Histogram duration = requestDurations.get(request.getPath());
+			(duration != null ? duration : otherRequestDuration)
+					.record(System.nanoTime() - start);
+		}
+		return response;
 	}
 
 	/**
-	 * A handler for a client interaction.
+	 * A handler for a client connection using the blocking server engine. The
+	 * handler serves requests from the client until the client closes the
+	 * connection, the connection is idle for the keep-alive timeout, or the
+	 * maximum number of requests have been served.
+	 *
+	 * Only a limited number of connections are kept open between requests, and
+	 * a connection waiting for its next request is closed as soon as another
+	 * client is waiting for a thread, so idle connections cannot hold every
+	 * thread.
 	 */
 	class ClientHandler implements Runnable {
 
 		private final Socket socket;
 
-		private final UUID sessionId;
-		private final long timestamp;
-
-		public ClientHandler(Socket socket, long timestamp) {
+		public ClientHandler(Socket socket) {
 			this.socket = socket;
-			this.sessionId = UUID.randomUUID();
-			this.timestamp = timestamp;
 		}
 
 		@Override
 		public void run() {
+			activeConnections.incrementAndGet();
+			boolean keepAlive = false;
 			try {
 				// Get input and output streams for the socket
-				BufferedReader in = new BufferedReader(new InputStreamReader(
-						socket.getInputStream()));
-				PrintWriter out = new PrintWriter(socket.getOutputStream(),
-						true);
-
-				// Parse the client request and ensure it is a valid request
-				String line = in.readLine();
-				String[] httpRequest = line != null ? line.split(" ") : null;
-				if (httpRequest == null
-						|| httpRequest.length != 3
-						|| !httpRequest[0].equals("GET")
-						|| (!httpRequest[2].equals("HTTP/1.0") && !httpRequest[2]
-								.equals("HTTP/1.1"))) {
-					writeErrorResponse(
-							GATEWAY_INVALID_REQUEST,
-							"This provided request is not a valid HTTP request.",
-							out);
-					return;
-				}
-				Request request = new Request(httpRequest[1]);
-
-				// Validate the user credentials
-				String username = request.get(USERNAME);
-				String password = request.get(PASSWORD);
-				if (!validateUser(username, password)) {
-					writeErrorResponse(GATEWAY_AUTHENTICATION_FAILED,
-							"The provided credentials failed authentication.",
-							out);
-					return;
-				}
-
-				// Handle all valid paths for the request
-				switch (request.getPath()) {
-
-				case GATEWAY_PATH_NEARBY_SEARCH:
-					doPlaceSearch(request, NEARBY_SEARCH,
-							API_PATH_NEARBY_SEARCH, out);
-					break;
-
-				case GATEWAY_PATH_TEXT_SEARCH:
-					doPlaceSearch(request, TEXT_SEARCH, API_PATH_TEXT_SEARCH,
-							out);
-					break;
-
-				case GATEWAY_PATH_RADAR_SEARCH:
-					doPlaceSearch(request, RADAR_SEARCH, API_PATH_RADAR_SEARCH,
-							out);
-					break;
-
-				case GATEWAY_PATH_ADD_USER:
-					addUser(request, out);
-					break;
-
-				case GATEWAY_PATH_SEARCH_QUERY:
-					executeQuery(request, SEARCH_QUERY_PREFIX, QUERY_SUFFIX,
-							out);
-					break;
-
-				case GATEWAY_PATH_RESULT_QUERY:
-					executeQuery(request, RESULT_QUERY_PREFIX, QUERY_SUFFIX,
-							out);
-					break;
-
-				default:
-					writeErrorResponse(GATEWAY_INVALID_URL,
-							"The provided URL is unsupported or invalid.", out);
-					break;
+				InputStream in = new BufferedInputStream(
+						socket.getInputStream(), BUFFER_SIZE);
+				OutputStream out = new BufferedOutputStream(
+						socket.getOutputStream(), BUFFER_SIZE);
+				socket.setSoTimeout(httpIdleTimeout);
+
+				for (int requests = 1;; requests++) {
+					RequestHead head = RequestHead.read(in, MAX_LINE_LENGTH);
+					if (head == null) {
+						break;
+					}
+
+					// Discard any request body
+					HttpStreams.skipFully(in, head.getContentLength());
+
+					// Keep the connection open only if it is one of the
+					// connections allowed to wait for another request
+					if (!keepAlive && head.isKeepAlive()) {
+						keepAlive = acquireKeepAlive();
+					}
+
+					Response response = handleRequest(head, out, requests,
+							keepAlive);
+					if (!response.isKeepAlive()) {
+						break;
+					}
+
+					// Wait for any pipelined requests before sending the
+					// buffered responses
+					if (in.available() == 0) {
+						out.flush();
+						if (!awaitRequest(in)) {
+							break;
+						}
+					}
 				}
 
+				out.flush();
+
+			} catch (SocketTimeoutException e) {
+				// Do nothing because the connection is idle
 			} catch (IOException e) {
 				log.e("Error reading client request", e);
 				return;
@@ -303,252 +1452,655 @@ public class Gateway extends Thread {
 					// Do nothing because we are exiting
 					log.e("Exception when closing socket", e);
 				}
+				if (keepAlive) {
+					keepAliveConnections.decrementAndGet();
+				}
+				activeConnections.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Reserves one of the connections that are kept open between
+		 * requests.
+		 *
+		 * @return True if the connection can be kept open, false otherwise
+		 */
+		private boolean acquireKeepAlive() {
+			while (true) {
+				int current = keepAliveConnections.get();
+				if (current >= httpMaxKeepAlive) {
+					return false;
+				}
+				if (keepAliveConnections.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Waits for the client to start its next request, giving up when the
+		 * keep-alive timeout expires or when another client is waiting for a
+		 * thread.
+		 *
+		 * @param in
+		 *            the client input stream
+		 *
+		 * @return True if a request has started, false if the connection
+		 *         should be closed
+		 *
+		 * @throws IOException
+		 *             if the connection could not be read
+		 */
+		private boolean awaitRequest(InputStream in) throws IOException {
+			long deadline = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(httpKeepAliveTimeout);
+			socket.setSoTimeout(Math.max(1,
+					Math.min(KEEP_ALIVE_POLL_INTERVAL, httpKeepAliveTimeout)));
+
+			try {
+				while (true) {
+					try {
+						in.mark(1);
+						if (in.read() == -1) {
+							return false;
+						}
+						in.reset();
+						return true;
+					} catch (SocketTimeoutException e) {
+						if (isClientWaiting()
+								|| System.nanoTime() - deadline >= 0) {
+							return false;
+						}
+					}
+				}
+			} finally {
+				socket.setSoTimeout(httpIdleTimeout);
+			}
+		}
+	}
+
+	/**
+	 * Gets whether a client connection is waiting for a thread of the fixed
+	 * pool.
+	 *
+	 * @return True if a client is waiting, false otherwise
+	 */
+	private boolean isClientWaiting() {
+		return executor instanceof ThreadPoolExecutor
+				&& !((ThreadPoolExecutor) executor).getQueue().isEmpty();
+	}
+
+	/**
+	 * A handler for a single client request.
+	 */
+	class RequestHandler {
+
+		// The session of the request
+		private final UUID sessionId;
+		private final long timestamp;
+
+		public RequestHandler() {
+			this.sessionId = newSessionId();
+			this.timestamp = System.currentTimeMillis();
+		}
+
+		/**
+		 * Authenticates the user and handles the request.
+		 *
+		 * @param request
+		 *            the client request
+		 *
+		 * @param response
+		 *            the response to the client
+		 *
+		 * @throws IOException
+		 *             if the response could not be written
+		 */
+		public void handle(Request request, Response response)
+				throws IOException {
+			// Validate the user credentials
+			String username = request.get(USERNAME);
+			String password = request.get(PASSWORD);
+			if (!validateUser(username, password)) {
+				writeErrorResponse(GATEWAY_AUTHENTICATION_FAILED,
+						"The provided credentials failed authentication.",
+						response);
+				return;
+			}
+
+			// Limit the rate of requests
+			if (!checkLimits(username, response)) {
+				return;
+			}
+
+			// Handle all valid paths for the request
+			switch (request.getPath()) {
+
+			case GATEWAY_PATH_NEARBY_SEARCH:
+				doPlaceSearch(request, NEARBY_SEARCH, API_PATH_NEARBY_SEARCH,
+						response);
+				break;
+
+			case GATEWAY_PATH_TEXT_SEARCH:
+				doPlaceSearch(request, TEXT_SEARCH, API_PATH_TEXT_SEARCH,
+						response);
+				break;
+
+			case GATEWAY_PATH_RADAR_SEARCH:
+				doPlaceSearch(request, RADAR_SEARCH, API_PATH_RADAR_SEARCH,
+						response);
+				break;
+
+			case GATEWAY_PATH_ADD_USER:
+				addUser(request, response);
+				break;
+
+			case GATEWAY_PATH_SEARCH_QUERY:
+				executeQuery(request, SEARCHES, SEARCH_COLUMNS, response);
+				break;
+
+			case GATEWAY_PATH_RESULT_QUERY:
+				executeQuery(request, RESULTS, RESULT_COLUMNS, response);
+				break;
+
+			case GATEWAY_PATH_RESULT_GEO_QUERY:
+				executeGeoQuery(request, response);
+				break;
+
+			case GATEWAY_PATH_SEARCH_COUNT:
+				executeAggregation(request, SEARCHES, SEARCH_COLUMNS,
+						SEARCH_GROUP_COLUMNS, response);
+				break;
+
+			case GATEWAY_PATH_RESULT_COUNT:
+				executeAggregation(request, RESULTS, RESULT_COLUMNS,
+						RESULT_GROUP_COLUMNS, response);
+				break;
+
+			case GATEWAY_PATH_STATS:
+				writeResultsResponse(getStats(), response);
+				break;
+
+			case GATEWAY_PATH_ROLLUP:
+				writeRollupResponse(Boolean.parseBoolean(request.get(PRETTY)),
+						response);
+				break;
+
+			case GATEWAY_PATH_METRICS:
+				response.send(200, "OK", METRICS_HEADERS, metrics.write()
+						.getBytes(StandardCharsets.UTF_8));
+				break;
+
+			default:
+				writeErrorResponse(GATEWAY_INVALID_URL,
+						"The provided URL is unsupported or invalid.",
+						response);
+				break;
+			}
+		}
+
+		/**
+		 * Takes a token for the request from the rate limiter.
+		 *
+		 * @param username
+		 *            the username, or null if the user is anonymous
+		 *
+		 * @param response
+		 *            the response to the client
+		 *
+		 * @return True if the request is within the limits, false if it was
+		 *         refused
+		 *
+		 * @throws IOException
+		 *             if the response could not be written
+		 */
+		private boolean checkLimits(String username, Response response)
+				throws IOException {
+			if (rateLimiter != null) {
+				long wait = rateLimiter.acquire(username);
+				if (wait > 0) {
+					writeTooManyRequestsResponse(GATEWAY_RATE_LIMITED,
+							"The request rate limit was exceeded.",
+							TimeUnit.NANOSECONDS.toMillis(wait), response);
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Counts a search against the daily quota of the user.
+		 *
+		 * @param username
+		 *            the username, or null if the user is anonymous
+		 *
+		 * @param response
+		 *            the response to the client
+		 *
+		 * @return True if the search is within the quota, false if it was
+		 *         refused
+		 *
+		 * @throws IOException
+		 *             if the response could not be written
+		 */
+		private boolean checkQuota(String username, Response response)
+				throws IOException {
+			try {
+				if (!quotas.acquire(username, timestamp)) {
+					writeTooManyRequestsResponse(GATEWAY_QUOTA_EXCEEDED,
+							"The daily search quota was exceeded.",
+							quotas.getResetMillis(timestamp), response);
+					return false;
+				}
+			} catch (SQLException e) {
+				// Refuse the search rather than count it from 0
+				log.e("Error reading daily usage from database", e);
+				writeErrorResponse(GATEWAY_SEARCH_ERROR,
+						"The daily search quota could not be checked.",
+						response);
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Executes a Google Place Search API query and forwards the response to
+		 * the client.
+		 *
+		 * @param request
+		 *            the client request
+		 *
+		 * @param apiPath
+		 *            the path of the Google Place Search API
+		 *
+		 * @param response
+		 *            the response to the client
+		 *
+		 * @return True of the search was successfully, false otherwise
+		 *
+		 * @throws IOException
+		 *             if the response could not be written
+		 */
+		private boolean doPlaceSearch(Request request, String searchType,
+				String apiPath, Response response) throws IOException {
+			try {
+				// Use a cached response for the same search if there is one
+				String searchKey = searchType + "?"
+						+ request.getCanonicalQuery(CREDENTIAL_PARAMETERS);
+				UpstreamResponse upstreamResponse = null;
+				if (responseCache != null) {
+					upstreamResponse = responseCache.get(searchKey);
+				}
+				boolean cached = upstreamResponse != null;
+
+				// Extract the status and results without parsing the whole
+				// response
+				PlaceResultScanner scanner = new PlaceResultScanner();
+				SearchRelay relay = null;
+				if (!cached) {
+					// Only searches sent to the API use its quota, so cached
+					// responses are not counted against the daily quota, and
+					// searches that join an identical search in flight are
+					// counted until they join it. They still need quota left,
+					// so a user can not search past their quota by repeating
+					// the searches of others.
+					String username = request.get(USERNAME);
+					if (quotas != null && !checkQuota(username, response)) {
+						return false;
+					}
+
+					// Relay the response to the client as it arrives, sharing
+					// it with identical searches in flight. The body is only
+					// kept if it will be cached or identical searches are
+					// waiting for it. The credentials are only meant for the
+					// gateway.
+					final String target = apiPath
+							+ request.getQuery(CREDENTIAL_PARAMETERS);
+					final boolean fillCache = responseCache != null
+							&& responseCache.isCached(searchType);
+					final SearchRelay searchRelay = new SearchRelay(response,
+							scanner, () -> fillCache || searchFlight != null
+									&& !searchFlight.detach(searchKey));
+					relay = searchRelay;
+					if (searchFlight != null) {
+						AtomicBoolean sent = new AtomicBoolean();
+						upstreamResponse = searchFlight.execute(searchKey,
+								() -> {
+									sent.set(true);
+									return getUpstream(searchType, target,
+											searchRelay);
+								});
+						if (quotas != null && !sent.get()) {
+							quotas.release(username, timestamp);
+						}
+					} else {
+						upstreamResponse = getUpstream(searchType, target,
+								searchRelay);
+					}
+				}
+
+				if (relay != null && relay.isRelayed()) {
+					// The client already has the response, but it can not be
+					// cached or audited without a status
+					if (relay.getRelayError() != null) {
+						throw relay.getRelayError();
+					} else if (relay.getScanError() != null) {
+						log.e("Error scanning relayed API response",
+								relay.getScanError());
+						return true;
+					} else if (scanner.getStatus() == null) {
+						log.e("Relayed API response has no status");
+						return true;
+					}
+				} else {
+					byte[] body = upstreamResponse.getBodyBytes();
+					scanner.update(body, 0, body.length);
+					scanner.finish();
+				}
+				String status = scanner.getStatus();
+				if (status == null) {
+					throw new IOException("API response has no status");
+				}
+
+				// Forward the HTTP response headers and body, unless they were
+				// already relayed
+				if (!response.isCommitted()) {
+					response.send(upstreamResponse.getStatusCode(),
+							upstreamResponse.getReasonPhrase(),
+							upstreamResponse.getHeaders(),
+							upstreamResponse.getBodyBytes());
+				}
+
+				// Count the search in memory for live monitoring
+				if (rollup != null) {
+					rollup.record(timestamp, searchType,
+							request.get(USERNAME), status,
+							scanner.getResultCount(), cached);
+				}
+
+				// Cache successful responses
+				if (!cached && responseCache != null
+						&& (status.equals(OK) || status.equals(ZERO_RESULTS))) {
+					responseCache.put(searchKey, searchType, upstreamResponse);
+				}
+
+				// Write the search and the results to the database
+				if (auditWriter != null && status.equals(OK)) {
+					writeSearch(request, searchType);
+					writeResults(request.get(USERNAME), scanner);
+				}
+
+			} catch (Exception e) {
+				// Catch runtime exceptions
+				log.e("Error performing search using Google Places Search API",
+						e);
+				if (rollup != null) {
+					rollup.record(timestamp, searchType,
+							request.get(USERNAME), GATEWAY_SEARCH_ERROR, 0,
+							false);
+				}
+				if (response.isCommitted()) {
+					throw new IOException("Search failed after responding", e);
+				}
+				writeErrorResponse(GATEWAY_SEARCH_ERROR,
+						"The Google Place Search could not be completed.",
+						response);
+				return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Sends a search to the API server, recording the time taken.
+		 *
+		 * @param searchType
+		 *            the type of search
+		 *
+		 * @param target
+		 *            the request target on the API server
+		 *
+		 * @param relay
+		 *            the relay of the response to the client
+		 *
+		 * @return The response of the API server
+		 *
+		 * @throws IOException
+		 *             if the search failed
+		 */
+		private UpstreamResponse getUpstream(String searchType, String target,
+				SearchRelay relay) throws IOException {
+			long start = System.nanoTime();
+			try {
+				return upstreamClient.get(target, relay);
+			} finally {
+				upstreamDurations.get(searchType).record(
+						System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Queues a search to be written to the database.
+		 *
+		 * @param request
+		 *            the client request
+		 *
+		 * @return True if the search was queued successfully, false otherwise
+		 */
+		private boolean writeSearch(Request request, String searchType) {
+			long start = System.nanoTime();
+			try {
+				return auditWriter.writeSearch(sessionId, timestamp,
+						searchType, request.get(USERNAME), new String[] {
+								request.get(QUERY), request.get(LOCATION),
+								request.get(RADIUS), request.get(KEYWORD),
+								request.get(LANGUAGE), request.get(MINPRICE),
+								request.get(MAXPRICE), request.get(NAME),
+								request.get(OPENNOW), request.get(RANKBY),
+								request.get(TYPES), request.get(PAGETOKEN),
+								request.get(ZAGATSELECTED) });
+			} finally {
+				writeSearchDuration.record(System.nanoTime() - start);
 			}
 		}
 
 		/**
-		 * Executes a Google Place Search API query and forwards the response to
-		 * the client.
+		 * Queues the results of a search to be written to the database.
+		 *
+		 * @param username
+		 *            the username of the client
+		 *
+		 * @param results
+		 *            the scanner that extracted the results of the query
+		 *
+		 * @return True of the results were queued successfully, false
+		 *         otherwise
+		 */
+		private boolean writeResults(String username,
+				PlaceResultScanner results) {
+			long start = System.nanoTime();
+			boolean queued = true;
+
+			for (int i = 0; i < results.getResultCount(); i++) {
+				queued &= auditWriter.writeResult(sessionId, timestamp,
+						username, results.getPlaceId(i), results.getLat(i),
+						results.getLng(i));
+			}
+
+			writeResultsDuration.record(System.nanoTime() - start);
+			return queued;
+		}
+
+		/**
+		 * Executes the specified SQL query on the database of searches and
+		 * results.
 		 *
 		 * @param request
 		 *            the client request
 		 *
-		 * @param apiPath
-		 *            the path of the Google Place Search API
+		 * @param table
+		 *            the table to query
 		 *
-		 * @param out
-		 *            the client output stream
+		 * @param columns
+		 *            the columns of the table that are returned and can be
+		 *            filtered
 		 *
-		 * @return True of the search was successfully, false otherwise
+		 * @param response
+		 *            the response to the client
+		 *
+		 * @return True if the query was successfully added, false otherwise
 		 *
 		 * @throws IOException
-		 *             if the query could not be completed successfully
+		 *             if the response could not be written
 		 */
-		private boolean doPlaceSearch(Request request, String searchType,
-				String apiPath, PrintWriter out) {
-			SSLSocket apiSocket = null;
-
+		private boolean executeQuery(Request request, String table,
+				List<String> columns, Response response) throws IOException {
+			Query query;
 			try {
-				// Open a connection to the API server
-				apiSocket = (SSLSocket) SSLSocketFactory.getDefault()
-						.createSocket(API_HOSTNAME, 443);
-
-				// Send the API HTTP request
-				PrintWriter apiOut = new PrintWriter(new OutputStreamWriter(
-						apiSocket.getOutputStream()), true);
-				apiOut.println("GET " + apiPath + request.getQuery()
-						+ " HTTP/1.0");
-				apiOut.println();
-
-				// Read and forward the response
-				BufferedReader in = new BufferedReader(new InputStreamReader(
-						apiSocket.getInputStream()));
-				StringBuilder response = new StringBuilder();
-				String line;
-
-				// Read and forward the HTTP response headers
-				while ((line = in.readLine()) != null) {
-					out.println(line);
-					if (line.isEmpty()) {
-						break;
-					}
-				}
-
-				// Read and forward the HTTP response body
-				while ((line = in.readLine()) != null) {
-					out.println(line);
-					response.append(line);
-				}
-				JSONObject jsonResponse = new JSONObject(response.toString());
-
-				// Write the search and the results to the database
-				if (dbUrl != null
-						&& jsonResponse.getString(RESPONSE_STATUS).equals(OK)) {
-					writeSearch(request, searchType);
-					writeResults(request.get(USERNAME),
-							jsonResponse.getJSONArray(RESPONSE_RESULTS));
-				}
-
-			} catch (Exception e) {
-				// Catch runtime exceptions
-				log.e("Error performing search using Google Places Search API",
-						e);
-				writeErrorResponse(GATEWAY_SEARCH_ERROR,
-						"The Google Place Search could not be completed.", out);
+				query = new Query(request, table, columns,
+						QUERY_OPTION_PARAMETERS, queryLimit, queryMaxLimit);
+			} catch (IllegalArgumentException e) {
+				writeErrorResponse(GATEWAY_INVALID_REQUEST, e.getMessage(),
+						response);
 				return false;
-			} finally {
-				try {
-					if (apiSocket != null) {
-						apiSocket.close();
-					}
-				} catch (IOException e) {
-					// Do nothing because we are exiting
-					log.e("Exception when closing socket", e);
-				}
 			}
 
-			return true;
+			boolean pretty = Boolean.parseBoolean(request.get(PRETTY));
+			return executeStatement(query.getQuery(), query.getParameters(),
+					resultSet -> writeQueryResponse(resultSet,
+							query.getLimit(), pretty, response), response);
 		}
 
 		/**
-		 * Writes a search to the database.
+		 * Counts the records of the searches or results table in the groups
+		 * specified in the request.
 		 *
 		 * @param request
 		 *            the client request
 		 *
-		 * @return True if the search was written successfully, false otherwise
+		 * @param table
+		 *            the table to query
+		 *
+		 * @param columns
+		 *            the columns of the table that can be filtered
+		 *
+		 * @param groupColumns
+		 *            the columns of the table that records can be grouped by
+		 *
+		 * @param response
+		 *            the response to the client
+		 *
+		 * @return True if the query was successfully executed, false otherwise
+		 *
+		 * @throws IOException
+		 *             if the response could not be written
 		 */
-		private boolean writeSearch(Request request, String searchType) {
-			Connection connection = null;
-			PreparedStatement statement = null;
-
+		private boolean executeAggregation(Request request, String table,
+				List<String> columns, List<String> groupColumns,
+				Response response) throws IOException {
+			Aggregation aggregation;
 			try {
-				// Open a connection to the database
-				connection = DriverManager.getConnection(dbUrl, properties);
-
-				// Execute the update
-				statement = connection.prepareStatement(INSERT_SEARCH);
-				statement.setObject(1, sessionId);
-				statement.setTimestamp(2, new Timestamp(timestamp));
-				statement.setString(3, searchType);
-				statement.setString(4, request.get(USERNAME));
-				statement.setString(5, request.get(QUERY));
-				statement.setString(6, request.get(LOCATION));
-				statement.setString(7, request.get(RADIUS));
-				statement.setString(8, request.get(KEYWORD));
-				statement.setString(9, request.get(LANGUAGE));
-				statement.setString(10, request.get(MINPRICE));
-				statement.setString(11, request.get(MAXPRICE));
-				statement.setString(12, request.get(NAME));
-				statement.setString(13, request.get(OPENNOW));
-				statement.setString(14, request.get(RANKBY));
-				statement.setString(15, request.get(TYPES));
-				statement.setString(16, request.get(PAGETOKEN));
-				statement.setString(17, request.get(ZAGATSELECTED));
-				statement.executeUpdate();
-
-			} catch (SQLException e) {
-				// Do nothing and do not write to database
-				log.e("Error writing search to database", e);
+				aggregation = new Aggregation(request, table, columns,
+						groupColumns, QUERY_OPTION_PARAMETERS, queryLimit,
+						queryMaxLimit);
+			} catch (IllegalArgumentException e) {
+				writeErrorResponse(GATEWAY_INVALID_REQUEST, e.getMessage(),
+						response);
 				return false;
-			} finally {
-				try {
-					if (statement != null) {
-						statement.close();
-					}
-					if (connection != null) {
-						connection.close();
-					}
-				} catch (SQLException e) {
-					// Do nothing because we are exiting
-					log.e("Exception when closing database resources", e);
-				}
 			}
 
-			return true;
+			boolean pretty = Boolean.parseBoolean(request.get(PRETTY));
+			return executeStatement(aggregation.getQuery(),
+					aggregation.getParameters(),
+					resultSet -> writeAggregationResponse(resultSet,
+							aggregation.getGroups(), pretty, response),
+					response);
 		}
 
 		/**
-		 * Writes the results of a search to the database.
+		 * Finds the results within the area specified in the request, nearest
+		 * first.
 		 *
-		 * @param username
-		 *            the username of the client
+		 * @param request
+		 *            the client request
 		 *
-		 * @param results
-		 *            a {@link JSONArray} containing the results of the query
+		 * @param response
+		 *            the response to the client
 		 *
-		 * @return True of the results were written successfully, false
-		 *         otherwise
+		 * @return True if the query was successfully executed, false otherwise
+		 *
+		 * @throws IOException
+		 *             if the response could not be written
 		 */
-		private boolean writeResults(String username, JSONArray results) {
-			Connection connection = null;
-			PreparedStatement statement = null;
-
+		private boolean executeGeoQuery(Request request, Response response)
+				throws IOException {
+			GeoQuery query;
 			try {
-				// Open a connection to the database
-				connection = DriverManager.getConnection(dbUrl, properties);
-
-				// Execute the updates
-				statement = connection.prepareStatement(INSERT_RESULT);
-				for (int i = 0; i < results.length(); i++) {
-					JSONObject result = results.getJSONObject(i);
-					statement.setObject(1, sessionId);
-					statement.setTimestamp(2, new Timestamp(timestamp));
-					statement.setString(3, username);
-					statement.setString(4, result.getString("place_id"));
-					statement.setDouble(5, result.getJSONObject("geometry")
-							.getJSONObject("location").getDouble("lat"));
-					statement.setDouble(6, result.getJSONObject("geometry")
-							.getJSONObject("location").getDouble("lng"));
-					statement.executeUpdate();
-				}
-
-			} catch (SQLException e) {
-				// Do nothing and do not write to database
-				log.e("Error writing results to database", e);
+				query = new GeoQuery(request, RESULT_COLUMNS,
+						QUERY_OPTION_PARAMETERS, queryLimit, queryMaxLimit);
+			} catch (IllegalArgumentException e) {
+				writeErrorResponse(GATEWAY_INVALID_REQUEST, e.getMessage(),
+						response);
 				return false;
-			} finally {
-				try {
-					if (statement != null) {
-						statement.close();
-					}
-					if (connection != null) {
-						connection.close();
-					}
-				} catch (SQLException e) {
-					// Do nothing because we are exiting
-					log.e("Exception when closing database resources", e);
-				}
 			}
 
-			return true;
+			boolean pretty = Boolean.parseBoolean(request.get(PRETTY));
+			return executeStatement(query.getQuery(), query.getParameters(),
+					resultSet -> writeGeoQueryResponse(resultSet, pretty,
+							response), response);
 		}
 
 		/**
-		 * Executes the specified SQL query on the database of searches and
-		 * results.
+		 * Executes a query on the database and writes its results to the
+		 * client.
 		 *
-		 * @param request
-		 *            the client request
+		 * @param sql
+		 *            the SQL query
 		 *
-		 * @param queryPrefix
-		 *            the prefix of the database query
+		 * @param parameters
+		 *            the values of the query parameters
 		 *
-		 * @param querySuffix
-		 *            the suffix of the database query
+		 * @param writer
+		 *            writes the results of the query to the client
 		 *
-		 * @param out
-		 *            the client output stream
+		 * @param response
+		 *            the response to the client
 		 *
-		 * @return True if the query was successfully added, false otherwise
+		 * @return True if the query was successfully executed, false otherwise
+		 *
+		 * @throws IOException
+		 *             if the query failed after the response was committed
 		 */
-		private boolean executeQuery(Request request, String queryPrefix,
-				String querySuffix, PrintWriter out) {
-			Query query = new Query(request, queryPrefix, querySuffix);
-
+		private boolean executeStatement(String sql, List<Object> parameters,
+				ResultSetWriter writer, Response response) throws IOException {
+			long start = System.nanoTime();
 			Connection connection = null;
 			PreparedStatement statement = null;
 			ResultSet resultSet = null;
 
 			try {
-				// Open a connection to the database
-				connection = DriverManager.getConnection(dbUrl, properties);
+				// Borrow a connection to the database
+				connection = getConnection();
 
 				// Execute the query
-				statement = connection.prepareStatement(query.getQuery());
-				for (int i = 0; i < query.size(); i++) {
-					statement.setString(i + 1, query.get(i));
+				statement = connection.prepareStatement(sql);
+				for (int i = 0; i < parameters.size(); i++) {
+					statement.setObject(i + 1, parameters.get(i));
 				}
 				resultSet = statement.executeQuery();
 
 				// Write the response to the client
-				writeQueryResponse(resultSet, out);
+				writer.write(resultSet);
 
 			} catch (Exception e) {
 				// Catch runtime exceptions
 				log.e("Error executing database query", e);
+				if (response.isCommitted()) {
+					throw new IOException("Query failed after responding", e);
+				}
 				writeErrorResponse(GATEWAY_QUERY_ERROR,
-						"The query could not be completed.", out);
+						"The query could not be completed.", response);
 				return false;
 			} finally {
 				try {
@@ -565,6 +2117,7 @@ public class Gateway extends Thread {
 					// Do nothing because we are exiting
 					log.e("Exception when closing database resources", e);
 				}
+				executeQueryDuration.record(System.nanoTime() - start);
 			}
 
 			return true;
@@ -577,12 +2130,16 @@ public class Gateway extends Thread {
 		 * @param request
 		 *            the client request containing the username and password
 		 *
-		 * @param out
-		 *            the client output stream
+		 * @param response
+		 *            the response to the client
 		 *
 		 * @return True if the user was successfully added, false otherwise
+		 *
+		 * @throws IOException
+		 *             if the response could not be written
 		 */
-		private boolean addUser(Request request, PrintWriter out) {
+		private boolean addUser(Request request, Response response)
+				throws IOException {
 			Connection connection = null;
 			PreparedStatement statement = null;
 
@@ -592,8 +2149,8 @@ public class Gateway extends Thread {
 				byte[] hashedPassword = hashPassword(request.get(NEW_PASSWORD),
 						salt);
 
-				// Open a connection to the database
-				connection = DriverManager.getConnection(dbUrl, properties);
+				// Borrow a connection to the database
+				connection = getConnection();
 
 				// Execute the update to add the user
 				statement = connection.prepareStatement(ADD_USER);
@@ -602,8 +2159,10 @@ public class Gateway extends Thread {
 				statement.setString(3, encode(hashedPassword));
 				statement.executeUpdate();
 
-				// Write the response to the client
-				writeEmptyResponse(OK, out);
+				// Do not accept previously cached credentials for the user
+				if (credentialCache != null) {
+					credentialCache.invalidate(request.get(NEW_USERNAME));
+				}
 
 			} catch (Exception e) {
 				// Catch runtime exceptions
@@ -611,7 +2170,7 @@ public class Gateway extends Thread {
 				writeErrorResponse(
 						GATEWAY_ADD_USER_ERROR,
 						"The new user could not be added to the database.  A user with the same username may already exist.",
-						out);
+						response);
 				return false;
 			} finally {
 				try {
@@ -627,6 +2186,9 @@ public class Gateway extends Thread {
 				}
 			}
 
+			// Write the response to the client
+			writeEmptyResponse(OK, response);
+
 			return true;
 		}
 
@@ -641,19 +2203,56 @@ public class Gateway extends Thread {
 		 *
 		 * @return True if the credentials are valid, false otherwise
 		 */
-		private boolean validateUser(String username, String password) {
+		boolean validateUser(String username, String password) {
 			// Return false if anonymous users are not permitted
 			if (username == null) {
 				return allowAnonUsers();
 			}
+			if (password == null) {
+				return false;
+			}
+
+			long start = System.nanoTime();
+			try {
+				// Skip the database if the credentials were recently verified
+				if (credentialCache == null) {
+					return checkCredentials(username, password);
+				}
+				if (credentialCache.contains(username, password)) {
+					return true;
+				}
+
+				long invalidationCount = credentialCache.getInvalidationCount();
+				boolean valid = checkCredentials(username, password);
+				if (valid) {
+					credentialCache.put(username, password, invalidationCount);
+				}
+				return valid;
+
+			} finally {
+				recordAuthentication(System.nanoTime() - start);
+			}
+		}
 
+		/**
+		 * Checks user credentials against the database.
+		 *
+		 * @param username
+		 *            the username
+		 *
+		 * @param password
+		 *            the password
+		 *
+		 * @return True if the credentials are valid, false otherwise
+		 */
+		private boolean checkCredentials(String username, String password) {
 			Connection connection = null;
 			PreparedStatement statement = null;
 			ResultSet result = null;
 
 			try {
-				// Open a connection to the database
-				connection = DriverManager.getConnection(dbUrl, properties);
+				// Borrow a connection to the database
+				connection = getConnection();
 
 				// Execute the query to get the stored salt and password
 				statement = connection.prepareStatement(VALIDATE_USER);
@@ -713,7 +2312,7 @@ public class Gateway extends Thread {
 	 * @exception NoSuchAlgorithmException
 	 *                if the hashing algorithm is not supported
 	 */
-	private static byte[] hashPassword(String password, byte[] salt)
+	static byte[] hashPassword(String password, byte[] salt)
 			throws NoSuchAlgorithmException {
 		MessageDigest digest = MessageDigest.getInstance("SHA-256");
 		digest.reset();
@@ -760,40 +2359,218 @@ public class Gateway extends Thread {
 	}
 
 	/**
-	 * Writes a query response the client.
+	 * Writes a query response to the client, streaming each row as it is read
+	 * from the result set. If the result set has more rows than the limit, the
+	 * response ends with the cursor for the next page.
 	 *
 	 * @param resultSet
-	 *            the result set returned from the query
+	 *            the result set returned from the query, with the record ID
+	 *            as the first column
 	 *
-	 * @param out
-	 *            the client output stream
+	 * @param limit
+	 *            the maximum number of rows in the response
+	 *
+	 * @param pretty
+	 *            if the response should be indented for readability
+	 *
+	 * @param response
+	 *            the response to the client
 	 *
 	 * @throws SQLException
 	 *             if the query results could not be read
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
 	 */
-	private static void writeQueryResponse(ResultSet resultSet, PrintWriter out)
-			throws SQLException {
-		JSONObject jsonResponse = new JSONObject();
-		JSONArray jsonResults = new JSONArray();
+	static void writeQueryResponse(ResultSet resultSet, int limit,
+			boolean pretty, Response response) throws SQLException,
+			IOException {
+		// Look up the column names once for every row, leaving out the record ID
+		ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+		String[] columns = new String[resultSetMetaData.getColumnCount()];
+		int timestampColumn = 0;
+		for (int i = 1; i < columns.length; i++) {
+			columns[i] = resultSetMetaData.getColumnLabel(i + 1).toLowerCase(
+					Locale.ROOT);
+			if (columns[i].equals(TIMESTAMP)) {
+				timestampColumn = i + 1;
+			}
+		}
+
+		// The size of query results is not known in advance, so stream them
+		JsonWriter json = new JsonWriter(response.stream(200, "OK",
+				JSON_HEADERS), pretty);
+		json.beginObject().name(RESPONSE_STATUS).value(OK)
+				.name(RESPONSE_RESULTS).beginArray();
+
+		int rows = 0;
+		String nextCursor = null;
+		long timestamp = 0;
+		long id = 0;
+		while (resultSet.next()) {
+			if (rows++ == limit) {
+				// There is another page after the last row written
+				nextCursor = Query.encodeCursor(timestamp, id);
+				break;
+			}
+
+			id = resultSet.getLong(1);
+			timestamp = resultSet.getLong(timestampColumn);
+			json.beginObject();
+			for (int i = 1; i < columns.length; i++) {
+				json.name(columns[i]).value(resultSet.getObject(i + 1));
+			}
+			json.endObject();
+		}
+
+		json.endArray();
+		if (nextCursor != null) {
+			json.name(RESPONSE_NEXT_CURSOR).value(nextCursor);
+		}
+		json.endObject().close();
+	}
+
+	/**
+	 * Writes a geographic query response to the client, streaming each result
+	 * as it is read from the result set along with its distance in meters.
+	 *
+	 * @param resultSet
+	 *            the result set returned from the query, with the squared
+	 *            distance in degrees as the last column
+	 *
+	 * @param pretty
+	 *            if the response should be indented for readability
+	 *
+	 * @param response
+	 *            the response to the client
+	 *
+	 * @throws SQLException
+	 *             if the query results could not be read
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	private static void writeGeoQueryResponse(ResultSet resultSet,
+			boolean pretty, Response response) throws SQLException,
+			IOException {
 		ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+		int distanceColumn = resultSetMetaData.getColumnCount();
+		String[] columns = new String[distanceColumn - 1];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = resultSetMetaData.getColumnLabel(i + 1).toLowerCase(
+					Locale.ROOT);
+		}
 
+		JsonWriter json = new JsonWriter(response.stream(200, "OK",
+				JSON_HEADERS), pretty);
+		json.beginObject().name(RESPONSE_STATUS).value(OK)
+				.name(RESPONSE_RESULTS).beginArray();
+
+		while (resultSet.next()) {
+			json.beginObject();
+			for (int i = 0; i < columns.length; i++) {
+				json.name(columns[i]).value(resultSet.getObject(i + 1));
+			}
+			json.name(RESPONSE_DISTANCE).value(
+					GeoQuery.toMeters(resultSet.getDouble(distanceColumn)));
+			json.endObject();
+		}
+
+		json.endArray().endObject().close();
+	}
+
+	/**
+	 * Writes an aggregation response to the client, streaming each group as it
+	 * is read from the result set.
+	 *
+	 * @param resultSet
+	 *            the result set returned from the query, with the value of
+	 *            each group followed by the count
+	 *
+	 * @param groups
+	 *            the names of the groups
+	 *
+	 * @param pretty
+	 *            if the response should be indented for readability
+	 *
+	 * @param response
+	 *            the response to the client
+	 *
+	 * @throws SQLException
+	 *             if the query results could not be read
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	private static void writeAggregationResponse(ResultSet resultSet,
+			List<String> groups, boolean pretty, Response response)
+			throws SQLException, IOException {
+		JsonWriter json = new JsonWriter(response.stream(200, "OK",
+				JSON_HEADERS), pretty);
+		json.beginObject().name(RESPONSE_STATUS).value(OK)
+				.name(RESPONSE_RESULTS).beginArray();
+
+		int countColumn = groups.size() + 1;
 		while (resultSet.next()) {
-			JSONObject jsonResult = new JSONObject();
-			int cols = resultSetMetaData.getColumnCount();
-			for (int i = 1; i <= cols; i++) {
-				jsonResult.put(resultSetMetaData.getColumnLabel(i)
-						.toLowerCase(), resultSet.getObject(i));
+			json.beginObject();
+			for (int i = 0; i < groups.size(); i++) {
+				json.name(groups.get(i)).value(resultSet.getObject(i + 1));
 			}
+			json.name(RESPONSE_COUNT).value(resultSet.getLong(countColumn));
+			json.endObject();
+		}
+
+		json.endArray().endObject().close();
+	}
 
-			jsonResults.put(jsonResult);
+	/**
+	 * Writes a response containing the search counts of the rollup to the
+	 * client. The response has no results if the rollup is disabled.
+	 *
+	 * @param pretty
+	 *            if the response should be indented for readability
+	 *
+	 * @param response
+	 *            the response to the client
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	private void writeRollupResponse(boolean pretty, Response response)
+			throws IOException {
+		JsonWriter json = new JsonWriter(response.stream(200, "OK",
+				JSON_HEADERS), pretty);
+		json.beginObject().name(RESPONSE_STATUS).value(OK);
+		if (rollup != null) {
+			json.name(RESPONSE_INTERVAL).value(rollup.getInterval());
+			json.name(RESPONSE_RESULTS);
+			rollup.write(json, System.currentTimeMillis());
+		} else {
+			json.name(RESPONSE_RESULTS).beginArray().endArray();
 		}
+		json.endObject().close();
+	}
+
+	/**
+	 * Writes a response containing the specified results to the client.
+	 *
+	 * @param results
+	 *            the results
+	 *
+	 * @param response
+	 *            the response to the client
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	private static void writeResultsResponse(JSONArray results,
+			Response response) throws IOException {
+		JSONObject jsonResponse = new JSONObject();
 
 		jsonResponse.put(RESPONSE_STATUS, OK);
-		jsonResponse.put(RESPONSE_RESULTS, jsonResults);
+		jsonResponse.put(RESPONSE_RESULTS, results);
 
-		out.println(HTTP_RESPONSE);
-		out.println();
-		out.println(jsonResponse.toString(3));
+		writeJsonResponse(jsonResponse, response);
 	}
 
 	/**
@@ -802,18 +2579,20 @@ public class Gateway extends Thread {
 	 * @param status
 	 *            the status
 	 *
-	 * @param out
-	 *            the client output stream
+	 * @param response
+	 *            the response to the client
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
 	 */
-	private static void writeEmptyResponse(String status, PrintWriter out) {
+	private static void writeEmptyResponse(String status, Response response)
+			throws IOException {
 		JSONObject jsonResponse = new JSONObject();
 
 		jsonResponse.put(RESPONSE_STATUS, status);
 		jsonResponse.put(RESPONSE_RESULTS, new JSONArray());
 
-		out.println(HTTP_RESPONSE);
-		out.println();
-		out.println(jsonResponse.toString(3));
+		writeJsonResponse(jsonResponse, response);
 	}
 
 	/**
@@ -825,20 +2604,126 @@ public class Gateway extends Thread {
 	 * @param message
 	 *            the error message
 	 *
-	 * @param out
-	 *            the client output stream
+	 * @param response
+	 *            the response to the client
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	private static void writeErrorResponse(String status, String message,
+			Response response) throws IOException {
+		JSONObject jsonResponse = new JSONObject();
+
+		jsonResponse.put(RESPONSE_STATUS, status);
+		jsonResponse.put(RESPONSE_ERROR_MESSAGE, message);
+		jsonResponse.put(RESPONSE_RESULTS, new JSONArray());
+
+		writeJsonResponse(jsonResponse, response);
+	}
+
+	/**
+	 * Writes an error response to the client with an HTTP error status, for
+	 * requests that are not valid HTTP requests.
+	 *
+	 * @param status
+	 *            the status of the response
+	 *
+	 * @param message
+	 *            the error message of the response
+	 *
+	 * @param statusCode
+	 *            the HTTP status code
+	 *
+	 * @param reasonPhrase
+	 *            the HTTP reason phrase
+	 *
+	 * @param response
+	 *            the response to the client
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
 	 */
 	private static void writeErrorResponse(String status, String message,
-			PrintWriter out) {
+			int statusCode, String reasonPhrase, Response response)
+			throws IOException {
+		JSONObject jsonResponse = new JSONObject();
+
+		jsonResponse.put(RESPONSE_STATUS, status);
+		jsonResponse.put(RESPONSE_ERROR_MESSAGE, message);
+		jsonResponse.put(RESPONSE_RESULTS, new JSONArray());
+
+		response.send(statusCode, reasonPhrase, JSON_HEADERS, (jsonResponse
+				.toString(3) + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes an error response to the client refusing a request that exceeded
+	 * a limit, with the time after which the client can retry.
+	 *
+	 * @param status
+	 *            the status of the response
+	 *
+	 * @param message
+	 *            the error message of the response
+	 *
+	 * @param retryAfterMillis
+	 *            the time in milliseconds until the request would be allowed
+	 *
+	 * @param response
+	 *            the response to the client
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	private static void writeTooManyRequestsResponse(String status,
+			String message, long retryAfterMillis, Response response)
+			throws IOException {
 		JSONObject jsonResponse = new JSONObject();
 
 		jsonResponse.put(RESPONSE_STATUS, status);
 		jsonResponse.put(RESPONSE_ERROR_MESSAGE, message);
 		jsonResponse.put(RESPONSE_RESULTS, new JSONArray());
 
-		out.println(HTTP_RESPONSE);
-		out.println();
-		out.println(jsonResponse.toString(3));
+		// Retry-After is in whole seconds, so round up
+		List<String> headers = new ArrayList<String>(JSON_HEADERS);
+		headers.add("Retry-After: "
+				+ Math.max(1, (retryAfterMillis + 999) / 1000));
+		response.send(429, "Too Many Requests", headers,
+				(jsonResponse.toString(3) + "\n")
+						.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes a JSON response to the client.
+	 *
+	 * @param jsonResponse
+	 *            the JSON response
+	 *
+	 * @param response
+	 *            the response to the client
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	private static void writeJsonResponse(JSONObject jsonResponse,
+			Response response) throws IOException {
+		response.send(200, "OK", JSON_HEADERS, (jsonResponse.toString(3) + "\n")
+				.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Generates a new random session ID. Session IDs only need to be unique,
+	 * so they are generated without the contended {@link SecureRandom} used by
+	 * {@link UUID#randomUUID()}.
+	 *
+	 * @return A version 4 UUID
+	 */
+	private static UUID newSessionId() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long mostSigBits = (random.nextLong() & ~0xF000L) | 0x4000L;
+		long leastSigBits = (random.nextLong() & ~(0xC000L << 48))
+				| (0x8000L << 48);
+		return new UUID(mostSigBits, leastSigBits);
 	}
 
 	/**
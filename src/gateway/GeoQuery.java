@@ -0,0 +1,270 @@
+package gateway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A database query on the results table for the results within a radius of a
+ * point or inside a bounding box, nearest first.
+ *
+ * Results are found through the spatial index of their locations, and then
+ * filtered as described by {@link Filter}. Distances are measured with an
+ * equirectangular projection around the center of the query, which can be
+ * computed by the database without trigonometric functions and is accurate to
+ * well under one percent for radii of up to a hundred kilometers. Areas that
+ * cross the 180th meridian are not supported.
+ */
+public class GeoQuery {
+
+	// Request parameters that control the query rather than filter columns
+	public static final String LOCATION = "location";
+	public static final String RADIUS = "radius";
+	public static final String BOUNDS = "bounds";
+
+	// The mean radius of the Earth and the length of a degree of latitude
+	private static final double EARTH_RADIUS_METERS = 6371008.8;
+	public static final double METERS_PER_DEGREE = EARTH_RADIUS_METERS
+			* Math.PI / 180;
+
+	private final StringBuilder query;
+	private final List<Object> parameters;
+	private final int limit;
+
+	/**
+	 * Creates a query that selects the columns of the results table followed
+	 * by the squared distance of each result in degrees of latitude.
+	 *
+	 * @param request
+	 *            the client request
+	 *
+	 * @param columns
+	 *            the columns of the table that are selected and can be
+	 *            filtered, in order
+	 *
+	 * @param excludedParameters
+	 *            the request parameters that are not query conditions
+	 *
+	 * @param defaultLimit
+	 *            the number of results returned if the request does not
+	 *            specify a limit
+	 *
+	 * @param maxLimit
+	 *            the maximum number of results returned
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the request has neither a location and radius nor
+	 *             bounds, a parameter is not a column of the table, or the
+	 *             area, limit or time range is invalid
+	 */
+	public GeoQuery(Request request, List<String> columns,
+			Set<String> excludedParameters, int defaultLimit, int maxLimit) {
+		this.limit = Query.parseLimit(request.get(Query.LIMIT), defaultLimit,
+				maxLimit);
+
+		// Find the center and the bounding box of the area
+		String location = request.get(LOCATION);
+		String radius = request.get(RADIUS);
+		String bounds = request.get(BOUNDS);
+		double lat, lng, south, west, north, east;
+		double radiusDegrees = -1;
+		if (bounds != null && location == null && radius == null) {
+			String[] corners = bounds.split("\\|", -1);
+			if (corners.length != 2) {
+				throw new IllegalArgumentException("Invalid bounds: " + bounds);
+			}
+			double[] southWest = parsePoint(BOUNDS, corners[0]);
+			double[] northEast = parsePoint(BOUNDS, corners[1]);
+			south = southWest[0];
+			west = southWest[1];
+			north = northEast[0];
+			east = northEast[1];
+			if (south > north || west > east) {
+				throw new IllegalArgumentException("Invalid bounds: " + bounds);
+			}
+			lat = (south + north) / 2;
+			lng = (west + east) / 2;
+		} else if (location != null && radius != null && bounds == null) {
+			double[] center = parsePoint(LOCATION, location);
+			lat = center[0];
+			lng = center[1];
+			radiusDegrees = parseRadius(radius) / METERS_PER_DEGREE;
+			south = Math.max(lat - radiusDegrees, -90);
+			north = Math.min(lat + radiusDegrees, 90);
+			double cos = Math.cos(Math.toRadians(Math.max(Math.abs(south),
+					Math.abs(north))));
+			double lngDegrees = cos > 0 ? radiusDegrees / cos : 360;
+			west = lng - lngDegrees;
+			east = lng + lngDegrees;
+			if (west < -180 || east > 180) {
+				if (lngDegrees < 180) {
+					throw new IllegalArgumentException(
+							"Areas that cross the 180th meridian are not supported");
+				}
+				// The area covers a pole, so it covers every longitude
+				west = -180;
+				east = 180;
+			}
+		} else {
+			throw new IllegalArgumentException(String.format(
+					"Either %s and %s or %s is required", LOCATION, RADIUS,
+					BOUNDS));
+		}
+		double lngScale = Math.cos(Math.toRadians(lat));
+
+		Set<String> options = new HashSet<String>(excludedParameters);
+		options.add(Query.LIMIT);
+		options.add(LOCATION);
+		options.add(RADIUS);
+		options.add(BOUNDS);
+		Filter filter = new Filter(request, columns, options);
+
+		// Look up the places in the spatial index, then check the exact
+		// locations of their results
+		filter.add("placeid IN (SELECT placeid FROM places WHERE id IN "
+				+ "(SELECT id FROM places_location "
+				+ "WHERE maxlat>=? AND minlat<=? AND maxlng>=? AND minlng<=?))",
+				south, north, west, east);
+		filter.add("lat BETWEEN ? AND ? AND lng BETWEEN ? AND ?", south,
+				north, west, east);
+		if (radiusDegrees >= 0) {
+			filter.add("distance<=?", radiusDegrees * radiusDegrees);
+		}
+
+		this.query = new StringBuilder(512).append("SELECT ");
+		for (String column : columns) {
+			query.append(column).append(", ");
+		}
+		query.append("(lat-?)*(lat-?)+(lng-?)*(lng-?)*?*? AS distance");
+		query.append(" FROM results");
+		query.append(filter.getClause());
+		query.append(" ORDER BY distance LIMIT ?;");
+
+		this.parameters = new ArrayList<Object>();
+		parameters.add(lat);
+		parameters.add(lat);
+		parameters.add(lng);
+		parameters.add(lng);
+		parameters.add(lngScale);
+		parameters.add(lngScale);
+		parameters.addAll(filter.getParameters());
+		parameters.add(limit);
+	}
+
+	/**
+	 * Gets the database query.
+	 *
+	 * @return The database query
+	 */
+	public String getQuery() {
+		return query.toString();
+	}
+
+	/**
+	 * Gets the values of the query parameters.
+	 *
+	 * @return The values of the query parameters in order
+	 */
+	public List<Object> getParameters() {
+		return Collections.unmodifiableList(parameters);
+	}
+
+	/**
+	 * Gets the value of the query parameter at the specified index.
+	 *
+	 * @param index
+	 *            the index of the query parameter
+	 *
+	 * @return The value of the specified query parameter
+	 */
+	public Object get(int index) {
+		return parameters.get(index);
+	}
+
+	/**
+	 * Gets the number of parameters in the query.
+	 *
+	 * @return The number of parameters in the query
+	 */
+	public int size() {
+		return parameters.size();
+	}
+
+	/**
+	 * Gets the maximum number of results returned.
+	 *
+	 * @return The maximum number of results
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Converts the squared distance selected by the query to meters.
+	 *
+	 * @param distance
+	 *            the squared distance in degrees of latitude
+	 *
+	 * @return The distance in meters
+	 */
+	public static double toMeters(double distance) {
+		return Math.sqrt(distance) * METERS_PER_DEGREE;
+	}
+
+	/**
+	 * Parses a point requested by the client.
+	 *
+	 * @param parameter
+	 *            the name of the parameter
+	 *
+	 * @param value
+	 *            the point as a latitude and longitude separated by a comma
+	 *
+	 * @return The latitude and longitude
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the value is not a valid point
+	 */
+	private static double[] parsePoint(String parameter, String value) {
+		String[] coordinates = value.split(",", -1);
+		try {
+			if (coordinates.length == 2) {
+				double lat = Double.parseDouble(coordinates[0]);
+				double lng = Double.parseDouble(coordinates[1]);
+				if (Math.abs(lat) <= 90 && Math.abs(lng) <= 180) {
+					return new double[] { lat, lng };
+				}
+			}
+		} catch (NumberFormatException e) {
+			// Fall through to the invalid value
+		}
+		throw new IllegalArgumentException(String.format("Invalid %s: %s",
+				parameter, value));
+	}
+
+	/**
+	 * Parses a radius requested by the client.
+	 *
+	 * @param value
+	 *            the radius in meters
+	 *
+	 * @return The radius in meters
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the radius is not a non-negative number
+	 */
+	private static double parseRadius(String value) {
+		double radius;
+		try {
+			radius = Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			radius = -1;
+		}
+		if (!(radius >= 0) || Double.isInfinite(radius)) {
+			throw new IllegalArgumentException("Invalid radius: " + value);
+		}
+		return radius;
+	}
+}
@@ -0,0 +1,121 @@
+package gateway;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with log-linear buckets.
+ *
+ * Each power of two microseconds is split into two buckets of equal width, so
+ * the bucket of a duration is found with a few bit operations and its bounds
+ * are within 50% of the duration. Durations below 8 microseconds share the
+ * first bucket and durations of 2^25 microseconds (about 33.5 seconds) or more
+ * share the last. Buckets are counted with atomic increments, so many threads
+ * can record durations at once without locking.
+ */
+public class Histogram {
+
+	// Buckets per power of two
+	private static final int SUB_BUCKET_BITS = 1;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Powers of two of the bounds of the first and last finite buckets
+	private static final int MIN_BITS = 3;
+	private static final int MAX_BITS = 25;
+
+	private static final int BUCKETS = 2 + (MAX_BITS - MIN_BITS) * SUB_BUCKETS;
+
+	private static final String[] UPPER_BOUNDS = new String[BUCKETS];
+	static {
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			UPPER_BOUNDS[i] = BigDecimal.valueOf(getUpperBoundMicros(i))
+					.movePointLeft(6).toPlainString();
+		}
+		UPPER_BOUNDS[BUCKETS - 1] = "+Inf";
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sumNanos = new LongAdder();
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *            the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(nanos, 0);
+		counts.incrementAndGet(getBucket(nanos / 1000));
+		sumNanos.add(nanos);
+	}
+
+	/**
+	 * Writes the histogram in the Prometheus text format, as cumulative
+	 * buckets followed by the sum and count of the durations in seconds.
+	 *
+	 * @param out
+	 *            the output
+	 *
+	 * @param name
+	 *            the name of the metric
+	 *
+	 * @param labels
+	 *            the formatted labels of the histogram separated by commas,
+	 *            or an empty string
+	 */
+	public void write(StringBuilder out, String name, String labels) {
+		String bucketLabels = labels.isEmpty() ? "" : labels + ",";
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+			out.append(name).append("_bucket{").append(bucketLabels)
+					.append("le=\"").append(UPPER_BOUNDS[i]).append("\"} ")
+					.append(count).append('\n');
+		}
+
+		String series = labels.isEmpty() ? "" : "{" + labels + "}";
+		out.append(name).append("_sum").append(series).append(' ')
+				.append(sumNanos.sum() / 1e9).append('\n');
+		out.append(name).append("_count").append(series).append(' ')
+				.append(count).append('\n');
+	}
+
+	/**
+	 * Gets the bucket of a duration.
+	 *
+	 * @param micros
+	 *            the duration in microseconds
+	 *
+	 * @return The index of the bucket
+	 */
+	static int getBucket(long micros) {
+		if (micros < 1L << MIN_BITS) {
+			return 0;
+		}
+		int bits = 63 - Long.numberOfLeadingZeros(micros);
+		if (bits >= MAX_BITS) {
+			return BUCKETS - 1;
+		}
+		int subBucket = (int) (micros >>> (bits - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return 1 + (bits - MIN_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Gets the exclusive upper bound of a finite bucket.
+	 *
+	 * @param bucket
+	 *            the index of the bucket
+	 *
+	 * @return The upper bound in microseconds
+	 */
+	static long getUpperBoundMicros(int bucket) {
+		if (bucket == 0) {
+			return 1L << MIN_BITS;
+		}
+		int bits = MIN_BITS + (bucket - 1) / SUB_BUCKETS;
+		int subBucket = (bucket - 1) % SUB_BUCKETS;
+		return (1L << bits) + ((subBucket + 1L) << (bits - SUB_BUCKET_BITS));
+	}
+}
@@ -0,0 +1,81 @@
+package gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Utilities for reading HTTP messages from streams.
+ */
+public final class HttpStreams {
+
+	private HttpStreams() {
+	}
+
+	/**
+	 * Reads a line terminated by a line feed, removing the terminating
+	 * carriage return and line feed. Characters are decoded as ISO-8859-1,
+	 * the encoding of HTTP message headers.
+	 *
+	 * @param in
+	 *            the input stream
+	 *
+	 * @param maxLength
+	 *            the maximum length of the line
+	 *
+	 * @return The line, or null if the end of the stream was reached before
+	 *         any characters were read
+	 *
+	 * @throws IOException
+	 *             if the line could not be read or is longer than the maximum
+	 *             length
+	 */
+	public static String readLine(InputStream in, int maxLength)
+			throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			if (line.length() >= maxLength) {
+				throw new IOException(String.format(
+						"HTTP line is longer than %d characters", maxLength));
+			}
+			line.append((char) b);
+		}
+
+		return line.length() == 0 ? null : line.toString();
+	}
+
+	/**
+	 * Skips exactly the specified number of bytes.
+	 *
+	 * @param in
+	 *            the input stream
+	 *
+	 * @param length
+	 *            the number of bytes to skip
+	 *
+	 * @throws IOException
+	 *             if the end of the stream was reached before all the bytes
+	 *             were skipped
+	 */
+	public static void skipFully(InputStream in, long length)
+			throws IOException {
+		while (length > 0) {
+			long skipped = in.skip(length);
+			if (skipped <= 0) {
+				if (in.read() == -1) {
+					throw new IOException("Unexpected end of stream");
+				}
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+}
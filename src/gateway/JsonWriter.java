@@ -0,0 +1,396 @@
+package gateway;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes JSON to a stream as UTF-8 one value at a time, so that large
+ * responses never need to be built in memory.
+ *
+ * Output is compact by default. Pretty output puts each member and element on
+ * its own line, indented by three spaces per level like
+ * {@link org.json.JSONObject#toString(int)}.
+ */
+public class JsonWriter implements Closeable {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int INDENT = 3;
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	private final OutputStream out;
+	private final boolean pretty;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int count = 0;
+
+	// Whether each open object or array is still empty
+	private boolean[] empty = new boolean[16];
+	private int depth = 0;
+
+	// Whether a member name was written and its value is expected next
+	private boolean afterName = false;
+
+	/**
+	 * Creates a JSON writer.
+	 *
+	 * @param out
+	 *            the output stream
+	 *
+	 * @param pretty
+	 *            if the output should be indented for readability
+	 */
+	public JsonWriter(OutputStream out, boolean pretty) {
+		this.out = out;
+		this.pretty = pretty;
+	}
+
+	/**
+	 * Begins an object.
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter beginObject() throws IOException {
+		return open('{');
+	}
+
+	/**
+	 * Ends the current object.
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter endObject() throws IOException {
+		return close('}');
+	}
+
+	/**
+	 * Begins an array.
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter beginArray() throws IOException {
+		return open('[');
+	}
+
+	/**
+	 * Ends the current array.
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter endArray() throws IOException {
+		return close(']');
+	}
+
+	/**
+	 * Writes the name of the next member of the current object.
+	 *
+	 * @param name
+	 *            the member name
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter name(String name) throws IOException {
+		separate();
+		writeString(name);
+		write(':');
+		if (pretty) {
+			write(' ');
+		}
+		afterName = true;
+		return this;
+	}
+
+	/**
+	 * Writes a string value.
+	 *
+	 * @param value
+	 *            the value, or null
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter value(String value) throws IOException {
+		if (value == null) {
+			return nullValue();
+		}
+		separate();
+		writeString(value);
+		return this;
+	}
+
+	/**
+	 * Writes an integer value.
+	 *
+	 * @param value
+	 *            the value
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter value(long value) throws IOException {
+		separate();
+		writeAscii(Long.toString(value));
+		return this;
+	}
+
+	/**
+	 * Writes a number value. Numbers that are not finite cannot be
+	 * represented in JSON and are written as null.
+	 *
+	 * @param value
+	 *            the value
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter value(double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return nullValue();
+		}
+		separate();
+		writeAscii(Double.toString(value));
+		return this;
+	}
+
+	/**
+	 * Writes a boolean value.
+	 *
+	 * @param value
+	 *            the value
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter value(boolean value) throws IOException {
+		separate();
+		writeAscii(value ? "true" : "false");
+		return this;
+	}
+
+	/**
+	 * Writes a value of any type returned by JDBC. Numbers and booleans are
+	 * written as such and everything else is written as a string.
+	 *
+	 * @param value
+	 *            the value, or null
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter value(Object value) throws IOException {
+		if (value == null) {
+			return nullValue();
+		} else if (value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte) {
+			return value(((Number) value).longValue());
+		} else if (value instanceof Number) {
+			return value(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			return value(((Boolean) value).booleanValue());
+		}
+		return value(value.toString());
+	}
+
+	/**
+	 * Writes a null value.
+	 *
+	 * @return This writer
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public JsonWriter nullValue() throws IOException {
+		separate();
+		writeAscii("null");
+		return this;
+	}
+
+	/**
+	 * Writes any buffered output to the stream and flushes it.
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Ends the output with a line break and closes the stream.
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		write('\n');
+		flushBuffer();
+		out.close();
+	}
+
+	private JsonWriter open(char bracket) throws IOException {
+		separate();
+		write(bracket);
+		if (depth == empty.length) {
+			empty = Arrays.copyOf(empty, depth * 2);
+		}
+		empty[depth++] = true;
+		return this;
+	}
+
+	private JsonWriter close(char bracket) throws IOException {
+		if (depth == 0) {
+			throw new IllegalStateException("No object or array to end");
+		}
+		depth--;
+		if (pretty && !empty[depth]) {
+			newLine();
+		}
+		write(bracket);
+		return this;
+	}
+
+	/**
+	 * Writes the separator before the next member name or value.
+	 */
+	private void separate() throws IOException {
+		if (afterName) {
+			// The value follows its name directly
+			afterName = false;
+			return;
+		}
+		if (depth == 0) {
+			return;
+		}
+		if (!empty[depth - 1]) {
+			write(',');
+		}
+		empty[depth - 1] = false;
+		if (pretty) {
+			newLine();
+		}
+	}
+
+	private void newLine() throws IOException {
+		write('\n');
+		for (int i = 0; i < depth * INDENT; i++) {
+			write(' ');
+		}
+	}
+
+	/**
+	 * Writes a quoted string, escaping the characters that JSON requires to be
+	 * escaped and encoding the rest as UTF-8.
+	 */
+	private void writeString(String value) throws IOException {
+		write('"');
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				write('\\');
+				write(c);
+			} else if (c < 0x20) {
+				writeControl(c);
+			} else if (c < 0x80) {
+				write(c);
+			} else if (c < 0x800) {
+				write(0xC0 | (c >> 6));
+				write(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				write(0xF0 | (codePoint >> 18));
+				write(0x80 | ((codePoint >> 12) & 0x3F));
+				write(0x80 | ((codePoint >> 6) & 0x3F));
+				write(0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// An unpaired surrogate cannot be encoded as UTF-8
+				writeUnicodeEscape(c);
+			} else {
+				write(0xE0 | (c >> 12));
+				write(0x80 | ((c >> 6) & 0x3F));
+				write(0x80 | (c & 0x3F));
+			}
+		}
+		write('"');
+	}
+
+	private void writeControl(char c) throws IOException {
+		switch (c) {
+		case '\b':
+			writeAscii("\\b");
+			break;
+		case '\f':
+			writeAscii("\\f");
+			break;
+		case '\n':
+			writeAscii("\\n");
+			break;
+		case '\r':
+			writeAscii("\\r");
+			break;
+		case '\t':
+			writeAscii("\\t");
+			break;
+		default:
+			writeUnicodeEscape(c);
+		}
+	}
+
+	private void writeUnicodeEscape(char c) throws IOException {
+		write('\\');
+		write('u');
+		write(HEX[(c >> 12) & 0xF]);
+		write(HEX[(c >> 8) & 0xF]);
+		write(HEX[(c >> 4) & 0xF]);
+		write(HEX[c & 0xF]);
+	}
+
+	private void writeAscii(String value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			write(value.charAt(i));
+		}
+	}
+
+	private void write(int b) throws IOException {
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+}
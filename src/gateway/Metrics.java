@@ -0,0 +1,205 @@
+package gateway;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A registry of metrics that are written in the Prometheus text format.
+ *
+ * Histograms are registered once and recorded through the returned
+ * {@link Histogram}, without going through the registry. Counters and gauges
+ * are read from suppliers when the metrics are written, so they can report
+ * statistics that are already kept elsewhere.
+ */
+public class Metrics {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final String COUNTER = "counter";
+	private static final String GAUGE = "gauge";
+	private static final String HISTOGRAM = "histogram";
+
+	/**
+	 * A metric and the series that have its name.
+	 */
+	private static class Family {
+		private final String type;
+		private final String help;
+		private final List<Series> series = new ArrayList<Series>();
+
+		private Family(String type, String help) {
+			this.type = type;
+			this.help = help;
+		}
+	}
+
+	/**
+	 * A series of a metric, identified by its labels.
+	 */
+	private static class Series {
+		private final String labels;
+		private final Histogram histogram;
+		private final DoubleSupplier value;
+
+		private Series(String labels, Histogram histogram, DoubleSupplier value) {
+			this.labels = labels;
+			this.histogram = histogram;
+			this.value = value;
+		}
+	}
+
+	private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+
+	/**
+	 * Registers a histogram of durations.
+	 *
+	 * @param name
+	 *            the name of the metric
+	 *
+	 * @param help
+	 *            the description of the metric
+	 *
+	 * @param labels
+	 *            the names and values of the labels of the series, in pairs
+	 *
+	 * @return The histogram
+	 */
+	public Histogram histogram(String name, String help, String... labels) {
+		Histogram histogram = new Histogram();
+		add(name, HISTOGRAM, help, new Series(formatLabels(labels), histogram,
+				null));
+		return histogram;
+	}
+
+	/**
+	 * Registers a counter, which is read when the metrics are written.
+	 *
+	 * @param name
+	 *            the name of the metric
+	 *
+	 * @param help
+	 *            the description of the metric
+	 *
+	 * @param value
+	 *            the supplier of the value of the counter
+	 *
+	 * @param labels
+	 *            the names and values of the labels of the series, in pairs
+	 */
+	public void counter(String name, String help, DoubleSupplier value,
+			String... labels) {
+		add(name, COUNTER, help, new Series(formatLabels(labels), null, value));
+	}
+
+	/**
+	 * Registers a gauge, which is read when the metrics are written.
+	 *
+	 * @param name
+	 *            the name of the metric
+	 *
+	 * @param help
+	 *            the description of the metric
+	 *
+	 * @param value
+	 *            the supplier of the value of the gauge
+	 *
+	 * @param labels
+	 *            the names and values of the labels of the series, in pairs
+	 */
+	public void gauge(String name, String help, DoubleSupplier value,
+			String... labels) {
+		add(name, GAUGE, help, new Series(formatLabels(labels), null, value));
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text format.
+	 *
+	 * @return The metrics
+	 */
+	public synchronized String write() {
+		StringBuilder out = new StringBuilder(16384);
+		for (Map.Entry<String, Family> entry : families.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			out.append("# HELP ").append(name).append(' ')
+					.append(family.help).append('\n');
+			out.append("# TYPE ").append(name).append(' ')
+					.append(family.type).append('\n');
+
+			for (Series series : family.series) {
+				if (series.histogram != null) {
+					series.histogram.write(out, name, series.labels);
+					continue;
+				}
+				out.append(name);
+				if (!series.labels.isEmpty()) {
+					out.append('{').append(series.labels).append('}');
+				}
+				double value = series.value.getAsDouble();
+				out.append(' ');
+				if (value == (long) value) {
+					out.append((long) value);
+				} else {
+					out.append(value);
+				}
+				out.append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Adds a series to the metric with the specified name.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a metric with the same name has a different type
+	 */
+	private synchronized void add(String name, String type, String help,
+			Series series) {
+		Family family = families.get(name);
+		if (family == null) {
+			family = new Family(type, help);
+			families.put(name, family);
+		} else if (!family.type.equals(type)) {
+			throw new IllegalArgumentException(String.format(
+					"Metric %s is a %s", name, family.type));
+		}
+		family.series.add(series);
+	}
+
+	/**
+	 * Formats the labels of a series.
+	 *
+	 * @param labels
+	 *            the names and values of the labels, in pairs
+	 *
+	 * @return The labels separated by commas, or an empty string
+	 */
+	private static String formatLabels(String... labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException(
+					"Labels must be pairs of names and values");
+		}
+		StringBuilder formatted = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				formatted.append(',');
+			}
+			formatted.append(labels[i]).append("=\"");
+			for (char c : labels[i + 1].toCharArray()) {
+				if (c == '\\' || c == '"') {
+					formatted.append('\\').append(c);
+				} else if (c == '\n') {
+					formatted.append("\\n");
+				} else {
+					formatted.append(c);
+				}
+			}
+			formatted.append('"');
+		}
+		return formatted.toString();
+	}
+}
@@ -0,0 +1,773 @@
+package gateway;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import log.Log;
+
+/**
+ * A non-blocking server engine for client connections.
+ *
+ * Connections are multiplexed over a small number of event loops, each with
+ * its own {@link Selector}. An event loop reads requests without blocking and
+ * only dispatches a request to the request executor once the complete request
+ * has arrived, so slow clients do not occupy request threads. Responses are
+ * passed to the event loop in chunks as they are written and written by the
+ * event loop as the client reads them. Only a few chunks of a response wait
+ * to be written at once, so a handler writing faster than the client reads
+ * waits for the client, and a connection whose client stops reading for the
+ * write timeout is closed.
+ *
+ * Requests on a connection are handled one at a time. While a request is
+ * being handled the connection is not read, so pipelined requests wait in the
+ * socket buffers.
+ */
+public class NioServer {
+
+	/**
+	 * A handler for complete client requests.
+	 */
+	public interface Handler {
+
+		/**
+		 * Handles a client request.
+		 *
+		 * @param head
+		 *            the request line and headers
+		 *
+		 * @param out
+		 *            the stream for the response
+		 *
+		 * @param requests
+		 *            the number of requests received on the connection,
+		 *            including this one
+		 *
+		 * @return The response, which determines whether the connection is
+		 *         kept open
+		 *
+		 * @throws IOException
+		 *             if the response could not be written
+		 */
+		Response handle(RequestHead head, OutputStream out, int requests)
+				throws IOException;
+	}
+
+	private static final int BUFFER_SIZE = 8192;
+
+	// Chunks of a response that can wait to be written before the handler
+	// waits for the client
+	private static final int MAX_PENDING_CHUNKS = 8;
+
+	private final EventLoop[] eventLoops;
+	private final Executor executor;
+	private final Handler handler;
+	private final int maxHeadLength;
+	private final long idleTimeoutMillis;
+	private final long writeTimeoutMillis;
+	private final Log log;
+
+	private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+	// Statistics
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong stalls = new AtomicLong();
+
+	/**
+	 * Creates a server engine and starts its event loops.
+	 *
+	 * @param eventLoops
+	 *            the number of event loop threads
+	 *
+	 * @param executor
+	 *            the executor that handles complete requests
+	 *
+	 * @param handler
+	 *            the handler for complete requests
+	 *
+	 * @param maxHeadLength
+	 *            the maximum length of the request line and headers
+	 *
+	 * @param idleTimeoutMillis
+	 *            the time an idle connection has to send a complete request
+	 *            before it is closed
+	 *
+	 * @param writeTimeoutMillis
+	 *            the time a client has to read more of a response before its
+	 *            connection is closed
+	 *
+	 * @param log
+	 *            the log for errors
+	 *
+	 * @throws IOException
+	 *             if a selector could not be opened
+	 */
+	public NioServer(int eventLoops, Executor executor, Handler handler,
+			int maxHeadLength, long idleTimeoutMillis, long writeTimeoutMillis,
+			Log log) throws IOException {
+		if (eventLoops < 1) {
+			throw new IllegalArgumentException(
+					"Number of event loops must be positive");
+		}
+		this.executor = executor;
+		this.handler = handler;
+		this.maxHeadLength = maxHeadLength;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.writeTimeoutMillis = writeTimeoutMillis;
+		this.log = log;
+
+		this.eventLoops = new EventLoop[eventLoops];
+		for (int i = 0; i < eventLoops; i++) {
+			this.eventLoops[i] = new EventLoop("nio-event-loop-" + i);
+		}
+	}
+
+	/**
+	 * Registers an accepted client connection with one of the event loops.
+	 *
+	 * @param channel
+	 *            the client connection
+	 *
+	 * @throws IOException
+	 *             if the connection could not be configured
+	 */
+	public void register(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		accepted.incrementAndGet();
+		open.incrementAndGet();
+
+		int index = (nextEventLoop.getAndIncrement() & Integer.MAX_VALUE)
+				% eventLoops.length;
+		final EventLoop eventLoop = eventLoops[index];
+		final ClientConnection connection = new ClientConnection(channel,
+				eventLoop);
+		eventLoop.execute(connection::register);
+	}
+
+	/**
+	 * Stops the event loops and closes all client connections. Responses that
+	 * have not been written are discarded.
+	 */
+	public void close() {
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.close();
+		}
+	}
+
+	/**
+	 * Gets the number of event loops.
+	 *
+	 * @return The number of event loops
+	 */
+	public int getEventLoopCount() {
+		return eventLoops.length;
+	}
+
+	/**
+	 * Gets the number of open client connections.
+	 *
+	 * @return The number of open client connections
+	 */
+	public int getOpenCount() {
+		return open.get();
+	}
+
+	/**
+	 * Gets the number of accepted client connections.
+	 *
+	 * @return The number of accepted client connections
+	 */
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+
+	/**
+	 * Gets the number of requests dispatched to the request executor.
+	 *
+	 * @return The number of requests dispatched
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Gets the number of connections closed because they were idle.
+	 *
+	 * @return The number of idle connections closed
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Gets the number of connections closed because the client stopped
+	 * reading its response.
+	 *
+	 * @return The number of stalled connections closed
+	 */
+	public long getStallCount() {
+		return stalls.get();
+	}
+
+	/**
+	 * Finds the end of the request head in a buffer.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 *
+	 * @param length
+	 *            the number of bytes in the buffer
+	 *
+	 * @return The index after the empty line that ends the request head, or -1
+	 *         if the buffer does not contain a complete request head
+	 */
+	private static int findHeadEnd(byte[] buffer, int length) {
+		for (int i = 0; i < length; i++) {
+			if (buffer[i] != '\n') {
+				continue;
+			}
+			if (i + 1 < length && buffer[i + 1] == '\n') {
+				return i + 2;
+			}
+			if (i + 2 < length && buffer[i + 1] == '\r'
+					&& buffer[i + 2] == '\n') {
+				return i + 3;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * An event loop that owns a selector and the connections registered with
+	 * it. All connection state is only accessed by the event loop thread.
+	 */
+	private class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final Thread thread;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private volatile boolean running = true;
+
+		public EventLoop(String name) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Runs a task on the event loop thread.
+		 *
+		 * @param task
+		 *            the task
+		 */
+		public void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Stops the event loop and waits for it to close its connections.
+		 */
+		public void close() {
+			running = false;
+			selector.wakeup();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			long checkInterval = Math.max(
+					Math.min(idleTimeoutMillis, writeTimeoutMillis) / 4, 1);
+			long nextCheck = System.currentTimeMillis() + checkInterval;
+
+			try {
+				while (running) {
+					selector.select(checkInterval);
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						ClientConnection connection = (ClientConnection) key
+								.attachment();
+						try {
+							if (key.isReadable()) {
+								connection.read();
+							} else if (key.isWritable()) {
+								connection.write();
+							}
+						} catch (IOException | CancelledKeyException e) {
+							connection.close();
+						}
+					}
+
+					long now = System.currentTimeMillis();
+					if (now >= nextCheck) {
+						closeIdle(now);
+						nextCheck = now + checkInterval;
+					}
+				}
+
+			} catch (IOException e) {
+				log.e("Error in event loop", e);
+			} finally {
+				// Try to write responses that completed during shutdown
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				for (SelectionKey key : new ArrayList<SelectionKey>(
+						selector.keys())) {
+					((ClientConnection) key.attachment()).close();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// Do nothing because we are exiting
+				}
+			}
+		}
+
+		/**
+		 * Closes connections that have been waiting for a complete request
+		 * for longer than the idle timeout, and connections whose client has
+		 * not read any of the response for longer than the write timeout.
+		 *
+		 * @param now
+		 *            the current time
+		 */
+		private void closeIdle(long now) {
+			List<ClientConnection> idle = new ArrayList<ClientConnection>();
+			List<ClientConnection> stalled = new ArrayList<ClientConnection>();
+			for (SelectionKey key : selector.keys()) {
+				ClientConnection connection = (ClientConnection) key
+						.attachment();
+				if (connection.isIdle(now)) {
+					idle.add(connection);
+				} else if (connection.isStalled(now)) {
+					stalled.add(connection);
+				}
+			}
+			for (ClientConnection connection : idle) {
+				timeouts.incrementAndGet();
+				connection.close();
+			}
+			for (ClientConnection connection : stalled) {
+				connection.stall();
+			}
+		}
+	}
+
+	/**
+	 * The state of a client connection.
+	 */
+	private class ClientConnection {
+
+		private final SocketChannel channel;
+		private final EventLoop eventLoop;
+		private SelectionKey key;
+
+		// Received bytes that have not been parsed, in write mode
+		private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+		// Response chunks that have not been written, and permits for the
+		// chunks the handler can pass to the event loop
+		private final Deque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+		private final Semaphore writable = new Semaphore(MAX_PENDING_CHUNKS);
+
+		// Request body bytes that still need to be discarded
+		private long bodyRemaining = 0;
+		private RequestHead head = null;
+
+		private int requestCount = 0;
+		private boolean busy = false;
+		private boolean closeAfterWrite = false;
+		private volatile boolean closed = false;
+
+		// The time the connection started waiting for a request, and the time
+		// the client last read some of a response
+		private long idleSince;
+		private long lastWrite;
+
+		public ClientConnection(SocketChannel channel, EventLoop eventLoop) {
+			this.channel = channel;
+			this.eventLoop = eventLoop;
+		}
+
+		/**
+		 * Registers the connection with the event loop selector.
+		 */
+		public void register() {
+			try {
+				key = channel.register(eventLoop.selector,
+						SelectionKey.OP_READ, this);
+				idleSince = System.currentTimeMillis();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Gets whether the connection is waiting for a request and has
+		 * exceeded the idle timeout.
+		 *
+		 * @param now
+		 *            the current time
+		 *
+		 * @return True if the connection should be closed, false otherwise
+		 */
+		public boolean isIdle(long now) {
+			return !busy && output.isEmpty()
+					&& now - idleSince >= idleTimeoutMillis;
+		}
+
+		/**
+		 * Gets whether the connection has a response waiting to be written
+		 * that the client has not read for the write timeout.
+		 *
+		 * @param now
+		 *            the current time
+		 *
+		 * @return True if the connection should be closed, false otherwise
+		 */
+		public boolean isStalled(long now) {
+			return !output.isEmpty() && now - lastWrite >= writeTimeoutMillis;
+		}
+
+		/**
+		 * Reads available bytes and dispatches a request if one is complete.
+		 *
+		 * @throws IOException
+		 *             if the connection failed or the request is malformed
+		 */
+		public void read() throws IOException {
+			if (!input.hasRemaining()) {
+				if (input.capacity() >= maxHeadLength) {
+					throw new IOException(String.format(
+							"HTTP request head is longer than %d bytes",
+							maxHeadLength));
+				}
+				ByteBuffer larger = ByteBuffer.allocate(Math.min(
+						input.capacity() * 2, maxHeadLength));
+				input.flip();
+				larger.put(input);
+				input = larger;
+			}
+
+			if (channel.read(input) < 0) {
+				close();
+				return;
+			}
+
+			process();
+		}
+
+		/**
+		 * Writes buffered response chunks. Once the whole response is written
+		 * the connection either reads the next request or is closed.
+		 *
+		 * @throws IOException
+		 *             if the connection failed
+		 */
+		public void write() throws IOException {
+			while (!output.isEmpty()) {
+				ByteBuffer buffer = output.peek();
+				if (channel.write(buffer) > 0) {
+					lastWrite = System.currentTimeMillis();
+				}
+				if (buffer.hasRemaining()) {
+					// Wait until the client reads more of the response
+					key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+				output.poll();
+				writable.release();
+			}
+
+			if (busy) {
+				// Wait for the handler to write more of the response
+				key.interestOps(0);
+				return;
+			}
+
+			if (closeAfterWrite) {
+				close();
+				return;
+			}
+
+			idleSince = System.currentTimeMillis();
+			key.interestOps(SelectionKey.OP_READ);
+
+			// Handle any pipelined request that has already been received
+			process();
+		}
+
+		/**
+		 * Parses received bytes and dispatches a complete request.
+		 *
+		 * @throws IOException
+		 *             if the request is malformed
+		 */
+		private void process() throws IOException {
+			if (busy) {
+				return;
+			}
+
+			while (head == null) {
+				int headEnd = findHeadEnd(input.array(), input.position());
+				if (headEnd < 0) {
+					return;
+				}
+
+				// The head is null if only empty lines were received
+				head = RequestHead.read(new ByteArrayInputStream(
+						input.array(), 0, headEnd), maxHeadLength);
+				consume(headEnd);
+				if (head != null) {
+					bodyRemaining = head.getContentLength();
+				}
+			}
+
+			// Discard any request body
+			int skipped = (int) Math.min(bodyRemaining, input.position());
+			consume(skipped);
+			bodyRemaining -= skipped;
+			if (bodyRemaining > 0) {
+				return;
+			}
+
+			RequestHead request = head;
+			head = null;
+			dispatch(request);
+		}
+
+		/**
+		 * Removes parsed bytes from the input buffer.
+		 *
+		 * @param length
+		 *            the number of bytes to remove
+		 */
+		private void consume(int length) {
+			input.flip();
+			input.position(length);
+			input.compact();
+		}
+
+		/**
+		 * Dispatches a complete request to the request executor. The
+		 * connection is not read until the response has been written.
+		 *
+		 * @param request
+		 *            the request head
+		 */
+		private void dispatch(final RequestHead request) {
+			busy = true;
+			key.interestOps(0);
+			final int count = ++requestCount;
+			requests.incrementAndGet();
+
+			try {
+				executor.execute(() -> {
+					ResponseStream out = new ResponseStream();
+					boolean keepAlive = false;
+					try {
+						keepAlive = handler.handle(request, out, count)
+								.isKeepAlive();
+						out.flush();
+					} catch (Exception e) {
+						// Catch runtime exceptions
+						log.e("Error handling client request", e);
+					}
+
+					final boolean keepOpen = keepAlive;
+					eventLoop.execute(() -> complete(keepOpen));
+				});
+			} catch (RejectedExecutionException e) {
+				// The gateway is shutting down
+				close();
+			}
+		}
+
+		/**
+		 * Queues a chunk of a response to be written on the event loop thread.
+		 *
+		 * @param chunk
+		 *            the response bytes
+		 */
+		private void enqueue(ByteBuffer chunk) {
+			if (closed) {
+				return;
+			}
+			if (output.isEmpty()) {
+				lastWrite = System.currentTimeMillis();
+			}
+			output.add(chunk);
+
+			try {
+				write();
+			} catch (IOException | CancelledKeyException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Completes a response on the event loop thread once all of its chunks
+		 * have been queued.
+		 *
+		 * @param keepAlive
+		 *            if the connection can be used for another request
+		 */
+		private void complete(boolean keepAlive) {
+			if (closed) {
+				return;
+			}
+			busy = false;
+			closeAfterWrite = !keepAlive;
+
+			try {
+				write();
+			} catch (IOException | CancelledKeyException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Closes the connection because the client stopped reading its
+		 * response.
+		 */
+		private void stall() {
+			if (!closed) {
+				stalls.incrementAndGet();
+				close();
+			}
+		}
+
+		/**
+		 * Closes the connection.
+		 */
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			open.decrementAndGet();
+
+			// Wake a handler waiting to pass more of a response
+			writable.release(MAX_PENDING_CHUNKS);
+
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Do nothing because we are exiting
+			}
+		}
+
+		/**
+		 * The stream a handler writes a response to. The response is passed
+		 * to the event loop in chunks, and the handler waits while too many
+		 * chunks are waiting to be written.
+		 */
+		private class ResponseStream extends OutputStream {
+
+			private byte[] buffer = new byte[BUFFER_SIZE];
+			private int count = 0;
+
+			@Override
+			public void write(int b) throws IOException {
+				if (count == buffer.length) {
+					send();
+				}
+				buffer[count++] = (byte) b;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					if (count == buffer.length) {
+						send();
+					}
+					int length = Math.min(len, buffer.length - count);
+					System.arraycopy(b, off, buffer, count, length);
+					count += length;
+					off += length;
+					len -= length;
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				if (count > 0) {
+					send();
+				}
+			}
+
+			/**
+			 * Passes the buffered bytes to the event loop, waiting until the
+			 * client has read enough of the response.
+			 *
+			 * @throws IOException
+			 *             if the connection is closed or the client did not
+			 *             read the response within the write timeout
+			 */
+			private void send() throws IOException {
+				try {
+					if (!writable.tryAcquire(writeTimeoutMillis,
+							TimeUnit.MILLISECONDS)) {
+						eventLoop.execute(ClientConnection.this::stall);
+						throw new IOException(
+								"Client did not read the response");
+					}
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException(
+							"Interrupted while writing response");
+				}
+				if (closed) {
+					throw new IOException("Client connection was closed");
+				}
+
+				final ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, count);
+				buffer = new byte[BUFFER_SIZE];
+				count = 0;
+				eventLoop.execute(() -> enqueue(chunk));
+			}
+		}
+	}
+}
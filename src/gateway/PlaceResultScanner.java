@@ -0,0 +1,582 @@
+package gateway;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An incremental scanner for Google Place Search API responses that extracts
+ * only the fields the gateway needs: the response status and the place ID and
+ * location of each result.
+ *
+ * The scanner is fed the response body in pieces as it arrives and never
+ * builds a tree of the whole response. Strings and numbers are only decoded
+ * when they are one of the extracted fields, so the memory used does not
+ * depend on the size of the response beyond the extracted results.
+ */
+public class PlaceResultScanner {
+
+	// Maximum depth of nested objects and arrays that is tracked
+	private static final int MAX_DEPTH = 32;
+
+	// Maximum length of a decoded field value
+	private static final int MAX_VALUE_LENGTH = 1024;
+
+	// Keys of interest, identified while scanning
+	private static final int KEY_OTHER = 0;
+	private static final int KEY_STATUS = 1;
+	private static final int KEY_RESULTS = 2;
+	private static final int KEY_PLACE_ID = 3;
+	private static final int KEY_GEOMETRY = 4;
+	private static final int KEY_LOCATION = 5;
+	private static final int KEY_LAT = 6;
+	private static final int KEY_LNG = 7;
+
+	private static final byte[][] KEYS = { null, bytes("status"),
+			bytes("results"), bytes("place_id"), bytes("geometry"),
+			bytes("location"), bytes("lat"), bytes("lng") };
+
+	// Powers of ten that are exactly representable as doubles
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15 };
+
+	// Lexer states
+	private static final int STATE_VALUE = 0;
+	private static final int STATE_STRING = 1;
+	private static final int STATE_ESCAPE = 2;
+	private static final int STATE_UNICODE = 3;
+	private static final int STATE_SCALAR = 4;
+
+	// The containers enclosing the current position, and for objects the key
+	// of the current member
+	private final boolean[] isObject = new boolean[MAX_DEPTH];
+	private final int[] keys = new int[MAX_DEPTH];
+	private final boolean[] expectingKey = new boolean[MAX_DEPTH];
+	private int depth = 0;
+
+	private int state = STATE_VALUE;
+
+	// The string or scalar being read, if it is captured
+	private boolean capturing = false;
+	private byte[] value = new byte[64];
+	private int valueLength = 0;
+	private int unicodeDigits = 0;
+	private int unicodeValue = 0;
+	private char highSurrogate = 0;
+
+	// Extracted fields
+	private String status = null;
+	private final List<String> placeIds = new ArrayList<String>();
+	private double[] lats = new double[32];
+	private double[] lngs = new double[32];
+
+	// Fields of the result being scanned
+	private String placeId = null;
+	private double lat = Double.NaN;
+	private double lng = Double.NaN;
+
+	/**
+	 * Scans the next piece of the response body.
+	 *
+	 * @param bytes
+	 *            the buffer containing the bytes
+	 *
+	 * @param offset
+	 *            the offset of the first byte in the buffer
+	 *
+	 * @param length
+	 *            the number of bytes
+	 *
+	 * @throws IOException
+	 *             if the response is not valid JSON
+	 */
+	public void update(byte[] bytes, int offset, int length)
+			throws IOException {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			scan(bytes[i]);
+		}
+	}
+
+	/**
+	 * Finishes scanning after the whole response body has been scanned.
+	 *
+	 * @throws IOException
+	 *             if the response is incomplete
+	 */
+	public void finish() throws IOException {
+		if (state == STATE_SCALAR) {
+			endScalar();
+		}
+		if (state != STATE_VALUE || depth != 0) {
+			throw new IOException("Incomplete JSON response");
+		}
+	}
+
+	/**
+	 * Gets the status of the response.
+	 *
+	 * @return The status, or null if the response has no status
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * Gets the number of results with a place ID and location.
+	 *
+	 * @return The number of results
+	 */
+	public int getResultCount() {
+		return placeIds.size();
+	}
+
+	/**
+	 * Gets the place ID of a result.
+	 *
+	 * @param index
+	 *            the index of the result
+	 *
+	 * @return The place ID
+	 */
+	public String getPlaceId(int index) {
+		return placeIds.get(index);
+	}
+
+	/**
+	 * Gets the latitude of a result.
+	 *
+	 * @param index
+	 *            the index of the result
+	 *
+	 * @return The latitude
+	 */
+	public double getLat(int index) {
+		return lats[index];
+	}
+
+	/**
+	 * Gets the longitude of a result.
+	 *
+	 * @param index
+	 *            the index of the result
+	 *
+	 * @return The longitude
+	 */
+	public double getLng(int index) {
+		return lngs[index];
+	}
+
+	/**
+	 * Scans a single byte.
+	 *
+	 * @param b
+	 *            the byte
+	 *
+	 * @throws IOException
+	 *             if the response is not valid JSON
+	 */
+	private void scan(byte b) throws IOException {
+		switch (state) {
+
+		case STATE_STRING:
+			if (b == '"') {
+				state = STATE_VALUE;
+				endString();
+			} else if (b == '\\') {
+				state = STATE_ESCAPE;
+			} else if (capturing) {
+				append(b);
+			}
+			return;
+
+		case STATE_ESCAPE:
+			state = STATE_STRING;
+			switch (b) {
+			case 'b':
+				appendChar('\b');
+				break;
+			case 'f':
+				appendChar('\f');
+				break;
+			case 'n':
+				appendChar('\n');
+				break;
+			case 'r':
+				appendChar('\r');
+				break;
+			case 't':
+				appendChar('\t');
+				break;
+			case 'u':
+				state = STATE_UNICODE;
+				unicodeDigits = 0;
+				unicodeValue = 0;
+				break;
+			default:
+				appendChar((char) b);
+				break;
+			}
+			return;
+
+		case STATE_UNICODE:
+			int digit = Character.digit(b, 16);
+			if (digit < 0) {
+				throw new IOException("Invalid unicode escape in JSON string");
+			}
+			unicodeValue = unicodeValue * 16 + digit;
+			if (++unicodeDigits == 4) {
+				state = STATE_STRING;
+				appendChar((char) unicodeValue);
+			}
+			return;
+
+		case STATE_SCALAR:
+			if (isScalar(b)) {
+				if (capturing) {
+					append(b);
+				}
+				return;
+			}
+			state = STATE_VALUE;
+			endScalar();
+			// The byte ends the scalar and is scanned as structure
+			break;
+
+		default:
+			break;
+		}
+
+		switch (b) {
+		case ' ':
+		case '\t':
+		case '\n':
+		case '\r':
+			break;
+
+		case '{':
+			push(true);
+			break;
+
+		case '[':
+			push(false);
+			break;
+
+		case '}':
+		case ']':
+			pop(b == '}');
+			break;
+
+		case ',':
+			if (depth > 0 && depth <= MAX_DEPTH && isObject[depth - 1]) {
+				expectingKey[depth - 1] = true;
+				keys[depth - 1] = KEY_OTHER;
+			}
+			break;
+
+		case ':':
+			if (depth > 0 && depth <= MAX_DEPTH) {
+				expectingKey[depth - 1] = false;
+			}
+			break;
+
+		case '"':
+			state = STATE_STRING;
+			startValue(isKey() || isCapturedString());
+			break;
+
+		default:
+			if (!isScalar(b)) {
+				throw new IOException("Unexpected character in JSON: "
+						+ (char) b);
+			}
+			state = STATE_SCALAR;
+			startValue(isCapturedNumber());
+			append(b);
+			break;
+		}
+	}
+
+	/**
+	 * Enters an object or array.
+	 *
+	 * @param object
+	 *            if the container is an object
+	 */
+	private void push(boolean object) {
+		if (depth < MAX_DEPTH) {
+			isObject[depth] = object;
+			keys[depth] = KEY_OTHER;
+			expectingKey[depth] = object;
+		}
+		depth++;
+
+		// Start a new result
+		if (isResult()) {
+			placeId = null;
+			lat = Double.NaN;
+			lng = Double.NaN;
+		}
+	}
+
+	/**
+	 * Leaves an object or array.
+	 *
+	 * @param object
+	 *            if the container is an object
+	 *
+	 * @throws IOException
+	 *             if the container does not match the one being left
+	 */
+	private void pop(boolean object) throws IOException {
+		if (depth == 0
+				|| (depth <= MAX_DEPTH && isObject[depth - 1] != object)) {
+			throw new IOException("Mismatched brackets in JSON");
+		}
+
+		// Keep the result if it is complete
+		if (isResult() && placeId != null && !Double.isNaN(lat)
+				&& !Double.isNaN(lng)) {
+			int index = placeIds.size();
+			if (index == lats.length) {
+				lats = Arrays.copyOf(lats, index * 2);
+				lngs = Arrays.copyOf(lngs, index * 2);
+			}
+			placeIds.add(placeId);
+			lats[index] = lat;
+			lngs[index] = lng;
+		}
+
+		depth--;
+	}
+
+	/**
+	 * Gets whether the current position is directly inside an object in the
+	 * results array.
+	 *
+	 * @return True if the current container is a result, false otherwise
+	 */
+	private boolean isResult() {
+		return depth == 3 && isObject[2] && !isObject[1]
+				&& keys[0] == KEY_RESULTS;
+	}
+
+	/**
+	 * Gets whether the string starting at the current position is a key.
+	 *
+	 * @return True if the string is a key, false otherwise
+	 */
+	private boolean isKey() {
+		return depth > 0 && depth <= MAX_DEPTH && expectingKey[depth - 1];
+	}
+
+	/**
+	 * Gets whether the string starting at the current position is an
+	 * extracted field.
+	 *
+	 * @return True if the string is extracted, false otherwise
+	 */
+	private boolean isCapturedString() {
+		return (depth == 1 && keys[0] == KEY_STATUS)
+				|| (isResult() && keys[2] == KEY_PLACE_ID);
+	}
+
+	/**
+	 * Gets whether the number starting at the current position is an
+	 * extracted field.
+	 *
+	 * @return True if the number is extracted, false otherwise
+	 */
+	private boolean isCapturedNumber() {
+		return depth == 5 && keys[2] == KEY_GEOMETRY
+				&& keys[3] == KEY_LOCATION && keys[0] == KEY_RESULTS
+				&& !isObject[1] && isObject[2] && isObject[3] && isObject[4]
+				&& (keys[4] == KEY_LAT || keys[4] == KEY_LNG);
+	}
+
+	/**
+	 * Starts reading a string or scalar.
+	 *
+	 * @param capture
+	 *            if the value is captured
+	 */
+	private void startValue(boolean capture) {
+		capturing = capture;
+		valueLength = 0;
+		highSurrogate = 0;
+	}
+
+	/**
+	 * Handles the end of a string, which is either a key or a value.
+	 */
+	private void endString() {
+		if (isKey()) {
+			keys[depth - 1] = capturing ? identifyKey() : KEY_OTHER;
+		} else if (capturing) {
+			String string = new String(value, 0, valueLength,
+					StandardCharsets.UTF_8);
+			if (depth == 1) {
+				status = string;
+			} else {
+				placeId = string;
+			}
+		}
+		capturing = false;
+	}
+
+	/**
+	 * Handles the end of a number or literal.
+	 *
+	 * @throws IOException
+	 *             if a captured number is not valid
+	 */
+	private void endScalar() throws IOException {
+		if (capturing) {
+			double number = parseNumber();
+			if (keys[4] == KEY_LAT) {
+				lat = number;
+			} else {
+				lng = number;
+			}
+		}
+		capturing = false;
+	}
+
+	/**
+	 * Parses the number that was just read. Plain decimal numbers with up to
+	 * 15 significant digits, such as coordinates, are converted exactly
+	 * without allocating; other numbers are converted by
+	 * {@link Double#parseDouble(String)}.
+	 *
+	 * @return The number
+	 *
+	 * @throws IOException
+	 *             if the number is not valid
+	 */
+	private double parseNumber() throws IOException {
+		int i = 0;
+		boolean negative = valueLength > 0 && value[0] == '-';
+		if (negative) {
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int scale = -1;
+		for (; i < valueLength; i++) {
+			byte b = value[i];
+			if (b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if (scale >= 0) {
+					scale++;
+				}
+			} else if (b == '.' && scale < 0) {
+				scale = 0;
+			} else {
+				break;
+			}
+		}
+
+		if (i == valueLength && digits > 0 && digits <= 15 && scale != 0) {
+			// Both the mantissa and the power of ten are exact doubles, so
+			// the division is correctly rounded
+			double number = scale > 0 ? mantissa / POWERS_OF_TEN[scale]
+					: mantissa;
+			return negative ? -number : number;
+		}
+
+		try {
+			return Double.parseDouble(new String(value, 0, valueLength,
+					StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid number in JSON");
+		}
+	}
+
+	/**
+	 * Identifies the key that was just read.
+	 *
+	 * @return The key identifier
+	 */
+	private int identifyKey() {
+		for (int key = 1; key < KEYS.length; key++) {
+			byte[] bytes = KEYS[key];
+			if (bytes.length != valueLength) {
+				continue;
+			}
+			int i = 0;
+			while (i < valueLength && bytes[i] == value[i]) {
+				i++;
+			}
+			if (i == valueLength) {
+				return key;
+			}
+		}
+		return KEY_OTHER;
+	}
+
+	/**
+	 * Appends a byte to the value being captured.
+	 *
+	 * @param b
+	 *            the byte
+	 */
+	private void append(byte b) {
+		if (!capturing) {
+			return;
+		}
+		if (valueLength == value.length) {
+			if (valueLength >= MAX_VALUE_LENGTH) {
+				// Too long to be a field of interest
+				capturing = false;
+				return;
+			}
+			value = Arrays.copyOf(value, valueLength * 2);
+		}
+		value[valueLength++] = b;
+	}
+
+	/**
+	 * Appends an escaped character to the value being captured, encoded as
+	 * UTF-8.
+	 *
+	 * @param c
+	 *            the character
+	 */
+	private void appendChar(char c) {
+		if (!capturing) {
+			return;
+		}
+		if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+			return;
+		}
+
+		String string = highSurrogate != 0 && Character.isLowSurrogate(c) ? new String(
+				new char[] { highSurrogate, c }) : String.valueOf(c);
+		highSurrogate = 0;
+		for (byte b : string.getBytes(StandardCharsets.UTF_8)) {
+			append(b);
+		}
+	}
+
+	/**
+	 * Gets whether a byte can be part of a number or literal.
+	 *
+	 * @param b
+	 *            the byte
+	 *
+	 * @return True if the byte is part of a scalar, false otherwise
+	 */
+	private static boolean isScalar(byte b) {
+		return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || b == '-'
+				|| b == '+' || b == '.' || b == 'E';
+	}
+
+	private static byte[] bytes(String string) {
+		return string.getBytes(StandardCharsets.US_ASCII);
+	}
+}
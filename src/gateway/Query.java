@@ -1,21 +1,87 @@
 package gateway;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Base64;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
- * A database query.
+ * A database query on the searches or results table.
+ *
+ * Records are returned newest first, one page at a time. Each page is found
+ * by seeking past the timestamp and ID of the last record of the previous
+ * page, which is passed between pages as an opaque cursor, so every page costs
+ * about the same regardless of how deep it is. Records are filtered as
+ * described by {@link Filter}.
  */
 public class Query {
 
+	// Request parameters that control the query rather than filter columns
+	public static final String LIMIT = "limit";
+	public static final String CURSOR = "cursor";
+
 	private final StringBuilder query;
-	private final String querySuffix;
-	private final List<String> parameters;
+	private final List<Object> parameters;
+	private final int limit;
+
+	/**
+	 * Creates a query that selects the ID followed by the columns of a table.
+	 * The ID orders records with the same timestamp, so it must be unique.
+	 *
+	 * @param request
+	 *            the client request
+	 *
+	 * @param table
+	 *            the table name
+	 *
+	 * @param columns
+	 *            the columns of the table that are selected and can be
+	 *            filtered, in order
+	 *
+	 * @param excludedParameters
+	 *            the request parameters that are not query conditions
+	 *
+	 * @param defaultLimit
+	 *            the number of records in a page if the request does not
+	 *            specify a limit
+	 *
+	 * @param maxLimit
+	 *            the maximum number of records in a page
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a parameter is not a column of the table, or the limit,
+	 *             time range or cursor is invalid
+	 */
+	public Query(Request request, String table, List<String> columns,
+			Set<String> excludedParameters, int defaultLimit, int maxLimit) {
+		this.query = new StringBuilder(256).append("SELECT id");
+		for (String column : columns) {
+			query.append(", ").append(column);
+		}
+		query.append(" FROM ").append(table);
+		this.limit = parseLimit(request.get(LIMIT), defaultLimit, maxLimit);
+
+		Set<String> options = new HashSet<String>(excludedParameters);
+		options.add(LIMIT);
+		options.add(CURSOR);
+		Filter filter = new Filter(request, columns, options);
 
-	public Query(Request request, String queryPrefix, String querySuffix) {
-		this.query = new StringBuilder(queryPrefix);
-		this.querySuffix = querySuffix;
-		this.parameters = parseRequest(request);
+		// Continue after the last record of the previous page. The separate
+		// upper bound on the timestamp lets the index seek straight to it.
+		String cursor = request.get(CURSOR);
+		if (cursor != null) {
+			long[] position = decodeCursor(cursor);
+			filter.add("timestamp<=? AND (timestamp<? OR id<?)",
+					position[0], position[0], position[1]);
+		}
+
+		query.append(filter.getClause());
+		query.append(" ORDER BY timestamp DESC, id DESC LIMIT ?;");
+		this.parameters = new ArrayList<Object>(filter.getParameters());
+		parameters.add(limit + 1);
 	}
 
 	/**
@@ -24,7 +90,16 @@ public class Query {
 	 * @return The database query
 	 */
 	public String getQuery() {
-		return query.toString() + querySuffix;
+		return query.toString();
+	}
+
+	/**
+	 * Gets the values of the query parameters.
+	 *
+	 * @return The values of the query parameters in order
+	 */
+	public List<Object> getParameters() {
+		return Collections.unmodifiableList(parameters);
 	}
 
 	/**
@@ -35,7 +110,7 @@ public class Query {
 	 *
 	 * @return The value of the specified query parameter
 	 */
-	public String get(int index) {
+	public Object get(int index) {
 		return parameters.get(index);
 	}
 
@@ -49,24 +124,84 @@ public class Query {
 	}
 
 	/**
-	 * Puts all of the API query parameters in a map.
+	 * Gets the number of records in a page. The query selects one more record
+	 * than this, so that the presence of another page can be detected.
 	 *
-	 * @param request
-	 *            the client request
+	 * @return The number of records in a page
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Encodes the position of a record as a cursor for the next page.
+	 *
+	 * @param timestamp
+	 *            the timestamp of the last record of the page
+	 *
+	 * @param id
+	 *            the ID of the last record of the page
 	 *
-	 * @return A mapping of query parameters to their values.
+	 * @return The cursor
 	 */
-	private List<String> parseRequest(Request request) {
-		List<String> parameters = new ArrayList<String>();
+	public static String encodeCursor(long timestamp, long id) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(
+				(timestamp + ":" + id).getBytes(StandardCharsets.US_ASCII));
+	}
 
-		if (request.size() > 0) {
-			query.append(" WHERE");
-		}
-		for (String parameter : request.getParameters().keySet()) {
-			query.append(" " + parameter + "=?");
-			parameters.add(request.get(parameter));
+	/**
+	 * Decodes a cursor into the timestamp and ID of a record.
+	 *
+	 * @param cursor
+	 *            the cursor
+	 *
+	 * @return The timestamp and ID
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the cursor is invalid
+	 */
+	private static long[] decodeCursor(String cursor) {
+		try {
+			String position = new String(Base64.getUrlDecoder().decode(cursor),
+					StandardCharsets.US_ASCII);
+			int colon = position.indexOf(':');
+			return new long[] { Long.parseLong(position.substring(0, colon)),
+					Long.parseLong(position.substring(colon + 1)) };
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Invalid cursor: " + cursor);
 		}
+	}
 
-		return parameters;
+	/**
+	 * Parses the page size requested by the client.
+	 *
+	 * @param value
+	 *            the value of the limit parameter, or null
+	 *
+	 * @param defaultLimit
+	 *            the default page size
+	 *
+	 * @param maxLimit
+	 *            the maximum page size
+	 *
+	 * @return The page size
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the limit is not a positive integer
+	 */
+	static int parseLimit(String value, int defaultLimit, int maxLimit) {
+		if (value == null) {
+			return Math.min(defaultLimit, maxLimit);
+		}
+		int limit;
+		try {
+			limit = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			limit = 0;
+		}
+		if (limit < 1) {
+			throw new IllegalArgumentException("Invalid limit: " + value);
+		}
+		return Math.min(limit, maxLimit);
 	}
 }
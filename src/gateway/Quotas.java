@@ -0,0 +1,387 @@
+package gateway;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import db.ConnectionPool;
+import log.Log;
+
+/**
+ * Daily quotas of searches for each user and for anonymous clients together.
+ *
+ * Searches are counted in memory with atomic counters, so counting a search
+ * does not wait for the database. The count of a user for the day is read
+ * from the <code>daily_usage</code> table on their first search of the day,
+ * and counts that have changed are written back periodically and when the
+ * gateway shuts down, so a restart only forgets the searches counted since
+ * the last write. Days start at midnight UTC.
+ *
+ * If the count of a user can not be read, their searches are refused rather
+ * than counted from 0, and the count is read again on their next search.
+ *
+ * Anonymous clients are counted with an empty username.
+ */
+public class Quotas {
+
+	private static final String SELECT_USAGE = "SELECT searches FROM daily_usage WHERE username = ? AND day = ?;";
+	private static final String UPDATE_USAGE = "UPDATE daily_usage SET searches = MAX(searches, ?) WHERE username = ? AND day = ?;";
+	private static final String INSERT_USAGE = "INSERT INTO daily_usage (username, day, searches) VALUES (?, ?, ?);";
+
+	private static final String ANONYMOUS = "";
+	private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	/**
+	 * The searches of a user on a day.
+	 */
+	private static class Usage {
+		private final String username;
+		private final long day;
+		private final AtomicLong searches;
+
+		// The count last written to the database, guarded by the flush
+		private long written;
+
+		private Usage(String username, long day, long searches) {
+			this.username = username;
+			this.day = day;
+			this.searches = new AtomicLong(searches);
+			this.written = searches;
+		}
+	}
+
+	private final ConnectionPool connectionPool;
+	private final long userQuota;
+	private final long anonQuota;
+	private final Log log;
+
+	// The usage of each user on the current day, and the usage of earlier
+	// days that has not been written
+	private final ConcurrentMap<String, Usage> usages = new ConcurrentHashMap<String, Usage>();
+	private final Queue<Usage> replaced = new ConcurrentLinkedQueue<Usage>();
+
+	// Statistics
+	private final AtomicLong exceeded = new AtomicLong();
+	private final AtomicLong flushFailures = new AtomicLong();
+	private final AtomicLong readFailures = new AtomicLong();
+
+	/**
+	 * Creates daily quotas. A quota of 0 does not limit the searches of the
+	 * users it applies to.
+	 *
+	 * @param connectionPool
+	 *            the pool of database connections, or null to only count
+	 *            searches in memory
+	 *
+	 * @param userQuota
+	 *            the searches each user can make in a day
+	 *
+	 * @param anonQuota
+	 *            the searches anonymous clients can make together in a day
+	 *
+	 * @param log
+	 *            the log
+	 */
+	public Quotas(ConnectionPool connectionPool, long userQuota,
+			long anonQuota, Log log) {
+		this.connectionPool = connectionPool;
+		this.userQuota = userQuota;
+		this.anonQuota = anonQuota;
+		this.log = log;
+	}
+
+	/**
+	 * Counts a search if the user has not reached their quota for the day.
+	 *
+	 * @param username
+	 *            the username of the client, or null if the client is
+	 *            anonymous
+	 *
+	 * @param timestamp
+	 *            the time of the search in milliseconds since the epoch
+	 *
+	 * @return True if the search was counted, false if the quota is reached
+	 *
+	 * @throws SQLException
+	 *             if the count of the user could not be read
+	 */
+	public boolean acquire(String username, long timestamp)
+			throws SQLException {
+		long quota = username == null ? anonQuota : userQuota;
+		if (quota <= 0) {
+			return true;
+		}
+
+		Usage usage = getUsage(username == null ? ANONYMOUS : username,
+				timestamp / DAY_MILLIS);
+		AtomicLong searches = usage.searches;
+		while (true) {
+			long current = searches.get();
+			if (current >= quota) {
+				exceeded.incrementAndGet();
+				return false;
+			}
+			if (searches.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns a search that was counted but did not use the Google Place
+	 * Search API quota.
+	 *
+	 * @param username
+	 *            the username of the client, or null if the client is
+	 *            anonymous
+	 *
+	 * @param timestamp
+	 *            the time the search was counted at
+	 */
+	public void release(String username, long timestamp) {
+		if ((username == null ? anonQuota : userQuota) <= 0) {
+			return;
+		}
+		Usage usage = usages.get(username == null ? ANONYMOUS : username);
+		if (usage != null && usage.day == timestamp / DAY_MILLIS) {
+			usage.searches.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Gets the time until the quotas are reset.
+	 *
+	 * @param timestamp
+	 *            the current time in milliseconds since the epoch
+	 *
+	 * @return The time in milliseconds until the next day starts
+	 */
+	public long getResetMillis(long timestamp) {
+		return DAY_MILLIS - timestamp % DAY_MILLIS;
+	}
+
+	/**
+	 * Writes the counts that have changed to the database, and forgets the
+	 * usage of earlier days once it is written.
+	 */
+	public synchronized void flush() {
+		if (connectionPool == null) {
+			usages.values().removeIf(
+					usage -> usage.day < System.currentTimeMillis()
+							/ DAY_MILLIS);
+			replaced.clear();
+			return;
+		}
+
+		// Take the counts to write before writing them, so searches counted
+		// while writing are written next time
+		List<Usage> changed = new ArrayList<Usage>();
+		List<Long> counts = new ArrayList<Long>();
+		for (Usage usage : replaced) {
+			changed.add(usage);
+			counts.add(usage.searches.get());
+		}
+		for (Usage usage : usages.values()) {
+			long count = usage.searches.get();
+			if (count != usage.written) {
+				changed.add(usage);
+				counts.add(count);
+			}
+		}
+		if (changed.isEmpty()) {
+			return;
+		}
+
+		Connection connection = null;
+		PreparedStatement updateStatement = null;
+		PreparedStatement insertStatement = null;
+
+		try {
+			// Borrow a connection to the database
+			connection = connectionPool.getConnection();
+			connection.setAutoCommit(false);
+
+			// Update each count, adding it if the user has no count for the
+			// day
+			updateStatement = connection.prepareStatement(UPDATE_USAGE);
+			insertStatement = connection.prepareStatement(INSERT_USAGE);
+			for (int i = 0; i < changed.size(); i++) {
+				Usage usage = changed.get(i);
+				updateStatement.setLong(1, counts.get(i));
+				updateStatement.setString(2, usage.username);
+				updateStatement.setLong(3, usage.day);
+				if (updateStatement.executeUpdate() == 0) {
+					insertStatement.setString(1, usage.username);
+					insertStatement.setLong(2, usage.day);
+					insertStatement.setLong(3, counts.get(i));
+					insertStatement.executeUpdate();
+				}
+			}
+			connection.commit();
+
+			for (int i = 0; i < changed.size(); i++) {
+				changed.get(i).written = counts.get(i);
+			}
+			replaced.removeAll(changed);
+
+			// Forget the usage of earlier days that is fully written
+			long today = System.currentTimeMillis() / DAY_MILLIS;
+			usages.values().removeIf(
+					usage -> usage.day < today
+							&& usage.searches.get() == usage.written);
+
+		} catch (SQLException e) {
+			flushFailures.incrementAndGet();
+			log.e("Error writing daily usage to database", e);
+			try {
+				if (connection != null) {
+					connection.rollback();
+				}
+			} catch (SQLException e1) {
+				log.e("Exception when rolling back database transaction", e1);
+			}
+		} finally {
+			try {
+				if (updateStatement != null) {
+					updateStatement.close();
+				}
+				if (insertStatement != null) {
+					insertStatement.close();
+				}
+				if (connection != null) {
+					connection.setAutoCommit(true);
+					connection.close();
+				}
+			} catch (SQLException e) {
+				// Do nothing because we are exiting
+				log.e("Exception when closing database resources", e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of users whose usage is counted in memory.
+	 *
+	 * @return The number of users
+	 */
+	public int getUserCount() {
+		return usages.size();
+	}
+
+	/**
+	 * Gets the number of searches refused because a quota was reached.
+	 *
+	 * @return The number of searches refused
+	 */
+	public long getExceededCount() {
+		return exceeded.get();
+	}
+
+	/**
+	 * Gets the number of times the counts could not be written.
+	 *
+	 * @return The number of failed writes
+	 */
+	public long getFlushFailureCount() {
+		return flushFailures.get();
+	}
+
+	/**
+	 * Gets the number of times the count of a user could not be read.
+	 *
+	 * @return The number of failed reads
+	 */
+	public long getReadFailureCount() {
+		return readFailures.get();
+	}
+
+	/**
+	 * Gets the usage of a user on a day, reading it from the database on the
+	 * first search of the user on the day.
+	 *
+	 * @throws SQLException
+	 *             if the count could not be read
+	 */
+	private Usage getUsage(String username, long day) throws SQLException {
+		Usage usage = usages.get(username);
+		while (usage == null || usage.day != day) {
+			if (usage != null && usage.day > day) {
+				// A search that started just before midnight counts against
+				// the new day
+				return usage;
+			}
+
+			Usage loaded = new Usage(username, day, read(username, day));
+			if (usage == null) {
+				usage = usages.putIfAbsent(username, loaded);
+				if (usage == null) {
+					return loaded;
+				}
+			} else if (usages.replace(username, usage, loaded)) {
+				// Write the rest of the earlier day with the next flush
+				replaced.add(usage);
+				return loaded;
+			} else {
+				usage = usages.get(username);
+			}
+		}
+		return usage;
+	}
+
+	/**
+	 * Reads the count of a user on a day from the database.
+	 *
+	 * @return The count, or 0 if there is no count
+	 *
+	 * @throws SQLException
+	 *             if the count could not be read
+	 */
+	private long read(String username, long day) throws SQLException {
+		if (connectionPool == null) {
+			return 0;
+		}
+
+		Connection connection = null;
+		PreparedStatement statement = null;
+		ResultSet result = null;
+
+		try {
+			// Borrow a connection to the database
+			connection = connectionPool.getConnection();
+
+			statement = connection.prepareStatement(SELECT_USAGE);
+			statement.setString(1, username);
+			statement.setLong(2, day);
+			result = statement.executeQuery();
+			return result.next() ? result.getLong(1) : 0;
+
+		} catch (SQLException e) {
+			readFailures.incrementAndGet();
+			throw e;
+		} finally {
+			try {
+				if (result != null) {
+					result.close();
+				}
+				if (statement != null) {
+					statement.close();
+				}
+				if (connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				// Do nothing because we are exiting
+				log.e("Exception when closing database resources", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package gateway;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of requests of each user, of anonymous clients together and
+ * of the gateway as a whole, with a {@link TokenBucket} for each.
+ *
+ * A request takes a token from the bucket of its user and then from the
+ * global bucket, and is refused if either is empty. The token of the user is
+ * returned if the global bucket refuses the request, so requests refused for
+ * the gateway as a whole do not count against the user. Buckets are taken
+ * without locking, so requests from different users only share the global
+ * bucket.
+ *
+ * A bucket is created for a user on their first request. Buckets that have
+ * filled up again are the same as new buckets, so they are discarded whenever
+ * the number of buckets doubles. A request racing with the discarding of its
+ * bucket may take a token from the discarded bucket, so a user can briefly
+ * exceed their burst by a request.
+ */
+public class RateLimiter {
+
+	private static final int MIN_SWEEP_SIZE = 1024;
+
+	/**
+	 * The bucket that refused a request.
+	 */
+	public enum Scope {
+		/** The bucket of an authenticated user */
+		USER,
+		/** The bucket shared by anonymous clients */
+		ANONYMOUS,
+		/** The bucket of the gateway as a whole */
+		GLOBAL
+	}
+
+	private final double userRate;
+	private final int userBurst;
+
+	// Buckets of users by username, and the bucket of anonymous clients
+	private final ConcurrentMap<String, TokenBucket> userBuckets = new ConcurrentHashMap<String, TokenBucket>();
+	private final TokenBucket anonBucket;
+	private final TokenBucket globalBucket;
+
+	// The number of buckets at which full buckets are discarded
+	private volatile int sweepSize = MIN_SWEEP_SIZE;
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+	// Statistics
+	private final LongAdder allowed = new LongAdder();
+	private final LongAdder[] refused = new LongAdder[Scope.values().length];
+
+	/**
+	 * Creates a rate limiter. A rate of 0 does not limit the requests of the
+	 * users it applies to.
+	 *
+	 * @param userRate
+	 *            the requests per second of each user
+	 *
+	 * @param userBurst
+	 *            the requests each user can make at once
+	 *
+	 * @param anonRate
+	 *            the requests per second of anonymous clients together
+	 *
+	 * @param anonBurst
+	 *            the requests anonymous clients can make at once
+	 *
+	 * @param globalRate
+	 *            the requests per second of the gateway
+	 *
+	 * @param globalBurst
+	 *            the requests the gateway accepts at once
+	 */
+	public RateLimiter(double userRate, int userBurst, double anonRate,
+			int anonBurst, double globalRate, int globalBurst) {
+		this.userRate = userRate;
+		this.userBurst = userBurst;
+		if (userRate > 0) {
+			// Fail on an invalid burst now rather than on the first request
+			new TokenBucket(userRate, userBurst);
+		}
+		this.anonBucket = anonRate > 0 ? new TokenBucket(anonRate, anonBurst)
+				: null;
+		this.globalBucket = globalRate > 0 ? new TokenBucket(globalRate,
+				globalBurst) : null;
+
+		for (int i = 0; i < refused.length; i++) {
+			refused[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Takes a token for a request.
+	 *
+	 * @param username
+	 *            the username of the client, or null if the client is
+	 *            anonymous
+	 *
+	 * @return 0 if the request is allowed, otherwise the time in nanoseconds
+	 *         until it would be allowed
+	 */
+	public long acquire(String username) {
+		long now = System.nanoTime();
+
+		Scope scope = username == null ? Scope.ANONYMOUS : Scope.USER;
+		TokenBucket bucket = username == null ? anonBucket
+				: getUserBucket(username, now);
+		if (bucket != null) {
+			long wait = bucket.tryAcquire(now);
+			if (wait > 0) {
+				refused[scope.ordinal()].increment();
+				return wait;
+			}
+		}
+
+		if (globalBucket != null) {
+			long wait = globalBucket.tryAcquire(now);
+			if (wait > 0) {
+				if (bucket != null) {
+					bucket.release();
+				}
+				refused[Scope.GLOBAL.ordinal()].increment();
+				return wait;
+			}
+		}
+
+		allowed.increment();
+		return 0;
+	}
+
+	/**
+	 * Gets the number of users with a bucket.
+	 *
+	 * @return The number of user buckets
+	 */
+	public int getUserCount() {
+		return userBuckets.size();
+	}
+
+	/**
+	 * Gets the number of requests allowed.
+	 *
+	 * @return The number of requests allowed
+	 */
+	public long getAllowedCount() {
+		return allowed.sum();
+	}
+
+	/**
+	 * Gets the number of requests refused by the specified bucket.
+	 *
+	 * @param scope
+	 *            the bucket
+	 *
+	 * @return The number of requests refused
+	 */
+	public long getRefusedCount(Scope scope) {
+		return refused[scope.ordinal()].sum();
+	}
+
+	/**
+	 * Gets the bucket of a user, creating it if needed.
+	 *
+	 * @return The bucket, or null if the requests of users are not limited
+	 */
+	private TokenBucket getUserBucket(String username, long now) {
+		if (userRate <= 0) {
+			return null;
+		}
+		TokenBucket bucket = userBuckets.get(username);
+		if (bucket == null) {
+			TokenBucket created = new TokenBucket(userRate, userBurst, now);
+			bucket = userBuckets.putIfAbsent(username, created);
+			if (bucket == null) {
+				bucket = created;
+				if (userBuckets.size() > sweepSize) {
+					sweep(now);
+				}
+			}
+		}
+		return bucket;
+	}
+
+	/**
+	 * Discards the buckets that are full, unless another thread is already
+	 * discarding them.
+	 */
+	private void sweep(long now) {
+		if (!sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			Iterator<Map.Entry<String, TokenBucket>> iterator = userBuckets
+					.entrySet().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().getValue().isFull(now)) {
+					iterator.remove();
+				}
+			}
+			sweepSize = Math.max(MIN_SWEEP_SIZE, userBuckets.size() * 2);
+		} finally {
+			sweeping.set(false);
+		}
+	}
+}
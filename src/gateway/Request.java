@@ -1,24 +1,74 @@
 package gateway;
 
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A client request.
+ *
+ * The request target is parsed in a single pass that only records where each
+ * parameter is. Names are compared in place, and values are copied out of the
+ * target when they are first read. Names and values are percent-decoded as
+ * UTF-8, with plus signs decoded as spaces. A parameter may be repeated, and
+ * its value may contain equals signs. Parameters without a value are ignored.
  */
 public class Request {
 
+	// The maximum number of parameters in the query, which bounds the work
+	// done for a request line of the maximum length
+	public static final int MAX_PARAMETERS = 64;
+
+	private static final int INITIAL_PARAMETERS = 8;
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
 	private final String path;
 	private final String query;
-	private final Map<String, String> parameters;
+	private Map<String, String> parameters = null;
+
+	// The start of the name, the start of the value or -1 if there is no
+	// value, and the end of each parameter in the order of the query
+	private int[] bounds = new int[INITIAL_PARAMETERS * 3];
+	private int count = 0;
+
+	// Whether each parameter has escapes, and the names and values that have
+	// been decoded
+	private boolean[] escaped = new boolean[INITIAL_PARAMETERS];
+	private String[] names = new String[INITIAL_PARAMETERS];
+	private String[] values = new String[INITIAL_PARAMETERS];
 
+	/**
+	 * Parses a request target.
+	 *
+	 * @param urlPath
+	 *            the request target, consisting of the URL path and query,
+	 *            with each character holding one byte of the request
+	 *
+	 * @throws MalformedURLException
+	 *             if the query has an invalid escape or character, or too
+	 *             many parameters
+	 */
 	public Request(String urlPath) throws MalformedURLException {
-		URL url = new URL("http", "localhost", urlPath);
-		this.path = url.getPath();
-		this.query = url.getQuery() == null ? "" : url.getQuery();
-		this.parameters = parseQuery(query);
+		int end = urlPath.indexOf('#');
+		if (end < 0) {
+			end = urlPath.length();
+		}
+		int question = urlPath.indexOf('?');
+		if (question < 0 || question > end) {
+			this.path = urlPath.substring(0, end);
+			this.query = "";
+		} else {
+			this.path = urlPath.substring(0, question);
+			this.query = urlPath.substring(question + 1, end);
+		}
+
+		parseQuery();
 	}
 
 	/**
@@ -40,7 +90,8 @@ public class Request {
 	}
 
 	/**
-	 * Gets the value of the specified query parameter.
+	 * Gets the value of the specified query parameter. If the parameter is
+	 * repeated, this is its first value.
 	 *
 	 * @param parameter
 	 *            the query parameter
@@ -48,45 +99,403 @@ public class Request {
 	 * @return The value of the specified query parameter
 	 */
 	public String get(String parameter) {
-		return parameters.get(parameter);
+		// Queries have few parameters, so a scan is faster than a map
+		for (int i = 0; i < count; i++) {
+			if (hasValue(i) && nameEquals(i, parameter)) {
+				return getValue(i);
+			}
+		}
+		return null;
 	}
 
 	/**
-	 * Gets the mapping of query parameters to their values.
+	 * Gets every value of the specified query parameter.
+	 *
+	 * @param parameter
+	 *            the query parameter
+	 *
+	 * @return The values of the specified query parameter in order, which are
+	 *         empty if the query does not have the parameter
+	 */
+	public List<String> getAll(String parameter) {
+		List<String> all = null;
+		for (int i = 0; i < count; i++) {
+			if (hasValue(i) && nameEquals(i, parameter)) {
+				if (all == null) {
+					all = new ArrayList<String>(2);
+				}
+				all.add(getValue(i));
+			}
+		}
+		return all == null ? Collections.<String> emptyList() : all;
+	}
+
+	/**
+	 * Gets the mapping of query parameters to their first values, in the
+	 * order of the query.
 	 *
 	 * @return The mapping of query parameters to their values.
 	 */
 	public Map<String, String> getParameters() {
+		if (parameters == null) {
+			Map<String, String> map = new LinkedHashMap<String, String>();
+			for (int i = 0; i < count; i++) {
+				if (hasValue(i) && !map.containsKey(getName(i))) {
+					map.put(getName(i), getValue(i));
+				}
+			}
+			parameters = Collections.unmodifiableMap(map);
+		}
 		return parameters;
 	}
 
+	/**
+	 * Gets the URL query without the specified parameters. The remaining
+	 * parameters are left in their original order and encoding. Parameters
+	 * are excluded by their decoded names, so escaping a name does not keep a
+	 * parameter in the query.
+	 *
+	 * @param excludedParameters
+	 *            the parameters that are left out
+	 *
+	 * @return The URL query without the excluded parameters
+	 */
+	public String getQuery(Set<String> excludedParameters) {
+		StringBuilder filteredQuery = new StringBuilder(query.length());
+		String[] excluded = excludedParameters.toArray(new String[0]);
+
+		for (int i = 0; i < count; i++) {
+			if (isExcluded(i, excluded)) {
+				continue;
+			}
+			if (filteredQuery.length() > 0) {
+				filteredQuery.append('&');
+			}
+			filteredQuery.append(query, bounds[i * 3], bounds[i * 3 + 2]);
+		}
+
+		return filteredQuery.toString();
+	}
+
+	/**
+	 * Gets the query parameters sorted by name, so the same query always has
+	 * the same canonical form regardless of the order of its parameters. The
+	 * values of a repeated parameter are kept in order. Names and values are
+	 * encoded again, so that they can not be confused with the separators.
+	 * Every parameter of {@link #getQuery(Set)} is kept, including those
+	 * without a name or value, which are kept as they appear so that queries
+	 * with the same canonical form are the same query to the API.
+	 *
+	 * @param excludedParameters
+	 *            the parameters that are left out
+	 *
+	 * @return The canonical URL query
+	 */
+	public String getCanonicalQuery(Set<String> excludedParameters) {
+		StringBuilder canonicalQuery = new StringBuilder(query.length());
+		String[] excluded = excludedParameters.toArray(new String[0]);
+
+		// Sort by insertion, which is fast for a few parameters and keeps
+		// the values of repeated parameters in order
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			int j = i;
+			for (; j > 0 && compareNames(order[j - 1], i) > 0; j--) {
+				order[j] = order[j - 1];
+			}
+			order[j] = i;
+		}
+
+		for (int i : order) {
+			if (isExcluded(i, excluded)) {
+				continue;
+			}
+			if (canonicalQuery.length() > 0) {
+				canonicalQuery.append('&');
+			}
+			boolean equals = bounds[i * 3 + 1] >= 0;
+			if (escaped[i]) {
+				encode(canonicalQuery, getName(i), 0, getName(i).length());
+				if (equals) {
+					canonicalQuery.append('=');
+					encode(canonicalQuery, getValue(i), 0, getValue(i)
+							.length());
+				}
+			} else {
+				encode(canonicalQuery, query, bounds[i * 3], getNameEnd(i));
+				if (equals) {
+					canonicalQuery.append('=');
+					encode(canonicalQuery, query, bounds[i * 3 + 1],
+							bounds[i * 3 + 2]);
+				}
+			}
+		}
+
+		return canonicalQuery.toString();
+	}
+
 	/**
 	 * Gets the number of parameters in the query.
 	 *
 	 * @return The number of parameters in the query
 	 */
 	public int size() {
-		return parameters.size();
+		return getParameters().size();
+	}
+
+	/**
+	 * Finds the parameters of the query in a single pass, checking their
+	 * escapes.
+	 *
+	 * @throws MalformedURLException
+	 *             if the query has an invalid escape or character, or too
+	 *             many parameters
+	 */
+	private void parseQuery() throws MalformedURLException {
+		int length = query.length();
+		int start = 0;
+		int equals = -1;
+		boolean escapes = false;
+
+		for (int i = 0; i <= length; i++) {
+			char c = i < length ? query.charAt(i) : '&';
+			if (c == '&') {
+				if (i > start) {
+					addParameter(start, equals, i, escapes);
+				}
+				start = i + 1;
+				equals = -1;
+				escapes = false;
+			} else if (c == '=') {
+				if (equals < 0) {
+					equals = i;
+				}
+			} else if (c == '%') {
+				if (i + 2 >= length
+						|| Character.digit(query.charAt(i + 1), 16) < 0
+						|| Character.digit(query.charAt(i + 2), 16) < 0) {
+					throw new MalformedURLException("Invalid escape in query: "
+							+ query.substring(i, Math.min(i + 3, length)));
+				}
+				escapes = true;
+				i += 2;
+			} else if (c == '+' || c > 0x7f) {
+				if (c > 0xff) {
+					throw new MalformedURLException(
+							"Invalid character in query");
+				}
+				escapes = true;
+			}
+		}
+	}
+
+	/**
+	 * Adds a parameter of the query.
+	 *
+	 * @param start
+	 *            the index of the parameter in the query
+	 *
+	 * @param equals
+	 *            the index of the first equals sign of the parameter, or -1
+	 *            if it has no value
+	 *
+	 * @param end
+	 *            the index after the end of the parameter
+	 *
+	 * @param escapes
+	 *            if the parameter has characters that must be decoded
+	 *
+	 * @throws MalformedURLException
+	 *             if the query has too many parameters
+	 */
+	private void addParameter(int start, int equals, int end, boolean escapes)
+			throws MalformedURLException {
+		if (count == MAX_PARAMETERS) {
+			throw new MalformedURLException(String.format(
+					"Query has more than %d parameters", MAX_PARAMETERS));
+		}
+		if (count == escaped.length) {
+			bounds = Arrays.copyOf(bounds, count * 6);
+			escaped = Arrays.copyOf(escaped, count * 2);
+			names = Arrays.copyOf(names, count * 2);
+			values = Arrays.copyOf(values, count * 2);
+		}
+
+		bounds[count * 3] = start;
+		bounds[count * 3 + 1] = equals < 0 ? -1 : equals + 1;
+		bounds[count * 3 + 2] = end;
+		escaped[count] = escapes;
+		count++;
+	}
+
+	/**
+	 * Gets whether a parameter has both a name and a value.
+	 */
+	private boolean hasValue(int i) {
+		int valueStart = bounds[i * 3 + 1];
+		return valueStart > bounds[i * 3] + 1
+				&& valueStart < bounds[i * 3 + 2];
+	}
+
+	/**
+	 * Gets the index after the end of the name of a parameter.
+	 */
+	private int getNameEnd(int i) {
+		int valueStart = bounds[i * 3 + 1];
+		return valueStart < 0 ? bounds[i * 3 + 2] : valueStart - 1;
+	}
+
+	/**
+	 * Gets the decoded name of a parameter.
+	 */
+	private String getName(int i) {
+		if (names[i] == null) {
+			names[i] = decode(bounds[i * 3], getNameEnd(i), escaped[i]);
+		}
+		return names[i];
+	}
+
+	/**
+	 * Gets the decoded value of a parameter with an equals sign.
+	 */
+	private String getValue(int i) {
+		if (values[i] == null) {
+			values[i] = decode(bounds[i * 3 + 1], bounds[i * 3 + 2],
+					escaped[i]);
+		}
+		return values[i];
+	}
+
+	/**
+	 * Gets whether the name of a parameter is the specified name, without
+	 * copying the name out of the query if it has no escapes.
+	 */
+	private boolean nameEquals(int i, String name) {
+		if (escaped[i]) {
+			return getName(i).equals(name);
+		}
+		int start = bounds[i * 3];
+		int length = getNameEnd(i) - start;
+		return length == name.length()
+				&& query.regionMatches(start, name, 0, length);
+	}
+
+	private boolean isExcluded(int i, String[] excluded) {
+		for (String name : excluded) {
+			if (nameEquals(i, name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compares the names of two parameters, without copying the names out of
+	 * the query if they have no escapes.
+	 */
+	private int compareNames(int i, int j) {
+		if (escaped[i] || escaped[j]) {
+			return getName(i).compareTo(getName(j));
+		}
+		int start = bounds[i * 3];
+		int end = getNameEnd(i);
+		int otherStart = bounds[j * 3];
+		int otherEnd = getNameEnd(j);
+		for (; start < end && otherStart < otherEnd; start++, otherStart++) {
+			int difference = query.charAt(start) - query.charAt(otherStart);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return (end - start) - (otherEnd - otherStart);
 	}
 
 	/**
-	 * Puts all of the API query parameters in a map.
+	 * Decodes part of the query, whose escapes have already been checked.
 	 *
-	 * @param query
-	 *            the URL query
+	 * @param start
+	 *            the index of the part
 	 *
-	 * @return A mapping of query parameters to their values.
+	 * @param end
+	 *            the index after the end of the part
+	 *
+	 * @param escapes
+	 *            if the parameter that contains the part has characters that
+	 *            must be decoded
+	 *
+	 * @return The decoded part
 	 */
-	private static Map<String, String> parseQuery(String query) {
-		Map<String, String> parameters = new HashMap<String, String>();
+	private String decode(int start, int end, boolean escapes) {
+		if (!escapes) {
+			return query.substring(start, end);
+		}
 
-		for (String item : query.split("&")) {
-			String[] parameterValue = item.split("=");
-			if (parameterValue.length == 2) {
-				parameters.put(parameterValue[0], parameterValue[1]);
+		// Escapes only ever shorten the part
+		byte[] bytes = new byte[end - start];
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			char c = query.charAt(i);
+			if (c == '+') {
+				bytes[length++] = ' ';
+			} else if (c == '%') {
+				bytes[length++] = (byte) (Character.digit(query.charAt(i + 1),
+						16) << 4 | Character.digit(query.charAt(i + 2), 16));
+				i += 2;
+			} else {
+				bytes[length++] = (byte) c;
 			}
 		}
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
 
-		return parameters;
+	/**
+	 * Appends a decoded name or value to a query, escaping the characters
+	 * that separate parameters and any character that is not printable
+	 * ASCII.
+	 *
+	 * @param builder
+	 *            the query
+	 *
+	 * @param decoded
+	 *            the string that holds the decoded name or value
+	 *
+	 * @param start
+	 *            the index of the name or value in the string
+	 *
+	 * @param end
+	 *            the index after the end of the name or value
+	 */
+	private static void encode(StringBuilder builder, String decoded,
+			int start, int end) {
+		int i = start;
+		while (i < end && !isEscaped(decoded.charAt(i))) {
+			i++;
+		}
+		builder.append(decoded, start, i);
+
+		for (; i < end; i++) {
+			char c = decoded.charAt(i);
+			if (!isEscaped(c)) {
+				builder.append(c);
+			} else if (c < 0x80) {
+				appendEscape(builder, c);
+			} else {
+				int chars = Character.charCount(decoded.codePointAt(i));
+				for (byte b : decoded.substring(i, i + chars).getBytes(
+						StandardCharsets.UTF_8)) {
+					appendEscape(builder, b & 0xff);
+				}
+				i += chars - 1;
+			}
+		}
+	}
+
+	private static boolean isEscaped(char c) {
+		return c <= ' ' || c >= 0x7f || c == '%' || c == '&' || c == '='
+				|| c == '+' || c == '#';
+	}
+
+	private static void appendEscape(StringBuilder builder, int b) {
+		builder.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
 	}
 }
@@ -0,0 +1,200 @@
+package gateway;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The request line and headers of a client request.
+ */
+public class RequestHead {
+
+	private static final String HTTP_1_0 = "HTTP/1.0";
+	private static final String HTTP_1_1 = "HTTP/1.1";
+
+	private final String method;
+	private final String target;
+	private final String version;
+	private final boolean keepAlive;
+	private final long contentLength;
+	private final boolean transferEncoding;
+
+	public RequestHead(String method, String target, String version,
+			boolean keepAlive, long contentLength, boolean transferEncoding) {
+		this.method = method;
+		this.target = target;
+		this.version = version;
+		this.keepAlive = keepAlive;
+		this.contentLength = contentLength;
+		this.transferEncoding = transferEncoding;
+	}
+
+	/**
+	 * Reads the request line and headers of a request, ignoring any empty
+	 * lines before the request line.
+	 *
+	 * @param in
+	 *            the input stream
+	 *
+	 * @param maxLineLength
+	 *            the maximum length of the request line and each header
+	 *
+	 * @return The request head, or null if the end of the stream was reached
+	 *         before a complete request head was read
+	 *
+	 * @throws IOException
+	 *             if the request head could not be read or is malformed
+	 */
+	public static RequestHead read(InputStream in, int maxLineLength)
+			throws IOException {
+		// Read the request line, ignoring empty lines between requests
+		String line = HttpStreams.readLine(in, maxLineLength);
+		while (line != null && line.isEmpty()) {
+			line = HttpStreams.readLine(in, maxLineLength);
+		}
+		if (line == null) {
+			return null;
+		}
+
+		// The request line is the method, target and version separated by
+		// single spaces
+		int targetStart = line.indexOf(' ');
+		int versionStart = targetStart < 0 ? -1 : line.indexOf(' ',
+				targetStart + 1);
+		String method = targetStart < 0 ? line : line.substring(0, targetStart);
+		String target = null;
+		String version = null;
+		if (targetStart >= 0) {
+			target = line.substring(targetStart + 1, versionStart < 0 ? line
+					.length() : versionStart);
+			if (versionStart >= 0 && line.indexOf(' ', versionStart + 1) < 0) {
+				version = line.substring(versionStart + 1);
+			}
+		}
+
+		// HTTP/1.1 connections are persistent unless the client closes them
+		boolean keepAlive = HTTP_1_1.equals(version);
+		long contentLength = -1;
+		boolean transferEncoding = false;
+
+		// Read the request headers
+		String header;
+		while ((header = HttpStreams.readLine(in, maxLineLength)) != null
+				&& !header.isEmpty()) {
+			int colon = header.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = header.substring(0, colon).trim();
+			String value = header.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Connection")) {
+				// The value is a list of options, and close takes precedence
+				for (String token : value.split(",")) {
+					token = token.trim();
+					if (token.equalsIgnoreCase("close")) {
+						keepAlive = false;
+						break;
+					} else if (token.equalsIgnoreCase("keep-alive")) {
+						keepAlive = true;
+					}
+				}
+			} else if (name.equalsIgnoreCase("Content-Length")) {
+				long length;
+				try {
+					length = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid Content-Length: " + value);
+				}
+				if (length < 0
+						|| (contentLength >= 0 && length != contentLength)) {
+					throw new IOException("Invalid Content-Length: " + value);
+				}
+				contentLength = length;
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				transferEncoding = true;
+			}
+		}
+		if (header == null) {
+			return null;
+		}
+
+		// The length of a body with a transfer coding is not known, so none
+		// of it is skipped and the connection must be closed
+		if (transferEncoding) {
+			keepAlive = false;
+			contentLength = 0;
+		}
+
+		return new RequestHead(method, target, version, keepAlive,
+				Math.max(contentLength, 0), transferEncoding);
+	}
+
+	/**
+	 * Gets whether the request is a GET request using HTTP/1.0 or HTTP/1.1
+	 * without a transfer coding, the only requests supported by the gateway.
+	 *
+	 * @return True if the request is valid, false otherwise
+	 */
+	public boolean isValid() {
+		return method.equals("GET") && target != null
+				&& (HTTP_1_0.equals(version) || HTTP_1_1.equals(version))
+				&& !transferEncoding;
+	}
+
+	/**
+	 * Gets the request method.
+	 *
+	 * @return The request method
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Gets the request target, consisting of the URL path and query.
+	 *
+	 * @return The request target
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * Gets whether the request used HTTP/1.1.
+	 *
+	 * @return True if the request used HTTP/1.1, false otherwise
+	 */
+	public boolean isHttp11() {
+		return HTTP_1_1.equals(version);
+	}
+
+	/**
+	 * Gets whether the client asked to keep the connection open after the
+	 * response.
+	 *
+	 * @return True if the connection should be kept open, false otherwise
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Gets the length of the request body, which the gateway ignores.
+	 *
+	 * @return The length of the request body, or 0 if the request has a
+	 *         transfer coding
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Gets whether the request has a Transfer-Encoding header. The gateway
+	 * does not decode request bodies, so it cannot tell where such a request
+	 * ends and must close the connection after responding.
+	 *
+	 * @return True if the request has a transfer coding, false otherwise
+	 */
+	public boolean hasTransferEncoding() {
+		return transferEncoding;
+	}
+}
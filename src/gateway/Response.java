@@ -0,0 +1,222 @@
+package gateway;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A response to a client request.
+ *
+ * A response is either sent in one piece with a Content-Length header or
+ * streamed. Streamed responses with a known length also use a Content-Length
+ * header. Otherwise they use the chunked transfer coding for HTTP/1.1 clients
+ * and are delimited by closing the connection for HTTP/1.0 clients.
+ */
+public class Response {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private final OutputStream out;
+	private final boolean http11;
+	private boolean keepAlive;
+	private boolean committed = false;
+
+	/**
+	 * Creates a response.
+	 *
+	 * @param out
+	 *            the client output stream
+	 *
+	 * @param http11
+	 *            if the request used HTTP/1.1
+	 *
+	 * @param keepAlive
+	 *            if the connection should be kept open after the response
+	 */
+	public Response(OutputStream out, boolean http11, boolean keepAlive) {
+		this.out = out;
+		this.http11 = http11;
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Gets whether the connection can be used for another request after this
+	 * response.
+	 *
+	 * @return True if the connection should be kept open, false otherwise
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Gets whether the response headers have been written.
+	 *
+	 * @return True if the response headers have been written, false otherwise
+	 */
+	public boolean isCommitted() {
+		return committed;
+	}
+
+	/**
+	 * Sends a complete response.
+	 *
+	 * @param statusCode
+	 *            the HTTP status code
+	 *
+	 * @param reasonPhrase
+	 *            the HTTP reason phrase
+	 *
+	 * @param headers
+	 *            the HTTP response headers, each of the form
+	 *            <code>name: value</code>
+	 *
+	 * @param body
+	 *            the response body
+	 *
+	 * @throws IOException
+	 *             if the response could not be written
+	 */
+	public void send(int statusCode, String reasonPhrase,
+			List<String> headers, byte[] body) throws IOException {
+		writeHead(statusCode, reasonPhrase, headers, "Content-Length: "
+				+ body.length);
+		out.write(body);
+	}
+
+	/**
+	 * Starts a streamed response. The returned stream must be closed to
+	 * complete the response.
+	 *
+	 * @param statusCode
+	 *            the HTTP status code
+	 *
+	 * @param reasonPhrase
+	 *            the HTTP reason phrase
+	 *
+	 * @param headers
+	 *            the HTTP response headers, each of the form
+	 *            <code>name: value</code>
+	 *
+	 * @return The stream for the response body
+	 *
+	 * @throws IOException
+	 *             if the response headers could not be written
+	 */
+	public OutputStream stream(int statusCode, String reasonPhrase,
+			List<String> headers) throws IOException {
+		return stream(statusCode, reasonPhrase, headers, -1);
+	}
+
+	/**
+	 * Starts a streamed response whose length may be known in advance. The
+	 * returned stream must be closed to complete the response, and exactly
+	 * the specified number of bytes must be written to it if the length is
+	 * known.
+	 *
+	 * @param statusCode
+	 *            the HTTP status code
+	 *
+	 * @param reasonPhrase
+	 *            the HTTP reason phrase
+	 *
+	 * @param headers
+	 *            the HTTP response headers, each of the form
+	 *            <code>name: value</code>
+	 *
+	 * @param contentLength
+	 *            the length of the response body, or -1 if it is not known
+	 *
+	 * @return The stream for the response body
+	 *
+	 * @throws IOException
+	 *             if the response headers could not be written
+	 */
+	public OutputStream stream(int statusCode, String reasonPhrase,
+			List<String> headers, long contentLength) throws IOException {
+		if (contentLength >= 0) {
+			writeHead(statusCode, reasonPhrase, headers, "Content-Length: "
+					+ contentLength);
+			return new UnframedOutputStream(out);
+		}
+
+		if (http11) {
+			writeHead(statusCode, reasonPhrase, headers,
+					"Transfer-Encoding: chunked");
+			return new ChunkedOutputStream(out, CHUNK_SIZE);
+		}
+
+		// HTTP/1.0 clients read the body until the connection is closed
+		keepAlive = false;
+		writeHead(statusCode, reasonPhrase, headers, null);
+		return new UnframedOutputStream(out);
+	}
+
+	/**
+	 * Writes the status line and headers of the response.
+	 *
+	 * @param statusCode
+	 *            the HTTP status code
+	 *
+	 * @param reasonPhrase
+	 *            the HTTP reason phrase
+	 *
+	 * @param headers
+	 *            the HTTP response headers
+	 *
+	 * @param framing
+	 *            the header describing the message framing, or null if the
+	 *            message is delimited by closing the connection
+	 *
+	 * @throws IOException
+	 *             if the headers could not be written
+	 */
+	private void writeHead(int statusCode, String reasonPhrase,
+			List<String> headers, String framing) throws IOException {
+		if (committed) {
+			throw new IllegalStateException("Response is already committed");
+		}
+		committed = true;
+
+		StringBuilder head = new StringBuilder(256);
+		head.append(http11 ? "HTTP/1.1 " : "HTTP/1.0 ").append(statusCode)
+				.append(' ').append(reasonPhrase).append("\r\n");
+		for (String header : headers) {
+			head.append(header).append("\r\n");
+		}
+		if (framing != null) {
+			head.append(framing).append("\r\n");
+		}
+		if (http11 && !keepAlive) {
+			head.append("Connection: close\r\n");
+		} else if (!http11 && keepAlive) {
+			head.append("Connection: keep-alive\r\n");
+		}
+		head.append("\r\n");
+
+		out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * A stream that writes the body as is and leaves the connection open when
+	 * it is closed.
+	 */
+	private static class UnframedOutputStream extends FilterOutputStream {
+
+		UnframedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package gateway;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bounded in-memory cache of Google Place Search API responses keyed by the
+ * search type and the search parameters.
+ *
+ * Entries expire after a time to live that can be overridden for each search
+ * type. When the cache is full, the least recently used or the least
+ * frequently used entry is evicted.
+ */
+public class ResponseCache {
+
+	/**
+	 * The entry evicted when the cache is full.
+	 */
+	public enum EvictionPolicy {
+		/** Evict the least recently used entry */
+		LRU,
+		/** Evict the least frequently used entry */
+		LFU;
+
+		/**
+		 * Parses an eviction policy from its configuration value.
+		 *
+		 * @param value
+		 *            the configuration value
+		 *
+		 * @return The eviction policy
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the value is not a valid eviction policy
+		 */
+		public static EvictionPolicy parse(String value) {
+			return valueOf(value.trim().toUpperCase(Locale.ROOT));
+		}
+	}
+
+	private final int maxSize;
+	private final long ttlMillis;
+	private final Map<String, Long> searchTypeTtlMillis;
+	private final EvictionPolicy evictionPolicy;
+
+	// Entries in access order, guarded by this
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	// Statistics, guarded by this
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long expirations = 0;
+
+	/**
+	 * Creates a response cache.
+	 *
+	 * @param maxSize
+	 *            the maximum number of cached responses
+	 *
+	 * @param ttlMillis
+	 *            the default time to live of a cached response
+	 *
+	 * @param searchTypeTtlMillis
+	 *            a mapping of search types to the time to live of their
+	 *            responses, overriding the default
+	 *
+	 * @param evictionPolicy
+	 *            the entry evicted when the cache is full
+	 */
+	public ResponseCache(int maxSize, long ttlMillis,
+			Map<String, Long> searchTypeTtlMillis,
+			EvictionPolicy evictionPolicy) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		this.searchTypeTtlMillis = searchTypeTtlMillis;
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/**
+	 * Gets the cached response for the specified key.
+	 *
+	 * @param key
+	 *            the cache key
+	 *
+	 * @return The cached response, or null if there is no unexpired response
+	 */
+	public synchronized UpstreamResponse get(String key) {
+		Entry entry = entries.get(key);
+
+		if (entry != null && entry.expires <= System.currentTimeMillis()) {
+			entries.remove(key);
+			expirations++;
+			entry = null;
+		}
+
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		entry.uses++;
+		return entry.response;
+	}
+
+	/**
+	 * Gets whether responses of a type of search are cached.
+	 *
+	 * @param searchType
+	 *            the type of search
+	 *
+	 * @return True if the responses are cached, false otherwise
+	 */
+	public boolean isCached(String searchType) {
+		return maxSize > 0 && getTtlMillis(searchType) > 0;
+	}
+
+	/**
+	 * Caches a response for the specified key, evicting an entry if the cache
+	 * is full.
+	 *
+	 * @param key
+	 *            the cache key
+	 *
+	 * @param searchType
+	 *            the type of search
+	 *
+	 * @param response
+	 *            the response
+	 */
+	public synchronized void put(String key, String searchType,
+			UpstreamResponse response) {
+		long ttl = getTtlMillis(searchType);
+		if (maxSize <= 0 || ttl <= 0) {
+			return;
+		}
+
+		if (!entries.containsKey(key) && entries.size() >= maxSize) {
+			evict();
+		}
+		entries.put(key, new Entry(response, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * Gets the maximum number of cached responses.
+	 *
+	 * @return The maximum number of cached responses
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets the number of cached responses, including expired responses that
+	 * have not been removed.
+	 *
+	 * @return The number of cached responses
+	 */
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the number of requests that were served from the cache.
+	 *
+	 * @return The number of cache hits
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of requests that were not served from the cache.
+	 *
+	 * @return The number of cache misses
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of responses evicted because the cache was full.
+	 *
+	 * @return The number of evictions
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Gets the number of responses removed because they expired.
+	 *
+	 * @return The number of expirations
+	 */
+	public synchronized long getExpirationCount() {
+		return expirations;
+	}
+
+	/**
+	 * Gets the time to live of the responses of a type of search.
+	 */
+	private long getTtlMillis(String searchType) {
+		Long ttl = searchTypeTtlMillis.get(searchType);
+		return ttl != null ? ttl : ttlMillis;
+	}
+
+	/**
+	 * Removes an expired entry if there is one, otherwise evicts an entry
+	 * according to the eviction policy.
+	 */
+	private void evict() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> iterator = entries.values().iterator();
+		Entry victim = null;
+
+		// Entries are iterated from least to most recently used
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.expires <= now) {
+				iterator.remove();
+				expirations++;
+				return;
+			}
+			if (victim == null
+					|| (evictionPolicy == EvictionPolicy.LFU && entry.uses < victim.uses)) {
+				victim = entry;
+			}
+			if (evictionPolicy == EvictionPolicy.LRU) {
+				break;
+			}
+		}
+
+		if (victim != null) {
+			entries.values().remove(victim);
+			evictions++;
+		}
+	}
+
+	/**
+	 * A cached response.
+	 */
+	private static class Entry {
+
+		private final UpstreamResponse response;
+		private final long expires;
+		private long uses = 0;
+
+		Entry(UpstreamResponse response, long expires) {
+			this.response = response;
+			this.expires = expires;
+		}
+	}
+}
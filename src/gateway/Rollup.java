@@ -0,0 +1,301 @@
+package gateway;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts recent searches in memory, in buckets of a fixed period of time.
+ *
+ * The buckets form a ring that holds the most recent periods, so the memory
+ * used is fixed. Each bucket counts searches by search type, user and status,
+ * along with the results and cache hits of the searches. Counters are striped
+ * adders, so many threads can count searches at once without contending, and
+ * a bucket is replaced without locking once its period has passed. Searches
+ * counted just as their bucket is replaced may be lost, so the counts are
+ * approximate at the edges of each period.
+ *
+ * Users, search types and statuses are counted in a fixed number of slots.
+ * Each slot is assigned to the first value that needs it, and values that
+ * arrive once every slot is taken are counted together.
+ */
+public class Rollup {
+
+	private static final int SEARCH_TYPE_SLOTS = 8;
+	private static final int STATUS_SLOTS = 16;
+
+	// JSON response fields
+	private static final String START = "start";
+	private static final String SEARCHES = "searches";
+	private static final String RESULTS = "results";
+	private static final String CACHED = "cached";
+	private static final String SEARCH_TYPES = "searchtypes";
+	private static final String USERS = "users";
+	private static final String ANONYMOUS = "anonymous";
+	private static final String OTHER_USERS = "otherusers";
+	private static final String STATUSES = "statuses";
+
+	private final long interval;
+	private final AtomicReferenceArray<Bucket> buckets;
+
+	private final Slots searchTypes = new Slots(SEARCH_TYPE_SLOTS);
+	private final Slots users;
+	private final Slots statuses = new Slots(STATUS_SLOTS);
+
+	/**
+	 * Creates a rollup.
+	 *
+	 * @param buckets
+	 *            the number of periods kept
+	 *
+	 * @param interval
+	 *            the length of each period in milliseconds
+	 *
+	 * @param users
+	 *            the number of users counted separately
+	 */
+	public Rollup(int buckets, long interval, int users) {
+		if (buckets < 1 || interval < 1) {
+			throw new IllegalArgumentException(
+					"Rollup needs at least one bucket of positive length");
+		}
+		this.interval = interval;
+		this.buckets = new AtomicReferenceArray<Bucket>(buckets);
+		this.users = new Slots(Math.max(users, 0));
+	}
+
+	/**
+	 * Gets the length of each period.
+	 *
+	 * @return The length of each period in milliseconds
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Gets the number of periods kept.
+	 *
+	 * @return The number of buckets
+	 */
+	public int getBucketCount() {
+		return buckets.length();
+	}
+
+	/**
+	 * Counts a search.
+	 *
+	 * @param timestamp
+	 *            the time of the search in milliseconds since the epoch
+	 *
+	 * @param searchType
+	 *            the type of search
+	 *
+	 * @param username
+	 *            the username of the client, or null if the client is
+	 *            anonymous
+	 *
+	 * @param status
+	 *            the status of the search
+	 *
+	 * @param results
+	 *            the number of results of the search
+	 *
+	 * @param cached
+	 *            if the response was served from the cache
+	 */
+	public void record(long timestamp, String searchType, String username,
+			String status, int results, boolean cached) {
+		Bucket bucket = getBucket(timestamp / interval);
+		bucket.searches.increment();
+		if (results > 0) {
+			bucket.results.add(results);
+		}
+		if (cached) {
+			bucket.cached.increment();
+		}
+
+		int slot = searchTypes.get(searchType);
+		if (slot >= 0) {
+			bucket.searchTypes[slot].increment();
+		}
+		slot = statuses.get(status);
+		if (slot >= 0) {
+			bucket.statuses[slot].increment();
+		}
+		if (username == null) {
+			bucket.anonymous.increment();
+		} else if ((slot = users.get(username)) >= 0) {
+			bucket.users[slot].increment();
+		} else {
+			bucket.otherUsers.increment();
+		}
+	}
+
+	/**
+	 * Writes the counts of every period kept, newest first, as a JSON array.
+	 * Periods without searches are included so that the array always covers
+	 * the same span of time.
+	 *
+	 * @param json
+	 *            the JSON writer
+	 *
+	 * @param now
+	 *            the current time in milliseconds since the epoch
+	 *
+	 * @throws IOException
+	 *             if the output could not be written
+	 */
+	public void write(JsonWriter json, long now) throws IOException {
+		long current = now / interval;
+		json.beginArray();
+		long oldest = current - buckets.length();
+		for (long period = current; period > oldest; period--) {
+			json.beginObject().name(START).value(period * interval);
+
+			Bucket bucket = buckets.get(index(period));
+			if (bucket == null || bucket.period != period) {
+				json.name(SEARCHES).value(0L);
+			} else {
+				json.name(SEARCHES).value(bucket.searches.sum());
+				json.name(RESULTS).value(bucket.results.sum());
+				json.name(CACHED).value(bucket.cached.sum());
+				writeSlots(json, SEARCH_TYPES, searchTypes, bucket.searchTypes);
+				writeSlots(json, STATUSES, statuses, bucket.statuses);
+				writeSlots(json, USERS, users, bucket.users);
+				json.name(ANONYMOUS).value(bucket.anonymous.sum());
+				json.name(OTHER_USERS).value(bucket.otherUsers.sum());
+			}
+			json.endObject();
+		}
+		json.endArray();
+	}
+
+	/**
+	 * Gets the bucket of a period, replacing the bucket of an earlier period
+	 * in the same place in the ring.
+	 */
+	private Bucket getBucket(long period) {
+		int index = index(period);
+		while (true) {
+			Bucket bucket = buckets.get(index);
+			if (bucket != null && bucket.period >= period) {
+				// A search that arrives late for a period that has already
+				// been replaced is counted in the newer period
+				return bucket;
+			}
+			Bucket next = new Bucket(period, users.capacity);
+			if (buckets.compareAndSet(index, bucket, next)) {
+				return next;
+			}
+		}
+	}
+
+	private int index(long period) {
+		return (int) Math.floorMod(period, (long) buckets.length());
+	}
+
+	/**
+	 * Writes the non-zero counters of a set of slots as a JSON object named by
+	 * the value of each slot.
+	 */
+	private static void writeSlots(JsonWriter json, String name, Slots slots,
+			LongAdder[] counters) throws IOException {
+		json.name(name).beginObject();
+		int count = Math.min(slots.size(), counters.length);
+		for (int i = 0; i < count; i++) {
+			// A slot is assigned before its value is stored
+			String key = slots.keys.get(i);
+			long sum = counters[i].sum();
+			if (key != null && sum > 0) {
+				json.name(key).value(sum);
+			}
+		}
+		json.endObject();
+	}
+
+	/**
+	 * The counters of a single period.
+	 */
+	private static final class Bucket {
+
+		private final long period;
+		private final LongAdder searches = new LongAdder();
+		private final LongAdder results = new LongAdder();
+		private final LongAdder cached = new LongAdder();
+		private final LongAdder anonymous = new LongAdder();
+		private final LongAdder otherUsers = new LongAdder();
+		private final LongAdder[] searchTypes = newCounters(SEARCH_TYPE_SLOTS);
+		private final LongAdder[] statuses = newCounters(STATUS_SLOTS);
+		private final LongAdder[] users;
+
+		Bucket(long period, int users) {
+			this.period = period;
+			this.users = newCounters(users);
+		}
+
+		private static LongAdder[] newCounters(int count) {
+			LongAdder[] counters = new LongAdder[count];
+			for (int i = 0; i < count; i++) {
+				counters[i] = new LongAdder();
+			}
+			return counters;
+		}
+	}
+
+	/**
+	 * A fixed number of slots, each assigned to a value the first time it is
+	 * counted. Slots are never released, so they are shared by every bucket.
+	 */
+	private static final class Slots {
+
+		private final int capacity;
+		private final ConcurrentMap<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+		private final AtomicReferenceArray<String> keys;
+		private final AtomicInteger next = new AtomicInteger();
+
+		Slots(int capacity) {
+			this.capacity = capacity;
+			this.keys = new AtomicReferenceArray<String>(capacity);
+		}
+
+		/**
+		 * Gets the slot of a value, assigning a free slot if the value has
+		 * none.
+		 *
+		 * @return The slot, or -1 if the value is null, or has no slot and
+		 *         every slot is taken
+		 */
+		int get(String key) {
+			if (key == null) {
+				return -1;
+			}
+			Integer slot = slots.get(key);
+			if (slot != null) {
+				return slot;
+			}
+			if (next.get() >= capacity) {
+				return -1;
+			}
+			slot = slots.computeIfAbsent(key, k -> {
+				int i = next.getAndIncrement();
+				if (i >= capacity) {
+					return null;
+				}
+				keys.set(i, k);
+				return i;
+			});
+			return slot == null ? -1 : slot;
+		}
+
+		/**
+		 * Gets the number of slots assigned to values.
+		 */
+		int size() {
+			return Math.min(next.get(), capacity);
+		}
+	}
+}
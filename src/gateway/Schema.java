@@ -0,0 +1,388 @@
+package gateway;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import log.Log;
+
+/**
+ * The database schema of the gateway.
+ *
+ * The schema is changed by numbered migrations, which are applied in order
+ * when the gateway starts. The number of the last migration applied is stored
+ * in the SQLite <code>user_version</code> pragma, so each migration is only
+ * applied once.
+ */
+public final class Schema {
+
+	// Tables written by earlier versions of the gateway are rebuilt with these
+	// layouts, keeping the row IDs of their records
+	private static final String CREATE_SEARCHES = "CREATE TABLE searches (id INTEGER PRIMARY KEY, sessionid TEXT NOT NULL, "
+			+ "timestamp INTEGER NOT NULL, searchtype TEXT, username TEXT, query TEXT, location TEXT, radius TEXT, "
+			+ "keyword TEXT, language TEXT, minprice TEXT, maxprice TEXT, name TEXT, opennow TEXT, rankby TEXT, "
+			+ "types TEXT, pagetoken TEXT, zagatselected TEXT);";
+	private static final String CREATE_RESULTS = "CREATE TABLE results (id INTEGER PRIMARY KEY, sessionid TEXT NOT NULL, "
+			+ "timestamp INTEGER NOT NULL, username TEXT, placeid TEXT, lat REAL, lng REAL);";
+	private static final String CREATE_USERS = "CREATE TABLE users (id INTEGER PRIMARY KEY, username TEXT NOT NULL UNIQUE, "
+			+ "salt TEXT NOT NULL, passhash TEXT NOT NULL);";
+
+	// Indexes for authentication and the queries on searches and results,
+	// which always order records by timestamp
+	private static final String[] CREATE_INDEXES = {
+			"CREATE INDEX searches_timestamp ON searches (timestamp);",
+			"CREATE INDEX searches_username_timestamp ON searches (username, timestamp);",
+			"CREATE INDEX searches_searchtype_timestamp ON searches (searchtype, timestamp);",
+			"CREATE INDEX searches_sessionid ON searches (sessionid);",
+			"CREATE INDEX results_timestamp ON results (timestamp);",
+			"CREATE INDEX results_username_timestamp ON results (username, timestamp);",
+			"CREATE INDEX results_placeid_timestamp ON results (placeid, timestamp);",
+			"CREATE INDEX results_sessionid ON results (sessionid);" };
+
+	// Spatial index of the locations of results, kept up to date by triggers
+	// so that results can be written without knowing about it
+	private static final String[] CREATE_RESULTS_LOCATION = {
+			"CREATE VIRTUAL TABLE results_location USING rtree(id, minlat, maxlat, minlng, maxlng);",
+			"INSERT INTO results_location SELECT id, lat, lat, lng, lng FROM results "
+					+ "WHERE lat IS NOT NULL AND lng IS NOT NULL;",
+			"CREATE TRIGGER results_location_insert AFTER INSERT ON results "
+					+ "WHEN new.lat IS NOT NULL AND new.lng IS NOT NULL BEGIN "
+					+ "INSERT INTO results_location VALUES (new.id, new.lat, new.lat, new.lng, new.lng); END;",
+			"CREATE TRIGGER results_location_update AFTER UPDATE OF id, lat, lng ON results BEGIN "
+					+ "DELETE FROM results_location WHERE id = old.id; "
+					+ "INSERT INTO results_location SELECT new.id, new.lat, new.lat, new.lng, new.lng "
+					+ "WHERE new.lat IS NOT NULL AND new.lng IS NOT NULL; END;",
+			"CREATE TRIGGER results_location_delete AFTER DELETE ON results BEGIN "
+					+ "DELETE FROM results_location WHERE id = old.id; END;" };
+
+	// Results are stored once per place, with the latest location of the
+	// place, and linked to the searches that returned them by integer IDs.
+	// The links keep the row IDs of the results they replace.
+	private static final String[] NORMALIZE_RESULTS = {
+			"CREATE TABLE places (id INTEGER PRIMARY KEY, placeid TEXT NOT NULL UNIQUE, lat REAL, lng REAL, "
+					+ "firstseen INTEGER NOT NULL, lastseen INTEGER NOT NULL);",
+			"CREATE TABLE search_places (id INTEGER PRIMARY KEY, search INTEGER NOT NULL, place INTEGER NOT NULL);",
+			// Results of searches that were never written get a search of
+			// their own, so that no result is lost
+			"INSERT INTO searches (sessionid, timestamp, username) SELECT sessionid, MIN(timestamp), username "
+					+ "FROM results WHERE sessionid NOT IN (SELECT sessionid FROM searches) GROUP BY sessionid;",
+			// The location of the latest result of each place is kept
+			"INSERT INTO places (placeid, lat, lng, firstseen, lastseen) SELECT placeid, lat, lng, "
+					+ "(SELECT MIN(timestamp) FROM results f WHERE f.placeid = r.placeid), MAX(timestamp) "
+					+ "FROM results r WHERE placeid IS NOT NULL GROUP BY placeid;",
+			"INSERT INTO search_places (id, search, place) SELECT r.id, "
+					+ "(SELECT id FROM searches s WHERE s.sessionid = r.sessionid ORDER BY id LIMIT 1), p.id "
+					+ "FROM results r JOIN places p ON p.placeid = r.placeid ORDER BY r.id;",
+			"DROP TABLE results_location;",
+			"DROP TABLE results;",
+			"CREATE INDEX search_places_search ON search_places (search);",
+			"CREATE INDEX search_places_place_search ON search_places (place, search);",
+			"CREATE VIRTUAL TABLE places_location USING rtree(id, minlat, maxlat, minlng, maxlng);",
+			"INSERT INTO places_location SELECT id, lat, lat, lng, lng FROM places "
+					+ "WHERE lat IS NOT NULL AND lng IS NOT NULL;",
+			"CREATE TRIGGER places_location_insert AFTER INSERT ON places "
+					+ "WHEN new.lat IS NOT NULL AND new.lng IS NOT NULL BEGIN "
+					+ "INSERT INTO places_location VALUES (new.id, new.lat, new.lat, new.lng, new.lng); END;",
+			// Places are updated by every result, but their locations rarely
+			// change
+			"CREATE TRIGGER places_location_update AFTER UPDATE OF id, lat, lng ON places "
+					+ "WHEN old.id IS NOT new.id OR old.lat IS NOT new.lat OR old.lng IS NOT new.lng BEGIN "
+					+ "DELETE FROM places_location WHERE id = old.id; "
+					+ "INSERT INTO places_location SELECT new.id, new.lat, new.lat, new.lng, new.lng "
+					+ "WHERE new.lat IS NOT NULL AND new.lng IS NOT NULL; END;",
+			"CREATE TRIGGER places_location_delete AFTER DELETE ON places BEGIN "
+					+ "DELETE FROM places_location WHERE id = old.id; END;",
+			// The results view has the layout of the results table it
+			// replaces, so results are queried and written as before
+			"CREATE VIEW results AS SELECT l.id AS id, s.sessionid AS sessionid, s.timestamp AS timestamp, "
+					+ "s.username AS username, p.placeid AS placeid, p.lat AS lat, p.lng AS lng "
+					+ "FROM search_places l JOIN searches s ON s.id = l.search JOIN places p ON p.id = l.place;",
+			"CREATE TRIGGER results_insert INSTEAD OF INSERT ON results BEGIN "
+					+ "INSERT INTO searches (sessionid, timestamp, username) "
+					+ "SELECT new.sessionid, new.timestamp, new.username "
+					+ "WHERE NOT EXISTS (SELECT 1 FROM searches WHERE sessionid = new.sessionid); "
+					+ "INSERT OR IGNORE INTO places (placeid, lat, lng, firstseen, lastseen) "
+					+ "VALUES (new.placeid, new.lat, new.lng, new.timestamp, new.timestamp); "
+					+ "UPDATE places SET lat = CASE WHEN lastseen <= new.timestamp THEN new.lat ELSE lat END, "
+					+ "lng = CASE WHEN lastseen <= new.timestamp THEN new.lng ELSE lng END, "
+					+ "firstseen = MIN(firstseen, new.timestamp), lastseen = MAX(lastseen, new.timestamp) "
+					+ "WHERE placeid = new.placeid; "
+					+ "INSERT INTO search_places (search, place) SELECT "
+					+ "(SELECT id FROM searches WHERE sessionid = new.sessionid ORDER BY id LIMIT 1), id "
+					+ "FROM places WHERE placeid = new.placeid; END;" };
+
+	// Searches of each user on each day since the epoch in UTC, counted
+	// against their daily quota
+	private static final String CREATE_DAILY_USAGE = "CREATE TABLE daily_usage (username TEXT NOT NULL, day INTEGER NOT NULL, "
+			+ "searches INTEGER NOT NULL, PRIMARY KEY (username, day));";
+
+	/**
+	 * A change to the schema.
+	 */
+	private interface Migration {
+		void apply(Statement statement) throws SQLException;
+	}
+
+	// Migrations in order, where migration n upgrades the schema to version n
+	private static final List<Migration> MIGRATIONS = Arrays.asList(
+			// 1: Tables with the columns used by the gateway
+			statement -> {
+				createTable(statement, "searches", CREATE_SEARCHES, false);
+				createTable(statement, "results", CREATE_RESULTS, false);
+				createTable(statement, "users", CREATE_USERS, true);
+			},
+			// 2: Indexes
+			statement -> {
+				for (String createIndex : CREATE_INDEXES) {
+					statement.executeUpdate(createIndex);
+				}
+			},
+			// 3: Spatial index of results
+			statement -> {
+				for (String sql : CREATE_RESULTS_LOCATION) {
+					statement.executeUpdate(sql);
+				}
+			},
+			// 4: Places stored once and linked to searches
+			statement -> {
+				for (String sql : NORMALIZE_RESULTS) {
+					statement.executeUpdate(sql);
+				}
+			},
+			// 5: Daily usage for quotas
+			statement -> statement.executeUpdate(CREATE_DAILY_USAGE));
+
+	/**
+	 * The current version of the schema.
+	 */
+	public static final int VERSION = MIGRATIONS.size();
+
+	private Schema() {
+	}
+
+	/**
+	 * Applies any migrations that have not been applied to a database, and
+	 * gathers the statistics used by the query planner if the schema changed.
+	 * All of the migrations are applied in a single transaction.
+	 *
+	 * @param connection
+	 *            the connection to the database
+	 *
+	 * @param log
+	 *            the log
+	 *
+	 * @return The number of migrations applied
+	 *
+	 * @throws SQLException
+	 *             if the migrations could not be applied, or the database
+	 *             has a newer schema than this gateway
+	 */
+	public static int migrate(Connection connection, Log log)
+			throws SQLException {
+		Statement statement = connection.createStatement();
+		boolean autoCommit = connection.getAutoCommit();
+
+		try {
+			int version = getVersion(statement);
+			if (version > VERSION) {
+				throw new SQLException(String.format(
+						"Database schema version %d is newer than %d",
+						version, VERSION));
+			} else if (version == VERSION) {
+				return 0;
+			}
+
+			connection.setAutoCommit(false);
+			try {
+				for (int i = version; i < VERSION; i++) {
+					log.i(String.format("Migrating database schema to version %d",
+							i + 1));
+					MIGRATIONS.get(i).apply(statement);
+				}
+				statement.executeUpdate("PRAGMA user_version = " + VERSION + ";");
+				connection.commit();
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+
+			analyze(connection);
+			return VERSION - version;
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Sets the journal mode of a database. In the write-ahead log mode,
+	 * readers do not wait for a writer and a writer does not wait for
+	 * readers, so searches being written do not hold up queries. The mode is
+	 * stored in the database file, so it applies to every connection.
+	 *
+	 * @param connection
+	 *            the connection to the database
+	 *
+	 * @param mode
+	 *            the journal mode, such as <code>WAL</code> or
+	 *            <code>DELETE</code>
+	 *
+	 * @return The journal mode of the database, which is unchanged if the
+	 *         database does not support the mode
+	 *
+	 * @throws SQLException
+	 *             if the journal mode could not be set
+	 */
+	public static String setJournalMode(Connection connection, String mode)
+			throws SQLException {
+		if (!mode.matches("[A-Za-z]+")) {
+			throw new IllegalArgumentException("Invalid journal mode: " + mode);
+		}
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery("PRAGMA journal_mode = "
+					+ mode + ";");
+			try {
+				return resultSet.next() ? resultSet.getString(1) : null;
+			} finally {
+				resultSet.close();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Gathers the statistics used by the query planner to choose indexes. The
+	 * statistics should be gathered again as the data grows.
+	 *
+	 * @param connection
+	 *            the connection to the database
+	 *
+	 * @throws SQLException
+	 *             if the statistics could not be gathered
+	 */
+	public static void analyze(Connection connection) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			statement.executeUpdate("ANALYZE;");
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Gets the version of the schema of a database.
+	 *
+	 * @param statement
+	 *            a statement on the database
+	 *
+	 * @return The schema version, or 0 if no migrations have been applied
+	 *
+	 * @throws SQLException
+	 *             if the version could not be read
+	 */
+	private static int getVersion(Statement statement) throws SQLException {
+		ResultSet resultSet = statement.executeQuery("PRAGMA user_version;");
+		try {
+			return resultSet.next() ? resultSet.getInt(1) : 0;
+		} finally {
+			resultSet.close();
+		}
+	}
+
+	/**
+	 * Gets the columns of a table.
+	 *
+	 * @param statement
+	 *            a statement on the database
+	 *
+	 * @param table
+	 *            the table name
+	 *
+	 * @return The column names, which are empty if the table does not exist
+	 *
+	 * @throws SQLException
+	 *             if the columns could not be read
+	 */
+	private static List<String> getColumns(Statement statement, String table)
+			throws SQLException {
+		List<String> columns = new ArrayList<String>();
+
+		// The pragma returns no result set at all for a missing table
+		if (!statement.execute("PRAGMA table_info(" + table + ");")) {
+			return columns;
+		}
+		ResultSet resultSet = statement.getResultSet();
+		try {
+			while (resultSet.next()) {
+				columns.add(resultSet.getString("name").toLowerCase(Locale.ROOT));
+			}
+		} finally {
+			resultSet.close();
+		}
+		return columns;
+	}
+
+	/**
+	 * Creates a table. If the table was created by hand from an earlier
+	 * version of the documentation, it is rebuilt with the new layout and the
+	 * columns they have in common are copied. The <code>user</code> column of
+	 * earlier versions is copied to the <code>username</code> column.
+	 *
+	 * @param statement
+	 *            a statement on the database
+	 *
+	 * @param table
+	 *            the table name
+	 *
+	 * @param createTable
+	 *            the statement that creates the table
+	 *
+	 * @param unique
+	 *            if the table has unique constraints, in which case only the
+	 *            first of any duplicate records is copied
+	 *
+	 * @throws SQLException
+	 *             if the table could not be created
+	 */
+	private static void createTable(Statement statement, String table,
+			String createTable, boolean unique) throws SQLException {
+		List<String> oldColumns = getColumns(statement, table);
+		if (oldColumns.isEmpty()) {
+			statement.executeUpdate(createTable);
+			return;
+		}
+
+		String oldTable = table + "_old";
+		statement.executeUpdate("ALTER TABLE " + table + " RENAME TO "
+				+ oldTable + ";");
+		statement.executeUpdate(createTable);
+
+		// Copy the columns both layouts have, keeping the row IDs
+		StringBuilder columns = new StringBuilder("id");
+		StringBuilder values = new StringBuilder("rowid");
+		for (String column : getColumns(statement, table)) {
+			String oldColumn = column;
+			if (column.equals("username") && !oldColumns.contains(column)) {
+				oldColumn = "user";
+			}
+			if (column.equals("id") || !oldColumns.contains(oldColumn)) {
+				continue;
+			}
+			columns.append(", ").append(column);
+			values.append(", \"").append(oldColumn).append('"');
+		}
+		statement.executeUpdate(String.format(
+				"INSERT%s INTO %s (%s) SELECT %s FROM %s ORDER BY rowid;",
+				unique ? " OR IGNORE" : "", table, columns, values, oldTable));
+
+		statement.executeUpdate("DROP TABLE " + oldTable + ";");
+	}
+}
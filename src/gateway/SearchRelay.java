@@ -0,0 +1,251 @@
+package gateway;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Relays a search response from the API server to a client as it arrives,
+ * scanning it for the status and results on the way through.
+ *
+ * The body is copied between byte buffers without being decoded. If the
+ * response must also be shared with identical searches or cached, a copy of
+ * the body is kept; otherwise the relay only holds one buffer at a time.
+ * Whether the copy is needed is decided when the response starts to arrive,
+ * so a search that nobody has joined by then is not copied.
+ */
+public class SearchRelay implements
+		UpstreamClient.ResponseHandler<UpstreamResponse> {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	// Lowercase names of the API response headers forwarded to clients
+	private static final Set<String> FORWARDED_HEADERS = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList(
+					"content-type", "content-language", "cache-control",
+					"expires", "date", "vary")));
+
+	private final Response response;
+	private final PlaceResultScanner scanner;
+	private final BooleanSupplier retainBody;
+
+	private boolean relayed = false;
+	private IOException relayError = null;
+	private Exception scanError = null;
+
+	/**
+	 * Creates a relay.
+	 *
+	 * @param response
+	 *            the response to the client
+	 *
+	 * @param scanner
+	 *            the scanner for the response body
+	 *
+	 * @param retainBody
+	 *            a check, made once the response starts to arrive, of
+	 *            whether a copy of the body should be kept in the returned
+	 *            response
+	 */
+	public SearchRelay(Response response, PlaceResultScanner scanner,
+			BooleanSupplier retainBody) {
+		this.response = response;
+		this.scanner = scanner;
+		this.retainBody = retainBody;
+	}
+
+	/**
+	 * Relays a response to the client. Responses other than 200 OK are not
+	 * relayed.
+	 *
+	 * @return The response with the forwarded headers, and the body if it was
+	 *         retained or an empty body otherwise
+	 *
+	 * @throws IOException
+	 *             if the API server did not respond with 200 OK, or the
+	 *             response could not be relayed
+	 */
+	@Override
+	public UpstreamResponse handle(int statusCode, String reasonPhrase,
+			List<String> headers, long contentLength, InputStream body)
+			throws IOException {
+		if (statusCode != 200) {
+			throw new IOException(String.format(
+					"API server responded with status %d %s", statusCode,
+					reasonPhrase));
+		}
+
+		List<String> forwardedHeaders = filterHeaders(headers);
+
+		ByteArrayOutputStream copy = null;
+		if (retainBody.getAsBoolean()) {
+			copy = new ByteArrayOutputStream(contentLength > 0
+					&& contentLength <= Integer.MAX_VALUE ? (int) contentLength
+					: BUFFER_SIZE);
+		}
+
+		relayed = true;
+		OutputStream out = null;
+		try {
+			out = response.stream(statusCode, reasonPhrase, forwardedHeaders,
+					contentLength);
+		} catch (IOException e) {
+			relayError = e;
+		}
+		if (copy == null && relayError != null) {
+			throw relayError;
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = body.read(buffer)) != -1) {
+			write(out, buffer, read);
+			if (copy != null) {
+				copy.write(buffer, 0, read);
+			} else if (relayError != null) {
+				// Nobody else is waiting for the rest of the response
+				throw relayError;
+			}
+			scan(buffer, read);
+		}
+		if (relayError == null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				relayError = e;
+			}
+		}
+
+		if (scanError == null) {
+			try {
+				scanner.finish();
+			} catch (IOException | RuntimeException e) {
+				scanError = e;
+			}
+		}
+
+		return new UpstreamResponse(statusCode, reasonPhrase,
+				forwardedHeaders, copy != null ? copy.toByteArray()
+						: new byte[0]);
+	}
+
+	/**
+	 * Gets whether the response was relayed to the client by this relay. A
+	 * caller that shared the response of an identical search has not relayed
+	 * it and must send it itself.
+	 *
+	 * @return True if the response was relayed, false otherwise
+	 */
+	public boolean isRelayed() {
+		return relayed;
+	}
+
+	/**
+	 * Gets the error that stopped the response from being written to the
+	 * client. When the body is retained, the rest of the response is still
+	 * read so it can be shared and cached.
+	 *
+	 * @return The error, or null if the response was written successfully
+	 */
+	public IOException getRelayError() {
+		return relayError;
+	}
+
+	/**
+	 * Gets the error that stopped the response from being scanned. The
+	 * response is still relayed in full when it cannot be scanned.
+	 *
+	 * @return The error, or null if the response was scanned successfully
+	 */
+	public Exception getScanError() {
+		return scanError;
+	}
+
+	/**
+	 * Gets the API response headers that are forwarded to clients. Headers
+	 * describing the API server itself, such as cookies, are left out.
+	 *
+	 * @param headers
+	 *            the end-to-end API response headers
+	 *
+	 * @return The headers forwarded to clients
+	 *
+	 * @throws IOException
+	 *             if the body has a content coding that cannot be scanned
+	 */
+	private static List<String> filterHeaders(List<String> headers)
+			throws IOException {
+		List<String> forwardedHeaders = new ArrayList<String>(headers.size());
+
+		for (String header : headers) {
+			int colon = header.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String name = header.substring(0, colon).trim()
+					.toLowerCase(Locale.ROOT);
+			if (name.equals("content-encoding")
+					&& !header.substring(colon + 1).trim()
+							.equalsIgnoreCase("identity")) {
+				throw new IOException("Unsupported API response encoding: "
+						+ header);
+			}
+			if (FORWARDED_HEADERS.contains(name)) {
+				forwardedHeaders.add(header);
+			}
+		}
+
+		return forwardedHeaders;
+	}
+
+	/**
+	 * Writes relayed bytes to the client until it fails.
+	 *
+	 * @param out
+	 *            the stream for the response body
+	 *
+	 * @param buffer
+	 *            the buffer holding the bytes
+	 *
+	 * @param length
+	 *            the number of bytes
+	 */
+	private void write(OutputStream out, byte[] buffer, int length) {
+		if (relayError != null) {
+			return;
+		}
+		try {
+			out.write(buffer, 0, length);
+		} catch (IOException e) {
+			relayError = e;
+		}
+	}
+
+	/**
+	 * Passes relayed bytes to the scanner until it fails.
+	 *
+	 * @param buffer
+	 *            the buffer holding the bytes
+	 *
+	 * @param length
+	 *            the number of bytes
+	 */
+	private void scan(byte[] buffer, int length) {
+		if (scanError != null) {
+			return;
+		}
+		try {
+			scanner.update(buffer, 0, length);
+		} catch (IOException | RuntimeException e) {
+			scanError = e;
+		}
+	}
+}
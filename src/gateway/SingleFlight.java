@@ -0,0 +1,201 @@
+package gateway;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical calls, so that only the first caller for a
+ * key performs the call and every caller that arrives while it is in flight
+ * receives the same result.
+ *
+ * Results are not retained once the call completes; a later caller with the
+ * same key performs the call again. A caller performing a call can also stop
+ * sharing it early with {@link #detach(String)} if nobody is waiting for its
+ * result, so that it does not need to keep the result for callers that might
+ * arrive later.
+ *
+ * @param <T>
+ *            the type of the call result
+ */
+public class SingleFlight<T> {
+
+	/**
+	 * A call whose result can be shared by concurrent callers.
+	 *
+	 * @param <T>
+	 *            the type of the call result
+	 */
+	public interface Call<T> {
+
+		/**
+		 * Performs the call.
+		 *
+		 * @return The result
+		 *
+		 * @throws IOException
+		 *             if the call failed
+		 */
+		T call() throws IOException;
+	}
+
+	/**
+	 * A call in flight.
+	 */
+	private static class Flight<T> {
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+		private final Thread caller = Thread.currentThread();
+
+		// The callers waiting for the result, or -1 once the call is detached
+		private final AtomicInteger waiting = new AtomicInteger();
+
+		/**
+		 * Adds a caller waiting for the result, unless the call is detached.
+		 *
+		 * @return True if the caller was added, false otherwise
+		 */
+		private boolean join() {
+			while (true) {
+				int current = waiting.get();
+				if (current < 0) {
+					return false;
+				}
+				if (waiting.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+	}
+
+	// Calls in flight by key
+	private final ConcurrentMap<String, Flight<T>> calls = new ConcurrentHashMap<String, Flight<T>>();
+
+	// Statistics
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Performs a call, or waits for the result of an identical call that is
+	 * already in flight.
+	 *
+	 * @param key
+	 *            the key identifying identical calls
+	 *
+	 * @param call
+	 *            the call
+	 *
+	 * @return The result of the call
+	 *
+	 * @throws IOException
+	 *             if the call failed, or the in-flight call failed
+	 */
+	public T execute(String key, Call<T> call) throws IOException {
+		Flight<T> flight = new Flight<T>();
+		Flight<T> inFlight;
+		while ((inFlight = calls.putIfAbsent(key, flight)) != null) {
+			if (inFlight.join()) {
+				coalesced.incrementAndGet();
+				return await(inFlight.future);
+			}
+			// The call was detached, so perform our own
+			calls.remove(key, inFlight);
+		}
+
+		executed.incrementAndGet();
+		try {
+			T result = call.call();
+			flight.future.complete(result);
+			return result;
+		} catch (IOException | RuntimeException e) {
+			flight.future.completeExceptionally(e);
+			throw e;
+		} finally {
+			calls.remove(key, flight);
+		}
+	}
+
+	/**
+	 * Stops sharing the call that the current thread is performing for a key,
+	 * unless callers are already waiting for its result. Callers that arrive
+	 * after the call is detached perform their own call.
+	 *
+	 * @param key
+	 *            the key of the call
+	 *
+	 * @return True if the call is detached or the current thread is not
+	 *         performing a call for the key, false if callers are waiting for
+	 *         the result
+	 */
+	public boolean detach(String key) {
+		Flight<T> flight = calls.get(key);
+		if (flight == null || flight.caller != Thread.currentThread()) {
+			return true;
+		}
+		if (!flight.waiting.compareAndSet(0, -1)) {
+			return flight.waiting.get() < 0;
+		}
+		calls.remove(key, flight);
+		return true;
+	}
+
+	/**
+	 * Gets the number of calls in flight.
+	 *
+	 * @return The number of calls in flight
+	 */
+	public int getInFlightCount() {
+		return calls.size();
+	}
+
+	/**
+	 * Gets the number of calls performed.
+	 *
+	 * @return The number of calls performed
+	 */
+	public long getExecutedCount() {
+		return executed.get();
+	}
+
+	/**
+	 * Gets the number of callers that received the result of an identical
+	 * call instead of performing their own.
+	 *
+	 * @return The number of coalesced callers
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Waits for the result of an in-flight call.
+	 *
+	 * @param future
+	 *            the future result of the call
+	 *
+	 * @return The result
+	 *
+	 * @throws IOException
+	 *             if the call failed
+	 */
+	private T await(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for an identical call");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Identical call failed: "
+					+ cause.getMessage(), cause);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that limits the rate of requests without locking.
+ *
+ * Rather than counting tokens and refilling them on a timer, the bucket keeps
+ * the time at which it will be full again. Taking a token moves that time
+ * forward by the interval between tokens, and is refused if it would move it
+ * further ahead of the current time than the burst allows. The whole state is
+ * a single long, so a token is taken with one compare-and-set and threads
+ * taking tokens at once never block each other.
+ */
+public class TokenBucket {
+
+	private final long intervalNanos;
+	private final long capacityNanos;
+
+	// The time at which the bucket is full, in System.nanoTime() terms
+	private final AtomicLong fullAt;
+
+	/**
+	 * Creates a full token bucket.
+	 *
+	 * @param rate
+	 *            the number of tokens added per second
+	 *
+	 * @param burst
+	 *            the number of tokens the bucket holds
+	 */
+	public TokenBucket(double rate, int burst) {
+		this(rate, burst, System.nanoTime());
+	}
+
+	/**
+	 * Creates a token bucket that is full at the specified time, so that
+	 * tokens can be taken at a time read before the bucket was created.
+	 *
+	 * @param rate
+	 *            the number of tokens added per second
+	 *
+	 * @param burst
+	 *            the number of tokens the bucket holds
+	 *
+	 * @param now
+	 *            the current time from {@link System#nanoTime()}
+	 */
+	public TokenBucket(double rate, int burst, long now) {
+		if (rate <= 0 || burst < 1) {
+			throw new IllegalArgumentException(
+					"Token bucket needs a positive rate and burst");
+		}
+		this.intervalNanos = Math.max(1,
+				(long) (TimeUnit.SECONDS.toNanos(1) / rate));
+		this.capacityNanos = intervalNanos * burst;
+		this.fullAt = new AtomicLong(now);
+	}
+
+	/**
+	 * Takes a token if there is one.
+	 *
+	 * @param now
+	 *            the current time from {@link System#nanoTime()}
+	 *
+	 * @return 0 if a token was taken, otherwise the time in nanoseconds until
+	 *         a token is available
+	 */
+	public long tryAcquire(long now) {
+		while (true) {
+			long current = fullAt.get();
+			long next = (current - now < 0 ? now : current) + intervalNanos;
+			long wait = next - now - capacityNanos;
+			if (wait > 0) {
+				return wait;
+			}
+			if (fullAt.compareAndSet(current, next)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Returns a token that was taken but not used.
+	 */
+	public void release() {
+		fullAt.addAndGet(-intervalNanos);
+	}
+
+	/**
+	 * Gets whether the bucket is full, in which case it behaves the same as a
+	 * new bucket.
+	 *
+	 * @param now
+	 *            the current time from {@link System#nanoTime()}
+	 *
+	 * @return True if the bucket is full, false otherwise
+	 */
+	public boolean isFull(long now) {
+		return fullAt.get() - now <= 0;
+	}
+}
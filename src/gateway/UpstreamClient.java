@@ -0,0 +1,818 @@
+package gateway;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+/**
+ * An HTTP/1.1 client for the Google Place Search API that keeps a pool of
+ * persistent connections to the API server.
+ *
+ * Connections are reused for subsequent requests as long as the server keeps
+ * them open, so most requests do not pay for a new TCP connection and TLS
+ * handshake. Idle connections are closed after a timeout.
+ */
+public class UpstreamClient {
+
+	/**
+	 * A handler that reads a response as it arrives.
+	 *
+	 * @param <T>
+	 *            the type of the result of handling the response
+	 */
+	public interface ResponseHandler<T> {
+
+		/**
+		 * Handles a response. The body does not need to be read completely;
+		 * any unread part is discarded.
+		 *
+		 * @param statusCode
+		 *            the HTTP status code
+		 *
+		 * @param reasonPhrase
+		 *            the HTTP reason phrase
+		 *
+		 * @param headers
+		 *            the end-to-end HTTP response headers, each of the form
+		 *            <code>name: value</code>
+		 *
+		 * @param contentLength
+		 *            the length of the body, or -1 if it is not known in
+		 *            advance
+		 *
+		 * @param body
+		 *            the decoded body
+		 *
+		 * @return The result of handling the response
+		 *
+		 * @throws IOException
+		 *             if the response could not be handled
+		 */
+		T handle(int statusCode, String reasonPhrase, List<String> headers,
+				long contentLength, InputStream body) throws IOException;
+	}
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_LINE_LENGTH = 65536;
+
+	private final String host;
+	private final int port;
+	private final String hostHeader;
+	private final SocketFactory socketFactory;
+	private final int maxConnections;
+	private final long idleTimeoutMillis;
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+
+	// Idle connections, most recently used first
+	private final Deque<Connection> idle = new ArrayDeque<Connection>();
+
+	private final ScheduledExecutorService evictor;
+
+	// Pool state and statistics, guarded by this
+	private int total = 0;
+	private boolean closed = false;
+	private long created = 0;
+	private long reused = 0;
+	private long evicted = 0;
+	private long retries = 0;
+
+	/**
+	 * Creates an API client.
+	 *
+	 * @param socketFactory
+	 *            the factory for sockets to the API server, which determines
+	 *            whether connections use TLS
+	 *
+	 * @param host
+	 *            the hostname of the API server
+	 *
+	 * @param port
+	 *            the port of the API server
+	 *
+	 * @param defaultPort
+	 *            the default port of the scheme, which is omitted from the
+	 *            Host header
+	 *
+	 * @param maxConnections
+	 *            the maximum number of open connections to the API server
+	 *
+	 * @param idleTimeoutMillis
+	 *            the time after which an idle connection is closed
+	 *
+	 * @param connectTimeoutMillis
+	 *            the maximum time to wait for a connection
+	 *
+	 * @param readTimeoutMillis
+	 *            the maximum time to wait for data from the API server
+	 */
+	public UpstreamClient(SocketFactory socketFactory, String host, int port,
+			int defaultPort, int maxConnections, long idleTimeoutMillis,
+			int connectTimeoutMillis, int readTimeoutMillis) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException(
+					"Maximum API connections must be positive");
+		}
+		this.socketFactory = socketFactory;
+		this.host = host;
+		this.port = port;
+		this.hostHeader = port == defaultPort ? host : host + ":" + port;
+		this.maxConnections = maxConnections;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+
+		evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "upstream-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(idleTimeoutMillis / 2, 1);
+		evictor.scheduleWithFixedDelay(this::evictIdle, period, period,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a GET request to the API server and reads the response.
+	 *
+	 * If a reused connection turns out to have been closed or reset by the
+	 * server before any of the response arrives, the request is retried once
+	 * on a new connection.
+	 *
+	 * @param target
+	 *            the request target, consisting of the path and query
+	 *
+	 * @return The response
+	 *
+	 * @throws IOException
+	 *             if the request could not be completed
+	 */
+	public UpstreamResponse get(String target) throws IOException {
+		return get(target, (statusCode, reasonPhrase, headers, contentLength,
+				body) -> new UpstreamResponse(statusCode, reasonPhrase,
+				headers, readToEnd(body)));
+	}
+
+	/**
+	 * Sends a GET request to the API server and passes the response to a
+	 * handler as it arrives.
+	 *
+	 * If a reused connection turns out to have been closed or reset by the
+	 * server before any of the response arrives, the request is retried once
+	 * on a new connection. A request that times out is not retried, since the
+	 * server may already be handling it. The handler is only called once.
+	 *
+	 * @param target
+	 *            the request target, consisting of the path and query
+	 *
+	 * @param handler
+	 *            the handler for the response
+	 *
+	 * @return The result of the handler
+	 *
+	 * @throws IOException
+	 *             if the request could not be completed or the handler failed
+	 */
+	public <T> T get(String target, ResponseHandler<T> handler)
+			throws IOException {
+		Connection connection = acquire();
+
+		try {
+			return exchange(connection, target, handler);
+		} catch (StaleConnectionException e) {
+			// The server closed the idle connection, so try a new one
+			synchronized (this) {
+				retries++;
+			}
+			connection = acquire(true);
+			return exchange(connection, target, handler);
+		}
+	}
+
+	/**
+	 * Closes the client and all idle connections. Connections in use are
+	 * closed when their requests complete.
+	 */
+	public void close() {
+		evictor.shutdownNow();
+
+		Deque<Connection> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayDeque<Connection>(idle);
+			total -= idle.size();
+			idle.clear();
+			notifyAll();
+		}
+		for (Connection connection : toClose) {
+			connection.closeQuietly();
+		}
+	}
+
+	/**
+	 * Gets the maximum number of open connections.
+	 *
+	 * @return The maximum number of open connections
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Gets the number of open connections, both idle and in use.
+	 *
+	 * @return The number of open connections
+	 */
+	public synchronized int getOpenCount() {
+		return total;
+	}
+
+	/**
+	 * Gets the number of idle connections.
+	 *
+	 * @return The number of idle connections
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Gets the number of connections opened to the API server.
+	 *
+	 * @return The number of connections opened
+	 */
+	public synchronized long getCreatedCount() {
+		return created;
+	}
+
+	/**
+	 * Gets the number of requests sent on a reused connection.
+	 *
+	 * @return The number of reused connections
+	 */
+	public synchronized long getReusedCount() {
+		return reused;
+	}
+
+	/**
+	 * Gets the number of idle or broken connections that were closed.
+	 *
+	 * @return The number of connections evicted
+	 */
+	public synchronized long getEvictedCount() {
+		return evicted;
+	}
+
+	/**
+	 * Gets the number of requests retried because a reused connection was
+	 * closed by the server.
+	 *
+	 * @return The number of retries
+	 */
+	public synchronized long getRetryCount() {
+		return retries;
+	}
+
+	/**
+	 * Sends a request on a connection and passes the response to a handler,
+	 * returning the connection to the pool if it can be reused.
+	 *
+	 * @param connection
+	 *            the connection
+	 *
+	 * @param target
+	 *            the request target
+	 *
+	 * @param handler
+	 *            the handler for the response
+	 *
+	 * @return The result of the handler
+	 *
+	 * @throws StaleConnectionException
+	 *             if a reused connection was closed or reset before any of
+	 *             the response arrived
+	 *
+	 * @throws IOException
+	 *             if the request could not be completed
+	 */
+	private <T> T exchange(Connection connection, String target,
+			ResponseHandler<T> handler) throws IOException {
+		boolean reusable = false;
+
+		try {
+			// Send the request and wait for the first byte of the response,
+			// which tells us if a reused connection was already closed by the
+			// server
+			try {
+				OutputStream out = connection.out;
+				out.write(("GET " + target + " HTTP/1.1\r\nHost: " + hostHeader + "\r\n\r\n")
+						.getBytes(StandardCharsets.ISO_8859_1));
+				out.flush();
+				connection.in.mark(1);
+				if (connection.in.read() == -1) {
+					if (connection.uses > 0) {
+						throw new StaleConnectionException(null);
+					}
+					throw new EOFException("API server closed the connection");
+				}
+				connection.in.reset();
+			} catch (SocketException e) {
+				// A reset connection is stale, but a timeout is not, since the
+				// server may be handling the request
+				if (connection.uses > 0) {
+					throw new StaleConnectionException(e);
+				}
+				throw e;
+			}
+
+			// Read the status line
+			String statusLine = readLine(connection.in);
+			if (statusLine == null) {
+				throw new EOFException("API server closed the connection");
+			}
+			String[] status = statusLine.split(" ", 3);
+			if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+				throw new IOException("Invalid HTTP status line: "
+						+ statusLine);
+			}
+			int statusCode = Integer.parseInt(status[1]);
+			boolean http11 = status[0].equals("HTTP/1.1");
+
+			// Read the headers, keeping only the end-to-end headers
+			List<String> headers = new ArrayList<String>();
+			long contentLength = -1;
+			boolean chunked = false;
+			boolean keepAlive = http11;
+			String line;
+			while ((line = readLine(connection.in)) != null && !line.isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+				String name = line.substring(0, colon).trim()
+						.toLowerCase(Locale.ROOT);
+				String value = line.substring(colon + 1).trim();
+
+				switch (name) {
+				case "content-length":
+					contentLength = Long.parseLong(value);
+					break;
+				case "transfer-encoding":
+					chunked = value.toLowerCase(Locale.ROOT).endsWith(
+							"chunked");
+					break;
+				case "connection":
+					String token = value.toLowerCase(Locale.ROOT);
+					if (token.contains("close")) {
+						keepAlive = false;
+					} else if (token.contains("keep-alive")) {
+						keepAlive = true;
+					}
+					break;
+				case "keep-alive":
+				case "proxy-connection":
+				case "te":
+				case "trailer":
+				case "upgrade":
+					break;
+				default:
+					headers.add(line);
+					break;
+				}
+			}
+			if (line == null) {
+				throw new EOFException("API server closed the connection");
+			}
+
+			// Decode the body according to its framing
+			InputStream body;
+			if ((statusCode >= 100 && statusCode < 200) || statusCode == 204
+					|| statusCode == 304) {
+				body = new FixedLengthInputStream(connection.in, 0);
+				contentLength = 0;
+			} else if (chunked) {
+				body = new ChunkedInputStream(connection.in);
+				contentLength = -1;
+			} else if (contentLength >= 0) {
+				body = new FixedLengthInputStream(connection.in, contentLength);
+			} else {
+				// The body is delimited by the server closing the connection
+				body = connection.in;
+				keepAlive = false;
+			}
+
+			T result = handler.handle(statusCode, status.length > 2 ? status[2]
+					: "", headers, contentLength, body);
+
+			// Discard any unread body so the connection can be reused
+			if (keepAlive) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				while (body.read(buffer) != -1) {
+					continue;
+				}
+			}
+
+			reusable = keepAlive;
+			return result;
+
+		} finally {
+			release(connection, reusable);
+		}
+	}
+
+	/**
+	 * Borrows a connection from the pool, opening a new connection if none are
+	 * idle and the pool is not full.
+	 *
+	 * @return A connection
+	 *
+	 * @throws IOException
+	 *             if no connection became available before the timeout or a
+	 *             new connection could not be opened
+	 */
+	private Connection acquire() throws IOException {
+		return acquire(false);
+	}
+
+	/**
+	 * Borrows a connection from the pool.
+	 *
+	 * @param fresh
+	 *            if a new connection must be opened instead of reusing an idle
+	 *            connection
+	 *
+	 * @return A connection
+	 *
+	 * @throws IOException
+	 *             if no connection became available before the timeout or a
+	 *             new connection could not be opened
+	 */
+	private Connection acquire(boolean fresh) throws IOException {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+		Connection connection = null;
+
+		synchronized (this) {
+			while (true) {
+				if (closed) {
+					throw new IOException("API client is closed");
+				}
+
+				// Reuse the most recently used healthy idle connection
+				if (!fresh) {
+					while ((connection = idle.pollFirst()) != null) {
+						if (connection.isHealthy()) {
+							reused++;
+							return connection;
+						}
+						connection.closeQuietly();
+						total--;
+						evicted++;
+					}
+				} else if (total >= maxConnections && !idle.isEmpty()) {
+					// Make room for the new connection
+					idle.pollLast().closeQuietly();
+					total--;
+					evicted++;
+				}
+
+				// Reserve a slot for a new connection
+				if (total < maxConnections) {
+					total++;
+					break;
+				}
+
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new IOException(
+							"Timed out waiting for a connection to the API server");
+				}
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(
+							"Interrupted waiting for a connection to the API server",
+							e);
+				}
+			}
+		}
+
+		// Open a new connection outside the lock
+		try {
+			Socket socket = socketFactory.createSocket();
+			try {
+				socket.connect(new InetSocketAddress(host, port),
+						connectTimeoutMillis);
+				socket.setSoTimeout(readTimeoutMillis);
+				socket.setTcpNoDelay(true);
+				socket.setKeepAlive(true);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			connection = new Connection(socket);
+		} catch (IOException e) {
+			synchronized (this) {
+				total--;
+				notifyAll();
+			}
+			throw e;
+		}
+
+		synchronized (this) {
+			created++;
+		}
+		return connection;
+	}
+
+	/**
+	 * Returns a connection to the pool or closes it.
+	 *
+	 * @param connection
+	 *            the connection
+	 *
+	 * @param reusable
+	 *            if the connection can be used for another request
+	 */
+	private void release(Connection connection, boolean reusable) {
+		boolean discard;
+
+		synchronized (this) {
+			discard = closed || !reusable;
+			if (discard) {
+				total--;
+			} else {
+				connection.uses++;
+				connection.lastUsed = System.currentTimeMillis();
+				idle.addFirst(connection);
+			}
+			notifyAll();
+		}
+
+		if (discard) {
+			connection.closeQuietly();
+		}
+	}
+
+	/**
+	 * Closes connections that have been idle longer than the idle timeout.
+	 */
+	private void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+		Deque<Connection> toClose = new ArrayDeque<Connection>();
+
+		synchronized (this) {
+			// The least recently used connections are at the end
+			Iterator<Connection> iterator = idle.descendingIterator();
+			while (iterator.hasNext()) {
+				Connection connection = iterator.next();
+				if (connection.lastUsed > cutoff) {
+					break;
+				}
+				iterator.remove();
+				toClose.add(connection);
+				total--;
+				evicted++;
+			}
+		}
+
+		for (Connection connection : toClose) {
+			connection.closeQuietly();
+		}
+	}
+
+	/**
+	 * Reads a line of the response headers.
+	 *
+	 * @param in
+	 *            the input stream
+	 *
+	 * @return The line, or null if the end of the stream was reached
+	 *
+	 * @throws IOException
+	 *             if the line could not be read
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		return HttpStreams.readLine(in, MAX_LINE_LENGTH);
+	}
+
+	/**
+	 * Reads a body until the end of the stream.
+	 *
+	 * @param in
+	 *            the input stream
+	 *
+	 * @return The body
+	 *
+	 * @throws IOException
+	 *             if the body could not be read
+	 */
+	private static byte[] readToEnd(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+
+		while ((read = in.read(buffer)) != -1) {
+			body.write(buffer, 0, read);
+		}
+
+		return body.toByteArray();
+	}
+
+	/**
+	 * A stream over a body with a known length.
+	 */
+	private static class FixedLengthInputStream extends InputStream {
+
+		private final InputStream in;
+		private long remaining;
+
+		FixedLengthInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			int read = in.read(b, off, (int) Math.min(len, remaining));
+			if (read == -1) {
+				throw new EOFException("Response body is truncated");
+			}
+			remaining -= read;
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+	}
+
+	/**
+	 * A stream that decodes a body with chunked transfer coding, discarding
+	 * any trailers.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+
+		private final InputStream in;
+		private long remaining = 0;
+		private boolean first = true;
+		private boolean eof = false;
+
+		ChunkedInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0 && !nextChunk()) {
+				return -1;
+			}
+			int read = in.read(b, off, (int) Math.min(len, remaining));
+			if (read == -1) {
+				throw new EOFException("Response body is truncated");
+			}
+			remaining -= read;
+			return read;
+		}
+
+		/**
+		 * Reads the size of the next chunk.
+		 *
+		 * @return True if there is another chunk, false if the body is
+		 *         complete
+		 *
+		 * @throws IOException
+		 *             if the chunk size could not be read
+		 */
+		private boolean nextChunk() throws IOException {
+			if (eof) {
+				return false;
+			}
+
+			// Skip the line break after the previous chunk data
+			if (!first) {
+				readLine(in);
+			}
+			first = false;
+
+			String sizeLine = readLine(in);
+			if (sizeLine == null) {
+				throw new EOFException("Response body is truncated");
+			}
+
+			// Ignore chunk extensions
+			int semicolon = sizeLine.indexOf(';');
+			String size = semicolon < 0 ? sizeLine : sizeLine.substring(0,
+					semicolon);
+			try {
+				remaining = Long.parseLong(size.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + sizeLine);
+			}
+			if (remaining > 0) {
+				return true;
+			}
+
+			// Skip the trailers
+			String line;
+			while ((line = readLine(in)) != null && !line.isEmpty()) {
+				continue;
+			}
+			eof = true;
+			return false;
+		}
+	}
+
+	/**
+	 * A connection to the API server.
+	 */
+	private static class Connection {
+
+		private final Socket socket;
+		private final BufferedInputStream in;
+		private final OutputStream out;
+		private long lastUsed;
+		private int uses = 0;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream(),
+					BUFFER_SIZE);
+			this.out = new BufferedOutputStream(socket.getOutputStream(),
+					BUFFER_SIZE);
+		}
+
+		/**
+		 * Checks that an idle connection can be used for another request. A
+		 * connection with unread data is out of sync with the server and
+		 * cannot be reused.
+		 *
+		 * @return True if the connection appears healthy, false otherwise
+		 */
+		boolean isHealthy() {
+			try {
+				return !socket.isClosed() && !socket.isInputShutdown()
+						&& !socket.isOutputShutdown() && in.available() == 0;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		void closeQuietly() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Do nothing because the connection is being discarded
+			}
+		}
+	}
+
+	/**
+	 * Thrown when a reused connection was closed by the server before it sent
+	 * a response.
+	 */
+	private static class StaleConnectionException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		StaleConnectionException(Throwable cause) {
+			super("Reused connection was closed by the API server", cause);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package gateway;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A response from the Google Place Search API.
+ */
+public class UpstreamResponse {
+
+	private final int statusCode;
+	private final String reasonPhrase;
+	private final List<String> headers;
+	private final byte[] body;
+
+	public UpstreamResponse(int statusCode, String reasonPhrase,
+			List<String> headers, byte[] body) {
+		this.statusCode = statusCode;
+		this.reasonPhrase = reasonPhrase;
+		this.headers = Collections.unmodifiableList(headers);
+		this.body = body;
+	}
+
+	/**
+	 * Gets the HTTP status code.
+	 *
+	 * @return The HTTP status code
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Gets the HTTP reason phrase.
+	 *
+	 * @return The HTTP reason phrase
+	 */
+	public String getReasonPhrase() {
+		return reasonPhrase;
+	}
+
+	/**
+	 * Gets the end-to-end HTTP response headers. Headers that only apply to
+	 * the connection to the API server, such as the message framing, are not
+	 * included.
+	 *
+	 * @return The HTTP response headers, each of the form
+	 *         <code>name: value</code>
+	 */
+	public List<String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Gets the HTTP response body.
+	 *
+	 * @return The HTTP response body
+	 */
+	public byte[] getBodyBytes() {
+		return body;
+	}
+
+	/**
+	 * Gets the HTTP response body decoded as UTF-8, the encoding of all Google
+	 * Place Search API responses.
+	 *
+	 * @return The HTTP response body
+	 */
+	public String getBody() {
+		return new String(body, StandardCharsets.UTF_8);
+	}
+}
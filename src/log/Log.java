@@ -1,24 +1,171 @@
 package log;
 
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A simple utility for logging.
+ *
+ * A log either writes each message to the console as it is logged, or places
+ * it in a bounded ring buffer of pre-allocated events that is drained by a
+ * single background thread. The background thread wakes up when a batch of
+ * messages is waiting or when the flush interval has passed, whichever comes
+ * first, and writes the waiting messages, flushing the console once for each
+ * batch.
+ * Messages logged while the buffer is full are dropped and counted.
  */
 public class Log {
 
+	// Time to wait for the background thread to drain the buffer on close
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+
+	private static final DateTimeFormatter dateTimeFormatter = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd hh:mm:ss");
+
+	/**
+	 * The severity of a log message.
+	 */
+	public enum Level {
+		/** Detailed messages, such as each accepted connection */
+		DEBUG,
+		/** Informational messages */
+		INFO,
+		/** Errors */
+		ERROR;
+
+		/**
+		 * Parses a log level from its configuration value.
+		 *
+		 * @param value
+		 *            the configuration value
+		 *
+		 * @return The log level
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the value is not a valid log level
+		 */
+		public static Level parse(String value) {
+			return valueOf(value.trim().toUpperCase(Locale.ROOT));
+		}
+	}
+
+	/**
+	 * A slot of the ring buffer. Events are reused, and an event is published
+	 * to the background thread by setting its sequence after its fields.
+	 */
+	private static class Event {
+		volatile long sequence = -1;
+		long millis;
+		boolean error;
+		String message;
+		Throwable throwable;
+	}
+
 	private final PrintStream out;
 	private final PrintStream err;
+	private final Level level;
+
+	// The ring buffer and its background thread, or null if messages are
+	// written as they are logged
+	private final Event[] events;
+	private final int mask;
+	private final int batchSize;
+	private final long flushIntervalNanos;
+	private final Thread writer;
+
+	// The next sequence to be claimed by a producer and to be written by the
+	// background thread
+	private final AtomicLong claimed = new AtomicLong();
+	private volatile long written = 0;
+	private volatile boolean waiting = false;
+	private volatile boolean running = true;
 
+	// The formatted timestamp of the most recent second, only used by one
+	// thread at a time
+	private final ZoneId zone = ZoneId.systemDefault();
+	private long timestampSecond = Long.MIN_VALUE;
+	private String timestamp;
+
+	// Statistics
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Creates a log that writes informational and error messages to the
+	 * console as they are logged.
+	 *
+	 * @param out
+	 *            the stream informational messages are written to, or null
+	 *
+	 * @param err
+	 *            the stream error messages are written to, or null
+	 */
 	public Log(PrintStream out, PrintStream err) {
+		this(out, err, Level.INFO, 0, 0, 0);
+	}
+
+	/**
+	 * Creates a log, and starts its background thread if it is buffered.
+	 *
+	 * @param out
+	 *            the stream informational messages are written to, or null
+	 *
+	 * @param err
+	 *            the stream error messages are written to, or null
+	 *
+	 * @param level
+	 *            the lowest level of messages that are written
+	 *
+	 * @param capacity
+	 *            the number of messages buffered, rounded up to a power of
+	 *            two, or 0 to write messages as they are logged
+	 *
+	 * @param batchSize
+	 *            the number of waiting messages that wakes up the background
+	 *            thread, and the maximum number of messages written before
+	 *            the console is flushed
+	 *
+	 * @param flushIntervalMillis
+	 *            the maximum time a message waits before it is written
+	 */
+	public Log(PrintStream out, PrintStream err, Level level, int capacity,
+			int batchSize, long flushIntervalMillis) {
 		this.out = out;
 		this.err = err;
-	}
+		this.level = level;
+		this.batchSize = Math.max(batchSize, 1);
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(
+				flushIntervalMillis, 1));
 
-	private static final DateTimeFormatter dateTimeFormatter = DateTimeFormatter
-			.ofPattern("yyyy-MM-dd hh:mm:ss");
+		// Nothing is buffered if nothing is written
+		if (capacity > 0 && (out != null || err != null)) {
+			int size = Integer.highestOneBit(Math.min(capacity, 1 << 30));
+			if (size < capacity) {
+				size <<= 1;
+			}
+			events = new Event[size];
+			for (int i = 0; i < size; i++) {
+				events[i] = new Event();
+			}
+			mask = size - 1;
+
+			writer = new Thread(this::writeLoop, "log-writer");
+			writer.setDaemon(true);
+			writer.start();
+		} else {
+			events = null;
+			mask = 0;
+			writer = null;
+		}
+	}
 
 	/**
 	 * Prints an error log message to the console.
@@ -27,10 +174,7 @@ public class Log {
 	 *            the message
 	 */
 	public void e(String message) {
-		if (err != null) {
-			err.format("%s: %s%n", getTimestamp(), message);
-			err.flush();
-		}
+		log(Level.ERROR, message, null);
 	}
 
 	/**
@@ -44,12 +188,7 @@ public class Log {
 	 *            the {@link Throwable}
 	 */
 	public void e(String message, Throwable throwable) {
-		if (err != null) {
-			err.format("%s: %s%n", getTimestamp(), message);
-			err.flush();
-			throwable.printStackTrace(err);
-			;
-		}
+		log(Level.ERROR, message, throwable);
 	}
 
 	/**
@@ -59,18 +198,239 @@ public class Log {
 	 *            the message
 	 */
 	public void i(String message) {
-		if (out != null) {
-			out.format("%s: %s%n", getTimestamp(), message);
+		log(Level.INFO, message, null);
+	}
+
+	/**
+	 * Prints a debug log message to the console.
+	 *
+	 * @param message
+	 *            the message
+	 */
+	public void d(String message) {
+		log(Level.DEBUG, message, null);
+	}
+
+	/**
+	 * Checks if messages of a level are written, so that callers can avoid
+	 * building messages that would be discarded.
+	 *
+	 * @param level
+	 *            the level
+	 *
+	 * @return True if messages of the level are written, false otherwise
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(this.level) >= 0
+				&& (level == Level.ERROR ? err : out) != null;
+	}
+
+	/**
+	 * Stops the background thread, waiting for it to write the buffered
+	 * messages. Messages logged afterwards are written as they are logged.
+	 */
+	public void close() {
+		if (writer == null || !running) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(SHUTDOWN_TIMEOUT);
+		} catch (InterruptedException e) {
+			// Do nothing because we are exiting
+		}
+	}
+
+	/**
+	 * Gets the lowest level of messages that are written.
+	 *
+	 * @return The lowest level of messages that are written
+	 */
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * Gets the number of messages buffered.
+	 *
+	 * @return The number of messages buffered, or 0 if messages are written as
+	 *         they are logged
+	 */
+	public int getCapacity() {
+		return events == null ? 0 : events.length;
+	}
+
+	/**
+	 * Gets the number of messages waiting to be written.
+	 *
+	 * @return The number of messages waiting to be written
+	 */
+	public long getQueuedCount() {
+		return events == null ? 0 : Math.max(claimed.get() - written, 0);
+	}
+
+	/**
+	 * Gets the number of messages dropped because the buffer was full.
+	 *
+	 * @return The number of messages dropped
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Logs a message.
+	 *
+	 * @param level
+	 *            the level of the message
+	 *
+	 * @param message
+	 *            the message
+	 *
+	 * @param throwable
+	 *            the {@link Throwable} that caused the message, or null
+	 */
+	private void log(Level level, String message, Throwable throwable) {
+		if (!isEnabled(level)) {
+			return;
+		}
+		boolean error = level == Level.ERROR;
+
+		if (events == null || !running) {
+			synchronized (this) {
+				PrintStream stream = error ? err : out;
+				stream.print(format(new StringBuilder(),
+						System.currentTimeMillis(), message, throwable));
+				stream.flush();
+			}
+			return;
+		}
+
+		// Claim the next slot unless the buffer is full
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - written >= events.length) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+		Event event = events[(int) sequence & mask];
+		event.millis = System.currentTimeMillis();
+		event.error = error;
+		event.message = message;
+		event.throwable = throwable;
+		event.sequence = sequence;
+
+		// Wake up the background thread once a batch is waiting, otherwise
+		// it wakes up after the flush interval
+		if (waiting && sequence - written + 1 >= batchSize) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Writes buffered messages until the log is closed and the buffer is
+	 * empty.
+	 */
+	private void writeLoop() {
+		StringBuilder outBatch = new StringBuilder(8192);
+		StringBuilder errBatch = new StringBuilder(8192);
+		int batched = 0;
+
+		while (true) {
+			long sequence = written;
+			Event event = events[(int) sequence & mask];
+			if (event.sequence == sequence) {
+				format(event.error ? errBatch : outBatch, event.millis,
+						event.message, event.throwable);
+				event.message = null;
+				event.throwable = null;
+				written = sequence + 1;
+
+				if (++batched >= batchSize) {
+					flush(outBatch, errBatch);
+					batched = 0;
+				}
+				continue;
+			}
+
+			// The buffer is empty, or the next message is being logged
+			if (batched > 0) {
+				flush(outBatch, errBatch);
+				batched = 0;
+			}
+			if (!running && claimed.get() == sequence) {
+				break;
+			}
+
+			waiting = true;
+			if (claimed.get() - sequence < batchSize && running) {
+				LockSupport.parkNanos(this, flushIntervalNanos);
+			}
+			waiting = false;
+		}
+	}
+
+	/**
+	 * Writes batches of messages to the console.
+	 *
+	 * @param outBatch
+	 *            the batch of informational messages, which is cleared
+	 *
+	 * @param errBatch
+	 *            the batch of error messages, which is cleared
+	 */
+	private void flush(StringBuilder outBatch, StringBuilder errBatch) {
+		if (outBatch.length() > 0) {
+			out.print(outBatch);
 			out.flush();
+			outBatch.setLength(0);
+		}
+		if (errBatch.length() > 0) {
+			err.print(errBatch);
+			err.flush();
+			errBatch.setLength(0);
 		}
 	}
 
 	/**
-	 * Returns a String representing the current date and time.
+	 * Appends a message, preceded by its timestamp and followed by the stack
+	 * trace of its {@link Throwable}, to a batch.
 	 *
-	 * @return A String representing the current date and time
+	 * @return The batch
 	 */
-	private static String getTimestamp() {
-		return LocalDateTime.now().format(dateTimeFormatter);
+	private StringBuilder format(StringBuilder batch, long millis,
+			String message, Throwable throwable) {
+		batch.append(getTimestamp(millis)).append(": ").append(message)
+				.append(System.lineSeparator());
+		if (throwable != null) {
+			StringWriter stackTrace = new StringWriter();
+			throwable.printStackTrace(new PrintWriter(stackTrace));
+			batch.append(stackTrace.getBuffer());
+		}
+		return batch;
+	}
+
+	/**
+	 * Returns a String representing a date and time. The String is only
+	 * formatted once for each second.
+	 *
+	 * @param millis
+	 *            the date and time in milliseconds since the epoch
+	 *
+	 * @return A String representing the date and time
+	 */
+	private String getTimestamp(long millis) {
+		long second = Math.floorDiv(millis, 1000);
+		if (second != timestampSecond) {
+			timestamp = LocalDateTime.ofInstant(
+					Instant.ofEpochMilli(second * 1000), zone).format(
+					dateTimeFormatter);
+			timestampSecond = second;
+		}
+		return timestamp;
 	}
 }
@@ -0,0 +1,218 @@
+package db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+	private File file;
+	private ConnectionPool connectionPool;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("pool", ".db");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (connectionPool != null) {
+			connectionPool.close();
+		}
+		file.delete();
+	}
+
+	@Test
+	public void reusesConnections() throws Exception {
+		connectionPool = create(2);
+		connectionPool.getConnection().close();
+		connectionPool.getConnection().close();
+		assertEquals(1, connectionPool.getCreatedCount());
+		assertEquals(2, connectionPool.getAcquiredCount());
+		assertEquals(1, connectionPool.getIdleCount());
+		assertEquals(0, connectionPool.getActiveCount());
+	}
+
+	@Test
+	public void cachesPreparedStatements() throws Exception {
+		connectionPool = create(1);
+		for (int i = 0; i < 3; i++) {
+			Connection connection = connectionPool.getConnection();
+			try {
+				PreparedStatement statement = connection
+						.prepareStatement("SELECT ?;");
+				statement.setInt(1, i);
+				ResultSet result = statement.executeQuery();
+				assertTrue(result.next());
+				assertEquals(i, result.getInt(1));
+				result.close();
+				statement.close();
+			} finally {
+				connection.close();
+			}
+		}
+		assertEquals(1, connectionPool.getStatementMissCount());
+		assertEquals(2, connectionPool.getStatementHitCount());
+	}
+
+	@Test
+	public void doesNotShareOpenStatements() throws Exception {
+		connectionPool = create(1);
+		Connection connection = connectionPool.getConnection();
+		try {
+			PreparedStatement first = connection.prepareStatement("SELECT 1;");
+			PreparedStatement second = connection.prepareStatement("SELECT 1;");
+			assertFalse(first == second);
+			second.close();
+			first.close();
+		} finally {
+			connection.close();
+		}
+		assertEquals(2, connectionPool.getStatementMissCount());
+	}
+
+	@Test
+	public void timesOutWhenExhausted() throws Exception {
+		connectionPool = create(1);
+		Connection connection = connectionPool.getConnection();
+		try {
+			connectionPool.getConnection();
+			fail("Borrowed more connections than the pool holds");
+		} catch (SQLException e) {
+			// Expected
+		} finally {
+			connection.close();
+		}
+		assertEquals(1, connectionPool.getTimeoutCount());
+		connectionPool.getConnection().close();
+	}
+
+	@Test
+	public void rollsBackReturnedTransactions() throws Exception {
+		connectionPool = create(1);
+		execute("CREATE TABLE t (x INTEGER);");
+
+		Connection connection = connectionPool.getConnection();
+		connection.setAutoCommit(false);
+		Statement statement = connection.createStatement();
+		statement.executeUpdate("INSERT INTO t VALUES (1);");
+		statement.close();
+		connection.close();
+
+		connection = connectionPool.getConnection();
+		try {
+			assertTrue(connection.getAutoCommit());
+			statement = connection.createStatement();
+			ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM t;");
+			assertEquals(0, result.getInt(1));
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void closedLeaseCanNotBeUsed() throws Exception {
+		connectionPool = create(1);
+		Connection connection = connectionPool.getConnection();
+		connection.close();
+		assertTrue(connection.isClosed());
+		try {
+			connection.createStatement();
+			fail("Used a connection after returning it");
+		} catch (SQLException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void evictsIdleConnections() throws Exception {
+		connectionPool = new ConnectionPool("jdbc:sqlite:" + file.getPath(),
+				new Properties(), 2, 0, 1000, 50, 16);
+		connectionPool.getConnection().close();
+		for (int i = 0; i < 50 && connectionPool.getIdleCount() > 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, connectionPool.getIdleCount());
+		assertEquals(1, connectionPool.getEvictedCount());
+	}
+
+	@Test
+	public void runsInitStatementsOnNewConnections() throws Exception {
+		connectionPool = new ConnectionPool("jdbc:sqlite:" + file.getPath(),
+				new Properties(), 2, 0, 1000, 0, 16,
+				"PRAGMA busy_timeout = 1234;");
+		Connection first = connectionPool.getConnection();
+		Connection second = connectionPool.getConnection();
+		try {
+			assertEquals(1234, queryInt(first, "PRAGMA busy_timeout;"));
+			assertEquals(1234, queryInt(second, "PRAGMA busy_timeout;"));
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void failedInitStatementFreesSlot() throws Exception {
+		connectionPool = new ConnectionPool("jdbc:sqlite:" + file.getPath(),
+				new Properties(), 1, 0, 100, 0, 16, "NOT SQL;");
+		for (int i = 0; i < 2; i++) {
+			try {
+				connectionPool.getConnection();
+				fail("Borrowed a connection that was not initialized");
+			} catch (SQLException e) {
+				// Expected
+			}
+		}
+		assertEquals(0, connectionPool.getTimeoutCount());
+		assertEquals(0, connectionPool.getActiveCount());
+	}
+
+	@Test(expected = SQLException.class)
+	public void closedPoolRefusesConnections() throws Exception {
+		connectionPool = create(1);
+		connectionPool.close();
+		connectionPool.getConnection();
+	}
+
+	private ConnectionPool create(int maxSize) {
+		return new ConnectionPool("jdbc:sqlite:" + file.getPath(),
+				new Properties(), maxSize, 0, 100, 0, 16);
+	}
+
+	private void execute(String sql) throws Exception {
+		Connection connection = connectionPool.getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			statement.execute(sql);
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static int queryInt(Connection connection, String sql)
+			throws Exception {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet result = statement.executeQuery(sql);
+			return result.getInt(1);
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import db.ConnectionPool;
+import util.TestUtils;
+
+public class AggregationTest {
+
+	private static final long HOUR = 60 * 60 * 1000;
+	private static final long DAY = 24 * HOUR;
+
+	private static final List<String> RESULT_COLUMNS = Arrays.asList(
+			"sessionid", "timestamp", "username", "placeid", "lat", "lng");
+	private static final List<String> RESULT_GROUP_COLUMNS = Arrays.asList(
+			"username", "placeid");
+	private static final List<String> SEARCH_COLUMNS = Arrays.asList(
+			"sessionid", "timestamp", "searchtype", "username");
+	private static final List<String> SEARCH_GROUP_COLUMNS = Arrays.asList(
+			"searchtype", "username");
+
+	private File file;
+	private ConnectionPool connectionPool;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("aggregation", ".db");
+		connectionPool = TestUtils.createDatabase(file);
+
+		Connection connection = connectionPool.getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			insert(statement, "s1", 1000, "a", "p1", "p2");
+			insert(statement, "s2", 2 * HOUR, "b", "p1");
+			insert(statement, "s3", DAY + 1000, "a", "p1", "p3");
+			search(statement, "s4", 2 * DAY, "nearby", "a");
+			search(statement, "s5", 2 * DAY + 1000, "text", "a");
+			search(statement, "s6", 2 * DAY + HOUR, "nearby", "b");
+			search(statement, "s7", 2 * DAY + HOUR, "nearby", "a");
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		connectionPool.close();
+		file.delete();
+	}
+
+	@Test
+	public void countsPlaces() throws Exception {
+		assertEquals(Arrays.asList("p1=3", "p2=1", "p3=1"),
+				count("groupby=placeid"));
+	}
+
+	@Test
+	public void countsUsers() throws Exception {
+		assertEquals(Arrays.asList("a=4", "b=1"), count("groupby=user"));
+	}
+
+	@Test
+	public void countsPlacesOfUser() throws Exception {
+		assertEquals(Arrays.asList("p1=2", "p2=1", "p3=1"),
+				count("groupby=placeid&user=a"));
+	}
+
+	@Test
+	public void countsUsersOfPlace() throws Exception {
+		assertEquals(Arrays.asList("a=2", "b=1"),
+				count("groupby=user&placeid=p1"));
+	}
+
+	@Test
+	public void countsPlacesByDay() throws Exception {
+		assertEquals(Arrays.asList(DAY + ",p1=1", DAY + ",p3=1", "0,p1=2",
+				"0,p2=1"), count("groupby=day,placeid"));
+	}
+
+	@Test
+	public void countsPlacesInTimeRange() throws Exception {
+		assertEquals(Arrays.asList("p1=2", "p3=1"),
+				count("groupby=placeid&since=" + HOUR + "&limit=2"));
+	}
+
+	@Test
+	public void doesNotCountOnView() throws Exception {
+		for (String query : new String[] { "groupby=placeid",
+				"groupby=user&placeid=p1", "groupby=hour" }) {
+			Aggregation aggregation = aggregate(query);
+			assertFalse(aggregation.getQuery(), aggregation.getQuery()
+					.contains("FROM results"));
+		}
+	}
+
+	@Test
+	public void countsPlacesWithoutJoiningSearches() throws Exception {
+		assertFalse(aggregate("groupby=placeid").getQuery().contains(
+				"searches"));
+	}
+
+	@Test
+	public void countsSearches() throws Exception {
+		assertEquals(Arrays.asList("nearby=3", "text=1"),
+				countSearches("groupby=searchtype&since=" + 2 * DAY));
+		assertEquals(Arrays.asList("nearby,a=2", "nearby,b=1", "text,a=1"),
+				countSearches("groupby=searchtype,user&since=" + 2 * DAY));
+		assertEquals(Arrays.asList("nearby=2"),
+				countSearches("groupby=searchtype&user=a&searchtype=nearby"));
+	}
+
+	@Test
+	public void countsSearchesByHourNewestFirst() throws Exception {
+		assertEquals(Arrays.asList((2 * DAY + HOUR) + "=2", (2 * DAY) + "=2"),
+				countSearches("groupby=hour&since=" + 2 * DAY));
+		assertEquals(Arrays.asList((2 * DAY + HOUR) + "=2"),
+				countSearches("groupby=hour&since=" + 2 * DAY + "&limit=1"));
+	}
+
+	@Test
+	public void rejectsInvalidGroups() throws Exception {
+		for (String query : new String[] { "", "groupby=", "groupby=lat",
+				"groupby=user,user", "groupby=user,", "groupby=user&foo=x",
+				"groupby=user&limit=0" }) {
+			try {
+				aggregate(query);
+				fail("Accepted " + query);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	private static void search(Statement statement, String sessionId,
+			long timestamp, String searchType, String username)
+			throws Exception {
+		statement.executeUpdate(String.format(
+				"INSERT INTO searches (sessionid, timestamp, searchtype, "
+						+ "username) VALUES ('%s', %d, '%s', '%s');",
+				sessionId, timestamp, searchType, username));
+	}
+
+	private static void insert(Statement statement, String sessionId,
+			long timestamp, String username, String... placeIds)
+			throws Exception {
+		for (String placeId : placeIds) {
+			statement.executeUpdate(String.format(
+					"INSERT INTO results (sessionid, timestamp, username, "
+							+ "placeid, lat, lng) VALUES ('%s', %d, '%s', "
+							+ "'%s', 1.0, 2.0);", sessionId, timestamp,
+					username, placeId));
+		}
+	}
+
+	private static Aggregation aggregate(String query) throws Exception {
+		return new Aggregation(new Request("/resultcount?" + query),
+				"results", RESULT_COLUMNS, RESULT_GROUP_COLUMNS,
+				Collections.<String> emptySet(), 100, 1000);
+	}
+
+	private List<String> count(String query) throws Exception {
+		return count(aggregate(query));
+	}
+
+	private List<String> countSearches(String query) throws Exception {
+		return count(new Aggregation(new Request("/searchcount?" + query),
+				"searches", SEARCH_COLUMNS, SEARCH_GROUP_COLUMNS,
+				Collections.<String> emptySet(), 100, 1000));
+	}
+
+	private List<String> count(Aggregation aggregation) throws Exception {
+		List<String> counts = new ArrayList<String>();
+		Connection connection = connectionPool.getConnection();
+		try {
+			PreparedStatement statement = connection
+					.prepareStatement(aggregation.getQuery());
+			for (int i = 0; i < aggregation.size(); i++) {
+				statement.setObject(i + 1, aggregation.get(i));
+			}
+			ResultSet resultSet = statement.executeQuery();
+			int groups = aggregation.getGroups().size();
+			while (resultSet.next()) {
+				StringBuilder count = new StringBuilder();
+				for (int i = 1; i <= groups; i++) {
+					count.append(i == 1 ? "" : ",").append(
+							resultSet.getString(i));
+				}
+				counts.add(count.append("=").append(
+						resultSet.getLong(groups + 1)).toString());
+			}
+			statement.close();
+		} finally {
+			connection.close();
+		}
+		return counts;
+	}
+}
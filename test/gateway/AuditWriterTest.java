@@ -0,0 +1,89 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import db.ConnectionPool;
+import log.Log;
+import util.TestUtils;
+
+public class AuditWriterTest {
+
+	private static final String[] PARAMETERS = new String[13];
+
+	private File file;
+	private ConnectionPool connectionPool;
+	private Log log;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("audit", ".db");
+		connectionPool = TestUtils.createDatabase(file);
+		log = TestUtils.silentLog();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		connectionPool.close();
+		file.delete();
+	}
+
+	@Test
+	public void writesBatch() throws Exception {
+		AuditWriter writer = new AuditWriter(connectionPool, 100, 10, 50,
+				AuditWriter.OverflowPolicy.BLOCK, true, log);
+		UUID sessionId = UUID.randomUUID();
+		writer.writeSearch(sessionId, 1000, "nearbysearch", "user", PARAMETERS);
+		writer.writeResult(sessionId, 1000, "user", "place", 1.0, 2.0);
+		writer.writeResult(sessionId, 1000, "user", "other", 3.0, 4.0);
+		writer.close();
+
+		assertEquals(3, writer.getWrittenCount());
+		assertEquals(0, writer.getFailedCount());
+		assertEquals(0, writer.getRetryCount());
+		assertEquals(1, count("SELECT COUNT(*) FROM searches;"));
+		assertEquals(2, count("SELECT COUNT(*) FROM results;"));
+	}
+
+	@Test
+	public void failedBatchLosesOnlyBadRecords() throws Exception {
+		AuditWriter writer = new AuditWriter(connectionPool, 100, 10, 50,
+				AuditWriter.OverflowPolicy.BLOCK, true, log);
+		UUID sessionId = UUID.randomUUID();
+		writer.writeSearch(sessionId, 1000, "nearbysearch", "user", PARAMETERS);
+		writer.writeSearch(sessionId, 1000, "textsearch", "user", PARAMETERS);
+
+		// A search without a session violates the schema
+		writer.writeSearch(null, 1000, "radarsearch", "user", PARAMETERS);
+		writer.writeResult(sessionId, 1000, "user", "place", 1.0, 2.0);
+		writer.close();
+
+		assertEquals(3, writer.getWrittenCount());
+		assertEquals(1, writer.getFailedCount());
+		assertEquals(3, writer.getRetryCount());
+		assertEquals(2, count("SELECT COUNT(*) FROM searches;"));
+		assertEquals(1, count("SELECT COUNT(*) FROM results;"));
+	}
+
+	private long count(String sql) throws SQLException {
+		Connection connection = connectionPool.getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			ResultSet resultSet = statement.executeQuery(sql);
+			resultSet.next();
+			return resultSet.getLong(1);
+		} finally {
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ChunkedOutputStreamTest {
+
+	@Test
+	public void writesChunksOfBufferSize() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream chunked = new ChunkedOutputStream(out, 4);
+		chunked.write("abcdefghij".getBytes(StandardCharsets.ISO_8859_1));
+		chunked.close();
+		assertEquals("4\r\nabcd\r\n4\r\nefgh\r\n2\r\nij\r\n0\r\n\r\n",
+				out.toString("ISO-8859-1"));
+	}
+
+	@Test
+	public void flushWritesPartialChunk() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream chunked = new ChunkedOutputStream(out, 16);
+		chunked.write('a');
+		chunked.flush();
+		assertEquals("1\r\na\r\n", out.toString("ISO-8859-1"));
+
+		// Flushing nothing does not write an empty chunk, which would end
+		// the body
+		chunked.flush();
+		chunked.write(new byte[20], 0, 18);
+		chunked.close();
+		assertEquals("1\r\na\r\n10\r\n" + new String(new byte[16],
+				StandardCharsets.ISO_8859_1) + "\r\n2\r\n\0\0\r\n0\r\n\r\n",
+				out.toString("ISO-8859-1"));
+	}
+
+	@Test
+	public void closeWritesLastChunkOnceAndKeepsStreamOpen() throws Exception {
+		final boolean[] closed = new boolean[1];
+		ByteArrayOutputStream out = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		OutputStream chunked = new ChunkedOutputStream(out, 16);
+		chunked.close();
+		chunked.close();
+		assertEquals("0\r\n\r\n", out.toString("ISO-8859-1"));
+		assertFalse(closed[0]);
+	}
+}
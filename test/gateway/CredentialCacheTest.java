@@ -0,0 +1,74 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CredentialCacheTest {
+
+	@Test
+	public void containsVerifiedCredentials() {
+		CredentialCache cache = new CredentialCache(10, 60000);
+		assertFalse(cache.contains("user", "password"));
+		cache.put("user", "password", cache.getInvalidationCount());
+		assertTrue(cache.contains("user", "password"));
+		assertFalse(cache.contains("user", "other"));
+		assertFalse(cache.contains("other", "password"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(3, cache.getMissCount());
+	}
+
+	@Test
+	public void usernameAndPasswordAreSeparated() {
+		CredentialCache cache = new CredentialCache(10, 60000);
+		cache.put("ab", "c", cache.getInvalidationCount());
+		assertFalse(cache.contains("a", "bc"));
+	}
+
+	@Test
+	public void invalidateRemovesUser() {
+		CredentialCache cache = new CredentialCache(10, 60000);
+		cache.put("user", "password", cache.getInvalidationCount());
+		cache.put("other", "password", cache.getInvalidationCount());
+		cache.invalidate("user");
+		assertFalse(cache.contains("user", "password"));
+		assertTrue(cache.contains("other", "password"));
+		assertEquals(1, cache.getInvalidationCount());
+	}
+
+	@Test
+	public void doesNotCacheCredentialsLookedUpBeforeInvalidation() {
+		CredentialCache cache = new CredentialCache(10, 60000);
+
+		// The password changes while the old one is being verified
+		long invalidationCount = cache.getInvalidationCount();
+		cache.invalidate("user");
+		cache.put("user", "old", invalidationCount);
+		assertFalse(cache.contains("user", "old"));
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void expiresCredentials() throws Exception {
+		CredentialCache cache = new CredentialCache(10, 20);
+		cache.put("user", "password", cache.getInvalidationCount());
+		Thread.sleep(50);
+		assertFalse(cache.contains("user", "password"));
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedUser() {
+		CredentialCache cache = new CredentialCache(2, 60000);
+		cache.put("a", "password", cache.getInvalidationCount());
+		cache.put("b", "password", cache.getInvalidationCount());
+		cache.contains("a", "password");
+		cache.put("c", "password", cache.getInvalidationCount());
+		assertTrue(cache.contains("a", "password"));
+		assertFalse(cache.contains("b", "password"));
+		assertTrue(cache.contains("c", "password"));
+		assertEquals(1, cache.getEvictionCount());
+	}
+}
@@ -0,0 +1,108 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import util.TestUtils;
+
+public class ExecutorTest {
+
+	private StubPlacesServer stub;
+	private Gateway gateway;
+	private int port;
+
+	@After
+	public void tearDown() throws Exception {
+		gateway.shutdown();
+		stub.stop();
+	}
+
+	@Test
+	public void virtualModeFallsBackWithoutVirtualThreads() throws Exception {
+		start("virtual", 10);
+		boolean supported;
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			supported = true;
+		} catch (NoSuchMethodException e) {
+			supported = false;
+		}
+		assertEquals(supported ? "virtual" : "fixed",
+				getExecutorStats().getString("mode"));
+		assertEquals(200, get("nearbysearch?location=1,2&radius=1"));
+	}
+
+	@Test
+	public void concurrencyLimitQueuesRequests() throws Exception {
+		start("fixed", 1);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		long start = System.nanoTime();
+		try {
+			List<Future<Integer>> statuses = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 3; i++) {
+				String query = "nearbysearch?location=1,2&radius=" + i;
+				statuses.add(executor.submit(() -> get(query)));
+			}
+			for (Future<Integer> status : statuses) {
+				assertEquals(200, (int) status.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// Each search waits 200 ms for the stub, one at a time
+		long millis = (System.nanoTime() - start) / 1000000;
+		assertTrue("Searches took " + millis + " ms", millis >= 600);
+		assertEquals(0, getExecutorStats().getInt("waiting"));
+	}
+
+	private void start(String mode, int maxConcurrency) throws Exception {
+		stub = new StubPlacesServer(200, 1);
+		port = TestUtils.getFreePort();
+
+		Properties properties = new Properties();
+		properties.setProperty("cache.size", "0");
+		properties.setProperty("executor.mode", mode);
+		properties.setProperty("executor.maxconcurrency",
+				String.valueOf(maxConcurrency));
+		gateway = TestUtils.startGateway(port, stub, properties);
+	}
+
+	private JSONObject getExecutorStats() throws Exception {
+		HttpURLConnection connection = TestUtils.openConnection(port, "stats");
+		try {
+			JSONArray stats = new JSONObject(TestUtils.readBody(connection))
+					.getJSONArray("results");
+			for (int i = 0; i < stats.length(); i++) {
+				if (stats.getJSONObject(i).getString("name").equals("executor")) {
+					return stats.getJSONObject(i);
+				}
+			}
+			throw new AssertionError("No executor stats");
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private int get(String path) throws Exception {
+		HttpURLConnection connection = TestUtils.openConnection(port, path);
+		try {
+			return connection.getResponseCode();
+		} finally {
+			connection.disconnect();
+		}
+	}
+}
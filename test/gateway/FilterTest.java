@@ -0,0 +1,88 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FilterTest {
+
+	private static final List<String> COLUMNS = Arrays.asList("sessionid",
+			"timestamp", "searchtype", "username", "keyword");
+	private static final Set<String> OPTIONS = new HashSet<String>(
+			Arrays.asList("username", "password", "limit", "pretty"));
+
+	@Test
+	public void conditionsFollowColumnOrder() throws Exception {
+		Filter first = filter("keyword=cafe&until=20&user=a&since=10"
+				+ "&searchtype=nearby");
+		Filter second = filter("since=10&searchtype=nearby&keyword=cafe"
+				+ "&user=a&until=20");
+		String clause = " WHERE searchtype=? AND username=? AND keyword=? "
+				+ "AND timestamp>=? AND timestamp<?";
+		assertEquals(clause, first.getClause());
+		assertEquals(clause, second.getClause());
+		assertEquals(Arrays.<Object> asList("nearby", "a", "cafe", 10L, 20L),
+				first.getParameters());
+		assertEquals(first.getParameters(), second.getParameters());
+	}
+
+	@Test
+	public void optionsAreNotConditions() throws Exception {
+		assertEquals("", filter("limit=5&pretty=true").getClause());
+	}
+
+	@Test
+	public void addedConditionsFollowFilters() throws Exception {
+		Filter filter = filter("");
+		filter.add("id<?", 5L);
+		filter.add("a=? AND b=?", 1, 2);
+		assertEquals(" WHERE id<? AND a=? AND b=?", filter.getClause());
+		assertEquals(Arrays.<Object> asList(5L, 1, 2), filter.getParameters());
+	}
+
+	@Test
+	public void usernameIsFilteredWithUserParameter() throws Exception {
+		assertEquals("user", Filter.getParameter("username"));
+		assertEquals("keyword", Filter.getParameter("keyword"));
+		assertEquals("", filter("username=a&password=b").getClause());
+	}
+
+	@Test
+	public void rejectsUnknownParameters() throws Exception {
+		for (String parameters : new String[] { "query=x",
+				"keyword=1%20OR%201=1&type=x", "since=x", "until=1.5" }) {
+			try {
+				filter(parameters);
+				fail("Accepted " + parameters);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void queriesWithSameFiltersShareSql() throws Exception {
+		Query first = new Query(new Request("/searchquery?keyword=a&user=b"
+				+ "&limit=5"), "searches", COLUMNS, OPTIONS, 20, 1000);
+		Query second = new Query(new Request("/searchquery?limit=7&user=c"
+				+ "&keyword=d"), "searches", COLUMNS, OPTIONS, 20, 1000);
+		assertEquals("SELECT id, sessionid, timestamp, searchtype, username, "
+				+ "keyword FROM searches WHERE username=? AND keyword=? "
+				+ "ORDER BY timestamp DESC, id DESC LIMIT ?;",
+				first.getQuery());
+		assertEquals(first.getQuery(), second.getQuery());
+		assertEquals(Arrays.<Object> asList("c", "d", 8),
+				second.getParameters());
+	}
+
+	private static Filter filter(String parameters) throws Exception {
+		return new Filter(new Request("/searchquery?" + parameters), COLUMNS,
+				OPTIONS);
+	}
+}
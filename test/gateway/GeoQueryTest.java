@@ -0,0 +1,148 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import db.ConnectionPool;
+import util.TestUtils;
+
+public class GeoQueryTest {
+
+	private static final List<String> RESULT_COLUMNS = Arrays.asList(
+			"sessionid", "timestamp", "username", "placeid", "lat", "lng");
+
+	private File file;
+	private ConnectionPool connectionPool;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("geoquery", ".db");
+		connectionPool = TestUtils.createDatabase(file);
+
+		Connection connection = connectionPool.getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			insert(statement, "a", "near", 0.0, 0.001);
+			insert(statement, "b", "middle", 0.005, 0.0);
+			insert(statement, "a", "far", 0.02, 0.0);
+			// Inside the bounding box of a radius of 1 km, but not the circle
+			insert(statement, "a", "corner", 0.008, 0.008);
+			insert(statement, "b", "north", 45.0, 90.0);
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		connectionPool.close();
+		file.delete();
+	}
+
+	@Test
+	public void findsResultsInRadiusNearestFirst() throws Exception {
+		assertEquals(Arrays.asList("near", "middle"),
+				find("location=0,0&radius=1000"));
+		assertEquals(Arrays.asList("near", "middle", "corner", "far"),
+				find("location=0,0&radius=5000"));
+	}
+
+	@Test
+	public void findsResultsInBounds() throws Exception {
+		assertEquals(Arrays.asList("near", "middle", "corner"),
+				find("bounds=-0.01,-0.01|0.01,0.01"));
+		assertEquals(Arrays.asList("north"), find("bounds=40,80|50,100"));
+	}
+
+	@Test
+	public void filtersAndLimitsResults() throws Exception {
+		assertEquals(Arrays.asList("near", "corner", "far"),
+				find("location=0,0&radius=5000&user=a"));
+		assertEquals(Arrays.asList("near"),
+				find("location=0,0&radius=5000&limit=1"));
+	}
+
+	@Test
+	public void convertsDistanceToMeters() throws Exception {
+		GeoQuery query = query("location=0,0&radius=1000");
+		Connection connection = connectionPool.getConnection();
+		try {
+			ResultSet resultSet = execute(connection, query);
+			resultSet.next();
+			assertEquals(111.2, GeoQuery.toMeters(resultSet
+					.getDouble("distance")), 0.1);
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void rejectsInvalidAreas() throws Exception {
+		for (String area : new String[] { "", "location=0,0", "radius=10",
+				"location=0,0&radius=10&bounds=0,0|1,1",
+				"location=91,0&radius=10", "location=0,0&radius=-1",
+				"location=0&radius=10", "bounds=0,0", "bounds=1,1|0,0",
+				"location=0,179.99&radius=10000",
+				"location=0,0&radius=10&foo=bar" }) {
+			try {
+				query(area);
+				fail("Accepted " + area);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	private static void insert(Statement statement, String username,
+			String placeId, double lat, double lng) throws Exception {
+		statement.executeUpdate(String.format("INSERT INTO results "
+				+ "(sessionid, timestamp, username, placeid, lat, lng) "
+				+ "VALUES ('%s', 1000, '%s', '%s', %s, %s);", placeId,
+				username, placeId, lat, lng));
+	}
+
+	private static GeoQuery query(String query) throws Exception {
+		return new GeoQuery(new Request("/resultsnear?" + query),
+				RESULT_COLUMNS, Collections.<String> emptySet(), 100, 1000);
+	}
+
+	private static ResultSet execute(Connection connection, GeoQuery query)
+			throws Exception {
+		PreparedStatement statement = connection.prepareStatement(query
+				.getQuery());
+		for (int i = 0; i < query.size(); i++) {
+			statement.setObject(i + 1, query.get(i));
+		}
+		return statement.executeQuery();
+	}
+
+	private List<String> find(String query) throws Exception {
+		List<String> placeIds = new ArrayList<String>();
+		Connection connection = connectionPool.getConnection();
+		try {
+			ResultSet resultSet = execute(connection, query(query));
+			while (resultSet.next()) {
+				placeIds.add(resultSet.getString("placeid"));
+			}
+			resultSet.getStatement().close();
+		} finally {
+			connection.close();
+		}
+		return placeIds;
+	}
+}
@@ -0,0 +1,95 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void bucketsHoldTheirDurations() {
+		int last = Histogram.getBucket(Long.MAX_VALUE);
+		for (int bucket = 1; bucket < last; bucket++) {
+			long lower = Histogram.getUpperBoundMicros(bucket - 1);
+			long upper = Histogram.getUpperBoundMicros(bucket);
+			assertTrue(lower < upper);
+			assertTrue(upper <= lower * 3 / 2);
+			assertEquals(bucket, Histogram.getBucket(lower));
+			assertEquals(bucket, Histogram.getBucket(upper - 1));
+		}
+		assertEquals(last, Histogram.getBucket(Histogram
+				.getUpperBoundMicros(last - 1)));
+	}
+
+	@Test
+	public void sharesFirstAndLastBuckets() {
+		assertEquals(0, Histogram.getBucket(0));
+		assertEquals(0, Histogram.getBucket(7));
+		assertEquals(1, Histogram.getBucket(8));
+		assertEquals(2, Histogram.getBucket(12));
+		assertEquals(Histogram.getBucket(1L << 25),
+				Histogram.getBucket(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void writesCumulativeBuckets() {
+		Histogram histogram = new Histogram();
+		histogram.record(5000);
+		histogram.record(10000);
+		histogram.record(11000);
+		histogram.record(100000000000L);
+		histogram.record(-1);
+
+		StringBuilder out = new StringBuilder();
+		histogram.write(out, "duration_seconds", "route=\"search\"");
+		List<String> lines = new ArrayList<String>();
+		for (String line : out.toString().split("\n")) {
+			lines.add(line);
+		}
+
+		String bucket = "duration_seconds_bucket{route=\"search\",le=";
+		assertEquals(bucket + "\"0.000008\"} 2", lines.get(0));
+		assertEquals(bucket + "\"0.000012\"} 4", lines.get(1));
+		assertEquals(bucket + "\"33.554432\"} 4", lines.get(lines.size() - 4));
+		assertEquals(bucket + "\"+Inf\"} 5", lines.get(lines.size() - 3));
+		assertEquals("duration_seconds_sum{route=\"search\"} 100.000026",
+				lines.get(lines.size() - 2));
+		assertEquals("duration_seconds_count{route=\"search\"} 5",
+				lines.get(lines.size() - 1));
+	}
+
+	@Test
+	public void writesWithoutLabels() {
+		StringBuilder out = new StringBuilder();
+		new Histogram().write(out, "duration_seconds", "");
+		assertTrue(out.toString().startsWith(
+				"duration_seconds_bucket{le=\"0.000008\"} 0\n"));
+		assertTrue(out.toString().endsWith(
+				"duration_seconds_sum 0.0\nduration_seconds_count 0\n"));
+	}
+
+	@Test
+	public void countsConcurrentDurations() throws Exception {
+		final Histogram histogram = new Histogram();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					histogram.record(j * 1000L);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		StringBuilder out = new StringBuilder();
+		histogram.write(out, "d", "");
+		assertTrue(out.toString().endsWith("d_count 80000\n"));
+	}
+}
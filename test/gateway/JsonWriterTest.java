@@ -0,0 +1,108 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+public class JsonWriterTest {
+
+	@Test
+	public void writesCompactJson() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonWriter json = new JsonWriter(out, false);
+		json.beginObject().name("a").value(1).name("b").beginArray()
+				.value("x").value(true).nullValue().beginObject().endObject()
+				.beginArray().endArray().endArray().name("c").value(1.5)
+				.endObject().close();
+		assertEquals("{\"a\":1,\"b\":[\"x\",true,null,{},[]],\"c\":1.5}\n",
+				out.toString("UTF-8"));
+	}
+
+	@Test
+	public void writesPrettyJson() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonWriter json = new JsonWriter(out, true);
+		json.beginObject().name("results").beginArray().beginObject()
+				.name("count").value(2).endObject().value("x").endArray()
+				.name("empty").beginArray().endArray().endObject().close();
+		assertEquals("{\n   \"results\": [\n      {\n         \"count\": 2\n"
+				+ "      },\n      \"x\"\n   ],\n   \"empty\": []\n}\n",
+				out.toString("UTF-8"));
+	}
+
+	@Test
+	public void escapesStrings() throws Exception {
+		String value = "quote\" backslash\\ control\u0001\b\f\n\r\t "
+				+ "latin\u00e9 cjk\u4e2d emoji\ud83d\ude00 /";
+		String written = write(value);
+		assertEquals(value, new JSONArray(written).getString(0));
+		assertEquals("[\"quote\\\" backslash\\\\ control\\u0001\\b\\f\\n\\r\\t "
+				+ "latin\u00e9 cjk\u4e2d emoji\ud83d\ude00 /\"]\n", written);
+	}
+
+	@Test
+	public void escapesUnpairedSurrogates() throws Exception {
+		assertEquals("[\"\\ud800x\\udc00\"]\n", write("\ud800x\udc00"));
+	}
+
+	@Test
+	public void writesJdbcValues() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonWriter json = new JsonWriter(out, false);
+		json.beginArray().value((Object) 1).value((Object) 2L)
+				.value((Object) 0.25).value((Object) Double.NaN)
+				.value((Object) Boolean.FALSE).value((Object) null)
+				.value((Object) new StringBuilder("s")).endArray().close();
+		assertEquals("[1,2,0.25,null,false,null,\"s\"]\n",
+				out.toString("UTF-8"));
+	}
+
+	@Test
+	public void writesOutputLargerThanBuffer() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonWriter json = new JsonWriter(out, false);
+		json.beginArray();
+		for (int i = 0; i < 10000; i++) {
+			json.value("\u00e9" + i);
+		}
+		json.endArray().close();
+
+		JSONArray array = new JSONArray(out.toString("UTF-8"));
+		assertEquals(10000, array.length());
+		assertEquals("\u00e99999", array.getString(9999));
+	}
+
+	@Test
+	public void writesDeeplyNestedArrays() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonWriter json = new JsonWriter(out, false);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			json.beginArray();
+			expected.append('[');
+		}
+		for (int i = 0; i < 40; i++) {
+			json.endArray();
+			expected.append(']');
+		}
+		json.close();
+		assertEquals(expected + "\n", out.toString("UTF-8"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsUnbalancedEnd() throws Exception {
+		new JsonWriter(new ByteArrayOutputStream(), false).endObject();
+	}
+
+	private static String write(String value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonWriter json = new JsonWriter(out, false);
+		json.beginArray().value(value).endArray().close();
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
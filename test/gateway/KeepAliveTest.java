@@ -0,0 +1,140 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Test;
+
+import util.TestUtils;
+
+public class KeepAliveTest {
+
+	private static final String REQUEST = "GET /google-places-api-gateway/unknown HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+	private Gateway gateway;
+	private int port;
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	@After
+	public void tearDown() throws Exception {
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		gateway.shutdown();
+	}
+
+	@Test
+	public void connectionsBeyondLimitAreClosed() throws Exception {
+		start("5", "5000");
+
+		int closed = 0;
+		for (int i = 0; i < 10; i++) {
+			if (!request(connect())) {
+				closed++;
+			}
+		}
+		assertEquals(5, closed);
+	}
+
+	@Test
+	public void idleConnectionsDoNotBlockNewClients() throws Exception {
+		// Every thread of the pool holds an idle connection
+		start("10", "5000");
+		for (int i = 0; i < 10; i++) {
+			assertTrue(request(connect()));
+		}
+
+		long start = System.nanoTime();
+		request(connect());
+		long millis = (System.nanoTime() - start) / 1000000;
+		assertTrue("New client waited " + millis + " ms", millis < 1000);
+	}
+
+	@Test
+	public void transferEncodingClosesConnection() throws Exception {
+		start("5", "5000");
+
+		// The chunked body holds a second request that must not be served
+		Socket socket = connect();
+		OutputStream out = socket.getOutputStream();
+		out.write(("GET /google-places-api-gateway/unknown HTTP/1.1\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n"
+				+ Integer.toHexString(REQUEST.length()) + "\r\n" + REQUEST
+				+ "\r\n0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), StandardCharsets.ISO_8859_1));
+		assertEquals("HTTP/1.1 400 Bad Request", in.readLine());
+		int responses = 1;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("HTTP/1.1 ")) {
+				responses++;
+			}
+		}
+		assertEquals(1, responses);
+	}
+
+	private void start(String maxKeepAlive, String keepAliveTimeout)
+			throws Exception {
+		port = TestUtils.getFreePort();
+
+		Properties properties = new Properties();
+		properties.setProperty("http.idletimeout", "5000");
+		properties.setProperty("http.maxkeepalive", maxKeepAlive);
+		properties.setProperty("http.keepalivetimeout", keepAliveTimeout);
+		gateway = new Gateway(port, null, properties);
+		gateway.start();
+	}
+
+	private Socket connect() throws Exception {
+		for (int attempt = 0;; attempt++) {
+			try {
+				Socket socket = new Socket("localhost", port);
+				socket.setSoTimeout(10000);
+				sockets.add(socket);
+				return socket;
+			} catch (ConnectException e) {
+				if (attempt == 50) {
+					throw e;
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Sends a request and reads the response head.
+	 *
+	 * @return True if the connection is kept open, false otherwise
+	 */
+	private boolean request(Socket socket) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(REQUEST.getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), StandardCharsets.ISO_8859_1));
+		boolean keepAlive = true;
+		String line;
+		while ((line = in.readLine()) != null && !line.isEmpty()) {
+			if (line.equalsIgnoreCase("Connection: close")) {
+				keepAlive = false;
+			}
+		}
+		return keepAlive;
+	}
+}
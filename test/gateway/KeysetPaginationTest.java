@@ -0,0 +1,144 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import db.ConnectionPool;
+import util.TestUtils;
+
+public class KeysetPaginationTest {
+
+	private static final List<String> COLUMNS = Arrays.asList("sessionid",
+			"timestamp", "username");
+
+	// Timestamps of the searches with IDs 1 to 7, with ties
+	private static final long[] TIMESTAMPS = { 100, 200, 200, 200, 300, 400,
+			400 };
+
+	private File file;
+	private ConnectionPool connectionPool;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("pagination", ".db");
+		connectionPool = TestUtils.createDatabase(file);
+
+		Connection connection = connectionPool.getConnection();
+		try {
+			Statement statement = connection.createStatement();
+			for (int i = 0; i < TIMESTAMPS.length; i++) {
+				statement.executeUpdate(String.format(
+						"INSERT INTO searches (id, sessionid, timestamp, "
+								+ "username) VALUES (%d, 's%d', %d, '%s');",
+						i + 1, i + 1, TIMESTAMPS[i], i % 2 == 0 ? "a" : "b"));
+			}
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		connectionPool.close();
+		file.delete();
+	}
+
+	@Test
+	public void pagesThroughTiesNewestFirst() throws Exception {
+		assertEquals(Arrays.asList(7L, 6L, 5L, 4L, 3L, 2L, 1L), pageAll("", 2));
+		assertEquals(Arrays.asList(7L, 6L, 5L, 4L, 3L, 2L, 1L), pageAll("", 3));
+	}
+
+	@Test
+	public void pagesWithinFiltersAndTimeRange() throws Exception {
+		assertEquals(Arrays.asList(7L, 5L, 3L, 1L), pageAll("user=a&", 1));
+		assertEquals(Arrays.asList(5L, 4L, 3L, 2L),
+				pageAll("since=200&until=400&", 3));
+	}
+
+	@Test
+	public void limitIsCapped() throws Exception {
+		Query query = query("limit=5000", 2);
+		assertEquals(1000, query.getLimit());
+		assertEquals(1001, query.get(query.size() - 1));
+	}
+
+	@Test
+	public void rejectsInvalidParameters() throws Exception {
+		for (String parameters : new String[] { "limit=0", "limit=x",
+				"cursor=bm9jb2xvbg", "cursor=!", "since=yesterday" }) {
+			try {
+				query(parameters, 2);
+				fail("Accepted " + parameters);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	/**
+	 * Reads every page of a query the way clients do, following the cursor
+	 * of the last record of each full page.
+	 */
+	private List<Long> pageAll(String parameters, int limit) throws Exception {
+		List<Long> ids = new ArrayList<Long>();
+		String cursor = null;
+		do {
+			Query query = query(parameters + "limit=" + limit
+					+ (cursor != null ? "&cursor=" + cursor : ""), limit);
+			List<long[]> rows = execute(query);
+			cursor = null;
+			for (int i = 0; i < rows.size() && i < query.getLimit(); i++) {
+				ids.add(rows.get(i)[0]);
+			}
+			if (rows.size() > query.getLimit()) {
+				long[] last = rows.get(query.getLimit() - 1);
+				cursor = Query.encodeCursor(last[1], last[0]);
+			}
+		} while (cursor != null);
+		return ids;
+	}
+
+	private static Query query(String parameters, int defaultLimit)
+			throws Exception {
+		return new Query(new Request("/searchquery?" + parameters),
+				"searches", COLUMNS, Collections.<String> emptySet(),
+				defaultLimit, 1000);
+	}
+
+	private List<long[]> execute(Query query) throws Exception {
+		List<long[]> rows = new ArrayList<long[]>();
+		Connection connection = connectionPool.getConnection();
+		try {
+			PreparedStatement statement = connection.prepareStatement(query
+					.getQuery());
+			for (int i = 0; i < query.size(); i++) {
+				statement.setObject(i + 1, query.get(i));
+			}
+			ResultSet resultSet = statement.executeQuery();
+			while (resultSet.next()) {
+				rows.add(new long[] { resultSet.getLong("id"),
+						resultSet.getLong("timestamp") });
+			}
+			statement.close();
+		} finally {
+			connection.close();
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,110 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.HttpURLConnection;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import util.TestUtils;
+
+public class MetricsTest {
+
+	private StubPlacesServer stub;
+	private Gateway gateway;
+	private int port;
+
+	@After
+	public void tearDown() throws Exception {
+		if (gateway != null) {
+			gateway.shutdown();
+		}
+		if (stub != null) {
+			stub.stop();
+		}
+	}
+
+	@Test
+	public void writesCountersAndGauges() {
+		Metrics metrics = new Metrics();
+		AtomicLong count = new AtomicLong(3);
+		metrics.counter("requests_total", "Requests", () -> count.get(),
+				"route", "search");
+		metrics.counter("requests_total", "Requests", () -> 1, "route",
+				"other");
+		metrics.gauge("ratio", "A \"ratio\"", () -> 0.25);
+		count.incrementAndGet();
+
+		assertEquals("# HELP requests_total Requests\n"
+				+ "# TYPE requests_total counter\n"
+				+ "requests_total{route=\"search\"} 4\n"
+				+ "requests_total{route=\"other\"} 1\n"
+				+ "# HELP ratio A \"ratio\"\n" + "# TYPE ratio gauge\n"
+				+ "ratio 0.25\n", metrics.write());
+	}
+
+	@Test
+	public void escapesLabelValues() {
+		Metrics metrics = new Metrics();
+		metrics.gauge("g", "G", () -> 1, "a", "x\"y\\z\nw", "b", "c");
+		assertTrue(metrics.write().contains(
+				"g{a=\"x\\\"y\\\\z\\nw\",b=\"c\"} 1\n"));
+	}
+
+	@Test
+	public void writesHistograms() {
+		Metrics metrics = new Metrics();
+		metrics.histogram("d_seconds", "D", "route", "a").record(1000000);
+		String written = metrics.write();
+		assertTrue(written.startsWith("# HELP d_seconds D\n"
+				+ "# TYPE d_seconds histogram\n"));
+		assertTrue(written.contains("d_seconds_count{route=\"a\"} 1\n"));
+		assertTrue(written.contains("d_seconds_sum{route=\"a\"} 0.001\n"));
+	}
+
+	@Test
+	public void rejectsInvalidRegistrations() {
+		Metrics metrics = new Metrics();
+		metrics.counter("m", "M", () -> 0);
+		try {
+			metrics.gauge("m", "M", () -> 0);
+			fail("Registered a gauge with the name of a counter");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			metrics.gauge("n", "N", () -> 0, "label");
+			fail("Registered a label without a value");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void gatewayServesMetrics() throws Exception {
+		stub = new StubPlacesServer(0, 1);
+		port = TestUtils.getFreePort();
+		gateway = TestUtils.startGateway(port, stub, new Properties());
+
+		HttpURLConnection connection = TestUtils.openConnection(port,
+				"nearbysearch?location=1,2&radius=1");
+		assertEquals(200, connection.getResponseCode());
+		TestUtils.readBody(connection);
+
+		connection = TestUtils.openConnection(port, "metrics");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals(Metrics.CONTENT_TYPE, connection.getContentType());
+		String metrics = TestUtils.readBody(connection);
+		assertTrue(metrics.contains("# TYPE gateway_request_duration_seconds "
+				+ "histogram\n"));
+		assertTrue(metrics.contains("gateway_request_duration_seconds_count"
+				+ "{route=\"nearbysearch\"} 1\n"));
+		assertTrue(metrics.contains("gateway_upstream_duration_seconds_count"
+				+ "{searchtype=\"nearby\"} 1\n"));
+	}
+}
@@ -0,0 +1,160 @@
+package gateway;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import util.TestUtils;
+
+public class NioServerTest {
+
+	private static final List<String> HEADERS = Collections
+			.singletonList("Content-Type: application/octet-stream");
+
+	private ServerSocketChannel serverChannel;
+	private Thread acceptor;
+	private ExecutorService executor;
+	private NioServer server;
+
+	private byte[] body;
+	private final AtomicLong streamed = new AtomicLong();
+	private final CountDownLatch failed = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws Exception {
+		body = new byte[1 << 20];
+		new Random(1).nextBytes(body);
+
+		executor = Executors.newFixedThreadPool(2);
+		server = new NioServer(1, executor, this::handle, 8192, 5000, 300,
+				TestUtils.silentLog());
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress("localhost", 0));
+		acceptor = new Thread(() -> {
+			try {
+				while (true) {
+					SocketChannel channel = serverChannel.accept();
+					server.register(channel);
+				}
+			} catch (IOException e) {
+				// The server socket was closed
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		serverChannel.close();
+		server.close();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void writesLargeResponses() throws Exception {
+		Socket socket = connect();
+		OutputStream out = socket.getOutputStream();
+		String request = "GET /fixed HTTP/1.1\r\n\r\n";
+		out.write((request + request).getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		for (int i = 0; i < 2; i++) {
+			assertEquals(body.length, readHead(in));
+			byte[] received = new byte[body.length];
+			in.readFully(received);
+			assertArrayEquals(body, received);
+		}
+		socket.close();
+	}
+
+	@Test
+	public void closesStalledConnections() throws Exception {
+		Socket socket = new Socket();
+		socket.setReceiveBufferSize(4096);
+		socket.connect(serverChannel.getLocalAddress());
+		socket.getOutputStream().write(
+				"GET /endless HTTP/1.1\r\n\r\n"
+						.getBytes(StandardCharsets.ISO_8859_1));
+
+		// The client never reads, so the handler must give up
+		assertTrue(failed.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 100 && server.getStallCount() == 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, server.getStallCount());
+		assertEquals(0, server.getOpenCount());
+		assertTrue(streamed.get() < 64 << 20);
+		socket.close();
+	}
+
+	private Response handle(RequestHead head, OutputStream out, int requests)
+			throws IOException {
+		Response response = new Response(out, head.isHttp11(),
+				head.isKeepAlive());
+		if (head.getTarget().equals("/fixed")) {
+			response.send(200, "OK", HEADERS, body);
+			return response;
+		}
+
+		try {
+			OutputStream stream = response.stream(200, "OK", HEADERS);
+			for (int i = 0; i < 64; i++) {
+				stream.write(body);
+				streamed.addAndGet(body.length);
+			}
+			stream.close();
+		} catch (IOException e) {
+			failed.countDown();
+			throw e;
+		}
+		return response;
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		socket.connect(serverChannel.getLocalAddress());
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+	/**
+	 * Reads a response head.
+	 *
+	 * @return The content length of the response
+	 */
+	private static long readHead(InputStream in) throws IOException {
+		long contentLength = -1;
+		String line;
+		while (!(line = HttpStreams.readLine(in, 8192)).isEmpty()) {
+			if (line.startsWith("Content-Length: ")) {
+				contentLength = Long.parseLong(line.substring(16));
+			}
+		}
+		return contentLength;
+	}
+}
@@ -0,0 +1,114 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class PlaceResultScannerTest {
+
+	private static final String RESPONSE = "{\n"
+			+ "   \"html_attributions\" : [ \"status\" ],\n"
+			+ "   \"results\" : [\n"
+			+ "      {\n"
+			+ "         \"geometry\" : {\n"
+			+ "            \"location\" : { \"lat\" : 37.4219999, \"lng\" : -122.0840575 },\n"
+			+ "            \"viewport\" : { \"northeast\" : { \"lat\" : 40.0, \"lng\" : -120.0 } }\n"
+			+ "         },\n"
+			+ "         \"opening_hours\" : { \"open_now\" : true, \"status\" : \"OPEN\" },\n"
+			+ "         \"place_id\" : \"ChIJ2eUgeAK6j4ARbn5u_wAGqWA\",\n"
+			+ "         \"types\" : [ \"cafe\", { \"place_id\" : \"nested\" } ],\n"
+			+ "         \"rating\" : 4.5e0\n"
+			+ "      },\n"
+			+ "      {\n"
+			+ "         \"place_id\" : \"no location\"\n"
+			+ "      },\n"
+			+ "      {\n"
+			+ "         \"place_id\" : \"second\",\n"
+			+ "         \"geometry\" : { \"location\" : { \"lng\" : 1.5e2, \"lat\" : -0.25 } }\n"
+			+ "      }\n"
+			+ "   ],\n"
+			+ "   \"status\" : \"OK\"\n"
+			+ "}\n";
+
+	@Test
+	public void extractsStatusAndResults() throws Exception {
+		assertResults(scan(RESPONSE, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void extractsResultsFromPieces() throws Exception {
+		assertResults(scan(RESPONSE, 1));
+		assertResults(scan(RESPONSE, 7));
+	}
+
+	@Test
+	public void decodesEscapes() throws Exception {
+		PlaceResultScanner scanner = scan("{\"results\":[{\"place_id\":"
+				+ "\"a\\u00e9\\\"\\n\\ud83d\\ude00\u00fc\",\"geometry\":"
+				+ "{\"location\":{\"lat\":1,\"lng\":2}}}],"
+				+ "\"st\\u0061tus\":\"ZERO_RESULTS\"}", 3);
+		assertEquals("a\u00e9\"\n\ud83d\ude00\u00fc", scanner.getPlaceId(0));
+		assertEquals("ZERO_RESULTS", scanner.getStatus());
+	}
+
+	@Test
+	public void parsesNumbersExactly() throws Exception {
+		String[] numbers = { "37.4219999", "-122.0840575", "0.1",
+				"123456789.123456", "1e-3", "-0", "179.99999999999999999" };
+		for (String number : numbers) {
+			PlaceResultScanner scanner = scan("{\"results\":[{\"place_id\":"
+					+ "\"p\",\"geometry\":{\"location\":{\"lat\":" + number
+					+ ",\"lng\":0}}}]}", Integer.MAX_VALUE);
+			assertEquals(number, Double.parseDouble(number),
+					scanner.getLat(0), 0);
+		}
+	}
+
+	@Test
+	public void responseWithoutStatus() throws Exception {
+		PlaceResultScanner scanner = scan("{\"results\":[]}", 1);
+		assertNull(scanner.getStatus());
+		assertEquals(0, scanner.getResultCount());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsIncompleteResponse() throws Exception {
+		scan("{\"status\":\"OK\"", Integer.MAX_VALUE);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsMismatchedBrackets() throws Exception {
+		scan("{\"results\":[}]", Integer.MAX_VALUE);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsInvalidCharacters() throws Exception {
+		scan("{\"status\":@}", Integer.MAX_VALUE);
+	}
+
+	private static void assertResults(PlaceResultScanner scanner) {
+		assertEquals("OK", scanner.getStatus());
+		assertEquals(2, scanner.getResultCount());
+		assertEquals("ChIJ2eUgeAK6j4ARbn5u_wAGqWA", scanner.getPlaceId(0));
+		assertEquals(37.4219999, scanner.getLat(0), 0);
+		assertEquals(-122.0840575, scanner.getLng(0), 0);
+		assertEquals("second", scanner.getPlaceId(1));
+		assertEquals(-0.25, scanner.getLat(1), 0);
+		assertEquals(150, scanner.getLng(1), 0);
+	}
+
+	private static PlaceResultScanner scan(String response, int pieceLength)
+			throws IOException {
+		byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+		PlaceResultScanner scanner = new PlaceResultScanner();
+		for (int i = 0; i < bytes.length; i += pieceLength) {
+			scanner.update(bytes, i, Math.min(pieceLength, bytes.length - i));
+		}
+		scanner.finish();
+		return scanner;
+	}
+}
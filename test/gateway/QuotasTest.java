@@ -0,0 +1,170 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import db.ConnectionPool;
+import log.Log;
+import util.TestUtils;
+
+public class QuotasTest {
+
+	private static final long TIMESTAMP = 1420070400000L;
+
+	private File file;
+	private ConnectionPool connectionPool;
+	private Log log;
+
+	private StubPlacesServer stub;
+	private Gateway gateway;
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("quotas", ".db");
+		connectionPool = TestUtils.openDatabase(file);
+		log = TestUtils.silentLog();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (gateway != null) {
+			gateway.shutdown();
+		}
+		if (stub != null) {
+			stub.stop();
+		}
+		connectionPool.close();
+		file.delete();
+	}
+
+	@Test
+	public void refusesSearchesPastQuota() throws Exception {
+		Quotas quotas = new Quotas(null, 2, 1, log);
+		assertTrue(quotas.acquire("user", TIMESTAMP));
+		assertTrue(quotas.acquire("user", TIMESTAMP));
+		assertFalse(quotas.acquire("user", TIMESTAMP));
+		assertTrue(quotas.acquire("other", TIMESTAMP));
+		assertTrue(quotas.acquire(null, TIMESTAMP));
+		assertFalse(quotas.acquire(null, TIMESTAMP));
+		assertEquals(2, quotas.getExceededCount());
+	}
+
+	@Test
+	public void resetsQuotaEachDay() throws Exception {
+		Quotas quotas = new Quotas(null, 1, 1, log);
+		assertTrue(quotas.acquire("user", TIMESTAMP));
+		assertFalse(quotas.acquire("user", TIMESTAMP));
+		assertEquals(24 * 60 * 60 * 1000, quotas.getResetMillis(TIMESTAMP));
+		assertTrue(quotas.acquire("user",
+				TIMESTAMP + quotas.getResetMillis(TIMESTAMP)));
+	}
+
+	@Test
+	public void releasedSearchesAreNotCounted() throws Exception {
+		Quotas quotas = new Quotas(null, 1, 1, log);
+		assertTrue(quotas.acquire("user", TIMESTAMP));
+		quotas.release("user", TIMESTAMP);
+		assertTrue(quotas.acquire("user", TIMESTAMP));
+		assertFalse(quotas.acquire("user", TIMESTAMP));
+	}
+
+	@Test
+	public void countsCarryOverRestart() throws Exception {
+		TestUtils.migrate(connectionPool);
+		Quotas quotas = new Quotas(connectionPool, 3, 3, log);
+		assertTrue(quotas.acquire("user", TIMESTAMP));
+		assertTrue(quotas.acquire("user", TIMESTAMP));
+		quotas.flush();
+
+		quotas = new Quotas(connectionPool, 3, 3, log);
+		assertTrue(quotas.acquire("user", TIMESTAMP));
+		assertFalse(quotas.acquire("user", TIMESTAMP));
+	}
+
+	@Test
+	public void failedReadRefusesSearchUntilCountIsRead() throws Exception {
+		// The database has no daily_usage table until it is migrated
+		Quotas quotas = new Quotas(connectionPool, 1, 1, log);
+		try {
+			quotas.acquire("user", TIMESTAMP);
+			fail("Search counted without reading the count");
+		} catch (SQLException e) {
+			// Expected
+		}
+		assertEquals(1, quotas.getReadFailureCount());
+
+		TestUtils.migrate(connectionPool);
+		assertTrue(quotas.acquire("user", TIMESTAMP));
+		assertFalse(quotas.acquire("user", TIMESTAMP));
+	}
+
+	@Test
+	public void cachedSearchesAreNotCounted() throws Exception {
+		start(0, 1);
+		assertEquals(200, search("radius=1"));
+		assertEquals(200, search("radius=1"));
+		assertEquals(429, search("radius=2"));
+		assertEquals(1, stub.getSearchCount());
+	}
+
+	@Test
+	public void coalescedSearchesAreNotCounted() throws Exception {
+		start(500, 3);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			List<Future<Integer>> statuses = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 3; i++) {
+				statuses.add(executor.submit(() -> search("radius=1")));
+			}
+			for (Future<Integer> status : statuses) {
+				assertEquals(200, (int) status.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, stub.getSearchCount());
+
+		assertEquals(200, search("radius=2"));
+		assertEquals(200, search("radius=3"));
+		assertEquals(429, search("radius=4"));
+	}
+
+	private void start(long delayMillis, int quota) throws Exception {
+		stub = new StubPlacesServer(delayMillis, 1);
+		port = TestUtils.getFreePort();
+
+		// Only the response cache or coalescing avoid a search
+		Properties properties = new Properties();
+		properties.setProperty("cache.size", delayMillis > 0 ? "0" : "100");
+		properties.setProperty("api.coalesce", String.valueOf(delayMillis > 0));
+		properties.setProperty("quota.anon.daily", String.valueOf(quota));
+		gateway = TestUtils.startGateway(port, stub, properties);
+	}
+
+	private int search(String query) throws Exception {
+		HttpURLConnection connection = TestUtils.openConnection(port,
+				"nearbysearch?location=1,2&" + query);
+		try {
+			return connection.getResponseCode();
+		} finally {
+			connection.disconnect();
+		}
+	}
+}
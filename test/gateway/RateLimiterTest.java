@@ -0,0 +1,58 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+	@Test
+	public void limitsEachUser() {
+		RateLimiter limiter = new RateLimiter(0.001, 2, 0, 1, 0, 1);
+		assertEquals(0, limiter.acquire("a"));
+		assertEquals(0, limiter.acquire("a"));
+		assertTrue(limiter.acquire("a") > 0);
+		assertEquals(0, limiter.acquire("b"));
+		assertEquals(2, limiter.getUserCount());
+		assertEquals(3, limiter.getAllowedCount());
+		assertEquals(1, limiter.getRefusedCount(RateLimiter.Scope.USER));
+	}
+
+	@Test
+	public void limitsAnonymousClientsTogether() {
+		RateLimiter limiter = new RateLimiter(0, 1, 0.001, 1, 0, 1);
+		assertEquals(0, limiter.acquire(null));
+		assertTrue(limiter.acquire(null) > 0);
+		assertEquals(0, limiter.acquire("a"));
+		assertEquals(0, limiter.acquire("a"));
+		assertEquals(1, limiter.getRefusedCount(RateLimiter.Scope.ANONYMOUS));
+	}
+
+	@Test
+	public void globalRefusalDoesNotCountAgainstUser() {
+		RateLimiter limiter = new RateLimiter(0.001, 1, 0, 1, 0.001, 1);
+		assertEquals(0, limiter.acquire(null));
+		assertTrue(limiter.acquire("a") > 0);
+		assertTrue(limiter.acquire("a") > 0);
+		assertEquals(0, limiter.getRefusedCount(RateLimiter.Scope.USER));
+		assertEquals(2, limiter.getRefusedCount(RateLimiter.Scope.GLOBAL));
+	}
+
+	@Test
+	public void newUsersGetTheirBurst() {
+		RateLimiter limiter = new RateLimiter(10, 1, 0, 1, 0, 1);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(0, limiter.acquire("user" + i));
+		}
+	}
+
+	@Test
+	public void discardsFullBuckets() {
+		RateLimiter limiter = new RateLimiter(1000000, 1, 0, 1, 0, 1);
+		for (int i = 0; i < 5000; i++) {
+			assertEquals(0, limiter.acquire("user" + i));
+		}
+		assertTrue(limiter.getUserCount() < 5000);
+	}
+}
@@ -0,0 +1,91 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class RequestHeadTest {
+
+	@Test
+	public void readsRequestLine() throws Exception {
+		RequestHead head = read("\r\nGET /path?a=b HTTP/1.1\r\nHost: x\r\n\r\n");
+		assertTrue(head.isValid());
+		assertEquals("GET", head.getMethod());
+		assertEquals("/path?a=b", head.getTarget());
+		assertTrue(head.isHttp11());
+		assertTrue(head.isKeepAlive());
+		assertEquals(0, head.getContentLength());
+	}
+
+	@Test
+	public void rejectsInvalidRequests() throws Exception {
+		assertFalse(read("POST / HTTP/1.1\r\n\r\n").isValid());
+		assertFalse(read("GET / HTTP/2.0\r\n\r\n").isValid());
+		assertFalse(read("GET /\r\n\r\n").isValid());
+		assertFalse(read("GET / HTTP/1.1 extra\r\n\r\n").isValid());
+	}
+
+	@Test
+	public void returnsNullForIncompleteHead() throws Exception {
+		assertNull(read(""));
+		assertNull(read("\r\n\r\n"));
+		assertNull(read("GET / HTTP/1.1\r\nHost: x\r\n"));
+	}
+
+	@Test
+	public void parsesConnectionOptions() throws Exception {
+		assertFalse(read("GET / HTTP/1.0\r\n\r\n").isKeepAlive());
+		assertTrue(read("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n")
+				.isKeepAlive());
+		assertFalse(read("GET / HTTP/1.1\r\nConnection: close\r\n\r\n")
+				.isKeepAlive());
+		assertFalse(read(
+				"GET / HTTP/1.1\r\nConnection: TE, close\r\n\r\n")
+				.isKeepAlive());
+		assertFalse(read(
+				"GET / HTTP/1.0\r\nConnection: keep-alive , close\r\n\r\n")
+				.isKeepAlive());
+		assertTrue(read(
+				"GET / HTTP/1.0\r\nConnection: upgrade,keep-alive\r\n\r\n")
+				.isKeepAlive());
+	}
+
+	@Test
+	public void readsContentLength() throws Exception {
+		assertEquals(5, read(
+				"GET / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\n")
+				.getContentLength());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsInvalidContentLength() throws Exception {
+		read("GET / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsConflictingContentLengths() throws Exception {
+		read("GET / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\n");
+	}
+
+	@Test
+	public void refusesTransferEncoding() throws Exception {
+		RequestHead head = read("GET / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n"
+				+ "Content-Length: 5\r\n\r\n");
+		assertTrue(head.hasTransferEncoding());
+		assertFalse(head.isValid());
+		assertFalse(head.isKeepAlive());
+		assertEquals(0, head.getContentLength());
+	}
+
+	private static RequestHead read(String head) throws IOException {
+		return RequestHead.read(new ByteArrayInputStream(
+				head.getBytes(StandardCharsets.ISO_8859_1)), 8192);
+	}
+}
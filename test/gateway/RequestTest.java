@@ -0,0 +1,148 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class RequestTest {
+
+	private static final Set<String> CREDENTIALS = new HashSet<String>(
+			Arrays.asList("username", "password"));
+	private static final Set<String> NONE = Collections.<String> emptySet();
+
+	@Test
+	public void parsesPathAndQuery() throws Exception {
+		Request request = new Request("/path/search?a=1&b=2#fragment");
+		assertEquals("/path/search", request.getPath());
+		assertEquals("a=1&b=2", request.getQuery());
+		assertEquals("1", request.get("a"));
+		assertEquals("2", request.get("b"));
+		assertNull(request.get("c"));
+		assertEquals(2, request.size());
+
+		request = new Request("/path#a?b=1");
+		assertEquals("/path", request.getPath());
+		assertEquals("", request.getQuery());
+		assertEquals(0, request.size());
+	}
+
+	@Test
+	public void decodesNamesAndValues() throws Exception {
+		Request request = new Request("/?na%6De=a+b%20c&x=%E2%82%AC&y=%c3%a9"
+				+ "&z=a=b&%3D=%26");
+		assertEquals("a b c", request.get("name"));
+		assertEquals("\u20ac", request.get("x"));
+		assertEquals("\u00e9", request.get("y"));
+		assertEquals("a=b", request.get("z"));
+		assertEquals("&", request.get("="));
+		assertNull(request.get("na%6De"));
+	}
+
+	@Test
+	public void ignoresParametersWithoutValue() throws Exception {
+		Request request = new Request("/?a&b=&=c&&d=1");
+		assertNull(request.get("a"));
+		assertNull(request.get("b"));
+		assertNull(request.get(""));
+		assertEquals("1", request.get("d"));
+		assertEquals(Collections.singletonMap("d", "1"),
+				request.getParameters());
+	}
+
+	@Test
+	public void keepsRepeatedParametersInOrder() throws Exception {
+		Request request = new Request("/?a=1&b=2&a=3&a=4");
+		assertEquals("1", request.get("a"));
+		assertEquals(Arrays.asList("1", "3", "4"), request.getAll("a"));
+		assertEquals(Collections.emptyList(), request.getAll("c"));
+		assertEquals(2, request.size());
+	}
+
+	@Test
+	public void rejectsInvalidQueries() throws Exception {
+		for (String target : new String[] { "/?a=%", "/?a=%2", "/?a=%2g",
+				"/?a=%g2&b=1", "/?a=\u0100" }) {
+			try {
+				new Request(target);
+				fail("Accepted " + target);
+			} catch (MalformedURLException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void limitsParameters() throws Exception {
+		StringBuilder target = new StringBuilder("/?");
+		for (int i = 0; i < Request.MAX_PARAMETERS; i++) {
+			target.append("p").append(i).append("=").append(i).append("&");
+		}
+		Request request = new Request(target.toString());
+		assertEquals(Request.MAX_PARAMETERS, request.size());
+		assertEquals("63", request.get("p63"));
+
+		try {
+			new Request(target.append("x=1").toString());
+			fail("Accepted too many parameters");
+		} catch (MalformedURLException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void excludesCredentialsFromQuery() throws Exception {
+		Request request = new Request("/?username=u&location=1%2C2"
+				+ "&pass%77ord=p&radius=5&password=q");
+		assertEquals("location=1%2C2&radius=5",
+				request.getQuery(CREDENTIALS));
+		assertEquals("location=1,2&radius=5",
+				request.getCanonicalQuery(CREDENTIALS));
+	}
+
+	@Test
+	public void canonicalQueryKeepsForwardedParameters() throws Exception {
+		// Parameters without a name or value are sent to the API, so a search
+		// with them is a different search
+		String plain = new Request("/?location=1,2&radius=5")
+				.getCanonicalQuery(CREDENTIALS);
+		for (String flag : new String[] { "opennow", "opennow=", "=x",
+				"open%6Eow" }) {
+			Request request = new Request("/?location=1,2&radius=5&" + flag
+					+ "&username=u&password");
+			assertNotEquals(flag, plain,
+					request.getCanonicalQuery(CREDENTIALS));
+		}
+		assertEquals("=x&location=1,2&opennow&opennow=&radius=5",
+				new Request("/?radius=5&opennow&location=1,2&opennow=&=x")
+						.getCanonicalQuery(NONE));
+		assertEquals(new Request("/?opennow").getCanonicalQuery(NONE),
+				new Request("/?open%6Eow").getCanonicalQuery(NONE));
+	}
+
+	@Test
+	public void canonicalQueryIsSortedAndEncoded() throws Exception {
+		String canonical = new Request("/?b=2&a=1&c=x&a=0")
+				.getCanonicalQuery(NONE);
+		assertEquals("a=1&a=0&b=2&c=x", canonical);
+
+		// The same parameters in any encoding have the same canonical form
+		assertEquals(new Request("/?q=a+b&k=%3D%26").getCanonicalQuery(NONE),
+				new Request("/?k=%3d%26&q=a%20b").getCanonicalQuery(NONE));
+		assertEquals("k=%3D%26&q=a%20b&v=a%3Db&x=%E2%82%AC",
+				new Request("/?x=%E2%82%AC&q=a+b&v=a=b&k=%3D%26")
+						.getCanonicalQuery(NONE));
+
+		// Names that are prefixes of others sort first
+		assertEquals("ab=1&abc=2", new Request("/?abc=2&ab=1")
+				.getCanonicalQuery(NONE));
+	}
+}
@@ -0,0 +1,119 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ResponseCacheTest {
+
+	private static final UpstreamResponse RESPONSE = new UpstreamResponse(
+			200, "OK", Collections.<String> emptyList(), new byte[0]);
+
+	@Test
+	public void returnsCachedResponses() {
+		ResponseCache cache = create(2, ResponseCache.EvictionPolicy.LRU);
+		assertNull(cache.get("a"));
+		cache.put("a", "nearby", RESPONSE);
+		assertSame(RESPONSE, cache.get("a"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		ResponseCache cache = create(2, ResponseCache.EvictionPolicy.LRU);
+		cache.put("a", "nearby", RESPONSE);
+		cache.put("b", "nearby", RESPONSE);
+		cache.get("a");
+		cache.put("c", "nearby", RESPONSE);
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void evictsLeastFrequentlyUsed() {
+		ResponseCache cache = create(2, ResponseCache.EvictionPolicy.LFU);
+		cache.put("a", "nearby", RESPONSE);
+		cache.put("b", "nearby", RESPONSE);
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+		cache.put("c", "nearby", RESPONSE);
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void replacingEntryDoesNotEvict() {
+		ResponseCache cache = create(1, ResponseCache.EvictionPolicy.LRU);
+		cache.put("a", "nearby", RESPONSE);
+		cache.put("a", "nearby", RESPONSE);
+		assertEquals(1, cache.getSize());
+		assertEquals(0, cache.getEvictionCount());
+	}
+
+	@Test
+	public void expiresEntries() throws Exception {
+		Map<String, Long> ttls = new HashMap<String, Long>();
+		ttls.put("text", 20L);
+		ResponseCache cache = new ResponseCache(2, 60000, ttls,
+				ResponseCache.EvictionPolicy.LRU);
+		cache.put("a", "text", RESPONSE);
+		cache.put("b", "nearby", RESPONSE);
+		Thread.sleep(50);
+		assertNull(cache.get("a"));
+		assertNotNull(cache.get("b"));
+		assertEquals(1, cache.getExpirationCount());
+	}
+
+	@Test
+	public void evictsExpiredEntryFirst() throws Exception {
+		Map<String, Long> ttls = new HashMap<String, Long>();
+		ttls.put("text", 20L);
+		ResponseCache cache = new ResponseCache(2, 60000, ttls,
+				ResponseCache.EvictionPolicy.LFU);
+		cache.put("a", "nearby", RESPONSE);
+		cache.put("b", "text", RESPONSE);
+		cache.get("b");
+		Thread.sleep(50);
+		cache.put("c", "nearby", RESPONSE);
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertEquals(0, cache.getEvictionCount());
+		assertEquals(1, cache.getExpirationCount());
+	}
+
+	@Test
+	public void doesNotCacheDisabledSearchTypes() {
+		Map<String, Long> ttls = new HashMap<String, Long>();
+		ttls.put("radar", 0L);
+		ResponseCache cache = new ResponseCache(2, 60000, ttls,
+				ResponseCache.EvictionPolicy.LRU);
+		assertTrue(cache.isCached("nearby"));
+		assertFalse(cache.isCached("radar"));
+		cache.put("a", "radar", RESPONSE);
+		assertEquals(0, cache.getSize());
+
+		assertFalse(create(0, ResponseCache.EvictionPolicy.LRU).isCached(
+				"nearby"));
+	}
+
+	private static ResponseCache create(int maxSize,
+			ResponseCache.EvictionPolicy evictionPolicy) {
+		return new ResponseCache(maxSize, 60000,
+				Collections.<String, Long> emptyMap(), evictionPolicy);
+	}
+}
@@ -0,0 +1,133 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class RollupTest {
+
+	private static final long INTERVAL = 60 * 1000;
+	private static final long NOW = 1420070400000L;
+
+	@Test
+	public void countsSearchesInPeriods() throws Exception {
+		Rollup rollup = new Rollup(3, INTERVAL, 10);
+		rollup.record(NOW, "nearby", "a", "OK", 20, false);
+		rollup.record(NOW + 1, "nearby", "b", "OK", 5, true);
+		rollup.record(NOW - INTERVAL, "text", null, "ZERO_RESULTS", 0, false);
+
+		JSONArray periods = write(rollup, NOW);
+		assertEquals(3, periods.length());
+
+		JSONObject period = periods.getJSONObject(0);
+		assertEquals(NOW, period.getLong("start"));
+		assertEquals(2, period.getLong("searches"));
+		assertEquals(25, period.getLong("results"));
+		assertEquals(1, period.getLong("cached"));
+		assertEquals(2, period.getJSONObject("searchtypes").getLong("nearby"));
+		assertFalse(period.getJSONObject("searchtypes").has("text"));
+		assertEquals(2, period.getJSONObject("statuses").getLong("OK"));
+		assertEquals(1, period.getJSONObject("users").getLong("a"));
+		assertEquals(1, period.getJSONObject("users").getLong("b"));
+		assertEquals(0, period.getLong("anonymous"));
+
+		period = periods.getJSONObject(1);
+		assertEquals(NOW - INTERVAL, period.getLong("start"));
+		assertEquals(1, period.getLong("searches"));
+		assertEquals(1, period.getLong("anonymous"));
+		assertEquals(1,
+				period.getJSONObject("statuses").getLong("ZERO_RESULTS"));
+
+		// Periods without searches are still written
+		period = periods.getJSONObject(2);
+		assertEquals(NOW - 2 * INTERVAL, period.getLong("start"));
+		assertEquals(0, period.getLong("searches"));
+		assertFalse(period.has("results"));
+	}
+
+	@Test
+	public void forgetsPeriodsOutsideRing() throws Exception {
+		Rollup rollup = new Rollup(2, INTERVAL, 10);
+		rollup.record(NOW, "nearby", "a", "OK", 1, false);
+		rollup.record(NOW + 2 * INTERVAL, "nearby", "a", "OK", 1, false);
+
+		// The new period took the place of the first in the ring
+		JSONArray periods = write(rollup, NOW);
+		assertEquals(0, periods.getJSONObject(0).getLong("searches"));
+
+		periods = write(rollup, NOW + 3 * INTERVAL);
+		assertEquals(0, periods.getJSONObject(0).getLong("searches"));
+		assertEquals(1, periods.getJSONObject(1).getLong("searches"));
+	}
+
+	@Test
+	public void lateSearchesCountInNewerPeriod() throws Exception {
+		Rollup rollup = new Rollup(2, INTERVAL, 10);
+		rollup.record(NOW + 2 * INTERVAL, "nearby", "a", "OK", 1, false);
+		rollup.record(NOW, "nearby", "a", "OK", 1, false);
+
+		JSONArray periods = write(rollup, NOW + 2 * INTERVAL);
+		assertEquals(2, periods.getJSONObject(0).getLong("searches"));
+		assertEquals(0, periods.getJSONObject(1).getLong("searches"));
+	}
+
+	@Test
+	public void countsUsersWithoutSlotTogether() throws Exception {
+		Rollup rollup = new Rollup(1, INTERVAL, 2);
+		for (String username : new String[] { "a", "b", "c", "d", "a" }) {
+			rollup.record(NOW, "nearby", username, "OK", 1, false);
+		}
+
+		JSONObject period = write(rollup, NOW).getJSONObject(0);
+		JSONObject users = period.getJSONObject("users");
+		assertEquals(2, users.length());
+		assertEquals(2, users.getLong("a"));
+		assertEquals(1, users.getLong("b"));
+		assertEquals(2, period.getLong("otherusers"));
+	}
+
+	@Test
+	public void countsConcurrentSearches() throws Exception {
+		final Rollup rollup = new Rollup(4, INTERVAL, 100);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final String username = "user" + i;
+			Thread thread = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					rollup.record(NOW, "nearby", username, "OK", 2, false);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		JSONObject period = write(rollup, NOW).getJSONObject(0);
+		assertEquals(80000, period.getLong("searches"));
+		assertEquals(160000, period.getLong("results"));
+		assertEquals(8, period.getJSONObject("users").length());
+		assertEquals(10000, period.getJSONObject("users").getLong("user3"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesEmptyRing() {
+		new Rollup(0, INTERVAL, 10);
+	}
+
+	private static JSONArray write(Rollup rollup, long now) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonWriter json = new JsonWriter(out, false);
+		rollup.write(json, now);
+		json.close();
+		return new JSONArray(out.toString("UTF-8"));
+	}
+}
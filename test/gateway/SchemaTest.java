@@ -0,0 +1,198 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import log.Log;
+import util.TestUtils;
+
+public class SchemaTest {
+
+	// Tables as created by hand from the documentation of earlier versions
+	private static final String[] BASELINE = {
+			"CREATE TABLE searches (id serial primary key, sessionid uuid not null, "
+					+ "timestamp timestamp not null, searchtype text, user text, query text, "
+					+ "key text, location text, radius text, keyword text, language text, "
+					+ "minprice text, maxprice text, name text, opennow text, rankby text, "
+					+ "types text, pagetoken text, zagatselected text);",
+			"CREATE TABLE results (id serial primary key, sessionid uuid not null, "
+					+ "timestamp timestamp not null, user text, placeid text, lat real, lng real);",
+			"CREATE TABLE users (id serial primary key, sessionid uuid, "
+					+ "username text not null, salt text not null, passhash text not null);",
+			"INSERT INTO searches (sessionid, timestamp, searchtype, user, key) "
+					+ "VALUES ('s1', 1000, 'nearby', 'a', 'secret');",
+			"INSERT INTO searches (sessionid, timestamp, searchtype, user) "
+					+ "VALUES ('s2', 2000, 'text', 'b');",
+			"INSERT INTO results (sessionid, timestamp, user, placeid, lat, lng) "
+					+ "VALUES ('s1', 1000, 'a', 'p1', 1.0, 2.0);",
+			"INSERT INTO results (sessionid, timestamp, user, placeid, lat, lng) "
+					+ "VALUES ('s1', 1000, 'a', 'p2', 3.0, 4.0);",
+			"INSERT INTO results (sessionid, timestamp, user, placeid, lat, lng) "
+					+ "VALUES ('s2', 2000, 'b', 'p1', 1.5, 2.5);",
+			// A result without a place, and one whose search was never
+			// written
+			"INSERT INTO results (sessionid, timestamp, user, placeid, lat, lng) "
+					+ "VALUES ('s2', 2000, 'b', NULL, 0.0, 0.0);",
+			"INSERT INTO results (sessionid, timestamp, user, placeid, lat, lng) "
+					+ "VALUES ('s3', 3000, 'c', 'p3', 5.0, 6.0);",
+			"INSERT INTO users (username, salt, passhash) VALUES ('a', 'salt', 'hash');",
+			"INSERT INTO users (username, salt, passhash) VALUES ('a', 'other', 'other');" };
+
+	private File file;
+	private Connection connection;
+	private Log log;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("schema", ".db");
+		connection = DriverManager.getConnection("jdbc:sqlite:"
+				+ file.getPath());
+		log = TestUtils.silentLog();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		connection.close();
+		file.delete();
+	}
+
+	@Test
+	public void createsEmptyDatabase() throws Exception {
+		assertEquals(Schema.VERSION, Schema.migrate(connection, log));
+		assertEquals(0, Schema.migrate(connection, log));
+		assertEquals(Arrays.asList(String.valueOf(Schema.VERSION)),
+				query("PRAGMA user_version;"));
+		assertEquals(Arrays.asList("0"), query("SELECT COUNT(*) FROM results;"));
+	}
+
+	@Test
+	public void migratesBaselineDatabase() throws Exception {
+		execute(BASELINE);
+		assertEquals(Schema.VERSION, Schema.migrate(connection, log));
+
+		// Searches keep their row IDs, and the user column becomes username
+		assertEquals(Arrays.asList("1 s1 1000 nearby a", "2 s2 2000 text b",
+				"3 s3 3000 null c"), query("SELECT id, sessionid, timestamp, "
+				+ "searchtype, username FROM searches ORDER BY id;"));
+
+		// Results keep their row IDs and are linked to their searches, and
+		// results without a place are not kept
+		assertEquals(Arrays.asList("1 s1 a p1 1.5 2.5", "2 s1 a p2 3.0 4.0",
+				"3 s2 b p1 1.5 2.5", "5 s3 c p3 5.0 6.0"), query("SELECT id, "
+				+ "sessionid, username, placeid, lat, lng FROM results "
+				+ "ORDER BY id;"));
+		assertEquals(Arrays.asList("p1 1000 2000", "p2 1000 1000",
+				"p3 3000 3000"), query("SELECT placeid, firstseen, lastseen "
+				+ "FROM places ORDER BY placeid;"));
+
+		// Only the first of duplicate users is kept
+		assertEquals(Arrays.asList("1 a salt hash"),
+				query("SELECT id, username, salt, passhash FROM users;"));
+	}
+
+	@Test
+	public void resultsAreWrittenThroughView() throws Exception {
+		Schema.migrate(connection, log);
+		execute("INSERT INTO results (sessionid, timestamp, username, placeid, "
+				+ "lat, lng) VALUES ('s1', 1000, 'a', 'p1', 1.0, 2.0);",
+				"INSERT INTO results (sessionid, timestamp, username, placeid, "
+						+ "lat, lng) VALUES ('s1', 1000, 'a', 'p2', 3.0, 4.0);",
+				// An older result does not move the place
+				"INSERT INTO results (sessionid, timestamp, username, placeid, "
+						+ "lat, lng) VALUES ('s0', 500, 'b', 'p1', 9.0, 9.0);");
+
+		assertEquals(Arrays.asList("2"), query("SELECT COUNT(*) FROM searches;"));
+		assertEquals(Arrays.asList("p1 1.0 2.0 500 1000",
+				"p2 3.0 4.0 1000 1000"), query("SELECT placeid, lat, lng, "
+				+ "firstseen, lastseen FROM places ORDER BY placeid;"));
+		assertEquals(Arrays.asList("1"), query("SELECT COUNT(*) FROM "
+				+ "places_location WHERE minlat = 1.0 AND minlng = 2.0;"));
+		assertEquals(Arrays.asList("s0 b p1", "s1 a p1", "s1 a p2"),
+				query("SELECT sessionid, username, placeid FROM results "
+						+ "ORDER BY sessionid, placeid;"));
+	}
+
+	@Test
+	public void resumesFromEarlierVersion() throws Exception {
+		execute(BASELINE);
+		Schema.migrate(connection, log);
+		execute("DROP TABLE daily_usage;", "PRAGMA user_version = 4;");
+
+		// Only the last migration is applied again, so the data is kept
+		assertEquals(1, Schema.migrate(connection, log));
+		assertEquals(Arrays.asList("4"), query("SELECT COUNT(*) FROM results;"));
+		assertEquals(Arrays.asList("0"),
+				query("SELECT COUNT(*) FROM daily_usage;"));
+	}
+
+	@Test
+	public void refusesNewerSchema() throws Exception {
+		execute("PRAGMA user_version = " + (Schema.VERSION + 1) + ";");
+		try {
+			Schema.migrate(connection, log);
+			fail("Migrated a newer schema");
+		} catch (SQLException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void failedMigrationIsRolledBack() throws Exception {
+		// A table in the way of migration 4
+		execute("CREATE TABLE places (id INTEGER);");
+		try {
+			Schema.migrate(connection, log);
+			fail("Migrated over a conflicting table");
+		} catch (SQLException e) {
+			// Expected
+		}
+		assertEquals(Arrays.asList("0"), query("PRAGMA user_version;"));
+		assertEquals(Arrays.asList("places"), query("SELECT name FROM "
+				+ "sqlite_master WHERE type = 'table';"));
+	}
+
+	private void execute(String... sql) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			for (String s : sql) {
+				statement.execute(s);
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	private List<String> query(String sql) throws SQLException {
+		List<String> rows = new ArrayList<String>();
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery(sql);
+			int columns = resultSet.getMetaData().getColumnCount();
+			while (resultSet.next()) {
+				StringBuilder row = new StringBuilder();
+				for (int i = 1; i <= columns; i++) {
+					row.append(i == 1 ? "" : " ").append(resultSet.getString(i));
+				}
+				rows.add(row.toString());
+			}
+		} finally {
+			statement.close();
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,131 @@
+package gateway;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SearchRelayTest {
+
+	private static final String BODY = "{\"html_attributions\":[],\"results\":["
+			+ "{\"geometry\":{\"location\":{\"lat\":1.5,\"lng\":2.5}},\"place_id\":\"a\"},"
+			+ "{\"geometry\":{\"location\":{\"lat\":3.5,\"lng\":4.5}},\"place_id\":\"b\"}"
+			+ "],\"status\":\"OK\"}";
+
+	@Test
+	public void relaysWithoutKeepingBody() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PlaceResultScanner scanner = new PlaceResultScanner();
+		AtomicInteger checks = new AtomicInteger();
+		SearchRelay relay = new SearchRelay(new Response(out, true, true),
+				scanner, () -> checks.incrementAndGet() < 0);
+
+		UpstreamResponse response = relay(relay);
+
+		assertEquals(1, checks.get());
+		assertTrue(relay.isRelayed());
+		assertNull(relay.getRelayError());
+		assertEquals(0, response.getBodyBytes().length);
+		assertEquals(Collections.singletonList("Content-Type: application/json"),
+				response.getHeaders());
+		assertTrue(out.toString("ISO-8859-1").endsWith(BODY));
+		assertEquals("OK", scanner.getStatus());
+		assertEquals(2, scanner.getResultCount());
+		assertEquals("b", scanner.getPlaceId(1));
+	}
+
+	@Test
+	public void keepsBodyWhenNeeded() throws Exception {
+		SearchRelay relay = new SearchRelay(new Response(
+				new ByteArrayOutputStream(), true, true),
+				new PlaceResultScanner(), () -> true);
+
+		assertArrayEquals(BODY.getBytes(StandardCharsets.UTF_8),
+				relay(relay).getBodyBytes());
+	}
+
+	@Test
+	public void refusesErrorStatus() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SearchRelay relay = new SearchRelay(new Response(out, true, true),
+				new PlaceResultScanner(), () -> true);
+		try {
+			relay.handle(500, "Internal Server Error",
+					Collections.<String> emptyList(), 0,
+					new ByteArrayInputStream(new byte[0]));
+			fail("Error status was relayed");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals(0, out.size());
+	}
+
+	@Test
+	public void keepsContentLength() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SearchRelay relay = new SearchRelay(new Response(out, true, true),
+				new PlaceResultScanner(), () -> false);
+		relay(relay);
+
+		String response = out.toString("ISO-8859-1");
+		assertTrue(response, response.contains("Content-Length: "
+				+ BODY.length() + "\r\n"));
+		assertFalse(response, response.contains("Set-Cookie"));
+		assertFalse(response, response.contains("Transfer-Encoding"));
+	}
+
+	@Test
+	public void refusesContentEncoding() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SearchRelay relay = new SearchRelay(new Response(out, true, true),
+				new PlaceResultScanner(), () -> true);
+		try {
+			relay.handle(200, "OK", Arrays.asList("Content-Encoding: gzip"),
+					0, new ByteArrayInputStream(new byte[0]));
+			fail("Encoded body was relayed");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertFalse(relay.isRelayed());
+		assertEquals(0, out.size());
+	}
+
+	@Test
+	public void keepsReadingForWaitingCallersAfterClientFails()
+			throws Exception {
+		PlaceResultScanner scanner = new PlaceResultScanner();
+		SearchRelay relay = new SearchRelay(new Response(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("Client disconnected");
+			}
+		}, true, true), scanner, () -> true);
+
+		UpstreamResponse response = relay(relay);
+		assertTrue(relay.getRelayError() != null);
+		assertArrayEquals(BODY.getBytes(StandardCharsets.UTF_8),
+				response.getBodyBytes());
+		assertEquals(2, scanner.getResultCount());
+	}
+
+	private static UpstreamResponse relay(SearchRelay relay)
+			throws IOException {
+		byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+		return relay.handle(200, "OK", Arrays.asList(
+				"Content-Type: application/json", "Set-Cookie: a=b"),
+				body.length, new ByteArrayInputStream(body));
+	}
+}
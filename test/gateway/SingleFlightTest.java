@@ -0,0 +1,152 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	private final SingleFlight<String> flight = new SingleFlight<String>();
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void sharesResultWithWaitingCallers() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<String> leader = executor.submit(() -> flight.execute("key",
+				() -> {
+					started.countDown();
+					await(release);
+					return new String("result");
+				}));
+		started.await();
+
+		Future<String> follower = executor.submit(() -> flight.execute("key",
+				() -> "own"));
+		while (flight.getCoalescedCount() == 0) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+
+		assertSame(leader.get(), follower.get());
+		assertEquals(1, flight.getExecutedCount());
+		assertEquals(0, flight.getInFlightCount());
+	}
+
+	@Test
+	public void sharesFailure() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		executor.submit(() -> flight.execute("key", () -> {
+			started.countDown();
+			await(release);
+			throw new IOException("failed");
+		}));
+		started.await();
+
+		Future<String> follower = executor.submit(() -> flight.execute("key",
+				() -> "own"));
+		while (flight.getCoalescedCount() == 0) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+
+		try {
+			follower.get();
+			fail("Follower did not fail");
+		} catch (Exception e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void detachedCallIsNotShared() throws Exception {
+		CountDownLatch detached = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<String> leader = executor.submit(() -> flight.execute("key",
+				() -> {
+					assertTrue(flight.detach("key"));
+					detached.countDown();
+					await(release);
+					return "leader";
+				}));
+		detached.await();
+
+		// A later caller performs its own call
+		assertEquals("own", flight.execute("key", () -> "own"));
+		release.countDown();
+		assertEquals("leader", leader.get());
+		assertEquals(2, flight.getExecutedCount());
+		assertEquals(0, flight.getCoalescedCount());
+	}
+
+	@Test
+	public void callWithWaitingCallersIsNotDetached() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<Boolean> detach = executor.submit(() -> {
+			boolean[] result = new boolean[1];
+			flight.execute("key", () -> {
+				started.countDown();
+				await(release);
+				result[0] = flight.detach("key");
+				return "leader";
+			});
+			return result[0];
+		});
+		started.await();
+
+		Future<String> follower = executor.submit(() -> flight.execute("key",
+				() -> "own"));
+		while (flight.getCoalescedCount() == 0) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+
+		assertFalse(detach.get());
+		assertEquals("leader", follower.get());
+	}
+
+	@Test
+	public void otherThreadsCannotDetach() throws Exception {
+		assertTrue(flight.detach("key"));
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		executor.submit(() -> flight.execute("key", () -> {
+			started.countDown();
+			await(release);
+			return "leader";
+		}));
+		started.await();
+
+		assertTrue(flight.detach("key"));
+		assertEquals(1, flight.getInFlightCount());
+		release.countDown();
+	}
+
+	private static void await(CountDownLatch latch) throws IOException {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import util.TestUtils;
+
+public class StubPlacesServerTest {
+
+	private StubPlacesServer stub;
+	private Gateway gateway;
+	private int port;
+
+	@After
+	public void tearDown() throws Exception {
+		if (gateway != null) {
+			gateway.shutdown();
+		}
+		if (stub != null) {
+			stub.stop();
+		}
+	}
+
+	@Test
+	public void createsBodyWithResults() throws Exception {
+		JSONObject body = new JSONObject(new String(
+				StubPlacesServer.createBody(3), StandardCharsets.UTF_8));
+		assertEquals("OK", body.getString("status"));
+		assertEquals(3, body.getJSONArray("results").length());
+		assertEquals("stub-place-2", body.getJSONArray("results")
+				.getJSONObject(2).getString("place_id"));
+	}
+
+	@Test
+	public void servesRadarSearchesWithMoreResults() throws Exception {
+		start(0);
+		JSONObject response = search("nearbysearch?location=1,2&radius=1");
+		assertEquals("OK", response.getString("status"));
+		assertEquals(2, response.getJSONArray("results").length());
+
+		response = search("radarsearch?location=1,2&radius=1&keyword=a");
+		assertEquals(5, response.getJSONArray("results").length());
+		assertEquals(2, stub.getSearchCount());
+		assertEquals(0, stub.getErrorCount());
+	}
+
+	@Test
+	public void injectsErrors() throws Exception {
+		start(1);
+		JSONObject response = search("nearbysearch?location=1,2&radius=1");
+		assertNotEquals("OK", response.getString("status"));
+		assertEquals(1, stub.getErrorCount());
+	}
+
+	private void start(double errorRate) throws Exception {
+		stub = new StubPlacesServer(0, 0, 2, 5, errorRate);
+		port = TestUtils.getFreePort();
+		gateway = TestUtils.startGateway(port, stub, new Properties());
+	}
+
+	private JSONObject search(String path) throws Exception {
+		HttpURLConnection connection = TestUtils.openConnection(port, path);
+		try {
+			return new JSONObject(TestUtils.readBody(connection));
+		} finally {
+			connection.disconnect();
+		}
+	}
+}
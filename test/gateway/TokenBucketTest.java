@@ -0,0 +1,80 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void allowsBurstThenRate() {
+		TokenBucket bucket = new TokenBucket(10, 3);
+		long now = System.nanoTime();
+		assertEquals(0, bucket.tryAcquire(now));
+		assertEquals(0, bucket.tryAcquire(now));
+		assertEquals(0, bucket.tryAcquire(now));
+		assertEquals(SECOND / 10, bucket.tryAcquire(now));
+
+		// A token is added every tenth of a second
+		assertEquals(0, bucket.tryAcquire(now + SECOND / 10));
+		assertTrue(bucket.tryAcquire(now + SECOND / 10) > 0);
+	}
+
+	@Test
+	public void doesNotSaveTokensPastBurst() {
+		TokenBucket bucket = new TokenBucket(10, 2);
+		long now = System.nanoTime() + 10 * SECOND;
+		assertTrue(bucket.isFull(now));
+		assertEquals(0, bucket.tryAcquire(now));
+		assertFalse(bucket.isFull(now));
+		assertEquals(0, bucket.tryAcquire(now));
+		assertTrue(bucket.tryAcquire(now) > 0);
+	}
+
+	@Test
+	public void releasedTokensCanBeTakenAgain() {
+		TokenBucket bucket = new TokenBucket(1, 1);
+		long now = System.nanoTime();
+		assertEquals(0, bucket.tryAcquire(now));
+		assertTrue(bucket.tryAcquire(now) > 0);
+		bucket.release();
+		assertTrue(bucket.isFull(now));
+		assertEquals(0, bucket.tryAcquire(now));
+	}
+
+	@Test
+	public void concurrentTakesDoNotExceedBurst() throws Exception {
+		TokenBucket bucket = new TokenBucket(0.001, 1000);
+		long now = System.nanoTime();
+		int[] taken = new int[8];
+		Thread[] threads = new Thread[taken.length];
+		for (int i = 0; i < threads.length; i++) {
+			int thread = i;
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 1000; j++) {
+					if (bucket.tryAcquire(now) == 0) {
+						taken[thread]++;
+					}
+				}
+			});
+			threads[i].start();
+		}
+		int total = 0;
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			total += taken[i];
+		}
+		assertEquals(1000, total);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidBurst() {
+		new TokenBucket(1, 0);
+	}
+}
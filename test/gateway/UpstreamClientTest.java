@@ -0,0 +1,166 @@
+package gateway;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UpstreamClientTest {
+
+	private static final String RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+
+	private ServerSocket serverSocket;
+	private Thread server;
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+	private UpstreamClient client;
+
+	// Whether the server answers the second request on a connection by
+	// closing it rather than by never answering
+	private volatile boolean closeSecond;
+
+	// Whether the server answers every request, and its response
+	private volatile boolean answerAll;
+	private volatile String response = RESPONSE;
+
+	@Before
+	public void setUp() throws Exception {
+		serverSocket = new ServerSocket(0);
+		server = new Thread(this::serve);
+		server.setDaemon(true);
+		server.start();
+		client = new UpstreamClient(SocketFactory.getDefault(), "localhost",
+				serverSocket.getLocalPort(), 80, 1, 60000, 1000, 500);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		serverSocket.close();
+	}
+
+	@Test
+	public void closedConnectionIsRetried() throws Exception {
+		closeSecond = true;
+		assertEquals(200, client.get("/").getStatusCode());
+		assertEquals(200, client.get("/").getStatusCode());
+
+		assertEquals(1, client.getRetryCount());
+		assertEquals(2, connections.get());
+		assertEquals(3, requests.get());
+	}
+
+	@Test
+	public void timeoutIsNotRetried() throws Exception {
+		closeSecond = false;
+		assertEquals(200, client.get("/").getStatusCode());
+		try {
+			client.get("/");
+			fail("Request did not time out");
+		} catch (SocketTimeoutException e) {
+			// Expected
+		}
+
+		assertEquals(0, client.getRetryCount());
+		assertEquals(1, connections.get());
+		assertEquals(2, requests.get());
+	}
+
+	@Test
+	public void decodesChunkedBody() throws Exception {
+		answerAll = true;
+		response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n"
+				+ "Content-Type: application/json\r\nKeep-Alive: timeout=5\r\n\r\n"
+				+ "3\r\n{\"a\r\n6;ext=1\r\n\":1}\n\n\r\n0\r\nTrailer: x\r\n\r\n";
+		UpstreamResponse first = client.get("/");
+		assertEquals("{\"a\":1}\n\n", first.getBody());
+		assertEquals(Collections.singletonList("Content-Type: application/json"),
+				first.getHeaders());
+
+		// The trailer was consumed, so the connection is reused
+		assertEquals("{\"a\":1}\n\n", client.get("/").getBody());
+		assertEquals(1, connections.get());
+		assertEquals(1, client.getReusedCount());
+	}
+
+	@Test
+	public void discardsUnreadBody() throws Exception {
+		answerAll = true;
+		response = "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n0123456789";
+		assertEquals(Integer.valueOf('0'), client.get("/", (statusCode,
+				reasonPhrase, headers, contentLength, body) -> body.read()));
+		assertEquals("0123456789", client.get("/").getBody());
+		assertEquals(1, connections.get());
+	}
+
+	@Test
+	public void closeDelimitedBodyIsNotReused() throws Exception {
+		answerAll = true;
+		response = "HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nbody";
+		assertEquals("body", client.get("/").getBody());
+		assertEquals(0, client.getIdleCount());
+	}
+
+	/**
+	 * Answers the first request on each connection, and closes the connection
+	 * or stops answering on the second, unless every request is answered.
+	 */
+	private void serve() {
+		while (true) {
+			try {
+				Socket socket = serverSocket.accept();
+				connections.incrementAndGet();
+				Thread handler = new Thread(() -> handle(socket));
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			OutputStream out = socket.getOutputStream();
+			for (int i = 0;; i++) {
+				String line;
+				while ((line = in.readLine()) != null && !line.isEmpty()) {
+					continue;
+				}
+				if (line == null) {
+					break;
+				}
+				requests.incrementAndGet();
+				if (i == 0 || answerAll || connections.get() > 1) {
+					out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+					if (response.contains("Connection: close")) {
+						break;
+					}
+				} else if (closeSecond) {
+					break;
+				}
+			}
+			socket.close();
+		} catch (IOException e) {
+			// The client closed the connection
+		}
+	}
+}
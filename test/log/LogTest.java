@@ -0,0 +1,164 @@
+package log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import log.Log.Level;
+
+public class LogTest {
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+	@Test
+	public void writesUnbufferedMessagesAtOnce() throws Exception {
+		Log log = new Log(new PrintStream(out), new PrintStream(err));
+		log.i("info");
+		log.d("debug");
+		log.e("error", new IllegalStateException("cause"));
+
+		assertEquals(0, log.getCapacity());
+		assertEquals(Level.INFO, log.getLevel());
+		assertEquals(1, lines(out).size());
+		assertTrue(lines(out).get(0).endsWith(": info"));
+		assertTrue(lines(err).get(0).endsWith(": error"));
+		assertTrue(lines(err).get(1).contains("IllegalStateException: cause"));
+	}
+
+	@Test
+	public void filtersMessagesByLevel() throws Exception {
+		Log log = new Log(new PrintStream(out), null, Level.DEBUG, 0, 0, 0);
+		assertTrue(log.isEnabled(Level.DEBUG));
+		assertFalse(log.isEnabled(Level.ERROR));
+		log.d("debug");
+		log.e("error");
+		assertEquals(1, lines(out).size());
+
+		log = new Log(new PrintStream(out), new PrintStream(err), Level.ERROR,
+				0, 0, 0);
+		assertFalse(log.isEnabled(Level.INFO));
+		assertTrue(log.isEnabled(Level.ERROR));
+		assertEquals(Level.ERROR, Level.parse(" error "));
+	}
+
+	@Test
+	public void writesBufferedMessagesInOrder() throws Exception {
+		Log log = new Log(new PrintStream(out), new PrintStream(err),
+				Level.INFO, 1000, 16, 1000);
+		assertEquals(1024, log.getCapacity());
+		for (int i = 0; i < 100; i++) {
+			log.i("message " + i);
+		}
+		log.e("error");
+		log.close();
+
+		List<String> lines = lines(out);
+		assertEquals(100, lines.size());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(lines.get(i).endsWith(": message " + i));
+		}
+		assertEquals(1, lines(err).size());
+		assertEquals(0, log.getQueuedCount());
+		assertEquals(0, log.getDroppedCount());
+
+		// Messages logged after closing are written at once
+		log.i("late");
+		assertTrue(lines(out).get(100).endsWith(": late"));
+	}
+
+	@Test
+	public void writesBufferedMessagesAfterFlushInterval() throws Exception {
+		Log log = new Log(new PrintStream(out), null, Level.INFO, 16, 16, 10);
+		try {
+			log.i("waiting");
+			for (int i = 0; i < 100 && out.size() == 0; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, lines(out).size());
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void dropsMessagesWhenBufferIsFull() throws Exception {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		OutputStream blocking = new OutputStream() {
+			@Override
+			public void write(int b) {
+				out.write(b);
+			}
+
+			@Override
+			public void flush() {
+				// Hold the background thread until the buffer has filled
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		Log log = new Log(new PrintStream(blocking), null, Level.INFO, 4, 1,
+				1000);
+		log.i("first");
+		assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+		for (int i = 0; i < 10; i++) {
+			log.i("message " + i);
+		}
+		assertEquals(4, log.getQueuedCount());
+		assertEquals(6, log.getDroppedCount());
+
+		release.countDown();
+		log.close();
+		List<String> lines = lines(out);
+		assertEquals(5, lines.size());
+		assertTrue(lines.get(4).endsWith(": message 3"));
+	}
+
+	@Test
+	public void countsMessagesFromManyThreads() throws Exception {
+		final Log log = new Log(new PrintStream(out), null, Level.INFO, 1 << 16,
+				64, 10);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(() -> {
+				for (int j = 0; j < 1000; j++) {
+					log.i("message");
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		log.close();
+		assertEquals(8000, lines(out).size());
+		assertEquals(0, log.getDroppedCount());
+	}
+
+	private static List<String> lines(ByteArrayOutputStream stream) {
+		List<String> lines = new ArrayList<String>();
+		for (String line : stream.toString().split(System.lineSeparator())) {
+			if (!line.isEmpty()) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+}
@@ -1,21 +1,40 @@
 package util;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
 import java.net.URL;
 import java.net.URLConnection;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Properties;
+
+import db.ConnectionPool;
+import gateway.Gateway;
+import gateway.Schema;
+import gateway.StubPlacesServer;
+import log.Log;
 
 public abstract class TestUtils {
 
 	private static final String CLEAR_SEARCHES = "DELETE FROM searches;";
-	private static final String CLEAR_RESULTS = "DELETE FROM results;";
+	// Results are a view of the links between searches and places
+	private static final String CLEAR_LINKS = "DELETE FROM search_places;";
+	private static final String CLEAR_PLACES = "DELETE FROM places;";
 	private static final String CLEAR_USERS = "DELETE FROM users;";
 
+	private static final String GATEWAY_URL = "http://localhost:%d/google-places-api-gateway/%s";
+	private static final int CONNECT_ATTEMPTS = 50;
+	private static final long CONNECT_RETRY_MILLIS = 100;
+
 	public static void doRequest(String spec) throws IOException {
 		// Print request and make connection
 		System.out.format("Request:%n%s%n%n", spec);
@@ -49,8 +68,9 @@ public abstract class TestUtils {
 
 			// Execute the queries
 			statement = connection.createStatement();
+			statement.executeUpdate(CLEAR_LINKS);
+			statement.executeUpdate(CLEAR_PLACES);
 			statement.executeUpdate(CLEAR_SEARCHES);
-			statement.executeUpdate(CLEAR_RESULTS);
 			statement.executeUpdate(CLEAR_USERS);
 
 		} catch (SQLException e) {
@@ -69,4 +89,90 @@ public abstract class TestUtils {
 			}
 		}
 	}
+
+	public static Log silentLog() {
+		// A log without streams writes nothing
+		return new Log(null, null);
+	}
+
+	public static ConnectionPool openDatabase(File file) {
+		return new ConnectionPool("jdbc:sqlite:" + file.getPath(),
+				new Properties(), 2, 0, 5000, 0, 16);
+	}
+
+	public static ConnectionPool createDatabase(File file) throws SQLException {
+		// Open a pool of connections to the database and create its tables
+		ConnectionPool connectionPool = openDatabase(file);
+		migrate(connectionPool);
+		return connectionPool;
+	}
+
+	public static void migrate(ConnectionPool connectionPool)
+			throws SQLException {
+		Connection connection = connectionPool.getConnection();
+		try {
+			Schema.migrate(connection, silentLog());
+		} finally {
+			connection.close();
+		}
+	}
+
+	public static int getFreePort() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0);
+		try {
+			return serverSocket.getLocalPort();
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	public static Gateway startGateway(int port, StubPlacesServer stub,
+			Properties properties) {
+		// Send searches to the stub rather than the Google Places API
+		properties.setProperty("api.scheme", "http");
+		properties.setProperty("api.host", "localhost");
+		properties.setProperty("api.port", String.valueOf(stub.getPort()));
+
+		Gateway gateway = new Gateway(port, null, properties, null, null);
+		gateway.start();
+		return gateway;
+	}
+
+	public static HttpURLConnection openConnection(int port, String path)
+			throws IOException, InterruptedException {
+		URL url = new URL(String.format(GATEWAY_URL, port, path));
+
+		// The gateway starts listening shortly after it is started
+		for (int attempt = 1;; attempt++) {
+			HttpURLConnection connection = (HttpURLConnection) url
+					.openConnection();
+			try {
+				connection.connect();
+				return connection;
+			} catch (ConnectException e) {
+				if (attempt == CONNECT_ATTEMPTS) {
+					throw e;
+				}
+				Thread.sleep(CONNECT_RETRY_MILLIS);
+			}
+		}
+	}
+
+	public static String readBody(HttpURLConnection connection)
+			throws IOException {
+		// Error responses have their body in the error stream
+		InputStream in = connection.getResponseCode() < 400 ? connection
+				.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				body.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return body.toString("UTF-8");
+	}
 }